@@ -2,36 +2,86 @@ package org.avasquez.seccloudfs.amazon;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.transfer.TransferManager;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.IOUtils;
-import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.ParallelTransferCloudStore;
 import org.infinispan.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Amazon S3 implementation of {@link org.avasquez.seccloudfs.cloud.CloudStore}. The implementation is synchronized
- * to avoid too many open connections (while testing, a lot of HTTP connections failed in the server side).
+ * Amazon S3 implementation of {@link org.avasquez.seccloudfs.cloud.CloudStore}. The implementation is not
+ * synchronized: to avoid too many open connections (while testing, a lot of HTTP connections failed in the server
+ * side), decorate the store with a {@code ConcurrencyLimitingCloudStore}.
+ *
+ * <p>If a task executor is set, objects bigger than the part size are transferred in parts, several at the same
+ * time: uploads use a multipart upload whose parts are uploaded concurrently, and downloads use concurrent ranged
+ * GETs. Data up to the part size, like the slices of the file system, is always transferred with a single request.
+ * When the source of an upload or the target of a download is a {@link java.nio.channels.FileChannel}, each part is
+ * read or written positionally by the task that transfers it; otherwise the parts are read from the source, or
+ * written to the target, in order by the calling thread. The store reports how many parts a transfer sends at the
+ * same time, so that a {@code ConcurrencyLimitingCloudStore} counts each of them as an operation, and sends fewer at
+ * the same time if the limiter grants less.</p>
+ *
+ * <p>Deletes use the S3 multi-object delete API, with up to 1000 keys per request. Single deletes are grouped like
+ * in a group commit: a delete is sent at once when no delete request is in flight, and the deletes that arrive while
+ * a request is in flight are coalesced in the next one. Optionally, a delete window makes the first delete wait for
+ * others before sending the request, which is sent anyway as soon as it's full.</p>
+ *
+ * <p>No operation checks the object with a HEAD request first: downloads go straight to the GET, and treat a 404 as
+ * not found, and deletes are idempotent. Only {@link #exists(String)}, which is an explicit check, sends a HEAD. The
+ * metadata cache is only filled by uploads and existence checks, and only used by downloads to know in advance the
+ * size of the object. On a cache miss, the first range of a parallel download also tells the
+ * size of the object.</p>
  *
  * @author avasquez
  */
-public class AmazonS3CloudStore implements CloudStore {
+public class AmazonS3CloudStore implements ParallelTransferCloudStore {
 
     private static final Logger logger = LoggerFactory.getLogger(AmazonS3CloudStore.class);
 
     private static final String BINARY_MIME_TYPE = "application/octet-stream";
+    private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_KEYS_PER_DELETE = 1000;
 
     private String name;
     private AmazonS3 s3;
@@ -39,6 +89,16 @@ public class AmazonS3CloudStore implements CloudStore {
     private String bucketName;
     private long chunkedUploadThreshold;
     private Cache<String, ObjectMetadata> metadataCache;
+    private long partSize;
+    private int maxConcurrentParts;
+    private Executor taskExecutor;
+    private long deleteWindowMillis;
+
+    private final Lock deleteLock;
+    private final Condition deleteBatchFull;
+    private final Condition deleteBatchDone;
+    private DeleteBatch currentDeleteBatch;
+    private boolean deleting;
 
     public AmazonS3CloudStore(String name, AmazonS3 s3, TransferManager transferManager, String bucketName,
                               long chunkedUploadThreshold, Cache<String, ObjectMetadata> metadataCache) {
@@ -48,6 +108,51 @@ public class AmazonS3CloudStore implements CloudStore {
         this.bucketName = bucketName;
         this.chunkedUploadThreshold = chunkedUploadThreshold;
         this.metadataCache = metadataCache;
+        this.partSize = 8 * 1024 * 1024;
+        this.maxConcurrentParts = 4;
+        this.deleteLock = new ReentrantLock();
+        this.deleteBatchFull = deleteLock.newCondition();
+        this.deleteBatchDone = deleteLock.newCondition();
+        this.currentDeleteBatch = new DeleteBatch();
+    }
+
+    /**
+     * Sets the size of the parts of parallel uploads and downloads. S3 doesn't accept parts smaller than 5MB.
+     * Defaults to 8MB.
+     */
+    public void setPartSize(long partSize) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("The part size should be at least " + MIN_PART_SIZE + " bytes");
+        }
+
+        this.partSize = partSize;
+    }
+
+    /**
+     * Sets the max number of parts of a single upload or download that are transferred at the same time. Defaults
+     * to 4.
+     */
+    public void setMaxConcurrentParts(int maxConcurrentParts) {
+        this.maxConcurrentParts = Math.max(1, maxConcurrentParts);
+    }
+
+    /**
+     * Sets the executor that transfers the parts of big objects in parallel. Since the caller waits for the parts,
+     * the executor shouldn't be limited to the threads of the callers. If not set, uploads over the chunked upload
+     * threshold are done through the {@link com.amazonaws.services.s3.transfer.TransferManager}, and downloads with a
+     * single GET.
+     */
+    public void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Sets how long a single delete that finds no delete request in flight waits for other single deletes, so that
+     * they're all deleted in the same request. The request is sent before the window ends if it's full. Defaults to
+     * 0, so the delete is sent at once, and only the deletes that arrive while it's in flight are coalesced.
+     */
+    public void setDeleteWindowMillis(long deleteWindowMillis) {
+        this.deleteWindowMillis = deleteWindowMillis;
     }
 
     @PostConstruct
@@ -82,28 +187,33 @@ public class AmazonS3CloudStore implements CloudStore {
     }
 
     @Override
-    public synchronized void upload(String id, ReadableByteChannel src, long length) throws IOException {
-        logger.debug("Started uploading {}/{}", name, id);
+    public void upload(String id, ReadableByteChannel src, long length) throws IOException {
+        upload(id, src, length, maxConcurrentParts);
+    }
 
-        ObjectMetadata metadata = getMetadata(id);
-        if (metadata == null) {
-            metadata = new ObjectMetadata();
-        }
+    @Override
+    public void upload(String id, ReadableByteChannel src, long length, int maxRequests) throws IOException {
+        logger.debug("Started uploading {}/{}", name, id);
 
+        ObjectMetadata metadata = new ObjectMetadata();
         metadata.setContentType(BINARY_MIME_TYPE);
         metadata.setContentLength(length);
 
         try {
             InputStream content = Channels.newInputStream(src);
 
-            if (length < chunkedUploadThreshold) {
-                logger.debug("Using direct upload for {}/{}", name, id);
+            if (taskExecutor != null && length > partSize) {
+                logger.debug("Using parallel multipart upload for {}/{}", name, id);
 
-                s3.putObject(bucketName, id, content, metadata);
-            } else {
+                uploadParts(id, src, length, metadata, maxRequests);
+            } else if (taskExecutor == null && length >= chunkedUploadThreshold) {
                 logger.debug("Using chunked upload for {}/{}", name, id);
 
                 transferManager.upload(bucketName, id, content, metadata).waitForCompletion();
+            } else {
+                logger.debug("Using direct upload for {}/{}", name, id);
+
+                s3.putObject(bucketName, id, content, metadata);
             }
         } catch (Exception e) {
             throw new IOException("Error uploading " + name + "/" + id, e);
@@ -114,21 +224,70 @@ public class AmazonS3CloudStore implements CloudStore {
         logger.debug("Finished uploading {}/{}", name, id);
     }
 
+    /**
+     * Returns the number of parts uploaded at the same time by a parallel multipart upload of the specified length,
+     * or 1 if the upload is a single request. Uploads through the
+     * {@link com.amazonaws.services.s3.transfer.TransferManager} are counted as a single request, since the transfer
+     * manager has its own thread pool.
+     */
+    @Override
+    public int getMaxUploadRequests(long length) {
+        if (taskExecutor != null && length > partSize) {
+            return getMaxConcurrentParts(length);
+        } else {
+            return 1;
+        }
+    }
+
+    /**
+     * Returns the number of ranges downloaded at the same time by a parallel ranged download of the data, or 1 if
+     * the data is downloaded with a single GET. When the size of the data is not cached, the download is counted as
+     * a single request, since most data in the store (slices and packs) is smaller than a part.
+     */
     @Override
-    public synchronized void download(String id, WritableByteChannel target) throws IOException {
-        ObjectMetadata metadata = getMetadata(id);
-        if (metadata == null) {
-            throw new FileNotFoundException("No file " + name + "/" + id + " found");
+    public int getMaxDownloadRequests(String id) {
+        if (taskExecutor != null) {
+            ObjectMetadata metadata = metadataCache.get(id);
+            if (metadata != null && metadata.getContentLength() > partSize) {
+                return getMaxConcurrentParts(metadata.getContentLength());
+            }
         }
 
+        return 1;
+    }
+
+    @Override
+    public void download(String id, WritableByteChannel target) throws IOException {
+        download(id, target, maxConcurrentParts);
+    }
+
+    @Override
+    public void download(String id, WritableByteChannel target, int maxRequests) throws IOException {
         logger.debug("Started downloading {}/{}", name, id);
 
         try {
-            S3Object s3Object = s3.getObject(bucketName, id);
-
-            try (InputStream in = s3Object.getObjectContent()) {
-                IOUtils.copy(in, Channels.newOutputStream(target));
+            if (taskExecutor != null) {
+                ObjectMetadata metadata = metadataCache.get(id);
+                if (metadata != null) {
+                    if (metadata.getContentLength() > partSize) {
+                        logger.debug("Using parallel ranged download for {}/{}", name, id);
+
+                        downloadRanges(id, 0, metadata.getContentLength(), target, maxRequests);
+                    } else {
+                        downloadObject(id, target);
+                    }
+                } else {
+                    downloadFirstRangeAndRest(id, target, maxRequests);
+                }
+            } else {
+                downloadObject(id, target);
             }
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                throw new FileNotFoundException("No file " + name + "/" + id + " found");
+            }
+
+            throw new IOException("Error downloading " + name + "/" + id, e);
         } catch (Exception e) {
             throw new IOException("Error downloading " + name + "/" + id, e);
         }
@@ -137,38 +296,429 @@ public class AmazonS3CloudStore implements CloudStore {
     }
 
     @Override
-    public synchronized void delete(String id) throws IOException {
-        ObjectMetadata metadata = getMetadata(id);
-        if (metadata != null) {
-            logger.debug("Deleting {}/{}", name, id);
+    public boolean exists(String id) throws IOException {
+        try {
+            metadataCache.put(id, s3.getObjectMetadata(bucketName, id));
+
+            return true;
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                metadataCache.remove(id);
+
+                return false;
+            }
+
+            throw new IOException("Error checking " + name + "/" + id, e);
+        } catch (Exception e) {
+            throw new IOException("Error checking " + name + "/" + id, e);
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        DeleteBatch batch;
+        boolean leader;
+
+        deleteLock.lock();
+        try {
+            batch = currentDeleteBatch;
+            batch.keys.add(id);
+
+            if (batch.keys.size() >= MAX_KEYS_PER_DELETE) {
+                deleteBatchFull.signal();
+            }
 
             try {
-                s3.deleteObject(bucketName, id);
-            } catch (Exception e) {
-                throw new IOException("Error deleting " + name + "/" + id, e);
+                while (deleting && !batch.done) {
+                    deleteBatchDone.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new IOException("Interrupted while waiting for the deletion of " + name + "/" + id, e);
+            }
+
+            leader = !batch.done;
+
+            if (leader) {
+                // No delete request in flight, so this delete sends the batch
+                deleting = true;
+
+                awaitDeleteWindow(batch);
+
+                currentDeleteBatch = new DeleteBatch();
+            }
+        } finally {
+            deleteLock.unlock();
+        }
+
+        if (leader) {
+            Map<String, IOException> failures;
+            try {
+                failures = deleteKeys(batch.keys);
+            } catch (RuntimeException e) {
+                failures = new HashMap<>();
+                for (String key : batch.keys) {
+                    failures.put(key, new IOException("Error deleting " + name + "/" + key, e));
+                }
+            }
+
+            deleteLock.lock();
+            try {
+                batch.failures = failures;
+                batch.done = true;
+                deleting = false;
+
+                deleteBatchDone.signalAll();
+            } finally {
+                deleteLock.unlock();
+            }
+        }
+
+        IOException failure = batch.failures.get(id);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void delete(Collection<String> ids) throws IOException {
+        Map<String, IOException> failures = deleteKeys(ids);
+
+        if (!failures.isEmpty()) {
+            IOException failure = new IOException("Unable to delete " + failures.size() + " of " + ids.size() +
+                                                  " objects from " + name);
+            for (IOException e : failures.values()) {
+                failure.addSuppressed(e);
             }
+
+            throw failure;
         }
     }
 
-    private ObjectMetadata getMetadata(String filename) throws IOException {
-        logger.debug("Retrieving metadata for {}/{}", name, filename);
+    /**
+     * Deletes the keys with as few multi-object delete requests as possible. Keys that don't exist are considered
+     * deleted.
+     *
+     * @return the failures of the keys that couldn't be deleted, by key
+     */
+    private Map<String, IOException> deleteKeys(Collection<String> keys) {
+        List<String> keyList = new ArrayList<>(keys);
+        Map<String, IOException> failures = new HashMap<>();
+
+        for (int i = 0; i < keyList.size(); i += MAX_KEYS_PER_DELETE) {
+            List<String> requestKeys = keyList.subList(i, Math.min(i + MAX_KEYS_PER_DELETE, keyList.size()));
+            List<DeleteObjectsRequest.KeyVersion> keyVersions = new ArrayList<>(requestKeys.size());
+
+            for (String key : requestKeys) {
+                keyVersions.add(new DeleteObjectsRequest.KeyVersion(key));
+            }
+
+            logger.debug("Deleting {}/{}", name, requestKeys);
 
-        ObjectMetadata metadata = metadataCache.get(filename);
-        if (metadata == null) {
             try {
-                metadata = s3.getObjectMetadata(bucketName, filename);
-                metadataCache.put(filename, metadata);
+                // Quiet mode, so the response only has the keys that failed
+                s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keyVersions).withQuiet(true));
+            } catch (MultiObjectDeleteException e) {
+                for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                    failures.put(error.getKey(), new IOException("Error deleting " + name + "/" + error.getKey() +
+                                                                 ": " + error.getCode() + " " + error.getMessage()));
+                }
             } catch (Exception e) {
-                if (e instanceof AmazonServiceException && ((AmazonServiceException)e).getStatusCode() == 404) {
-                    // Return null when not found
-                    return null;
+                for (String key : requestKeys) {
+                    failures.put(key, new IOException("Error deleting " + name + "/" + key, e));
+                }
+            }
+        }
+
+        for (String key : keyList) {
+            if (!failures.containsKey(key)) {
+                metadataCache.remove(key);
+            }
+        }
+
+        return failures;
+    }
+
+    private void uploadParts(final String id, final ReadableByteChannel src, long length, ObjectMetadata metadata,
+                             int maxRequests) throws IOException {
+        final String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, id,
+                                                                                              metadata)).getUploadId();
+        final FileChannel fileSrc = src instanceof FileChannel ? (FileChannel) src : null;
+        final long startPosition = fileSrc != null ? fileSrc.position() : 0;
+        int numParts = (int) ((length + partSize - 1) / partSize);
+        int maxConcurrentUploads = getMaxConcurrentParts(maxRequests);
+        List<PartETag> partETags = new ArrayList<>(numParts);
+        Deque<FutureTask<PartETag>> pendingParts = new ArrayDeque<>();
+        boolean completed = false;
+
+        try {
+            for (int i = 0; i < numParts; i++) {
+                if (pendingParts.size() >= maxConcurrentUploads) {
+                    partETags.add(getResult(pendingParts.poll()));
+                }
+
+                final int partNumber = i + 1;
+                final long partOffset = i * partSize;
+                final int size = (int) Math.min(partSize, length - partOffset);
+                // Other channels can only be read in order, so their parts are read before they're handed off
+                final byte[] part = fileSrc == null ? readPart(src, size) : null;
+
+                pendingParts.add(submit(new Callable<PartETag>() {
+
+                    @Override
+                    public PartETag call() throws Exception {
+                        byte[] data = part != null ? part : readPart(fileSrc, startPosition + partOffset, size);
+                        UploadPartRequest request = new UploadPartRequest()
+                            .withBucketName(bucketName)
+                            .withKey(id)
+                            .withUploadId(uploadId)
+                            .withPartNumber(partNumber)
+                            .withPartSize(size)
+                            .withInputStream(new ByteArrayInputStream(data));
+
+                        return s3.uploadPart(request).getPartETag();
+                    }
+
+                }));
+            }
+
+            while (!pendingParts.isEmpty()) {
+                partETags.add(getResult(pendingParts.poll()));
+            }
+
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, id, uploadId, partETags));
+
+            completed = true;
+
+            if (fileSrc != null) {
+                // Leave the source as if it had been read sequentially
+                fileSrc.position(startPosition + length);
+            }
+        } finally {
+            if (!completed) {
+                abortParts(id, uploadId, pendingParts);
+            }
+        }
+    }
+
+    private void abortParts(String id, String uploadId, Deque<FutureTask<PartETag>> pendingParts) {
+        for (FutureTask<PartETag> task : pendingParts) {
+            task.cancel(true);
+        }
+
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, id, uploadId));
+        } catch (Exception e) {
+            logger.warn("Unable to abort multipart upload of " + name + "/" + id, e);
+        }
+    }
+
+    private void downloadObject(String id, WritableByteChannel target) throws IOException {
+        S3Object s3Object = s3.getObject(bucketName, id);
+
+        try (InputStream in = s3Object.getObjectContent()) {
+            IOUtils.copy(in, Channels.newOutputStream(target));
+        }
+    }
+
+    /**
+     * Downloads the first range of an object of unknown size, and then the rest of the ranges in parallel, since the
+     * response of the first range has the size of the whole object.
+     */
+    private void downloadFirstRangeAndRest(String id, WritableByteChannel target, int maxRequests)
+        throws IOException {
+        S3Object s3Object;
+        try {
+            s3Object = s3.getObject(new GetObjectRequest(bucketName, id).withRange(0, partSize - 1));
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 416) {
+                // The range is not satisfiable only when the object is empty
+                return;
+            }
+
+            throw e;
+        }
+
+        long length = s3Object.getObjectMetadata().getInstanceLength();
+
+        try (InputStream in = s3Object.getObjectContent()) {
+            IOUtils.copy(in, Channels.newOutputStream(target));
+        }
+
+        if (length > partSize) {
+            logger.debug("Using parallel ranged download for the rest of {}/{}", name, id);
+
+            downloadRanges(id, partSize, length, target, maxRequests);
+        }
+    }
+
+    /**
+     * Downloads the ranges of the object from the specified offset to the end, several at the same time.
+     */
+    private void downloadRanges(final String id, final long offset, long length, WritableByteChannel target,
+                                int maxRequests) throws IOException {
+        final FileChannel fileTarget = target instanceof FileChannel ? (FileChannel) target : null;
+        final long startPosition = fileTarget != null ? fileTarget.position() : 0;
+        int numRanges = (int) ((length - offset + partSize - 1) / partSize);
+        int maxConcurrentRanges = getMaxConcurrentParts(maxRequests);
+        Deque<FutureTask<byte[]>> pendingRanges = new ArrayDeque<>();
+
+        try {
+            for (int i = 0; i < numRanges; i++) {
+                if (pendingRanges.size() >= maxConcurrentRanges) {
+                    writeRange(getResult(pendingRanges.poll()), target);
                 }
 
-                throw new IOException("Error retrieving metadata for " + name + "/" + filename, e);
+                final long rangeOffset = offset + i * partSize;
+                final int size = (int) Math.min(partSize, length - rangeOffset);
+
+                pendingRanges.add(submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() throws Exception {
+                        byte[] range = getRange(id, rangeOffset, size);
+
+                        if (fileTarget != null) {
+                            writeRange(range, fileTarget, startPosition + rangeOffset - offset);
+
+                            return null;
+                        } else {
+                            return range;
+                        }
+                    }
+
+                }));
+            }
+
+            while (!pendingRanges.isEmpty()) {
+                writeRange(getResult(pendingRanges.poll()), target);
+            }
+
+            if (fileTarget != null) {
+                // Leave the target as if it had been written sequentially
+                fileTarget.position(startPosition + length - offset);
+            }
+        } finally {
+            for (FutureTask<byte[]> task : pendingRanges) {
+                task.cancel(true);
             }
         }
+    }
+
+    private byte[] getRange(String id, long offset, int size) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucketName, id).withRange(offset, offset + size - 1);
+        S3Object s3Object = s3.getObject(request);
+        byte[] range = new byte[size];
+
+        try (InputStream in = s3Object.getObjectContent()) {
+            IOUtils.readFully(in, range);
+        }
+
+        return range;
+    }
+
+    private byte[] readPart(ReadableByteChannel src, int size) throws IOException {
+        ByteBuffer part = ByteBuffer.allocate(size);
+
+        while (part.hasRemaining()) {
+            if (src.read(part) < 0) {
+                throw new IOException("Source ended before the expected length");
+            }
+        }
+
+        return part.array();
+    }
+
+    private byte[] readPart(FileChannel src, long position, int size) throws IOException {
+        ByteBuffer part = ByteBuffer.allocate(size);
+
+        while (part.hasRemaining()) {
+            if (src.read(part, position + part.position()) < 0) {
+                throw new IOException("Source ended before the expected length");
+            }
+        }
+
+        return part.array();
+    }
+
+    private void writeRange(byte[] range, WritableByteChannel target) throws IOException {
+        // Null when the range was already written positionally
+        if (range != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(range);
+
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        }
+    }
+
+    private void writeRange(byte[] range, FileChannel target, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(range);
+
+        while (buffer.hasRemaining()) {
+            target.write(buffer, position + buffer.position());
+        }
+    }
+
+    private <T> FutureTask<T> submit(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+
+        taskExecutor.execute(task);
+
+        return task;
+    }
+
+    private <T> T getResult(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while waiting for a part", e);
+        }
+    }
+
+    /**
+     * Waits for the delete window to end or the batch to be full, whatever happens first. Must be called while
+     * holding the delete lock.
+     */
+    private void awaitDeleteWindow(DeleteBatch batch) {
+        long nanosLeft = TimeUnit.MILLISECONDS.toNanos(deleteWindowMillis);
+
+        try {
+            while (nanosLeft > 0 && batch.keys.size() < MAX_KEYS_PER_DELETE) {
+                nanosLeft = deleteBatchFull.awaitNanos(nanosLeft);
+            }
+        } catch (InterruptedException e) {
+            // Send what's been collected so far, the other deletes are waiting for it
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int getMaxConcurrentParts(long length) {
+        return (int) Math.min(maxConcurrentParts, (length + partSize - 1) / partSize);
+    }
+
+    private int getMaxConcurrentParts(int maxRequests) {
+        return Math.max(1, Math.min(maxConcurrentParts, maxRequests));
+    }
+
+    /**
+     * Single deletes that are sent in the same request.
+     */
+    private static class DeleteBatch {
+
+        private List<String> keys = new ArrayList<>();
+        private Map<String, IOException> failures = Collections.emptyMap();
+        private boolean done;
 
-        return metadata;
     }
 
 }
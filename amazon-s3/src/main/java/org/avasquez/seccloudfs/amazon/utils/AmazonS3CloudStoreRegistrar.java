@@ -4,6 +4,7 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.transfer.TransferManager;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import org.avasquez.seccloudfs.amazon.AmazonS3CloudStore;
 import org.avasquez.seccloudfs.cloud.CloudStore;
@@ -25,6 +26,10 @@ public class AmazonS3CloudStoreRegistrar extends AbstractRootFolderBasedCloudSto
     private long chunkedUploadThreshold;
     private EmbeddedCacheManager cacheManager;
     private int maxEntriesPerCache;
+    private Long partSize;
+    private Integer maxConcurrentParts;
+    private Executor taskExecutor;
+    private Long deleteWindowMillis;
 
     @Required
     public void setChunkedUploadThreshold(String chunkedUploadThreshold) {
@@ -41,6 +46,38 @@ public class AmazonS3CloudStoreRegistrar extends AbstractRootFolderBasedCloudSto
         this.maxEntriesPerCache = maxEntriesPerCache;
     }
 
+    /**
+     * Sets the size of the parts of parallel uploads and downloads (at least 5MB). If not set, the store's default is
+     * used.
+     */
+    public void setPartSize(String partSize) {
+        this.partSize = FileUtils.humanReadableByteSizeToByteCount(partSize);
+    }
+
+    /**
+     * Sets the max number of parts of a single upload or download that are transferred at the same time. If not set,
+     * the store's default is used.
+     */
+    public void setMaxConcurrentParts(int maxConcurrentParts) {
+        this.maxConcurrentParts = maxConcurrentParts;
+    }
+
+    /**
+     * Sets the executor that transfers the parts of big objects in parallel. If not set, big objects are transferred
+     * sequentially.
+     */
+    public void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Sets how long a single delete that finds no delete request in flight waits for other single deletes, so that
+     * they're all deleted in the same request. If not set, the store's default is used.
+     */
+    public void setDeleteWindowMillis(long deleteWindowMillis) {
+        this.deleteWindowMillis = deleteWindowMillis;
+    }
+
     @Override
     protected CloudStore createStore(TransferManager transferManager, AmazonCredentials credentials,
                                      String bucketName) throws IOException {
@@ -54,6 +91,17 @@ public class AmazonS3CloudStoreRegistrar extends AbstractRootFolderBasedCloudSto
             chunkedUploadThreshold,
             createMetadataCache(storeName));
 
+        if (partSize != null) {
+            cloudStore.setPartSize(partSize);
+        }
+        if (maxConcurrentParts != null) {
+            cloudStore.setMaxConcurrentParts(maxConcurrentParts);
+        }
+        if (deleteWindowMillis != null) {
+            cloudStore.setDeleteWindowMillis(deleteWindowMillis);
+        }
+
+        cloudStore.setTaskExecutor(taskExecutor);
         cloudStore.init();
 
         return cloudStore;
@@ -0,0 +1,477 @@
+package org.avasquez.seccloudfs.amazon;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.infinispan.Cache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.amazon.AmazonS3CloudStore}.
+ *
+ * @author avasquez
+ */
+public class AmazonS3CloudStoreTest {
+
+    private static final String BUCKET_NAME = "bucket";
+    private static final String DATA_ID = "data";
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private AmazonS3 s3;
+    private AmazonS3CloudStore cloudStore;
+    private byte[] data;
+    private Map<Integer, byte[]> uploadedParts;
+    private List<PartETag> completedParts;
+    private AtomicInteger partsInFlight;
+    private AtomicInteger maxPartsInFlight;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        data = new byte[2 * PART_SIZE + 1024];
+        new Random().nextBytes(data);
+        uploadedParts = new ConcurrentHashMap<>();
+        completedParts = new ArrayList<>();
+        partsInFlight = new AtomicInteger();
+        maxPartsInFlight = new AtomicInteger();
+
+        s3 = mock(AmazonS3.class);
+
+        when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenAnswer(
+            new Answer<InitiateMultipartUploadResult>() {
+
+                @Override
+                public InitiateMultipartUploadResult answer(InvocationOnMock invocation) throws Throwable {
+                    InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                    result.setUploadId("upload1");
+
+                    return result;
+                }
+
+            });
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>() {
+
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                byte[] part = IOUtils.toByteArray(request.getInputStream());
+                int inFlight = partsInFlight.incrementAndGet();
+                int max;
+
+                while ((max = maxPartsInFlight.get()) < inFlight && !maxPartsInFlight.compareAndSet(max, inFlight)) {
+                }
+
+                Thread.sleep(20);
+
+                partsInFlight.decrementAndGet();
+
+                assertEquals(request.getPartSize(), part.length);
+
+                uploadedParts.put(request.getPartNumber(), part);
+
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag" + request.getPartNumber());
+
+                return result;
+            }
+
+        });
+        when(s3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                completedParts.addAll(((CompleteMultipartUploadRequest) invocation.getArguments()[0]).getPartETags());
+
+                return null;
+            }
+
+        });
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(new Answer<S3Object>() {
+
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws Throwable {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                long end = Math.min(range[1], data.length - 1);
+                ObjectMetadata metadata = new ObjectMetadata();
+                S3Object s3Object = new S3Object();
+
+                metadata.setHeader("Content-Range", "bytes " + range[0] + "-" + end + "/" + data.length);
+
+                s3Object.setObjectMetadata(metadata);
+                s3Object.setObjectContent(new ByteArrayInputStream(data, (int) range[0], (int) (end - range[0] + 1)));
+
+                return s3Object;
+            }
+
+        });
+
+        cloudStore = new AmazonS3CloudStore("amazon://test/" + BUCKET_NAME, s3, mock(TransferManager.class),
+                                            BUCKET_NAME, 1024 * 1024, mock(Cache.class));
+        cloudStore.setPartSize(PART_SIZE);
+        cloudStore.setMaxConcurrentParts(2);
+        cloudStore.setTaskExecutor(executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testUploadFromFile() throws Exception {
+        File file = tmpDir.newFile();
+        Files.write(file.toPath(), data);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            cloudStore.upload(DATA_ID, channel, data.length);
+
+            assertEquals(data.length, channel.position());
+        }
+
+        assertUploadedParts();
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void testUploadFromStream() throws Exception {
+        cloudStore.upload(DATA_ID, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+
+        assertUploadedParts();
+        assertTrue(maxPartsInFlight.get() <= 2);
+    }
+
+    @Test
+    public void testUploadWithFewerRequests() throws Exception {
+        cloudStore.upload(DATA_ID, Channels.newChannel(new ByteArrayInputStream(data)), data.length, 1);
+
+        assertUploadedParts();
+        assertEquals(1, maxPartsInFlight.get());
+    }
+
+    @Test
+    public void testUploadWithFailedPart() throws Exception {
+        doThrow(new AmazonServiceException("Internal error")).when(s3).uploadPart(any(UploadPartRequest.class));
+
+        try {
+            cloudStore.upload(DATA_ID, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+            // Expected
+        }
+
+        verify(s3).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void testDownloadToFile() throws Exception {
+        File file = tmpDir.newFile();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            // The ranges are written relative to the position of the target
+            channel.write(ByteBuffer.wrap(new byte[10]));
+            cloudStore.download(DATA_ID, channel);
+
+            assertEquals(10 + data.length, channel.position());
+        }
+
+        byte[] downloaded = Files.readAllBytes(file.toPath());
+
+        assertArrayEquals(data, Arrays.copyOfRange(downloaded, 10, downloaded.length));
+        verify(s3, never()).getObject(anyString(), anyString());
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void testDownloadToStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        cloudStore.download(DATA_ID, Channels.newChannel(out));
+
+        assertArrayEquals(data, out.toByteArray());
+        // The first range tells the size of the object, so there's one GET per part and no HEAD
+        verify(s3, times(3)).getObject(any(GetObjectRequest.class));
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void testDownloadNotFound() throws Exception {
+        AmazonServiceException notFound = new AmazonServiceException("Not found");
+        notFound.setStatusCode(404);
+
+        doThrow(notFound).when(s3).getObject(any(GetObjectRequest.class));
+
+        try {
+            cloudStore.download(DATA_ID, Channels.newChannel(new ByteArrayOutputStream()));
+            fail("Expected " + FileNotFoundException.class);
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void testMaxUploadRequests() throws Exception {
+        // Below the part size, 3 parts and a single part
+        assertEquals(1, cloudStore.getMaxUploadRequests(1024));
+        assertEquals(2, cloudStore.getMaxUploadRequests(data.length));
+        assertEquals(1, cloudStore.getMaxUploadRequests(PART_SIZE));
+
+        // No cached size, so the download is counted as a single GET
+        assertEquals(1, cloudStore.getMaxDownloadRequests(DATA_ID));
+    }
+
+    @Test
+    public void testTransfersWithShippedConfig() throws Exception {
+        // Same values as amazon.chunkedUploadThreshold, amazon.partSize and amazon.maxConcurrentParts
+        cloudStore = new AmazonS3CloudStore("amazon://test/" + BUCKET_NAME, s3, mock(TransferManager.class),
+                                            BUCKET_NAME, 100 * 1024 * 1024, mock(Cache.class));
+        cloudStore.setPartSize(8 * 1024 * 1024);
+        cloudStore.setMaxConcurrentParts(4);
+        cloudStore.setTaskExecutor(executor);
+
+        byte[] slice = Arrays.copyOf(data, 1024 * 1024);
+
+        // A slice of the file system is a single request, whatever the concurrency limit
+        assertEquals(1, cloudStore.getMaxUploadRequests(slice.length));
+
+        cloudStore.upload(DATA_ID, Channels.newChannel(new ByteArrayInputStream(slice)), slice.length);
+
+        verify(s3).putObject(eq(BUCKET_NAME), eq(DATA_ID), any(InputStream.class), any(ObjectMetadata.class));
+        verify(s3, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+
+        // Objects bigger than the part size are uploaded in parallel, even below the chunked upload threshold
+        assertEquals(2, cloudStore.getMaxUploadRequests(data.length));
+
+        cloudStore.upload(DATA_ID, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+
+        verify(s3).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        assertEquals(2, completedParts.size());
+    }
+
+    @Test
+    public void testExists() throws Exception {
+        AmazonServiceException notFound = new AmazonServiceException("Not found");
+        notFound.setStatusCode(404);
+
+        when(s3.getObjectMetadata(BUCKET_NAME, DATA_ID)).thenReturn(new ObjectMetadata());
+        when(s3.getObjectMetadata(BUCKET_NAME, "missing")).thenThrow(notFound);
+
+        assertTrue(cloudStore.exists(DATA_ID));
+        assertFalse(cloudStore.exists("missing"));
+    }
+
+    @Test
+    public void testDeleteBatch() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            ids.add("data" + i);
+        }
+
+        cloudStore.delete(ids);
+
+        ArgumentCaptor<DeleteObjectsRequest> captor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+
+        verify(s3, times(2)).deleteObjects(captor.capture());
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+
+        List<DeleteObjectsRequest> requests = captor.getAllValues();
+
+        assertEquals(1000, requests.get(0).getKeys().size());
+        assertEquals(500, requests.get(1).getKeys().size());
+        assertEquals("data1000", requests.get(1).getKeys().get(0).getKey());
+    }
+
+    @Test
+    public void testDeleteCoalescesSingleDeletes() throws Exception {
+        cloudStore.setDeleteWindowMillis(500);
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(submitDelete("data" + i));
+        }
+
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+
+        ArgumentCaptor<DeleteObjectsRequest> captor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+
+        verify(s3).deleteObjects(captor.capture());
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+
+        assertEquals(3, captor.getValue().getKeys().size());
+    }
+
+    @Test
+    public void testDeleteCoalescesDeletesDuringRequest() throws Exception {
+        final CountDownLatch firstRequestStarted = new CountDownLatch(1);
+        final CountDownLatch othersQueued = new CountDownLatch(1);
+        final List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        when(s3.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(new Answer<DeleteObjectsResult>() {
+
+            @Override
+            public DeleteObjectsResult answer(InvocationOnMock invocation) throws Throwable {
+                requestSizes.add(((DeleteObjectsRequest) invocation.getArguments()[0]).getKeys().size());
+
+                if (firstRequestStarted.getCount() > 0) {
+                    firstRequestStarted.countDown();
+
+                    // Keep the request in flight while the other deletes arrive
+                    othersQueued.await();
+                }
+
+                return null;
+            }
+
+        });
+
+        // No window, so the first delete is sent at once
+        Future<Void> first = submitDelete("data0");
+
+        firstRequestStarted.await();
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            futures.add(submitDelete("data" + i));
+        }
+
+        Thread.sleep(200);
+
+        othersQueued.countDown();
+
+        first.get();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+
+        assertEquals(Arrays.asList(1, 3), requestSizes);
+    }
+
+    @Test
+    public void testDeleteWithFailedKey() throws Exception {
+        MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+        error.setKey("data1");
+        error.setCode("AccessDenied");
+        error.setMessage("Access Denied");
+
+        doThrow(new MultiObjectDeleteException(Collections.singletonList(error),
+                                               Collections.<DeleteObjectsResult.DeletedObject>emptyList()))
+            .when(s3).deleteObjects(any(DeleteObjectsRequest.class));
+
+        cloudStore.delete("data0");
+
+        try {
+            cloudStore.delete("data1");
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("AccessDenied"));
+        }
+
+        try {
+            cloudStore.delete(Arrays.asList("data0", "data1", "data2"));
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+            assertEquals(1, e.getSuppressed().length);
+        }
+    }
+
+    private Future<Void> submitDelete(final String id) {
+        return executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                cloudStore.delete(id);
+
+                return null;
+            }
+
+        });
+    }
+
+    private void assertUploadedParts() {
+        ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+
+        assertEquals(3, completedParts.size());
+
+        for (int i = 0; i < completedParts.size(); i++) {
+            assertEquals(i + 1, completedParts.get(i).getPartNumber());
+
+            byte[] part = uploadedParts.get(i + 1);
+            uploaded.write(part, 0, part.length);
+        }
+
+        assertArrayEquals(data, uploaded.toByteArray());
+    }
+
+}
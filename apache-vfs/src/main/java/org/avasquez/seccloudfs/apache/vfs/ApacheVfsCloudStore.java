@@ -14,7 +14,7 @@ import javax.annotation.PostConstruct;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemManager;
-import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.impl.AbstractCloudStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
@@ -24,7 +24,7 @@ import org.springframework.beans.factory.annotation.Required;
  *
  * @author avasquez
  */
-public class ApacheVfsCloudStore implements CloudStore {
+public class ApacheVfsCloudStore extends AbstractCloudStore {
 
     private static final Logger logger = LoggerFactory.getLogger(ApacheVfsCloudStore.class);
 
@@ -92,6 +92,15 @@ public class ApacheVfsCloudStore implements CloudStore {
         logger.debug("Finished downloading {}/{}", name, id);
     }
 
+    @Override
+    public boolean exists(String id) throws IOException {
+        try {
+            return getFileObject(id).exists();
+        } catch (Exception e) {
+            throw new IOException("Error checking " + name + "/" + id, e);
+        }
+    }
+
     @Override
     public void delete(String id) throws IOException {
         logger.debug("Deleting {}/{}", name, id);
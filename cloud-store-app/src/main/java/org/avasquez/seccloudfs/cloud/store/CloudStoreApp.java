@@ -198,8 +198,10 @@ public class CloudStoreApp {
     private void deleteFiles(List<String> files, CloudStore cloudStore) {
         logger.info("Started bulk delete");
 
-        for (String file : files) {
-            deleteFile(file, cloudStore);
+        try {
+            cloudStore.delete(files);
+        } catch (IOException e) {
+            die("ERROR: Unable to delete files", e);
         }
 
         logger.info("Finished bulk delete");
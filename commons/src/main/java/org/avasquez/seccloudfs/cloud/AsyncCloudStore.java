@@ -0,0 +1,71 @@
+package org.avasquez.seccloudfs.cloud;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+
+import org.avasquez.seccloudfs.utils.concurrent.ListenableFuture;
+
+/**
+ * Asynchronous version of {@link org.avasquez.seccloudfs.cloud.CloudStore}. Operations return immediately with a
+ * {@link org.avasquez.seccloudfs.utils.concurrent.ListenableFuture} that's completed when the operation finishes,
+ * so callers can chain operations through callbacks instead of blocking a thread for the whole transfer. Failures
+ * are reported through the future, normally as an {@link java.io.IOException}.
+ *
+ * <p>For now, only the uploader of the file system content is asynchronous. None of the provider SDKs has a
+ * non-blocking client, so the only implementation is
+ * {@link org.avasquez.seccloudfs.cloud.impl.AsyncCloudStoreAdapter}. Composing the slice transfers of the
+ * distributed store and the decorators through futures would only move their blocked threads to the adapter's
+ * executor, so they still run their transfers in the task executor, whose virtual threads (when available) are cheap
+ * to block.</p>
+ *
+ * @author avasquez
+ */
+public interface AsyncCloudStore {
+
+    /**
+     * Returns the name of this cloud store.
+     */
+    String getName();
+
+    /**
+     * Uploads the given data in the cloud. The source channel shouldn't be used or closed until the returned future
+     * completes.
+     *
+     * @param id        the ID used to identify the data
+     * @param src       the source channel from where the data should be retrieved
+     * @param length    the length of the data
+     */
+    ListenableFuture<Void> upload(String id, ReadableByteChannel src, long length);
+
+    /**
+     * Downloads the data from the cloud. The target channel shouldn't be used or closed until the returned future
+     * completes.
+     *
+     * @param id        the ID used to identify the data
+     * @param target    the target channel where the data should be written to
+     */
+    ListenableFuture<Void> download(String id, WritableByteChannel target);
+
+    /**
+     * Checks if the data exists in the cloud, without downloading it.
+     *
+     * @param id the ID used to identify the data
+     */
+    ListenableFuture<Boolean> exists(String id);
+
+    /**
+     * Deletes the data.
+     *
+     * @param id the ID used to identify the data.
+     */
+    ListenableFuture<Void> delete(String id);
+
+    /**
+     * Deletes several data at once.
+     *
+     * @param ids the IDs used to identify the data
+     */
+    ListenableFuture<Void> delete(Collection<String> ids);
+
+}
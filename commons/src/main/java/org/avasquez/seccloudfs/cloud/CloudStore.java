@@ -3,6 +3,7 @@ package org.avasquez.seccloudfs.cloud;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
 
 /**
  * Handles the storage of data in the cloud.
@@ -35,6 +36,15 @@ public interface CloudStore {
      */
     void download(String id, WritableByteChannel target) throws IOException;
 
+    /**
+     * Checks if the data exists in the cloud, without downloading it.
+     *
+     * @param id the ID used to identify the data
+     *
+     * @return true if the data exists, false otherwise
+     */
+    boolean exists(String id) throws IOException;
+
     /**
      * Deletes the data.
      *
@@ -42,4 +52,14 @@ public interface CloudStore {
      */
     void delete(String id) throws IOException;
 
+    /**
+     * Deletes several data at once. Stores that provide batch operations should delete the data with as few requests
+     * as possible. The deletion of all the data is attempted, even if some of it fails.
+     *
+     * @param ids the IDs used to identify the data
+     *
+     * @throws IOException if some of the data couldn't be deleted
+     */
+    void delete(Collection<String> ids) throws IOException;
+
 }
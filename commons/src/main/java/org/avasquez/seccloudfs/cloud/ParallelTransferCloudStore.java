@@ -0,0 +1,51 @@
+package org.avasquez.seccloudfs.cloud;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore} that can split the transfer of a single data in several concurrent
+ * requests. Decorators that limit the number of concurrent requests against a store use it to account for every
+ * request of a transfer, not just for the transfer, and can make a transfer send fewer requests at the same time when
+ * the limit is lower than what the transfer would use.
+ *
+ * @author avasquez
+ */
+public interface ParallelTransferCloudStore extends CloudStore {
+
+    /**
+     * Returns the max number of concurrent requests that an upload of the specified length sends to the cloud.
+     *
+     * @param length the length of the data
+     */
+    int getMaxUploadRequests(long length);
+
+    /**
+     * Returns the max number of concurrent requests that a download of the data sends to the cloud, based on what's
+     * known about the data before downloading it.
+     *
+     * @param id the ID used to identify the data
+     */
+    int getMaxDownloadRequests(String id);
+
+    /**
+     * Uploads the data, sending at most the specified number of requests at the same time.
+     *
+     * @param id            the ID used to identify the data
+     * @param src           the source channel from where the data should be retrieved
+     * @param length        the length of the data
+     * @param maxRequests   the max number of concurrent requests to send
+     */
+    void upload(String id, ReadableByteChannel src, long length, int maxRequests) throws IOException;
+
+    /**
+     * Downloads the data, sending at most the specified number of requests at the same time.
+     *
+     * @param id            the ID used to identify the data
+     * @param target        the target channel where the data should be written to
+     * @param maxRequests   the max number of concurrent requests to send
+     */
+    void download(String id, WritableByteChannel target, int maxRequests) throws IOException;
+
+}
@@ -0,0 +1,37 @@
+package org.avasquez.seccloudfs.cloud.impl;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+
+/**
+ * Base for {@link org.avasquez.seccloudfs.cloud.CloudStore}s that don't support batch operations, which are then
+ * implemented by executing the single-object operation for each object.
+ *
+ * @author avasquez
+ */
+public abstract class AbstractCloudStore implements CloudStore {
+
+    @Override
+    public void delete(Collection<String> ids) throws IOException {
+        IOException failure = null;
+
+        for (String id : ids) {
+            try {
+                delete(id);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new IOException("Unable to delete some of the data from [" + getName() + "]");
+                }
+
+                failure.addSuppressed(e);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
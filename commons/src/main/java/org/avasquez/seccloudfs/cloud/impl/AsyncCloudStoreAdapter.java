@@ -0,0 +1,135 @@
+package org.avasquez.seccloudfs.cloud.impl;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.avasquez.seccloudfs.cloud.AsyncCloudStore;
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.utils.concurrent.ListenableFuture;
+import org.avasquez.seccloudfs.utils.concurrent.SettableFuture;
+
+/**
+ * {@link org.avasquez.seccloudfs.cloud.AsyncCloudStore} that wraps a synchronous
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore}, running each operation in an {@link java.util.concurrent.Executor}.
+ * Since the decorators are synchronous too, wrapping the top of a decorator chain makes the whole chain available to
+ * asynchronous callers.
+ *
+ * @author avasquez
+ */
+public class AsyncCloudStoreAdapter implements AsyncCloudStore {
+
+    private CloudStore underlyingStore;
+    private Executor executor;
+
+    public AsyncCloudStoreAdapter(CloudStore underlyingStore, Executor executor) {
+        this.underlyingStore = underlyingStore;
+        this.executor = executor;
+    }
+
+    @Override
+    public String getName() {
+        return underlyingStore.getName();
+    }
+
+    @Override
+    public ListenableFuture<Void> upload(final String id, final ReadableByteChannel src, final long length) {
+        return execute(new Operation<Void>() {
+
+            @Override
+            public Void run() throws IOException {
+                underlyingStore.upload(id, src, length);
+
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> download(final String id, final WritableByteChannel target) {
+        return execute(new Operation<Void>() {
+
+            @Override
+            public Void run() throws IOException {
+                underlyingStore.download(id, target);
+
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Boolean> exists(final String id) {
+        return execute(new Operation<Boolean>() {
+
+            @Override
+            public Boolean run() throws IOException {
+                return underlyingStore.exists(id);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> delete(final String id) {
+        return execute(new Operation<Void>() {
+
+            @Override
+            public Void run() throws IOException {
+                underlyingStore.delete(id);
+
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> delete(final Collection<String> ids) {
+        return execute(new Operation<Void>() {
+
+            @Override
+            public Void run() throws IOException {
+                underlyingStore.delete(ids);
+
+                return null;
+            }
+
+        });
+    }
+
+    private <T> ListenableFuture<T> execute(final Operation<T> operation) {
+        final SettableFuture<T> future = new SettableFuture<>();
+
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        future.set(operation.run());
+                    } catch (Throwable e) {
+                        future.setException(e);
+                    }
+                }
+
+            });
+        } catch (RejectedExecutionException e) {
+            future.setException(e);
+        }
+
+        return future;
+    }
+
+    private interface Operation<T> {
+
+        T run() throws IOException;
+
+    }
+
+}
@@ -10,7 +10,6 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import javax.annotation.PostConstruct;
 
-import org.avasquez.seccloudfs.cloud.CloudStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
@@ -20,7 +19,7 @@ import org.springframework.beans.factory.annotation.Required;
  *
  * @author avasquez
  */
-public class LocalCloudStore implements CloudStore {
+public class LocalCloudStore extends AbstractCloudStore {
 
     private static final String STORE_NAME_PREFIX = "file://";
 
@@ -66,6 +65,11 @@ public class LocalCloudStore implements CloudStore {
         }
     }
 
+    @Override
+    public boolean exists(String id) throws IOException {
+        return Files.exists(getPath(id));
+    }
+
     @Override
     public void delete(String id) throws IOException {
         Files.delete(getPath(id));
@@ -18,10 +18,13 @@ package org.avasquez.seccloudfs.utils;
 
 import java.security.SecureRandom;
 
+import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
 import org.bouncycastle.crypto.modes.AEADBlockCipher;
 import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.HKDFParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 /**
@@ -63,4 +66,24 @@ public class CryptoUtils {
         return cipher;
     }
 
+    /**
+     * Derives key material from a master key, using HKDF (RFC 5869) with SHA-256.
+     *
+     * @param masterKey the master key, or input keying material
+     * @param salt      the salt, which should be random for each derivation
+     * @param info      the context the key is derived for, so that keys for different contexts are unrelated
+     * @param size      the number of bytes to derive
+     *
+     * @return the derived bytes
+     */
+    public static byte[] deriveKey(byte[] masterKey, byte[] salt, byte[] info, int size) {
+        HKDFBytesGenerator generator = new HKDFBytesGenerator(new SHA256Digest());
+        generator.init(new HKDFParameters(masterKey, salt, info));
+
+        byte[] derived = new byte[size];
+        generator.generateBytes(derived, 0, size);
+
+        return derived;
+    }
+
 }
@@ -0,0 +1,24 @@
+package org.avasquez.seccloudfs.utils.concurrent;
+
+/**
+ * Callback that's notified when a {@link org.avasquez.seccloudfs.utils.concurrent.ListenableFuture} completes.
+ *
+ * @author avasquez
+ */
+public interface FutureCallback<T> {
+
+    /**
+     * Called when the future completed successfully.
+     *
+     * @param result the result of the future
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the future failed or was cancelled.
+     *
+     * @param cause the cause of the failure
+     */
+    void onFailure(Throwable cause);
+
+}
@@ -0,0 +1,21 @@
+package org.avasquez.seccloudfs.utils.concurrent;
+
+import java.util.concurrent.Future;
+
+/**
+ * {@link java.util.concurrent.Future} that accepts callbacks to be notified when it completes, so that operations can
+ * be chained without blocking a thread until the result is available.
+ *
+ * @author avasquez
+ */
+public interface ListenableFuture<T> extends Future<T> {
+
+    /**
+     * Adds a callback that's called when the future completes. If the future is already complete, the callback is
+     * called immediately in the current thread. Otherwise it's called in the thread that completes the future.
+     *
+     * @param callback the callback to add
+     */
+    void addCallback(FutureCallback<? super T> callback);
+
+}
@@ -0,0 +1,234 @@
+package org.avasquez.seccloudfs.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link org.avasquez.seccloudfs.utils.concurrent.ListenableFuture} that's completed explicitly through
+ * {@link #set(Object)} or {@link #setException(Throwable)}. Uses a {@link java.util.concurrent.locks.Lock} instead
+ * of monitors, so that waiting for the result doesn't pin the carrier thread when running in a virtual thread.
+ *
+ * @author avasquez
+ */
+public class SettableFuture<T> implements ListenableFuture<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SettableFuture.class);
+
+    private final List<FutureCallback<? super T>> callbacks;
+    private final Lock lock;
+    private final Condition completed;
+
+    private boolean done;
+    private boolean cancelled;
+    private T result;
+    private Throwable exception;
+
+    public SettableFuture() {
+        callbacks = new ArrayList<>();
+        lock = new ReentrantLock();
+        completed = lock.newCondition();
+    }
+
+    /**
+     * Completes the future successfully.
+     *
+     * @param result the result of the future
+     *
+     * @return true if the future was completed by this call, false if it was already complete
+     */
+    public boolean set(T result) {
+        List<FutureCallback<? super T>> callbacksToNotify;
+
+        lock.lock();
+        try {
+            if (done) {
+                return false;
+            }
+
+            this.result = result;
+
+            callbacksToNotify = markDone();
+        } finally {
+            lock.unlock();
+        }
+
+        notifyCallbacks(callbacksToNotify);
+
+        return true;
+    }
+
+    /**
+     * Completes the future with a failure.
+     *
+     * @param exception the cause of the failure
+     *
+     * @return true if the future was completed by this call, false if it was already complete
+     */
+    public boolean setException(Throwable exception) {
+        List<FutureCallback<? super T>> callbacksToNotify;
+
+        lock.lock();
+        try {
+            if (done) {
+                return false;
+            }
+
+            this.exception = exception;
+
+            callbacksToNotify = markDone();
+        } finally {
+            lock.unlock();
+        }
+
+        notifyCallbacks(callbacksToNotify);
+
+        return true;
+    }
+
+    @Override
+    public void addCallback(FutureCallback<? super T> callback) {
+        lock.lock();
+        try {
+            if (!done) {
+                callbacks.add(callback);
+
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        notifyCallback(callback);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<FutureCallback<? super T>> callbacksToNotify;
+
+        lock.lock();
+        try {
+            if (done) {
+                return false;
+            }
+
+            cancelled = true;
+            exception = new CancellationException();
+
+            callbacksToNotify = markDone();
+        } finally {
+            lock.unlock();
+        }
+
+        notifyCallbacks(callbacksToNotify);
+
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        lock.lock();
+        try {
+            return done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        lock.lock();
+        try {
+            while (!done) {
+                completed.await();
+            }
+
+            return getResult();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        lock.lock();
+        try {
+            long remaining = unit.toNanos(timeout);
+
+            while (!done) {
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+
+                remaining = completed.awaitNanos(remaining);
+            }
+
+            return getResult();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) exception;
+        } else if (exception != null) {
+            throw new ExecutionException(exception);
+        } else {
+            return result;
+        }
+    }
+
+    /**
+     * Marks the future as done and returns the callbacks to notify. Must be called while holding the lock, so that
+     * the future can only be completed once.
+     */
+    private List<FutureCallback<? super T>> markDone() {
+        done = true;
+
+        completed.signalAll();
+
+        List<FutureCallback<? super T>> callbacksToNotify = new ArrayList<>(callbacks);
+        callbacks.clear();
+
+        return callbacksToNotify;
+    }
+
+    private void notifyCallbacks(List<FutureCallback<? super T>> callbacksToNotify) {
+        for (FutureCallback<? super T> callback : callbacksToNotify) {
+            notifyCallback(callback);
+        }
+    }
+
+    private void notifyCallback(FutureCallback<? super T> callback) {
+        try {
+            if (exception != null) {
+                callback.onFailure(exception);
+            } else {
+                callback.onSuccess(result);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Callback " + callback + " threw an exception", e);
+        }
+    }
+
+}
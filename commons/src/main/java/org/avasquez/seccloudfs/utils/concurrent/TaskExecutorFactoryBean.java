@@ -0,0 +1,140 @@
+package org.avasquez.seccloudfs.utils.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+
+/**
+ * {@link org.springframework.beans.factory.FactoryBean} for creating the {@link java.util.concurrent.ExecutorService}
+ * that runs blocking tasks, like slice transfers and content uploads. Scheduling should be done by a separate,
+ * small scheduler, which only hands off the tasks to this executor.
+ *
+ * <p>If virtual threads are enabled and the JVM supports them (Java 21+), each task runs in its own virtual thread,
+ * so the number of in-flight transfers is not limited by the number of platform threads. Otherwise, or if the JVM
+ * doesn't support them, the tasks run in a pool of platform threads that time out when idle.</p>
+ *
+ * @author avasquez
+ */
+public class TaskExecutorFactoryBean implements FactoryBean<ExecutorService>, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskExecutorFactoryBean.class);
+
+    private static final String VIRTUAL_THREAD_EXECUTOR_FACTORY_METHOD = "newVirtualThreadPerTaskExecutor";
+    private static final long KEEP_ALIVE_SECS = 60;
+
+    private boolean virtualThreads;
+    private int poolSize;
+    private String threadNamePrefix;
+
+    private ExecutorService executor;
+
+    public TaskExecutorFactoryBean() {
+        poolSize = Runtime.getRuntime().availableProcessors();
+        threadNamePrefix = "task-";
+    }
+
+    /**
+     * Sets whether the tasks should run in virtual threads, when the JVM supports them. Defaults to false.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the max number of platform threads, used when virtual threads are disabled or not supported. Defaults to
+     * the number of processors.
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Sets the prefix of the name of the platform threads. Defaults to "task-".
+     */
+    public void setThreadNamePrefix(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    @Override
+    public synchronized ExecutorService getObject() throws Exception {
+        if (executor == null) {
+            executor = createExecutor();
+        }
+
+        return executor;
+    }
+
+    @Override
+    public Class<?> getObjectType() {
+        return ExecutorService.class;
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        if (virtualThreads) {
+            ExecutorService virtualThreadExecutor = createVirtualThreadExecutor();
+            if (virtualThreadExecutor != null) {
+                logger.info("Running tasks in virtual threads");
+
+                return virtualThreadExecutor;
+            } else {
+                logger.warn("Virtual threads not supported by this JVM. Running tasks in a pool of {} threads",
+                            poolSize);
+            }
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, threadNamePrefix + threadCount.incrementAndGet());
+            }
+
+        });
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    /**
+     * Creates the virtual thread executor through reflection, since the code is compiled for older JVMs.
+     */
+    private ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factoryMethod = Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR_FACTORY_METHOD);
+
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            logger.error("Unable to create virtual thread executor", e);
+
+            return null;
+        }
+    }
+
+}
@@ -25,9 +25,16 @@ public class ByteBufferChannel implements SeekableByteChannel {
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        int bytesToRead = buffer.remaining();
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
 
-        dst.put(buffer);
+        int bytesToRead = Math.min(buffer.remaining(), dst.remaining());
+        ByteBuffer src = buffer.duplicate();
+
+        src.limit(src.position() + bytesToRead);
+        dst.put(src);
+        buffer.position(src.position());
 
         return bytesToRead;
     }
@@ -0,0 +1,106 @@
+package org.avasquez.seccloudfs.cloud.impl;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.utils.concurrent.FutureCallback;
+import org.avasquez.seccloudfs.utils.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.cloud.impl.AsyncCloudStoreAdapter}.
+ *
+ * @author avasquez
+ */
+public class AsyncCloudStoreAdapterTest {
+
+    private ExecutorService executor;
+    private CloudStore underlyingStore;
+    private AsyncCloudStoreAdapter cloudStore;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        underlyingStore = mock(CloudStore.class);
+        cloudStore = new AsyncCloudStoreAdapter(underlyingStore, executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        ReadableByteChannel src = mock(ReadableByteChannel.class);
+
+        ListenableFuture<Void> future = cloudStore.upload("test", src, 10);
+
+        assertNull(future.get(1, TimeUnit.SECONDS));
+
+        verify(underlyingStore).upload("test", src, 10);
+    }
+
+    @Test
+    public void testExists() throws Exception {
+        when(underlyingStore.exists("test")).thenReturn(true);
+
+        assertTrue(cloudStore.exists("test").get(1, TimeUnit.SECONDS));
+        assertFalse(cloudStore.exists("other").get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailureReportedToCallback() throws Exception {
+        IOException error = new IOException("Upload failed");
+        doThrow(error).when(underlyingStore).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+
+        ListenableFuture<Void> future = cloudStore.upload("test", mock(ReadableByteChannel.class), 10);
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertEquals(error, e.getCause());
+        }
+
+        // The future is already complete, so the callback is called immediately
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        future.addCallback(new FutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                failure.set(cause);
+            }
+
+        });
+
+        assertTrue(future.isDone());
+        assertEquals(error, failure.get());
+    }
+
+}
@@ -10,17 +10,18 @@ import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
-import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.impl.AbstractCloudStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Dropbox implementation of {@link org.avasquez.seccloudfs.cloud.CloudStore}. The implementation is synchronized
- * to avoid too many open connections (while testing, a lot of HTTP connections failed in the server side).
+ * Dropbox implementation of {@link org.avasquez.seccloudfs.cloud.CloudStore}. The implementation is not
+ * synchronized: to avoid too many open connections (while testing, a lot of HTTP connections failed in the server
+ * side), decorate the store with a {@code ConcurrencyLimitingCloudStore}.
  *
  * @author avasquez
  */
-public class DropboxCloudStore implements CloudStore {
+public class DropboxCloudStore extends AbstractCloudStore {
 
     private static final Logger logger = LoggerFactory.getLogger(DropboxCloudStore.class);
 
@@ -42,7 +43,7 @@ public class DropboxCloudStore implements CloudStore {
     }
 
     @Override
-    public synchronized void upload(String id, ReadableByteChannel src, long length) throws IOException {
+    public void upload(String id, ReadableByteChannel src, long length) throws IOException {
         String path = getPath(id);
 
         logger.debug("Started uploading {}/{}", name, id);
@@ -68,7 +69,7 @@ public class DropboxCloudStore implements CloudStore {
     }
 
     @Override
-    public synchronized void download(String id, WritableByteChannel target) throws IOException {
+    public void download(String id, WritableByteChannel target) throws IOException {
         String path = getPath(id);
 
         logger.debug("Started downloading {}/{}", name, id);
@@ -83,7 +84,16 @@ public class DropboxCloudStore implements CloudStore {
     }
 
     @Override
-    public synchronized void delete(String id) throws IOException {
+    public boolean exists(String id) throws IOException {
+        try {
+            return client.getMetadata(getPath(id)) != null;
+        } catch (Exception e) {
+            throw new IOException("Error checking " + name + "/" + id, e);
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
         String path = getPath(id);
 
         logger.debug("Deleting {}/{}", name, id);
@@ -1,6 +1,8 @@
 package org.avasquez.seccloudfs.filesystem.content.impl;
 
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.avasquez.seccloudfs.filesystem.content.Content;
 import org.avasquez.seccloudfs.filesystem.content.ContentStore;
@@ -17,6 +19,10 @@ public abstract class AbstractCachedContentStore implements ContentStore {
 
     protected Cache<String, Content> cache;
 
+    // Not synchronized, since the lookup is done in the DB, and that would pin the carrier thread when running in a
+    // virtual thread
+    private final Lock findLock = new ReentrantLock();
+
     @Required
     public void setCacheContainer(CacheContainer cacheContainer) {
         cache = cacheContainer.getCache(CONTENT_CACHE_NAME);
@@ -32,7 +38,8 @@ public abstract class AbstractCachedContentStore implements ContentStore {
         if ((content = cache.get(id)) != null) {
             return content;
         } else {
-            synchronized (this) {
+            findLock.lock();
+            try {
                 if ((content = cache.get(id)) != null) {
                     return content;
                 }
@@ -43,6 +50,8 @@ public abstract class AbstractCachedContentStore implements ContentStore {
                 }
 
                 return content;
+            } finally {
+                findLock.unlock();
             }
         }
     }
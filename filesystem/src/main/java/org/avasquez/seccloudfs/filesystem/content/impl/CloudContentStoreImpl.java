@@ -6,12 +6,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.PostConstruct;
 
+import org.avasquez.seccloudfs.cloud.AsyncCloudStore;
 import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.impl.AsyncCloudStoreAdapter;
 import org.avasquez.seccloudfs.exception.DbException;
 import org.avasquez.seccloudfs.filesystem.content.CloudContent;
 import org.avasquez.seccloudfs.filesystem.content.Content;
@@ -37,11 +40,13 @@ public class CloudContentStoreImpl extends AbstractCachedContentStore {
     private Path downloadsDir;
     private Path snapshotDir;
     private ScheduledExecutorService executorService;
+    private Executor taskExecutor;
     private long retryDownloadDelaySecs;
     private int maxDownloadRetries;
     private long timeoutForNextUpdateSecs;
     private long retryUploadDelaySecs;
     private long maxSize;
+    private AsyncCloudStore asyncCloudStore;
 
     @Required
     public void setMetadataRepo(ContentMetadataRepository metadataRepo) {
@@ -73,6 +78,14 @@ public class CloudContentStoreImpl extends AbstractCachedContentStore {
         this.executorService = executorService;
     }
 
+    /**
+     * Sets the executor where the blocking upload tasks run, while the executor service only schedules them. If not
+     * set, the executor service also runs the tasks.
+     */
+    public void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
     @Required
     public void setRetryDownloadDelaySecs(final long retryDownloadDelaySecs) {
         this.retryDownloadDelaySecs = retryDownloadDelaySecs;
@@ -100,6 +113,13 @@ public class CloudContentStoreImpl extends AbstractCachedContentStore {
 
     @PostConstruct
     public void init() throws IOException {
+        if (taskExecutor == null) {
+            taskExecutor = executorService;
+        }
+
+        // Uploads are chained through callbacks, so that no thread is blocked while waiting for them
+        asyncCloudStore = new AsyncCloudStoreAdapter(cloudStore, taskExecutor);
+
         resumeUploads();
     }
 
@@ -177,8 +197,9 @@ public class CloudContentStoreImpl extends AbstractCachedContentStore {
     private CloudContent createContentObject(ContentMetadata metadata) throws IOException {
         Path downloadPath = getDownloadPath(metadata.getId());
         Lock accessLock = new ReentrantLock();
-        Uploader uploader = new Uploader(metadata, metadataRepo, cloudStore, downloadPath, accessLock,
-                                         snapshotDir, executorService, timeoutForNextUpdateSecs, retryUploadDelaySecs);
+        Uploader uploader = new Uploader(metadata, metadataRepo, asyncCloudStore, downloadPath, accessLock,
+                                         snapshotDir, executorService, taskExecutor, timeoutForNextUpdateSecs,
+                                         retryUploadDelaySecs);
 
         return new CloudContentImpl(metadata, metadataRepo, tmpDir, downloadPath, accessLock, cloudStore, uploader,
                                     retryDownloadDelaySecs, maxDownloadRetries);
@@ -6,14 +6,19 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Date;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.apache.commons.io.IOUtils;
+import org.avasquez.seccloudfs.cloud.AsyncCloudStore;
 import org.avasquez.seccloudfs.exception.DbException;
 import org.avasquez.seccloudfs.filesystem.db.model.ContentMetadata;
 import org.avasquez.seccloudfs.filesystem.db.repos.ContentMetadataRepository;
+import org.avasquez.seccloudfs.utils.concurrent.FutureCallback;
+import org.avasquez.seccloudfs.utils.concurrent.ListenableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,107 +33,148 @@ public class Uploader {
 
     private ContentMetadata metadata;
     private ContentMetadataRepository metadataRepo;
-    private CloudStore cloudStore;
+    private AsyncCloudStore cloudStore;
     private Path downloadPath;
     private Lock accessLock;
     private Path snapshotDir;
-    private ScheduledExecutorService executorService;
+    private ScheduledExecutorService scheduler;
+    private Executor taskExecutor;
     private long timeoutForNextUpdateSecs;
     private long retryDelaySecs;
 
-    private volatile boolean uploading;
+    // A lock instead of synchronized, since the content file is accessed while holding it, and that would pin the
+    // carrier thread when running in a virtual thread
+    private final Lock stateLock;
+    private boolean uploading;
 
-    public Uploader(ContentMetadata metadata, ContentMetadataRepository metadataRepo, CloudStore cloudStore,
-                    Path downloadPath, Lock accessLock, Path snapshotDir, ScheduledExecutorService executorService,
-                    long timeoutForNextUpdateSecs, long retryDelaySecs) {
+    public Uploader(ContentMetadata metadata, ContentMetadataRepository metadataRepo, AsyncCloudStore cloudStore,
+                    Path downloadPath, Lock accessLock, Path snapshotDir, ScheduledExecutorService scheduler,
+                    Executor taskExecutor, long timeoutForNextUpdateSecs, long retryDelaySecs) {
         this.metadata = metadata;
         this.metadataRepo = metadataRepo;
         this.cloudStore = cloudStore;
         this.downloadPath = downloadPath;
         this.snapshotDir = snapshotDir;
         this.timeoutForNextUpdateSecs = timeoutForNextUpdateSecs;
-        this.executorService = executorService;
+        this.scheduler = scheduler;
+        this.taskExecutor = taskExecutor;
         this.accessLock = accessLock;
         this.retryDelaySecs = retryDelaySecs;
+        this.stateLock = new ReentrantLock();
     }
 
-    public synchronized void notifyUpdate() {
-        if (!uploading) {
-            uploading = true;
+    public void notifyUpdate() {
+        stateLock.lock();
+        try {
+            if (!uploading) {
+                uploading = true;
 
-            runUploadInThread();
-        } else {
-            notify();
+                logger.debug("Update received for content '{}'. Waiting {} secs for next update", metadata.getId(),
+                             timeoutForNextUpdateSecs);
+
+                scheduleCheck(TimeUnit.SECONDS.toMillis(timeoutForNextUpdateSecs));
+            }
+
+            // If already uploading, the next check will see the new last modified time of the content
+        } finally {
+            stateLock.unlock();
         }
     }
 
-    private void runUploadInThread() {
-        executorService.execute(new Runnable() {
+    /**
+     * Schedules the next check. The scheduler only hands off the check to the task executor, since the check might
+     * start blocking I/O.
+     */
+    private void scheduleCheck(long delayMillis) {
+        scheduler.schedule(new Runnable() {
 
             @Override
             public void run() {
-                logger.debug("Uploading thread for content '{}' started", metadata.getId());
+                taskExecutor.execute(new Runnable() {
 
-                uploadUntilNoUpdatesReceived();
+                    @Override
+                    public void run() {
+                        checkForUpdates();
+                    }
 
-                uploading = false;
+                });
             }
 
-        });
+        }, delayMillis, TimeUnit.MILLISECONDS);
     }
 
-    private void uploadUntilNoUpdatesReceived() {
-        synchronized (Uploader.this) {
-            try {
-                while (!metadata.isMarkedAsDeleted() && !hasTimeoutOccurred()) {
-                    logger.trace("Update received for content '{}'. Waiting {} secs for next update",
-                                 metadata.getId(), timeoutForNextUpdateSecs);
-
-                    Uploader.this.wait(TimeUnit.SECONDS.toMillis(timeoutForNextUpdateSecs));
-                }
-            } catch (InterruptedException | UploadFailedException e) {
-                logger.error("Error while waiting for content " + metadata + " updates before upload", e);
-            }
-        }
-
+    /**
+     * Starts the upload or delete if there haven't been updates in the timeout, or checks again when the timeout
+     * since the last update expires. No thread is kept waiting between checks or while the transfer is running.
+     */
+    private void checkForUpdates() {
         try {
             if (metadata.isMarkedAsDeleted()) {
                 delete();
             } else {
-                upload();
+                long millisUntilTimeout = getMillisUntilTimeout();
+                if (millisUntilTimeout > 0) {
+                    logger.trace("Update received for content '{}'. Waiting {} secs for next update",
+                                 metadata.getId(), timeoutForNextUpdateSecs);
+
+                    scheduleCheck(millisUntilTimeout);
+                } else {
+                    upload();
+                }
             }
         } catch (UploadFailedException e) {
-            logger.error("Upload for content " + metadata + " failed. Retrying in " + retryDelaySecs + " seconds", e);
-
-            retryUpload();
+            retryUpload(e);
         }
     }
 
     private void delete() throws UploadFailedException {
         logger.info("Delete for content '{}' started", metadata.getId());
 
-        try {
-            if (metadata.getLastUploadTime() != null) {
-                cloudStore.delete(metadata.getId());
-            }
+        if (metadata.getLastUploadTime() != null) {
+            cloudStore.delete(metadata.getId()).addCallback(new FutureCallback<Void>() {
 
-            metadataRepo.delete(metadata.getId());
+                @Override
+                public void onSuccess(Void result) {
+                    try {
+                        deleteMetadata();
+                    } catch (UploadFailedException e) {
+                        retryUpload(e);
+                    }
+                }
 
-            logger.info("Delete for content '{}' finished", metadata.getId());
+                @Override
+                public void onFailure(Throwable cause) {
+                    retryUpload(new UploadFailedException("Error while deleting content from cloud", cause));
+                }
 
-            return;
+            });
+        } else {
+            deleteMetadata();
+        }
+    }
+
+    private void deleteMetadata() throws UploadFailedException {
+        try {
+            metadataRepo.delete(metadata.getId());
         } catch (DbException e) {
             throw new UploadFailedException("Error while deleting content from DB", e);
-        } catch (IOException e) {
-            throw new UploadFailedException("Error while deleting content from cloud", e);
+        }
+
+        logger.info("Delete for content '{}' finished", metadata.getId());
+
+        stateLock.lock();
+        try {
+            uploading = false;
+        } finally {
+            stateLock.unlock();
         }
     }
 
     private void upload() throws UploadFailedException {
         logger.info("Upload for content '{}' started", metadata.getId());
 
-        long snapshotTime;
-        Path snapshotPath;
+        final long snapshotTime;
+        final Path snapshotPath;
 
         accessLock.lock();
         try {
@@ -146,12 +192,46 @@ public class Uploader {
 
         logger.debug("Snapshot file {} created", snapshotPath);
 
-        try (FileChannel snapshotChannel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
-            cloudStore.upload(metadata.getId(), snapshotChannel, snapshotChannel.size());
+        final FileChannel snapshotChannel;
+        try {
+            snapshotChannel = FileChannel.open(snapshotPath, StandardOpenOption.READ);
         } catch (IOException e) {
-            throw new UploadFailedException("Error while uploading content to cloud", e);
+            throw new UploadFailedException("Error while opening snapshot file " + snapshotPath, e);
         }
 
+        ListenableFuture<Void> future;
+        try {
+            future = cloudStore.upload(metadata.getId(), snapshotChannel, snapshotChannel.size());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(snapshotChannel);
+
+            throw new UploadFailedException("Unable to retrieve file size for " + snapshotPath, e);
+        }
+
+        future.addCallback(new FutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+                IOUtils.closeQuietly(snapshotChannel);
+
+                try {
+                    onUploaded(snapshotPath, snapshotTime);
+                } catch (UploadFailedException e) {
+                    retryUpload(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                IOUtils.closeQuietly(snapshotChannel);
+
+                retryUpload(new UploadFailedException("Error while uploading content to cloud", cause));
+            }
+
+        });
+    }
+
+    private void onUploaded(Path snapshotPath, long snapshotTime) throws UploadFailedException {
         logger.info("Content '{}' uploaded to cloud", metadata.getId());
 
         try {
@@ -177,17 +257,27 @@ public class Uploader {
 
         logger.info("Upload for content '{}' finished", metadata.getId());
 
-        // Check if content was deleted or if there where new updates while uploading
-        if (metadata.isMarkedAsDeleted() || getContentLastModifiedTime() > snapshotTime) {
-            uploadUntilNoUpdatesReceived();
+        // Check if content was deleted or if there where new updates while uploading. Done while holding the lock,
+        // so that an update notified right after the check isn't lost
+        stateLock.lock();
+        try {
+            if (!metadata.isMarkedAsDeleted() && getContentLastModifiedTime() <= snapshotTime) {
+                uploading = false;
+
+                return;
+            }
+        } finally {
+            stateLock.unlock();
         }
+
+        checkForUpdates();
     }
 
-    private boolean hasTimeoutOccurred() throws UploadFailedException {
+    private long getMillisUntilTimeout() throws UploadFailedException {
         long now = System.currentTimeMillis();
         long lastModified = getContentLastModifiedTime();
 
-        return TimeUnit.MILLISECONDS.toSeconds(now - lastModified) >= timeoutForNextUpdateSecs;
+        return lastModified + TimeUnit.SECONDS.toMillis(timeoutForNextUpdateSecs) - now;
     }
 
     private long getContentLastModifiedTime() throws UploadFailedException {
@@ -198,17 +288,11 @@ public class Uploader {
         }
     }
 
-    private void retryUpload() {
-        executorService.schedule(new Runnable() {
-
-            @Override
-            public void run() {
-                logger.info("Retrying upload for content '{}'", metadata.getId());
-
-                notifyUpdate();
-            }
+    private void retryUpload(UploadFailedException e) {
+        logger.error("Upload for content " + metadata + " failed. Retrying in " + retryDelaySecs + " seconds", e);
 
-        }, retryDelaySecs, TimeUnit.SECONDS);
+        // Still flagged as uploading, so updates received in the meantime are picked up by the retry
+        scheduleCheck(TimeUnit.SECONDS.toMillis(retryDelaySecs));
     }
 
     private static class UploadFailedException extends IOException {
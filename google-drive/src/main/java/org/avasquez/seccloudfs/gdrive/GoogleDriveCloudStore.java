@@ -1,13 +1,18 @@
 package org.avasquez.seccloudfs.gdrive;
 
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.media.MediaHttpUploader;
 import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
 
 import java.io.FileNotFoundException;
@@ -16,23 +21,37 @@ import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.IOUtils;
-import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.impl.AbstractCloudStore;
 import org.infinispan.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Google Drive implementation of {@link org.avasquez.seccloudfs.cloud.CloudStore}. The implementation is synchronized
- * to avoid too many open connections (while testing, a lot of HTTP connections failed in the server side).
+ * Google Drive implementation of {@link org.avasquez.seccloudfs.cloud.CloudStore}. The implementation is not
+ * synchronized: to avoid too many open connections (while testing, a lot of HTTP connections failed in the server
+ * side), decorate the store with a {@code ConcurrencyLimitingCloudStore}.
+ *
+ * <p>If a {@link org.avasquez.seccloudfs.gdrive.GoogleDriveFileIndex} is set, files are looked up in the index
+ * instead of the file cache, and once the index is complete, files that are not in the index are not looked up with
+ * a query either. The index is filled by {@link #syncFileIndex()}: the first time, with a listing of the root folder,
+ * and after that with the changes feed of Drive, so files uploaded or deleted by other clients are eventually seen.
+ * </p>
  *
  * @author avasquez
  */
-public class GoogleDriveCloudStore implements CloudStore {
+public class GoogleDriveCloudStore extends AbstractCloudStore {
 
     private static final Logger logger = LoggerFactory.getLogger(GoogleDriveCloudStore.class);
 
@@ -41,12 +60,24 @@ public class GoogleDriveCloudStore implements CloudStore {
 
     private static final String ROOT_FOLDER_QUERY = "mimeType = '" + FOLDER_MIME_TYPE + "' and title = '%s'";
     private static final String FIND_FILE_QUERY = "'%s' in parents and title = '%s'";
+    private static final String LIST_FILES_QUERY = "'%s' in parents and trashed = false";
+
+    // Only the fields needed by the file index, to keep the responses of the listings small
+    private static final String LIST_FILES_FIELDS = "items(id,title),nextPageToken";
+    private static final String LIST_CHANGES_FIELDS = "items(deleted,fileId,file(title,parents/id,labels/trashed))," +
+                                                      "largestChangeId,nextPageToken";
+    private static final String FILE_ID_FIELDS = "id";
+    private static final int MAX_LIST_RESULTS = 1000;
+
+    // Max number of calls in a batch request recommended by Google
+    private static final int MAX_BATCH_SIZE = 100;
 
     private String name;
     private Drive drive;
     private String rootFolderName;
     private long chunkedUploadThreshold;
     private Cache<String, File> fileCache;
+    private GoogleDriveFileIndex fileIndex;
 
     private File rootFolder;
 
@@ -59,6 +90,14 @@ public class GoogleDriveCloudStore implements CloudStore {
         this.rootFolderName = rootFolderName;
     }
 
+    /**
+     * Sets the index of the files of the root folder, used instead of the file cache. The index should be synced
+     * periodically through {@link #syncFileIndex()}.
+     */
+    public void setFileIndex(GoogleDriveFileIndex fileIndex) {
+        this.fileIndex = fileIndex;
+    }
+
     @Override
     public String getName() {
         return name;
@@ -75,8 +114,18 @@ public class GoogleDriveCloudStore implements CloudStore {
         }
     }
 
+    /**
+     * Closes the file index, if any, so that it's trusted the next time it's opened.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (fileIndex != null) {
+            fileIndex.close();
+        }
+    }
+
     @Override
-    public synchronized void upload(String filename, ReadableByteChannel src, long length) throws IOException {
+    public void upload(String filename, ReadableByteChannel src, long length) throws IOException {
         InputStreamContent content = new InputStreamContent(BINARY_MIME_TYPE, Channels.newInputStream(src));
         content.setLength(length);
 
@@ -103,26 +152,30 @@ public class GoogleDriveCloudStore implements CloudStore {
                 throw new IOException("Error inserting " + name + "/" + filename, e);
             }
 
-            fileCache.put(filename, file);
+            cacheFile(filename, file);
         }
 
         logger.debug("Finished uploading {}/{}", name, filename);
     }
 
     @Override
-    public synchronized void download(String filename, WritableByteChannel target) throws IOException {
+    public void download(String filename, WritableByteChannel target) throws IOException {
         File file = getCachedFile(filename);
 
         if (file != null) {
             logger.debug("Started downloading {}/{}", name, filename);
 
-            try {
-                HttpRequest request = drive.getRequestFactory().buildGetRequest(new GenericUrl(file.getDownloadUrl()));
-                HttpResponse response = request.execute();
+            // Indexed files only have the ID, so the content is requested by ID instead of download URL
+            try (InputStream in = drive.files().get(file.getId()).executeMediaAsInputStream()) {
+                IOUtils.copy(in, Channels.newOutputStream(target));
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() == 404) {
+                    uncacheFile(filename);
 
-                try (InputStream in = response.getContent()) {
-                    IOUtils.copy(in, Channels.newOutputStream(target));
+                    throw new FileNotFoundException("No file " + name + "/" + filename + " found");
                 }
+
+                throw new IOException("Error downloading " + name + "/" + filename, e);
             } catch (Exception e) {
                 throw new IOException("Error downloading " + name + "/" + filename, e);
             }
@@ -134,7 +187,32 @@ public class GoogleDriveCloudStore implements CloudStore {
     }
 
     @Override
-    public synchronized void delete(String filename) throws IOException {
+    public boolean exists(String filename) throws IOException {
+        File file = getCachedFile(filename);
+        if (file == null) {
+            return false;
+        }
+
+        // The file might have been deleted since it was cached, so ask for it to be sure
+        try {
+            drive.files().get(file.getId()).setFields(FILE_ID_FIELDS).execute();
+
+            return true;
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == 404) {
+                uncacheFile(filename);
+
+                return false;
+            }
+
+            throw new IOException("Error checking " + name + "/" + filename, e);
+        } catch (Exception e) {
+            throw new IOException("Error checking " + name + "/" + filename, e);
+        }
+    }
+
+    @Override
+    public void delete(String filename) throws IOException {
         File file = getCachedFile(filename);
 
         if (file != null) {
@@ -142,14 +220,185 @@ public class GoogleDriveCloudStore implements CloudStore {
 
             try {
                 drive.files().delete(file.getId()).execute();
+            } catch (HttpResponseException e) {
+                // Already deleted, probably by another client
+                if (e.getStatusCode() != 404) {
+                    throw new IOException("Error deleting " + name + "/" + filename, e);
+                }
             } catch (Exception e) {
                 throw new IOException("Error deleting " + name + "/" + filename, e);
             }
 
-            fileCache.remove(filename);
+            uncacheFile(filename);
         }
     }
 
+    @Override
+    public void delete(Collection<String> filenames) throws IOException {
+        final Map<String, IOException> failures = new HashMap<>();
+        final Set<String> batchFilenames = new HashSet<>();
+        BatchRequest batch = drive.batch();
+
+        for (final String filename : filenames) {
+            File file;
+            try {
+                file = getCachedFile(filename);
+            } catch (IOException e) {
+                logger.error("Error retrieving file " + name + "/" + filename, e);
+
+                failures.put(filename, e);
+
+                continue;
+            }
+
+            if (file != null) {
+                logger.debug("Deleting {}/{}", name, filename);
+
+                batchFilenames.add(filename);
+
+                drive.files().delete(file.getId()).queue(batch, new JsonBatchCallback<Void>() {
+
+                    @Override
+                    public void onSuccess(Void result, HttpHeaders responseHeaders) {
+                        batchFilenames.remove(filename);
+
+                        uncacheFile(filename);
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                        batchFilenames.remove(filename);
+
+                        if (error.getCode() == 404) {
+                            // Already deleted, probably by another client
+                            uncacheFile(filename);
+                        } else {
+                            logger.error("Error deleting {}/{}: {}", name, filename, error.getMessage());
+
+                            failures.put(filename, new IOException("Error deleting " + name + "/" + filename + ": " +
+                                                                   error.getCode() + " " + error.getMessage()));
+                        }
+                    }
+
+                });
+
+                if (batch.size() == MAX_BATCH_SIZE) {
+                    batch = executeBatch(batch, batchFilenames, failures);
+                }
+            }
+        }
+
+        if (batch.size() > 0) {
+            executeBatch(batch, batchFilenames, failures);
+        }
+
+        if (!failures.isEmpty()) {
+            IOException failure = new IOException("Unable to delete " + failures.size() + " of " + filenames.size() +
+                                                  " files from store " + name);
+            for (IOException e : failures.values()) {
+                failure.addSuppressed(e);
+            }
+
+            throw failure;
+        }
+    }
+
+    /**
+     * Brings the file index up to date: if the root folder hasn't been completely listed yet, it's listed, and if it
+     * has, the changes since the last sync are applied.
+     */
+    public void syncFileIndex() throws IOException {
+        if (fileIndex.getLastChangeId() < 0) {
+            listFiles();
+        } else {
+            applyChanges();
+        }
+
+        fileIndex.flush();
+    }
+
+    private void listFiles() throws IOException {
+        logger.info("Listing root folder of store {} to build the file index...", name);
+
+        try {
+            // Changes made during the listing are applied by the next sync
+            long startChangeId = drive.about().get().setFields("largestChangeId").execute().getLargestChangeId();
+            String query = String.format(LIST_FILES_QUERY, rootFolder.getId());
+            String pageToken = null;
+
+            do {
+                FileList files = drive.files().list().setQ(query).setFields(LIST_FILES_FIELDS)
+                    .setMaxResults(MAX_LIST_RESULTS).setPageToken(pageToken).execute();
+
+                for (File file : files.getItems()) {
+                    fileIndex.put(file.getTitle(), file.getId());
+                }
+
+                pageToken = files.getNextPageToken();
+            } while (pageToken != null);
+
+            fileIndex.setLastChangeId(startChangeId);
+        } catch (IOException e) {
+            throw new IOException("Error listing root folder '" + rootFolderName + "' of store " + name, e);
+        }
+
+        logger.info("File index of store {} built with {} files", name, fileIndex.size());
+    }
+
+    private void applyChanges() throws IOException {
+        try {
+            long startChangeId = fileIndex.getLastChangeId() + 1;
+            Long largestChangeId = null;
+            String pageToken = null;
+
+            do {
+                ChangeList changes = drive.changes().list().setStartChangeId(startChangeId)
+                    .setIncludeSubscribed(false).setFields(LIST_CHANGES_FIELDS).setMaxResults(MAX_LIST_RESULTS)
+                    .setPageToken(pageToken).execute();
+
+                for (Change change : changes.getItems()) {
+                    applyChange(change);
+                }
+
+                largestChangeId = changes.getLargestChangeId();
+                pageToken = changes.getNextPageToken();
+            } while (pageToken != null);
+
+            if (largestChangeId != null) {
+                fileIndex.setLastChangeId(largestChangeId);
+            }
+        } catch (IOException e) {
+            throw new IOException("Error retrieving changes of store " + name, e);
+        }
+    }
+
+    private void applyChange(Change change) throws IOException {
+        File file = change.getFile();
+
+        // Also removed when renamed, so that the old filename is not kept
+        fileIndex.removeById(change.getFileId());
+
+        if (!Boolean.TRUE.equals(change.getDeleted()) && file != null && isInRootFolder(file)) {
+            fileIndex.put(file.getTitle(), change.getFileId());
+        }
+    }
+
+    private boolean isInRootFolder(File file) {
+        if (file.getLabels() != null && Boolean.TRUE.equals(file.getLabels().getTrashed())) {
+            return false;
+        }
+
+        if (file.getParents() != null) {
+            for (ParentReference parent : file.getParents()) {
+                if (rootFolder.getId().equals(parent.getId())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     private File getRootFolder() throws IOException, IllegalArgumentException {
         try {
             String query = String.format(ROOT_FOLDER_QUERY, rootFolderName.replace("'", "\\'"));
@@ -185,17 +434,47 @@ public class GoogleDriveCloudStore implements CloudStore {
     }
 
     private File getCachedFile(String filename) throws IOException {
-        File file = fileCache.get(filename);
+        File file;
+
+        if (fileIndex != null && fileIndex.canIndex(filename)) {
+            String fileId = fileIndex.get(filename);
+            if (fileId != null) {
+                return new File().setId(fileId).setTitle(filename);
+            } else if (fileIndex.isComplete()) {
+                return null;
+            }
+
+            file = null;
+        } else {
+            file = fileCache.get(filename);
+        }
+
         if (file == null) {
             file = findFile(filename);
             if (file != null) {
-                fileCache.put(filename, file);
+                cacheFile(filename, file);
             }
         }
 
         return file;
     }
 
+    private void cacheFile(String filename, File file) throws IOException {
+        if (fileIndex != null && fileIndex.canIndex(filename)) {
+            fileIndex.put(filename, file.getId());
+        } else {
+            fileCache.put(filename, file);
+        }
+    }
+
+    private void uncacheFile(String filename) {
+        if (fileIndex != null) {
+            fileIndex.remove(filename);
+        }
+
+        fileCache.remove(filename);
+    }
+
     private File findFile(String filename) throws IOException, IllegalArgumentException {
         try {
             String query = String.format(FIND_FILE_QUERY, rootFolder.getId(), filename.replace("'", "\\'"));
@@ -214,6 +493,33 @@ public class GoogleDriveCloudStore implements CloudStore {
         }
     }
 
+    /**
+     * Executes the batch of deletes. If the batch request itself fails, the failure is recorded for every file of the
+     * batch whose callback wasn't called, so that the next batches can still be executed.
+     *
+     * @return the batch to use for the next requests
+     */
+    private BatchRequest executeBatch(BatchRequest batch, Set<String> batchFilenames,
+                                      Map<String, IOException> failures) {
+        try {
+            // The batch is emptied after execution, so it can be reused
+            batch.execute();
+
+            return batch;
+        } catch (IOException e) {
+            logger.error("Error executing batch request in store " + name, e);
+
+            for (String filename : batchFilenames) {
+                failures.put(filename, new IOException("Error executing batch request in store " + name, e));
+            }
+
+            // The failed batch might still hold its requests
+            return drive.batch();
+        } finally {
+            batchFilenames.clear();
+        }
+    }
+
     private File executeUpload(AbstractGoogleClientRequest<File> uploadRequest, String filename,
                                long length) throws IOException {
         MediaHttpUploader uploader = uploadRequest.getMediaHttpUploader();
@@ -0,0 +1,530 @@
+package org.avasquez.seccloudfs.gdrive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact index of the filename to file ID of the files in the root folder of a
+ * {@link org.avasquez.seccloudfs.gdrive.GoogleDriveCloudStore}, so that files can be found without a
+ * {@code files.list} query. The index is an open addressing hash table in a memory mapped file, so it survives
+ * restarts and doesn't take space in the heap. Besides the table by filename, a second table by file ID is kept, so
+ * that the files deleted in the changes feed of Drive, which only have the file ID, can be removed.
+ *
+ * <p>The index is only complete, and misses are only authoritative, after the whole root folder has been listed. Then
+ * it's kept up to date with the changes after the last change ID. Filenames or file IDs longer than
+ * {@link #MAX_KEY_LENGTH} bytes can't be indexed: the files with long filenames are simply looked up with a query,
+ * while a file with a long ID, or a full index, makes the index incomplete until it's cleared.</p>
+ *
+ * <p>Changes to the mapped file are written to disk by the OS at any time, so after a crash the file might have only
+ * part of the changes. The header has a flag that's set while the index is open and only cleared by
+ * {@link #close()}, after all changes are written. An index that wasn't closed is cleared when it's opened again, so
+ * that it's not taken as complete, and the root folder is listed again.</p>
+ *
+ * @author avasquez
+ */
+public class GoogleDriveFileIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(GoogleDriveFileIndex.class);
+
+    public static final int MAX_KEY_LENGTH = 63;
+
+    private static final int MAGIC = 0x53474649;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 2 * (MAX_KEY_LENGTH + 1);
+    private static final int ID_SLOT_SIZE = 4;
+    private static final int MIN_SLOTS = 1024;
+    // The file, with both tables, has to fit in a single mapped buffer
+    private static final int MAX_SLOTS = 1 << 23;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int NUM_SLOTS_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+    private static final int USED_OFFSET = 12;
+    private static final int LAST_CHANGE_ID_OFFSET = 16;
+    private static final int OVERFLOWED_OFFSET = 24;
+    private static final int DIRTY_OFFSET = 25;
+    private static final int ID_SLOTS_USED_OFFSET = 28;
+
+    private static final byte EMPTY = 0;
+    private static final byte DELETED = -1;
+    private static final int EMPTY_ID_SLOT = 0;
+    private static final int DELETED_ID_SLOT = -1;
+
+    private Path indexFile;
+    private MappedByteBuffer buffer;
+    private int numSlots;
+    private int size;
+    // Slots that are taken or deleted, since deleted slots are part of the probe sequences
+    private int used;
+    private int idSlotsUsed;
+    private boolean closed;
+
+    /**
+     * Opens the index file, creating it if it doesn't exist or is not a valid index.
+     *
+     * @param indexFile the file where the index is stored
+     */
+    public GoogleDriveFileIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+
+        if (Files.exists(indexFile) && Files.size(indexFile) >= HEADER_SIZE) {
+            buffer = map(indexFile);
+
+            if (buffer.getInt(MAGIC_OFFSET) == MAGIC) {
+                numSlots = buffer.getInt(NUM_SLOTS_OFFSET);
+                size = buffer.getInt(SIZE_OFFSET);
+                used = buffer.getInt(USED_OFFSET);
+                idSlotsUsed = buffer.getInt(ID_SLOTS_USED_OFFSET);
+
+                if (buffer.capacity() == getFileSize(numSlots)) {
+                    if (buffer.get(DIRTY_OFFSET) != 0) {
+                        logger.warn("File index {} was not closed, so it might have lost changes. Clearing it...",
+                                    indexFile);
+
+                        clear();
+                    } else {
+                        buffer.put(DIRTY_OFFSET, (byte) 1);
+                        buffer.force();
+
+                        logger.info("File index {} opened with {} files", indexFile, size);
+                    }
+
+                    return;
+                }
+            }
+
+            logger.warn("File index {} is not valid. Creating a new one...", indexFile);
+        }
+
+        buffer = create(indexFile, MIN_SLOTS);
+        numSlots = MIN_SLOTS;
+        size = 0;
+        used = 0;
+        idSlotsUsed = 0;
+    }
+
+    /**
+     * Returns the number of indexed files.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the whole root folder has been listed and all its files could be indexed, so a file that's not
+     * in the index doesn't exist.
+     */
+    public synchronized boolean isComplete() {
+        return buffer.getLong(LAST_CHANGE_ID_OFFSET) >= 0 && buffer.get(OVERFLOWED_OFFSET) == 0;
+    }
+
+    /**
+     * Returns the ID of the last change of the changes feed applied to the index, or -1 if the root folder hasn't been
+     * completely listed yet.
+     */
+    public synchronized long getLastChangeId() {
+        return buffer.getLong(LAST_CHANGE_ID_OFFSET);
+    }
+
+    /**
+     * Sets the ID of the last change of the changes feed applied to the index. After a full listing, it should be the
+     * last change ID before the listing started.
+     */
+    public synchronized void setLastChangeId(long lastChangeId) {
+        checkOpen();
+
+        buffer.putLong(LAST_CHANGE_ID_OFFSET, lastChangeId);
+    }
+
+    /**
+     * Removes all the files and resets the last change ID, so that the root folder is listed again.
+     */
+    public synchronized void clear() throws IOException {
+        checkOpen();
+
+        rehash(MIN_SLOTS, false);
+    }
+
+    /**
+     * Returns true if the filename is short enough to be indexed.
+     */
+    public boolean canIndex(String filename) {
+        return filename.length() <= MAX_KEY_LENGTH && toBytes(filename).length <= MAX_KEY_LENGTH;
+    }
+
+    /**
+     * Returns the ID of the file with the specified filename, or null if it's not in the index.
+     */
+    public synchronized String get(String filename) {
+        if (!canIndex(filename)) {
+            return null;
+        }
+
+        int slot = findSlot(toBytes(filename));
+
+        return slot >= 0 ? readKey(getSlotOffset(slot) + MAX_KEY_LENGTH + 1) : null;
+    }
+
+    /**
+     * Adds the file to the index, replacing the previous ID of the filename. If the file ID can't be indexed, or the
+     * index is full, the index is marked as incomplete.
+     */
+    public synchronized void put(String filename, String fileId) throws IOException {
+        checkOpen();
+
+        if (!canIndex(filename)) {
+            return;
+        }
+
+        byte[] name = toBytes(filename);
+        byte[] id = toBytes(fileId);
+
+        if (id.length > MAX_KEY_LENGTH) {
+            logger.warn("ID of file {} is too long to be indexed. Marking index {} as incomplete", filename,
+                        indexFile);
+
+            remove(filename);
+            markIncomplete();
+
+            return;
+        }
+
+        // Before the lookup, since a rehash moves the slots
+        if (!ensureCapacity()) {
+            logger.warn("File index {} is full. Marking it as incomplete", indexFile);
+
+            remove(filename);
+            markIncomplete();
+
+            return;
+        }
+
+        int slot = findSlot(name);
+        if (slot >= 0) {
+            removeIdSlot(slot);
+        } else {
+            slot = findFreeSlot(name);
+
+            if (buffer.get(getSlotOffset(slot)) == EMPTY) {
+                used++;
+            }
+            size++;
+
+            writeKey(getSlotOffset(slot), name);
+        }
+
+        writeKey(getSlotOffset(slot) + MAX_KEY_LENGTH + 1, id);
+        addIdSlot(id, slot);
+        writeCounts();
+    }
+
+    /**
+     * Removes the file with the specified filename from the index.
+     */
+    public synchronized void remove(String filename) {
+        checkOpen();
+
+        if (canIndex(filename)) {
+            removeSlot(findSlot(toBytes(filename)));
+        }
+    }
+
+    /**
+     * Removes the file with the specified ID from the index.
+     */
+    public synchronized void removeById(String fileId) {
+        checkOpen();
+
+        byte[] id = toBytes(fileId);
+        if (id.length <= MAX_KEY_LENGTH) {
+            int idSlot = findIdSlot(id);
+            if (idSlot >= 0) {
+                removeSlot(buffer.getInt(getIdSlotOffset(idSlot)) - 1);
+            }
+        }
+    }
+
+    /**
+     * Writes the changes of the mapped file to disk.
+     */
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Writes the changes of the mapped file to disk, and then marks the index as closed cleanly, so that it's
+     * trusted when it's opened again. The index can't be modified after it's closed.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            buffer.force();
+            buffer.put(DIRTY_OFFSET, (byte) 0);
+            buffer.force();
+
+            closed = true;
+
+            logger.info("File index {} closed with {} files", indexFile, size);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("File index " + indexFile + " is closed");
+        }
+    }
+
+    private int findSlot(byte[] name) {
+        int mask = numSlots - 1;
+
+        for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+            byte length = buffer.get(getSlotOffset(i));
+            if (length == EMPTY) {
+                return -1;
+            } else if (length != DELETED && keyEquals(getSlotOffset(i), name)) {
+                return i;
+            }
+        }
+    }
+
+    private int findFreeSlot(byte[] name) {
+        int mask = numSlots - 1;
+
+        for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+            byte length = buffer.get(getSlotOffset(i));
+            if (length == EMPTY || length == DELETED) {
+                return i;
+            }
+        }
+    }
+
+    private void removeSlot(int slot) {
+        if (slot >= 0) {
+            removeIdSlot(slot);
+
+            buffer.put(getSlotOffset(slot), DELETED);
+            size--;
+
+            writeCounts();
+        }
+    }
+
+    private int findIdSlot(byte[] id) {
+        int mask = numSlots - 1;
+
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            int slot = buffer.getInt(getIdSlotOffset(i));
+            if (slot == EMPTY_ID_SLOT) {
+                return -1;
+            } else if (slot != DELETED_ID_SLOT && keyEquals(getSlotOffset(slot - 1) + MAX_KEY_LENGTH + 1, id)) {
+                return i;
+            }
+        }
+    }
+
+    private void addIdSlot(byte[] id, int slot) {
+        int mask = numSlots - 1;
+
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            int current = buffer.getInt(getIdSlotOffset(i));
+            if (current == EMPTY_ID_SLOT || current == DELETED_ID_SLOT) {
+                if (current == EMPTY_ID_SLOT) {
+                    idSlotsUsed++;
+                }
+
+                // Slots are stored + 1, so that 0 means empty
+                buffer.putInt(getIdSlotOffset(i), slot + 1);
+
+                return;
+            }
+        }
+    }
+
+    private void removeIdSlot(int slot) {
+        byte[] id = readKeyBytes(buffer, getSlotOffset(slot) + MAX_KEY_LENGTH + 1);
+        int mask = numSlots - 1;
+
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            int current = buffer.getInt(getIdSlotOffset(i));
+            if (current == EMPTY_ID_SLOT) {
+                return;
+            } else if (current == slot + 1) {
+                buffer.putInt(getIdSlotOffset(i), DELETED_ID_SLOT);
+
+                return;
+            }
+        }
+    }
+
+    private boolean ensureCapacity() throws IOException {
+        // A new file takes a slot in each table, and a new ID for an indexed file a slot in the ID table
+        if (Math.max(used, idSlotsUsed) + 1 <= numSlots * MAX_LOAD_FACTOR) {
+            return true;
+        }
+
+        // If most of the used slots are deleted, a rehash to the same size is enough
+        int newNumSlots = numSlots;
+        while (size + 1 > newNumSlots * MAX_LOAD_FACTOR / 2 && newNumSlots < MAX_SLOTS) {
+            newNumSlots *= 2;
+        }
+
+        if (size + 1 > newNumSlots * MAX_LOAD_FACTOR) {
+            return false;
+        }
+
+        rehash(newNumSlots, true);
+
+        return true;
+    }
+
+    private void rehash(int newNumSlots, boolean copyFiles) throws IOException {
+        Path tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        MappedByteBuffer oldBuffer = buffer;
+        int oldNumSlots = numSlots;
+
+        buffer = create(tmpFile, newNumSlots);
+        numSlots = newNumSlots;
+        size = 0;
+        used = 0;
+        idSlotsUsed = 0;
+
+        if (copyFiles) {
+            for (int i = 0; i < oldNumSlots; i++) {
+                int offset = HEADER_SIZE + i * SLOT_SIZE;
+                byte length = oldBuffer.get(offset);
+
+                if (length != EMPTY && length != DELETED) {
+                    byte[] name = readKeyBytes(oldBuffer, offset);
+                    byte[] id = readKeyBytes(oldBuffer, offset + MAX_KEY_LENGTH + 1);
+                    int slot = findFreeSlot(name);
+
+                    writeKey(getSlotOffset(slot), name);
+                    writeKey(getSlotOffset(slot) + MAX_KEY_LENGTH + 1, id);
+                    addIdSlot(id, slot);
+
+                    size++;
+                    used++;
+                }
+            }
+
+            buffer.put(OVERFLOWED_OFFSET, oldBuffer.get(OVERFLOWED_OFFSET));
+            buffer.putLong(LAST_CHANGE_ID_OFFSET, oldBuffer.getLong(LAST_CHANGE_ID_OFFSET));
+        }
+
+        writeCounts();
+        buffer.force();
+
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        logger.debug("File index {} rehashed to {} slots", indexFile, newNumSlots);
+    }
+
+    private void markIncomplete() {
+        buffer.put(OVERFLOWED_OFFSET, (byte) 1);
+    }
+
+    private void writeCounts() {
+        buffer.putInt(SIZE_OFFSET, size);
+        buffer.putInt(USED_OFFSET, used);
+        buffer.putInt(ID_SLOTS_USED_OFFSET, idSlotsUsed);
+    }
+
+    private boolean keyEquals(int offset, byte[] key) {
+        if (buffer.get(offset) != key.length) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + 1 + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String readKey(int offset) {
+        return new String(readKeyBytes(buffer, offset), StandardCharsets.UTF_8);
+    }
+
+    private void writeKey(int offset, byte[] key) {
+        buffer.put(offset, (byte) key.length);
+
+        for (int i = 0; i < key.length; i++) {
+            buffer.put(offset + 1 + i, key[i]);
+        }
+    }
+
+    private int getSlotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int getIdSlotOffset(int idSlot) {
+        return HEADER_SIZE + numSlots * SLOT_SIZE + idSlot * ID_SLOT_SIZE;
+    }
+
+    private static byte[] readKeyBytes(ByteBuffer buffer, int offset) {
+        byte[] key = new byte[buffer.get(offset)];
+
+        for (int i = 0; i < key.length; i++) {
+            key[i] = buffer.get(offset + 1 + i);
+        }
+
+        return key;
+    }
+
+    private static byte[] toBytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte[] key) {
+        // FNV-1a
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+
+        return hash;
+    }
+
+    private static int getFileSize(int numSlots) {
+        return HEADER_SIZE + numSlots * (SLOT_SIZE + ID_SLOT_SIZE);
+    }
+
+    private static MappedByteBuffer create(Path file, int numSlots) throws IOException {
+        // Truncate, so that all the slots are empty
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(1), getFileSize(numSlots) - 1);
+        }
+
+        MappedByteBuffer buffer = map(file);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(NUM_SLOTS_OFFSET, numSlots);
+        buffer.putLong(LAST_CHANGE_ID_OFFSET, -1);
+        buffer.put(DIRTY_OFFSET, (byte) 1);
+
+        return buffer;
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+}
@@ -4,30 +4,63 @@ import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PreDestroy;
 
 import org.avasquez.seccloudfs.cloud.CloudStore;
 import org.avasquez.seccloudfs.cloud.impl.AbstractRootFolderBasedCloudStore;
 import org.avasquez.seccloudfs.gdrive.GoogleDriveCloudStore;
+import org.avasquez.seccloudfs.gdrive.GoogleDriveFileIndex;
 import org.avasquez.seccloudfs.gdrive.db.model.GoogleDriveCredentials;
 import org.avasquez.seccloudfs.utils.FileUtils;
 import org.infinispan.Cache;
 import org.infinispan.configuration.cache.Configuration;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.manager.EmbeddedCacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
+import org.springframework.scheduling.TaskScheduler;
 
 /**
  * {@link org.avasquez.seccloudfs.cloud.CloudStoreRegistrar} for Google Drive.
  *
+ * <p>If a file index dir is set, each store gets a {@link org.avasquez.seccloudfs.gdrive.GoogleDriveFileIndex} in
+ * that dir. The indexes are synced right away and then every sync delay: the scheduler only hands off the syncs to
+ * the task executor, since the first sync of a store lists its whole root folder. On shutdown, the syncs are
+ * cancelled and the indexes closed, since an index that's not closed is listed again from scratch.</p>
+ *
  * @author avasquez
  */
 public class GoogleDriveCloudStoreRegistrar extends AbstractRootFolderBasedCloudStore<Drive, GoogleDriveCredentials> {
 
+    private static final Logger logger = LoggerFactory.getLogger(GoogleDriveCloudStoreRegistrar.class);
+
     public static final String STORE_NAME_FORMAT = "gdrive://%s/%s";
 
+    private static final String FILE_INDEX_SUFFIX = ".index";
+
     private long chunkedUploadThreshold;
     private EmbeddedCacheManager cacheManager;
     private int maxEntriesPerCache;
+    private String fileIndexDir;
+    private TaskScheduler scheduler;
+    private Executor taskExecutor;
+    private long fileIndexSyncDelayMillis;
+    private List<GoogleDriveCloudStore> indexedStores;
+    private List<ScheduledFuture<?>> fileIndexSyncs;
+
+    public GoogleDriveCloudStoreRegistrar() {
+        fileIndexSyncDelayMillis = 60000;
+        indexedStores = new CopyOnWriteArrayList<>();
+        fileIndexSyncs = new CopyOnWriteArrayList<>();
+    }
 
     @Required
     public void setChunkedUploadThreshold(String chunkedUploadThreshold) {
@@ -44,6 +77,36 @@ public class GoogleDriveCloudStoreRegistrar extends AbstractRootFolderBasedCloud
         this.maxEntriesPerCache = maxEntriesPerCache;
     }
 
+    /**
+     * Sets the dir where the file indexes of the stores are kept. If not set, the stores find the files with queries,
+     * and keep them in a per-store cache.
+     */
+    public void setFileIndexDir(String fileIndexDir) {
+        this.fileIndexDir = fileIndexDir;
+    }
+
+    /**
+     * Sets the scheduler of the periodic file index syncs. If not set, the indexes are only synced when the stores
+     * are created.
+     */
+    public void setScheduler(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the executor that runs the scheduled file index syncs. If not set, they're run by the scheduler.
+     */
+    public void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Sets the delay between the end of a file index sync and the start of the next. Defaults to 1 minute.
+     */
+    public void setFileIndexSyncDelayMillis(long fileIndexSyncDelayMillis) {
+        this.fileIndexSyncDelayMillis = fileIndexSyncDelayMillis;
+    }
+
     @Override
     protected CloudStore createStore(Drive client, GoogleDriveCredentials credentials,
                                      String rootFolderName) throws IOException {
@@ -57,11 +120,41 @@ public class GoogleDriveCloudStoreRegistrar extends AbstractRootFolderBasedCloud
             chunkedUploadThreshold,
             cache);
 
+        if (fileIndexDir != null) {
+            cloudStore.setFileIndex(new GoogleDriveFileIndex(getFileIndexFile(storeName)));
+            indexedStores.add(cloudStore);
+        }
+
         cloudStore.init();
 
+        if (fileIndexDir != null) {
+            if (scheduler != null) {
+                fileIndexSyncs.add(scheduler.scheduleWithFixedDelay(new FileIndexSyncTask(cloudStore, taskExecutor),
+                                                                    fileIndexSyncDelayMillis));
+            } else {
+                cloudStore.syncFileIndex();
+            }
+        }
+
         return cloudStore;
     }
 
+    @PreDestroy
+    public void destroy() {
+        for (ScheduledFuture<?> sync : fileIndexSyncs) {
+            sync.cancel(false);
+        }
+
+        // A sync that's still running fails when it tries to modify the closed index, and is done again on restart
+        for (GoogleDriveCloudStore cloudStore : indexedStores) {
+            cloudStore.destroy();
+        }
+    }
+
+    private Path getFileIndexFile(String storeName) {
+        return Paths.get(fileIndexDir, storeName.replaceAll("[^\\w.-]", "_") + FILE_INDEX_SUFFIX);
+    }
+
     private Cache<String, File> createFileCache(String storeName) {
         Configuration conf = new ConfigurationBuilder().eviction().maxEntries(maxEntriesPerCache).build();
 
@@ -70,4 +163,50 @@ public class GoogleDriveCloudStoreRegistrar extends AbstractRootFolderBasedCloud
         return cacheManager.getCache(storeName);
     }
 
+    /**
+     * Task that hands off the sync of the file index of a store to the executor, unless the previous sync is still
+     * running.
+     */
+    private static class FileIndexSyncTask implements Runnable {
+
+        private GoogleDriveCloudStore cloudStore;
+        private Executor executor;
+        private AtomicBoolean running;
+
+        private FileIndexSyncTask(GoogleDriveCloudStore cloudStore, Executor executor) {
+            this.cloudStore = cloudStore;
+            this.executor = executor;
+            this.running = new AtomicBoolean();
+        }
+
+        @Override
+        public void run() {
+            if (!running.compareAndSet(false, true)) {
+                return;
+            }
+
+            Runnable sync = new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        cloudStore.syncFileIndex();
+                    } catch (Exception e) {
+                        logger.error("Error syncing file index of store " + cloudStore.getName(), e);
+                    } finally {
+                        running.set(false);
+                    }
+                }
+
+            };
+
+            if (executor != null) {
+                executor.execute(sync);
+            } else {
+                sync.run();
+            }
+        }
+
+    }
+
 }
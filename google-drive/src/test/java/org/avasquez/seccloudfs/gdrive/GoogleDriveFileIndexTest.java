@@ -0,0 +1,177 @@
+package org.avasquez.seccloudfs.gdrive;
+
+import java.nio.file.Path;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.gdrive.GoogleDriveFileIndex}.
+ *
+ * @author avasquez
+ */
+public class GoogleDriveFileIndexTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private Path indexFile;
+    private GoogleDriveFileIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        indexFile = tmpDir.getRoot().toPath().resolve("store.index");
+        index = new GoogleDriveFileIndex(indexFile);
+    }
+
+    @Test
+    public void testPutGetAndRemove() throws Exception {
+        index.put("file1", "id1");
+        index.put("file2", "id2");
+
+        assertEquals(2, index.size());
+        assertEquals("id1", index.get("file1"));
+        assertEquals("id2", index.get("file2"));
+        assertNull(index.get("file3"));
+
+        index.put("file1", "id3");
+
+        assertEquals(2, index.size());
+        assertEquals("id3", index.get("file1"));
+
+        index.remove("file1");
+
+        assertEquals(1, index.size());
+        assertNull(index.get("file1"));
+
+        index.removeById("id2");
+
+        assertEquals(0, index.size());
+        assertNull(index.get("file2"));
+    }
+
+    @Test
+    public void testRemoveByIdAfterIdChange() throws Exception {
+        index.put("file1", "id1");
+        index.put("file1", "id2");
+
+        // The old ID doesn't belong to the file anymore
+        index.removeById("id1");
+
+        assertEquals("id2", index.get("file1"));
+
+        index.removeById("id2");
+
+        assertNull(index.get("file1"));
+    }
+
+    @Test
+    public void testGrowAndReopen() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            index.put("file" + i, "id" + i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            index.removeById("id" + i);
+        }
+
+        index.setLastChangeId(100);
+        index.close();
+
+        GoogleDriveFileIndex reopenedIndex = new GoogleDriveFileIndex(indexFile);
+
+        assertEquals(2500, reopenedIndex.size());
+        assertEquals(100, reopenedIndex.getLastChangeId());
+        assertTrue(reopenedIndex.isComplete());
+
+        for (int i = 0; i < 5000; i++) {
+            if (i % 2 == 0) {
+                assertNull(reopenedIndex.get("file" + i));
+            } else {
+                assertEquals("id" + i, reopenedIndex.get("file" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testReopenWithoutClose() throws Exception {
+        index.put("file1", "id1");
+        index.setLastChangeId(100);
+        // Even if all the changes are written, the index might have been modified after the last flush
+        index.flush();
+
+        GoogleDriveFileIndex reopenedIndex = new GoogleDriveFileIndex(indexFile);
+
+        assertEquals(0, reopenedIndex.size());
+        assertEquals(-1, reopenedIndex.getLastChangeId());
+        assertFalse(reopenedIndex.isComplete());
+
+        // Once it's closed cleanly, it's trusted again
+        reopenedIndex.put("file1", "id1");
+        reopenedIndex.setLastChangeId(200);
+        reopenedIndex.close();
+
+        reopenedIndex = new GoogleDriveFileIndex(indexFile);
+
+        assertEquals("id1", reopenedIndex.get("file1"));
+        assertTrue(reopenedIndex.isComplete());
+    }
+
+    @Test
+    public void testClosedIndexCantBeModified() throws Exception {
+        index.put("file1", "id1");
+        index.close();
+
+        assertEquals("id1", index.get("file1"));
+
+        try {
+            index.put("file2", "id2");
+            fail("Expected " + IllegalStateException.class);
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCompleteness() throws Exception {
+        assertFalse(index.isComplete());
+        assertEquals(-1, index.getLastChangeId());
+
+        index.setLastChangeId(10);
+
+        assertTrue(index.isComplete());
+
+        // Long filenames are just not indexed
+        String longFilename = StringUtils.repeat('a', GoogleDriveFileIndex.MAX_KEY_LENGTH + 1);
+
+        assertFalse(index.canIndex(longFilename));
+
+        index.put(longFilename, "id1");
+
+        assertNull(index.get(longFilename));
+        assertTrue(index.isComplete());
+
+        // A long ID can't be indexed, so misses are not authoritative anymore
+        index.put("file1", StringUtils.repeat('a', GoogleDriveFileIndex.MAX_KEY_LENGTH + 1));
+
+        assertNull(index.get("file1"));
+        assertFalse(index.isComplete());
+
+        index.clear();
+
+        assertEquals(-1, index.getLastChangeId());
+
+        index.setLastChangeId(20);
+
+        assertTrue(index.isComplete());
+    }
+
+}
@@ -0,0 +1,148 @@
+package org.avasquez.seccloudfs.processing.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.avasquez.seccloudfs.utils.FileUtils;
+
+/**
+ * Estimates if data is worth compressing, without compressing it. A few samples, evenly spread over the data, are
+ * taken, and the entropy of their bytes is calculated. Already compressed, encrypted or erasure coded data has an
+ * entropy very close to 8 bits per byte, so data over the max entropy is considered incompressible.
+ *
+ * @author avasquez
+ */
+public class CompressibilityEstimator {
+
+    private int numSamples;
+    private int sampleSize;
+    private double maxEntropy;
+
+    public CompressibilityEstimator() {
+        numSamples = 8;
+        sampleSize = 4 * 1024;
+        maxEntropy = 7.5;
+    }
+
+    /**
+     * Sets the number of samples taken from the data. Defaults to 8.
+     */
+    public void setNumSamples(int numSamples) {
+        this.numSamples = numSamples;
+    }
+
+    /**
+     * Sets the size of each sample (e.g. 4KB). Defaults to 4KB.
+     */
+    public void setSampleSize(String sampleSize) {
+        this.sampleSize = (int) FileUtils.humanReadableByteSizeToByteCount(sampleSize);
+    }
+
+    /**
+     * Sets the max entropy, in bits per byte, of compressible data. Defaults to 7.5.
+     */
+    public void setMaxEntropy(double maxEntropy) {
+        this.maxEntropy = maxEntropy;
+    }
+
+    /**
+     * Returns the number of bytes that are sampled, at most.
+     */
+    public int getMaxSampledSize() {
+        return numSamples * sampleSize;
+    }
+
+    /**
+     * Returns true if the data in the array looks compressible.
+     *
+     * @param data  the array with the data
+     * @param off   the offset of the data in the array
+     * @param len   the length of the data
+     */
+    public boolean isCompressible(byte[] data, int off, int len) {
+        int[] counts = new int[256];
+        long total = 0;
+
+        for (long sampleOffset : getSampleOffsets(len)) {
+            int sampleLen = (int) Math.min(sampleSize, len - sampleOffset);
+
+            for (int i = 0; i < sampleLen; i++) {
+                counts[data[off + (int) sampleOffset + i] & 0xff]++;
+            }
+
+            total += sampleLen;
+        }
+
+        return isCompressible(counts, total);
+    }
+
+    /**
+     * Returns true if the data in the channel looks compressible. The position of the channel is not changed.
+     *
+     * @param channel   the channel with the data
+     * @param size      the size of the data
+     */
+    public boolean isCompressible(FileChannel channel, long size) throws IOException {
+        int[] counts = new int[256];
+        long total = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(sampleSize);
+
+        for (long sampleOffset : getSampleOffsets(size)) {
+            buffer.clear();
+            buffer.limit((int) Math.min(sampleSize, size - sampleOffset));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, sampleOffset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+
+            buffer.flip();
+            total += buffer.remaining();
+
+            while (buffer.hasRemaining()) {
+                counts[buffer.get() & 0xff]++;
+            }
+        }
+
+        return isCompressible(counts, total);
+    }
+
+    private long[] getSampleOffsets(long size) {
+        if (size <= getMaxSampledSize()) {
+            // Small data, sample all of it
+            long[] offsets = new long[(int) ((size + sampleSize - 1) / sampleSize)];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = (long) i * sampleSize;
+            }
+
+            return offsets;
+        }
+
+        long[] offsets = new long[numSamples];
+        for (int i = 1; i < numSamples; i++) {
+            offsets[i] = (size - sampleSize) * i / (numSamples - 1);
+        }
+
+        return offsets;
+    }
+
+    private boolean isCompressible(int[] counts, long total) {
+        if (total == 0) {
+            return false;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+
+        return entropy <= maxEntropy;
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.avasquez.seccloudfs.processing.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression algorithm applied to the data before it's erasure coded. The name of the codec is stored with the
+ * compressed data, so that it can be decompressed with the same codec later.
+ *
+ * @author avasquez
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the name of the codec, which identifies it in the stored metadata.
+     */
+    String getName();
+
+    /**
+     * Returns a stream that compresses the data written to it into the specified stream. Closing the returned
+     * stream finishes the compression and closes the underlying stream.
+     *
+     * @param out the stream where the compressed data should be written
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Returns a stream that decompresses the data read from the specified stream.
+     *
+     * @param in the stream of compressed data
+     */
+    InputStream decompress(InputStream in) throws IOException;
+
+}
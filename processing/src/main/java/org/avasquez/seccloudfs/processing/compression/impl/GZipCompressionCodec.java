@@ -0,0 +1,37 @@
+package org.avasquez.seccloudfs.processing.compression.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.avasquez.seccloudfs.processing.compression.CompressionCodec;
+
+/**
+ * {@link org.avasquez.seccloudfs.processing.compression.CompressionCodec} that uses the JDK's GZIP implementation.
+ *
+ * @author avasquez
+ */
+public class GZipCompressionCodec implements CompressionCodec {
+
+    public static final String NAME = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+}
@@ -0,0 +1,445 @@
+package org.avasquez.seccloudfs.processing.compression.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.avasquez.seccloudfs.processing.compression.CompressionCodec;
+import org.avasquez.seccloudfs.utils.FileUtils;
+
+/**
+ * {@link org.avasquez.seccloudfs.processing.compression.CompressionCodec} that compresses the data in parallel, like
+ * pigz. The data is split in fixed size blocks, which are compressed separately in an executor and written in order
+ * as the members of a multi-member GZIP file, so any GZIP reader (including the
+ * {@link org.avasquez.seccloudfs.processing.compression.impl.GZipCompressionCodec}) can decompress the data.
+ *
+ * <p>Like in BGZF, the header of each member has an extra field with the size of the whole member, so that the
+ * members can be found without inflating them, and decompressed in parallel too. GZIP data without this field (like
+ * the one written by the {@link org.avasquez.seccloudfs.processing.compression.impl.GZipCompressionCodec}) is
+ * decompressed sequentially. Since the output is standard GZIP, the name of the codec is the same as the name of the
+ * sequential GZIP codec, and either codec can be registered to read the data of the other.</p>
+ *
+ * @author avasquez
+ */
+public class ParallelGZipCompressionCodec implements CompressionCodec {
+
+    public static final String NAME = GZipCompressionCodec.NAME;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_MEMBER_SIZE = 2 * MAX_BLOCK_SIZE;
+    // Magic number, deflate method, FEXTRA flag, no mtime, no extra flags, unknown OS
+    private static final byte[] HEADER_PREFIX = { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final byte[] EXTRA_FIELD_ID = { 'S', 'Z' };
+    private static final int EXTRA_FIELD_LENGTH = EXTRA_FIELD_ID.length + 2 + 4;
+    private static final int HEADER_SIZE = HEADER_PREFIX.length + 2 + EXTRA_FIELD_LENGTH;
+    private static final int TRAILER_SIZE = 8;
+
+    private int blockSize;
+    private int level;
+    private int parallelism;
+    private Executor executor;
+
+    public ParallelGZipCompressionCodec() {
+        blockSize = 1024 * 1024;
+        level = Deflater.DEFAULT_COMPRESSION;
+        parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets the size of the blocks that are compressed separately (e.g. 1MB), up to 32MB. Defaults to 1MB.
+     */
+    public void setBlockSize(String blockSize) {
+        this.blockSize = (int) FileUtils.humanReadableByteSizeToByteCount(blockSize);
+
+        if (this.blockSize <= 0 || this.blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 byte and " + MAX_BLOCK_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Sets the deflate compression level, from 1 (fastest) to 9 (best ratio). Defaults to the deflate default (6).
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets the max number of blocks of a single stream that are compressed or decompressed at the same time.
+     * Defaults to the number of processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the executor that compresses and decompresses the blocks in parallel. If not set, the blocks are processed
+     * in the calling thread.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new BlockCompressingOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        PushbackInputStream pushbackIn = new PushbackInputStream(in, HEADER_SIZE);
+        byte[] header = new byte[HEADER_SIZE];
+        int read = IOUtils.read(pushbackIn, header);
+
+        pushbackIn.unread(header, 0, read);
+
+        if (read == HEADER_SIZE && getMemberSize(header) > 0) {
+            return new BlockDecompressingInputStream(pushbackIn);
+        } else {
+            return new GZIPInputStream(pushbackIn, BUFFER_SIZE);
+        }
+    }
+
+    private int getParallelism() {
+        return executor != null ? Math.max(1, parallelism) : 1;
+    }
+
+    /**
+     * Compresses the block as a complete GZIP member, with the size of the member in the extra field.
+     */
+    private byte[] compressBlock(byte[] block, int length) {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(HEADER_SIZE + length / 2 + TRAILER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Deflater deflater = new Deflater(level, true);
+
+        // Header, with the member size filled in after the data is compressed
+        member.write(HEADER_PREFIX, 0, HEADER_PREFIX.length);
+        member.write(new byte[HEADER_SIZE - HEADER_PREFIX.length], 0, HEADER_SIZE - HEADER_PREFIX.length);
+
+        try {
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                member.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, length);
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt(length);
+
+        member.write(trailer.array(), 0, TRAILER_SIZE);
+
+        byte[] bytes = member.toByteArray();
+
+        ByteBuffer.wrap(bytes, HEADER_PREFIX.length, HEADER_SIZE - HEADER_PREFIX.length)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .putShort((short) EXTRA_FIELD_LENGTH)
+            .put(EXTRA_FIELD_ID)
+            .putShort((short) 4)
+            .putInt(bytes.length);
+
+        return bytes;
+    }
+
+    private byte[] decompressMember(byte[] member) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize);
+
+        // The JDK inflater checks the CRC and size in the trailer
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(member), BUFFER_SIZE)) {
+            IOUtils.copy(in, block);
+        }
+
+        return block.toByteArray();
+    }
+
+    /**
+     * Returns the size of the member, from the extra field of its header, or -1 if the header doesn't have the
+     * field.
+     */
+    private int getMemberSize(byte[] header) {
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] prefix = new byte[HEADER_PREFIX.length];
+        byte[] fieldId = new byte[EXTRA_FIELD_ID.length];
+
+        buffer.get(prefix);
+
+        // Only the fixed fields that identify the format are checked
+        if (prefix[0] != HEADER_PREFIX[0] || prefix[1] != HEADER_PREFIX[1] || prefix[2] != HEADER_PREFIX[2] ||
+            prefix[3] != HEADER_PREFIX[3] || buffer.getShort() != EXTRA_FIELD_LENGTH) {
+            return -1;
+        }
+
+        buffer.get(fieldId);
+
+        if (!Arrays.equals(EXTRA_FIELD_ID, fieldId) || buffer.getShort() != 4) {
+            return -1;
+        }
+
+        int memberSize = buffer.getInt();
+
+        return memberSize >= HEADER_SIZE + TRAILER_SIZE && memberSize <= MAX_MEMBER_SIZE ? memberSize : -1;
+    }
+
+    private FutureTask<byte[]> submit(Callable<byte[]> callable) {
+        FutureTask<byte[]> task = new FutureTask<>(callable);
+
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+
+        return task;
+    }
+
+    private byte[] getResult(FutureTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while waiting for a block", e);
+        }
+    }
+
+    /**
+     * Collects the plain blocks written to it, keeping up to {@code parallelism} blocks compressing before writing
+     * them in order to the underlying stream.
+     */
+    private class BlockCompressingOutputStream extends OutputStream {
+
+        private OutputStream out;
+        private int parallelism;
+        private Deque<FutureTask<byte[]>> pendingMembers;
+        private byte[] block;
+        private int blockLength;
+        private boolean blockWritten;
+        private boolean closed;
+
+        private BlockCompressingOutputStream(OutputStream out) {
+            this.out = out;
+            this.parallelism = getParallelism();
+            this.pendingMembers = new ArrayDeque<>();
+            this.block = new byte[blockSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int copied = Math.min(len, block.length - blockLength);
+
+                System.arraycopy(b, off, block, blockLength, copied);
+                blockLength += copied;
+
+                if (blockLength == block.length) {
+                    submitBlock();
+                }
+
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            try {
+                // Empty data is still written as an empty member, so that it's valid GZIP
+                if (blockLength > 0 || !blockWritten) {
+                    submitBlock();
+                }
+
+                while (!pendingMembers.isEmpty()) {
+                    out.write(getResult(pendingMembers.poll()));
+                }
+            } finally {
+                for (FutureTask<byte[]> task : pendingMembers) {
+                    task.cancel(false);
+                }
+
+                out.close();
+            }
+        }
+
+        private void submitBlock() throws IOException {
+            if (pendingMembers.size() >= parallelism) {
+                out.write(getResult(pendingMembers.poll()));
+            }
+
+            final byte[] plainBlock = block;
+            final int plainBlockLength = blockLength;
+
+            pendingMembers.add(submit(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws Exception {
+                    return compressBlock(plainBlock, plainBlockLength);
+                }
+
+            }));
+
+            // The submitted block is owned by its task from now on
+            block = new byte[blockSize];
+            blockLength = 0;
+            blockWritten = true;
+        }
+
+    }
+
+    /**
+     * Pulls the members from the underlying stream, keeping up to {@code parallelism} members decompressing ahead of
+     * the reader.
+     */
+    private class BlockDecompressingInputStream extends InputStream {
+
+        private InputStream in;
+        private int parallelism;
+        private Deque<FutureTask<byte[]>> pendingBlocks;
+        private boolean lastMemberRead;
+        private byte[] current;
+        private int position;
+
+        private BlockDecompressingInputStream(InputStream in) {
+            this.in = in;
+            this.parallelism = getParallelism();
+            this.pendingBlocks = new ArrayDeque<>();
+            this.current = new byte[0];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+
+            return read > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (position == current.length) {
+                fillPendingBlocks();
+
+                if (pendingBlocks.isEmpty()) {
+                    return -1;
+                }
+
+                current = getResult(pendingBlocks.poll());
+                position = 0;
+            }
+
+            int read = Math.min(len, current.length - position);
+
+            System.arraycopy(current, position, b, off, read);
+            position += read;
+
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FutureTask<byte[]> task : pendingBlocks) {
+                task.cancel(false);
+            }
+
+            in.close();
+        }
+
+        private void fillPendingBlocks() throws IOException {
+            while (!lastMemberRead && pendingBlocks.size() < parallelism) {
+                final byte[] member = readMember();
+
+                if (member != null) {
+                    pendingBlocks.add(submit(new Callable<byte[]>() {
+
+                        @Override
+                        public byte[] call() throws Exception {
+                            return decompressMember(member);
+                        }
+
+                    }));
+                } else {
+                    lastMemberRead = true;
+                }
+            }
+        }
+
+        private byte[] readMember() throws IOException {
+            byte[] header = new byte[HEADER_SIZE];
+            int read = IOUtils.read(in, header);
+
+            if (read == 0) {
+                return null;
+            } else if (read < HEADER_SIZE) {
+                throw new IOException("Compressed data is truncated");
+            }
+
+            int memberSize = getMemberSize(header);
+            if (memberSize < 0) {
+                throw new IOException("Invalid GZIP member header: member size not found");
+            }
+
+            byte[] member = Arrays.copyOf(header, memberSize);
+
+            if (IOUtils.read(in, member, HEADER_SIZE, memberSize - HEADER_SIZE) < memberSize - HEADER_SIZE) {
+                throw new IOException("Compressed data is truncated");
+            }
+
+            return member;
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.avasquez.seccloudfs.processing.db.model;
+
+import org.jongo.marshall.jackson.oid.Id;
+
+/**
+ * The space used by the slices stored in a cloud account. The ID is the account part of the store names (e.g.
+ * gdrive://jdoe).
+ *
+ * @author avasquez
+ */
+public class AccountUsage {
+
+    @Id
+    private String id;
+    private long usedSpace;
+
+    /**
+     * Private no-arg constructor, for use by frameworks like Jongo/Jackson.
+     */
+    private AccountUsage() {
+    }
+
+    public AccountUsage(String id, long usedSpace) {
+        this.id = id;
+        this.usedSpace = usedSpace;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getUsedSpace() {
+        return usedSpace;
+    }
+
+    public void setUsedSpace(long usedSpace) {
+        this.usedSpace = usedSpace;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountUsage{" +
+                "id='" + id + '\'' +
+                ", usedSpace=" + usedSpace +
+                '}';
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.avasquez.seccloudfs.processing.db.model;
+
+import org.jongo.marshall.jackson.oid.Id;
+
+/**
+ * A deduplicated chunk of data. The ID is the chunk's fingerprint (the hex SHA-256 of its content), which is also
+ * the ID used to store the chunk in the underlying {@link org.avasquez.seccloudfs.cloud.CloudStore}. The reference
+ * count is the number of times the chunk is referenced by {@link org.avasquez.seccloudfs.processing.db.model
+ * .ChunkManifest}s.
+ *
+ * @author avasquez
+ */
+public class Chunk {
+
+    @Id
+    private String id;
+    private int size;
+    private int refCount;
+
+    /**
+     * Private no-arg constructor, for use by frameworks like Jongo/Jackson.
+     */
+    private Chunk() {
+    }
+
+    public Chunk(String id, int size, int refCount) {
+        this.id = id;
+        this.size = size;
+        this.refCount = refCount;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(int refCount) {
+        this.refCount = refCount;
+    }
+
+    @Override
+    public String toString() {
+        return "Chunk{" +
+                "id='" + id + '\'' +
+                ", size=" + size +
+                ", refCount=" + refCount +
+                '}';
+    }
+
+}
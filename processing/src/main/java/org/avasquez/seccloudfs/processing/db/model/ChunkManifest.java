@@ -0,0 +1,99 @@
+package org.avasquez.seccloudfs.processing.db.model;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.jongo.marshall.jackson.oid.Id;
+import org.jongo.marshall.jackson.oid.ObjectId;
+
+/**
+ * The list of {@link org.avasquez.seccloudfs.processing.db.model.Chunk}s that, in order, make up the data with a
+ * certain ID.
+ *
+ * @author avasquez
+ */
+public class ChunkManifest {
+
+    @Id
+    @ObjectId
+    private String id;
+    private String dataId;
+    private long dataSize;
+    private Date creationDate;
+    private String[] chunkIds;
+    private int[] chunkSizes;
+
+    /**
+     * Private no-arg constructor, for use by frameworks like Jongo/Jackson.
+     */
+    private ChunkManifest() {
+    }
+
+    public ChunkManifest(String dataId, long dataSize, String[] chunkIds, int[] chunkSizes) {
+        this.dataId = dataId;
+        this.dataSize = dataSize;
+        this.creationDate = new Date();
+        this.chunkIds = chunkIds;
+        this.chunkSizes = chunkSizes;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getDataId() {
+        return dataId;
+    }
+
+    public void setDataId(String dataId) {
+        this.dataId = dataId;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    public void setDataSize(long dataSize) {
+        this.dataSize = dataSize;
+    }
+
+    public Date getCreationDate() {
+        return creationDate;
+    }
+
+    public void setCreationDate(Date creationDate) {
+        this.creationDate = creationDate;
+    }
+
+    public String[] getChunkIds() {
+        return chunkIds;
+    }
+
+    public void setChunkIds(String[] chunkIds) {
+        this.chunkIds = chunkIds;
+    }
+
+    public int[] getChunkSizes() {
+        return chunkSizes;
+    }
+
+    public void setChunkSizes(int[] chunkSizes) {
+        this.chunkSizes = chunkSizes;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkManifest{" +
+                "id='" + id + '\'' +
+                ", dataId='" + dataId + '\'' +
+                ", dataSize=" + dataSize +
+                ", creationDate=" + creationDate +
+                ", chunkIds=" + Arrays.toString(chunkIds) +
+                '}';
+    }
+
+}
@@ -16,6 +16,7 @@ public class EncryptionKey {
     private String dataId;
     private byte[] key;
     private byte[] iv;
+    private int chunkSize;
 
     /**
      * Private no-arg constructor, for use by frameworks like Jongo/Jackson.
@@ -29,6 +30,12 @@ public class EncryptionKey {
         this.iv = iv;
     }
 
+    public EncryptionKey(String dataId, byte[] key, byte[] iv, int chunkSize) {
+        this(dataId, key, iv);
+
+        this.chunkSize = chunkSize;
+    }
+
     public String getId() {
         return id;
     }
@@ -61,4 +68,16 @@ public class EncryptionKey {
         this.iv = iv;
     }
 
+    /**
+     * Returns the chunk size of the {@link org.avasquez.seccloudfs.processing.utils.crypto.ChunkedAesGcmFormat} the
+     * data was encrypted with, or 0 if the data was encrypted as a single AES/GCM stream.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
 }
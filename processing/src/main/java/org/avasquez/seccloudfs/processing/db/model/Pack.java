@@ -0,0 +1,101 @@
+package org.avasquez.seccloudfs.processing.db.model;
+
+import java.util.Date;
+
+import org.jongo.marshall.jackson.oid.Id;
+import org.jongo.marshall.jackson.oid.ObjectId;
+
+/**
+ * A pack of several small data, uploaded to the underlying {@link org.avasquez.seccloudfs.cloud.CloudStore} (and
+ * erasure coded) as a single object. Each data in the pack is located through a
+ * {@link org.avasquez.seccloudfs.processing.db.model.PackEntry}. The pack keeps track of how many of its bytes are
+ * still referenced by entries, so that mostly deleted packs can be compacted.
+ *
+ * @author avasquez
+ */
+public class Pack {
+
+    @Id
+    @ObjectId
+    private String id;
+    private int size;
+    private int liveSize;
+    private int liveEntries;
+    private boolean compactable;
+    private Date creationDate;
+
+    /**
+     * Private no-arg constructor, for use by frameworks like Jongo/Jackson.
+     */
+    private Pack() {
+    }
+
+    public Pack(String id, int size, int liveEntries) {
+        this.id = id;
+        this.size = size;
+        this.liveSize = size;
+        this.liveEntries = liveEntries;
+        this.creationDate = new Date();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int getLiveSize() {
+        return liveSize;
+    }
+
+    public void setLiveSize(int liveSize) {
+        this.liveSize = liveSize;
+    }
+
+    public int getLiveEntries() {
+        return liveEntries;
+    }
+
+    public void setLiveEntries(int liveEntries) {
+        this.liveEntries = liveEntries;
+    }
+
+    public boolean isCompactable() {
+        return compactable;
+    }
+
+    public void setCompactable(boolean compactable) {
+        this.compactable = compactable;
+    }
+
+    public Date getCreationDate() {
+        return creationDate;
+    }
+
+    public void setCreationDate(Date creationDate) {
+        this.creationDate = creationDate;
+    }
+
+    @Override
+    public String toString() {
+        return "Pack{" +
+                "id='" + id + '\'' +
+                ", size=" + size +
+                ", liveSize=" + liveSize +
+                ", liveEntries=" + liveEntries +
+                ", compactable=" + compactable +
+                ", creationDate=" + creationDate +
+                '}';
+    }
+
+}
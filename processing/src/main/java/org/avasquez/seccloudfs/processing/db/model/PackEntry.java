@@ -0,0 +1,85 @@
+package org.avasquez.seccloudfs.processing.db.model;
+
+import org.jongo.marshall.jackson.oid.Id;
+import org.jongo.marshall.jackson.oid.ObjectId;
+
+/**
+ * The location of a data inside a {@link org.avasquez.seccloudfs.processing.db.model.Pack}.
+ *
+ * @author avasquez
+ */
+public class PackEntry {
+
+    @Id
+    @ObjectId
+    private String id;
+    private String dataId;
+    private String packId;
+    private int offset;
+    private int length;
+
+    /**
+     * Private no-arg constructor, for use by frameworks like Jongo/Jackson.
+     */
+    private PackEntry() {
+    }
+
+    public PackEntry(String dataId, String packId, int offset, int length) {
+        this.dataId = dataId;
+        this.packId = packId;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getDataId() {
+        return dataId;
+    }
+
+    public void setDataId(String dataId) {
+        this.dataId = dataId;
+    }
+
+    public String getPackId() {
+        return packId;
+    }
+
+    public void setPackId(String packId) {
+        this.packId = packId;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    @Override
+    public String toString() {
+        return "PackEntry{" +
+                "id='" + id + '\'' +
+                ", dataId='" + dataId + '\'' +
+                ", packId='" + packId + '\'' +
+                ", offset=" + offset +
+                ", length=" + length +
+                '}';
+    }
+
+}
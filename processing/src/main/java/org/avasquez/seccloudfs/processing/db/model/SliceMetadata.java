@@ -12,6 +12,7 @@ public class SliceMetadata {
 
     private String id;
     private String cloudStoreName;
+    private long size;
 
     /**
      * Generates an ID for a slice.
@@ -48,4 +49,18 @@ public class SliceMetadata {
         this.cloudStoreName = cloudStoreName;
     }
 
+    /**
+     * Returns the size of this slice (0 for slices uploaded before the size was recorded).
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Sets the size of this slice.
+     */
+    public void setSize(final long size) {
+        this.size = size;
+    }
+
 }
@@ -0,0 +1,107 @@
+package org.avasquez.seccloudfs.processing.db.model;
+
+/**
+ * A fixed size range of the data of an {@link org.avasquez.seccloudfs.processing.db.model.Upload}, that is erasure
+ * coded independently into its own data and coding slices.
+ *
+ * @author avasquez
+ */
+public class Stripe {
+
+    private long offset;
+    private int size;
+    private String compressionCodec;
+    private int compressedSize;
+    private SliceMetadata[] dataSliceMetadata;
+    private SliceMetadata[] codingSliceMetadata;
+
+    public Stripe() {
+    }
+
+    /**
+     * Returns the offset of the stripe in the data.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Sets the offset of the stripe in the data.
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the size of the stripe.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Sets the size of the stripe.
+     */
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Returns the name of the codec the stripe was compressed with before encoding, or null if the stripe was
+     * encoded uncompressed.
+     */
+    public String getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * Sets the name of the codec the stripe was compressed with before encoding.
+     */
+    public void setCompressionCodec(String compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
+    /**
+     * Returns the size of the stripe after compression, which is the size that was encoded. Only meaningful if the
+     * stripe was compressed.
+     */
+    public int getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Sets the size of the stripe after compression.
+     */
+    public void setCompressedSize(int compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * Returns the metadata for the data slices.
+     */
+    public SliceMetadata[] getDataSliceMetadata() {
+        return dataSliceMetadata;
+    }
+
+    /**
+     * Sets the metadata for the data slices.
+     */
+    public void setDataSliceMetadata(SliceMetadata[] dataSliceMetadata) {
+        this.dataSliceMetadata = dataSliceMetadata;
+    }
+
+    /**
+     * Returns the metadata for the coding slices.
+     */
+    public SliceMetadata[] getCodingSliceMetadata() {
+        return codingSliceMetadata;
+    }
+
+    /**
+     * Sets the metadata for the coding slices.
+     */
+    public void setCodingSliceMetadata(SliceMetadata[] codingSliceMetadata) {
+        this.codingSliceMetadata = codingSliceMetadata;
+    }
+
+}
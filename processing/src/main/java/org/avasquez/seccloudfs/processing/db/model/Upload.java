@@ -16,11 +16,14 @@ public class Upload {
     @ObjectId
     private String id;
     private String dataId;
-    private int dataSize;
+    private long dataSize;
     private Date finishDate;
     private boolean success;
+    private boolean degraded;
     private SliceMetadata[] dataSliceMetadata;
     private SliceMetadata[] codingSliceMetadata;
+    private Stripe[] stripes;
+    private Date lastCheckedDate;
 
     public Upload() {
     }
@@ -56,14 +59,14 @@ public class Upload {
     /**
      * Returns the original data size
      */
-    public int getDataSize() {
+    public long getDataSize() {
         return dataSize;
     }
 
     /**
      * Sets the original data size.
      */
-    public void setDataSize(int dataSize) {
+    public void setDataSize(long dataSize) {
         this.dataSize = dataSize;
     }
 
@@ -95,6 +98,21 @@ public class Upload {
         this.success = success;
     }
 
+    /**
+     * Returns true if the upload succeeded but some of its slices couldn't be uploaded. The data is still readable,
+     * but with less redundancy until the missing slices are repaired.
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * Sets true if the upload succeeded but some of its slices couldn't be uploaded.
+     */
+    public void setDegraded(boolean degraded) {
+        this.degraded = degraded;
+    }
+
     /**
      * Returns the metadata for the data slices.
      */
@@ -123,4 +141,35 @@ public class Upload {
         this.codingSliceMetadata = codingSliceMetadata;
     }
 
+    /**
+     * Returns the stripes of the data, or null if the upload was done before the data was split in stripes, in which
+     * case the slices are the ones returned by {@link #getDataSliceMetadata()} and
+     * {@link #getCodingSliceMetadata()}.
+     */
+    public Stripe[] getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Sets the stripes of the data.
+     */
+    public void setStripes(Stripe[] stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * Returns the date the slices of the upload were last checked by the repair scan, or null if they haven't been
+     * checked yet.
+     */
+    public Date getLastCheckedDate() {
+        return lastCheckedDate;
+    }
+
+    /**
+     * Sets the date the slices of the upload were last checked by the repair scan.
+     */
+    public void setLastCheckedDate(Date lastCheckedDate) {
+        this.lastCheckedDate = lastCheckedDate;
+    }
+
 }
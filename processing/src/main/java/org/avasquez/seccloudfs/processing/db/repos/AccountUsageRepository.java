@@ -0,0 +1,22 @@
+package org.avasquez.seccloudfs.processing.db.repos;
+
+import org.avasquez.seccloudfs.db.Repository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.AccountUsage;
+
+/**
+ * DB repository for {@link org.avasquez.seccloudfs.processing.db.model.AccountUsage}s.
+ *
+ * @author avasquez
+ */
+public interface AccountUsageRepository extends Repository<AccountUsage> {
+
+    /**
+     * Atomically adds the delta to the used space of the account, creating the usage if it doesn't exist yet.
+     *
+     * @param account   the account
+     * @param delta     the bytes to add (or remove, if negative)
+     */
+    void addUsedSpace(String account, long delta) throws DbException;
+
+}
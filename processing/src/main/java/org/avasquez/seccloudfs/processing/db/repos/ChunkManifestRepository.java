@@ -0,0 +1,23 @@
+package org.avasquez.seccloudfs.processing.db.repos;
+
+import org.avasquez.seccloudfs.db.Repository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.ChunkManifest;
+
+/**
+ * DB repository for {@link org.avasquez.seccloudfs.processing.db.model.ChunkManifest}s.
+ *
+ * @author avasquez
+ */
+public interface ChunkManifestRepository extends Repository<ChunkManifest> {
+
+    /**
+     * Finds the last chunk manifest created for the data ID
+     *
+     * @param dataId the ID of the data
+     *
+     * @return the manifest, or null if the data was never chunked
+     */
+    ChunkManifest findLastByDataId(String dataId) throws DbException;
+
+}
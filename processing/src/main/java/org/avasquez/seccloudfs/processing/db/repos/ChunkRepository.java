@@ -0,0 +1,32 @@
+package org.avasquez.seccloudfs.processing.db.repos;
+
+import org.avasquez.seccloudfs.db.Repository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.Chunk;
+
+/**
+ * DB repository for {@link org.avasquez.seccloudfs.processing.db.model.Chunk}s.
+ *
+ * @author avasquez
+ */
+public interface ChunkRepository extends Repository<Chunk> {
+
+    /**
+     * Atomically increments the reference count of the chunk.
+     *
+     * @param id the ID (fingerprint) of the chunk
+     *
+     * @return the updated chunk, or null if there's no chunk with the specified ID
+     */
+    Chunk incrementRefCount(String id) throws DbException;
+
+    /**
+     * Atomically decrements the reference count of the chunk.
+     *
+     * @param id the ID (fingerprint) of the chunk
+     *
+     * @return the updated chunk, or null if there's no chunk with the specified ID
+     */
+    Chunk decrementRefCount(String id) throws DbException;
+
+}
@@ -1,5 +1,7 @@
 package org.avasquez.seccloudfs.processing.db.repos;
 
+import java.util.Collection;
+
 import org.avasquez.seccloudfs.db.Repository;
 import org.avasquez.seccloudfs.exception.DbException;
 import org.avasquez.seccloudfs.processing.db.model.EncryptionKey;
@@ -27,4 +29,18 @@ public interface EncryptionKeyRepository extends Repository<EncryptionKey> {
      */
     void deleteByDataId(String dataId) throws DbException;
 
+    /**
+     * Inserts several encryption keys with a single write.
+     *
+     * @param keys the keys to insert
+     */
+    void insertAll(Collection<EncryptionKey> keys) throws DbException;
+
+    /**
+     * Deletes the encryption keys associated to the specified data IDs with a single write.
+     *
+     * @param dataIds the IDs of the encrypted data
+     */
+    void deleteByDataIds(Collection<String> dataIds) throws DbException;
+
 }
@@ -0,0 +1,53 @@
+package org.avasquez.seccloudfs.processing.db.repos;
+
+import org.avasquez.seccloudfs.db.Repository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.PackEntry;
+
+/**
+ * DB repository for {@link org.avasquez.seccloudfs.processing.db.model.PackEntry}s.
+ *
+ * @author avasquez
+ */
+public interface PackEntryRepository extends Repository<PackEntry> {
+
+    /**
+     * Finds the last pack entry created for the data ID.
+     *
+     * @param dataId the ID of the data
+     *
+     * @return the entry, or null if the data is not packed
+     */
+    PackEntry findLastByDataId(String dataId) throws DbException;
+
+    /**
+     * Finds the entries of a pack.
+     *
+     * @param packId the ID of the pack
+     *
+     * @return the entries of the pack
+     */
+    Iterable<PackEntry> findByPackId(String packId) throws DbException;
+
+    /**
+     * Atomically removes the entry, returning it as it was just before removal.
+     *
+     * @param id the ID of the entry
+     *
+     * @return the removed entry, or null if there was no entry with the specified ID
+     */
+    PackEntry remove(String id) throws DbException;
+
+    /**
+     * Moves the entry to a new pack, but only if the entry still exists and is in the specified old pack.
+     *
+     * @param id            the ID of the entry
+     * @param oldPackId     the ID of the pack where the entry should be now
+     * @param newPackId     the ID of the new pack
+     * @param newOffset     the offset of the entry in the new pack
+     *
+     * @return true if the entry was moved, false otherwise
+     */
+    boolean move(String id, String oldPackId, String newPackId, int newOffset) throws DbException;
+
+}
@@ -0,0 +1,48 @@
+package org.avasquez.seccloudfs.processing.db.repos;
+
+import org.avasquez.seccloudfs.db.Repository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.Pack;
+
+/**
+ * DB repository for {@link org.avasquez.seccloudfs.processing.db.model.Pack}s.
+ *
+ * @author avasquez
+ */
+public interface PackRepository extends Repository<Pack> {
+
+    /**
+     * Atomically removes a dead entry from the live size and live entries of the pack.
+     *
+     * @param id        the ID of the pack
+     * @param length    the length of the entry
+     *
+     * @return the updated pack, or null if there's no pack with the specified ID
+     */
+    Pack removeLiveEntry(String id, int length) throws DbException;
+
+    /**
+     * Atomically deletes the pack, so that when several callers try to delete it (like the compactor and the deletion
+     * of its last live entry) only one of them deletes the pack object.
+     *
+     * @param id the ID of the pack
+     *
+     * @return the deleted pack, or null if there's no pack with the specified ID (it was already deleted)
+     */
+    Pack remove(String id) throws DbException;
+
+    /**
+     * Marks the pack as a candidate for compaction.
+     *
+     * @param id the ID of the pack
+     */
+    void markCompactable(String id) throws DbException;
+
+    /**
+     * Finds the packs marked as candidates for compaction.
+     *
+     * @return the packs to compact
+     */
+    Iterable<Pack> findCompactable() throws DbException;
+
+}
@@ -1,5 +1,8 @@
 package org.avasquez.seccloudfs.processing.db.repos;
 
+import java.util.Collection;
+import java.util.Date;
+
 import org.avasquez.seccloudfs.db.Repository;
 import org.avasquez.seccloudfs.exception.DbException;
 import org.avasquez.seccloudfs.processing.db.model.Upload;
@@ -29,4 +32,31 @@ public interface UploadRepository extends Repository<Upload> {
      */
     Iterable<Upload> findByDataId(String dataId) throws DbException;
 
+    /**
+     * Replaces an existing upload with the specified one, only if it still exists.
+     *
+     * @param upload the upload with the new values
+     *
+     * @return true if the upload existed and was updated, false otherwise
+     */
+    boolean update(Upload upload) throws DbException;
+
+    /**
+     * Finds the successful uploads whose slices were checked the longest time ago, starting with the ones that were
+     * never checked.
+     *
+     * @param limit the max number of uploads to return
+     *
+     * @return the uploads, in order of last checked date
+     */
+    Iterable<Upload> findSuccessfulByLeastRecentlyChecked(int limit) throws DbException;
+
+    /**
+     * Sets the date the slices of the specified uploads were last checked.
+     *
+     * @param ids               the IDs of the uploads
+     * @param lastCheckedDate   the date the uploads were checked
+     */
+    void updateLastCheckedDate(Collection<String> ids, Date lastCheckedDate) throws DbException;
+
 }
@@ -0,0 +1,326 @@
+package org.avasquez.seccloudfs.processing.db.repos.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.EncryptionKey;
+import org.avasquez.seccloudfs.processing.db.repos.EncryptionKeyRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * {@link org.avasquez.seccloudfs.processing.db.repos.EncryptionKeyRepository} decorator that keeps the most recently
+ * used keys in a bounded in-memory cache, and that groups the inserts and deletes of concurrent callers (like the
+ * slice uploads of a stripe, which go to different stores at the same time) into a single bulk write.
+ *
+ * <p>Writes are grouped like in a group commit: the caller that starts a bulk write first waits a short window (or
+ * until the batch is full) so that the writes of concurrent callers join it, and while a bulk write is in flight, new
+ * writes are queued and written together in the next bulk write. Each caller still returns only after its own key has
+ * been written, so keys are as durable as with single writes.</p>
+ *
+ * @author avasquez
+ */
+public class CachingEncryptionKeyRepository implements EncryptionKeyRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingEncryptionKeyRepository.class);
+
+    private EncryptionKeyRepository actualRepository;
+    private int maxCachedKeys;
+    private long batchWindowMillis;
+    private int maxBatchSize;
+
+    private final Map<String, EncryptionKey> cache;
+    private final GroupWriter<EncryptionKey> insertWriter;
+    private final GroupWriter<String> deleteWriter;
+
+    public CachingEncryptionKeyRepository() {
+        maxCachedKeys = 10000;
+        batchWindowMillis = 5;
+        maxBatchSize = 100;
+
+        // Access order, so the first entry is always the LRU
+        cache = new LinkedHashMap<String, EncryptionKey>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EncryptionKey> eldest) {
+                return size() > maxCachedKeys;
+            }
+
+        };
+
+        insertWriter = new GroupWriter<EncryptionKey>() {
+
+            @Override
+            protected void write(List<EncryptionKey> keys) throws DbException {
+                actualRepository.insertAll(keys);
+            }
+
+        };
+
+        deleteWriter = new GroupWriter<String>() {
+
+            @Override
+            protected void write(List<String> dataIds) throws DbException {
+                actualRepository.deleteByDataIds(dataIds);
+            }
+
+        };
+    }
+
+    @Required
+    public void setActualRepository(EncryptionKeyRepository actualRepository) {
+        this.actualRepository = actualRepository;
+    }
+
+    /**
+     * Sets the max number of keys kept in the cache. Defaults to 10000.
+     */
+    public void setMaxCachedKeys(int maxCachedKeys) {
+        this.maxCachedKeys = maxCachedKeys;
+    }
+
+    /**
+     * Sets the time a bulk write waits for the writes of concurrent callers before starting. Defaults to 5 ms.
+     */
+    public void setBatchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+    }
+
+    /**
+     * Sets the number of items after which a bulk write starts without waiting for the rest of the window. Defaults
+     * to 100.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public EncryptionKey findByDataId(String dataId) throws DbException {
+        EncryptionKey key;
+        synchronized (cache) {
+            key = cache.get(dataId);
+        }
+
+        if (key == null) {
+            key = actualRepository.findByDataId(dataId);
+            if (key != null) {
+                cacheKey(key);
+            }
+        }
+
+        return key;
+    }
+
+    @Override
+    public void insert(EncryptionKey key) throws DbException {
+        insertWriter.add(key);
+
+        cacheKey(key);
+    }
+
+    @Override
+    public void insertAll(Collection<EncryptionKey> keys) throws DbException {
+        actualRepository.insertAll(keys);
+
+        for (EncryptionKey key : keys) {
+            cacheKey(key);
+        }
+    }
+
+    @Override
+    public void deleteByDataId(String dataId) throws DbException {
+        uncacheKeys(Collections.singleton(dataId));
+
+        deleteWriter.add(dataId);
+    }
+
+    @Override
+    public void deleteByDataIds(Collection<String> dataIds) throws DbException {
+        uncacheKeys(dataIds);
+
+        deleteWriter.addAll(dataIds);
+    }
+
+    @Override
+    public long count() throws DbException {
+        return actualRepository.count();
+    }
+
+    @Override
+    public Iterable<EncryptionKey> findAll() throws DbException {
+        return actualRepository.findAll();
+    }
+
+    @Override
+    public EncryptionKey find(String id) throws DbException {
+        return actualRepository.find(id);
+    }
+
+    @Override
+    public void save(EncryptionKey key) throws DbException {
+        actualRepository.save(key);
+
+        cacheKey(key);
+    }
+
+    @Override
+    public void delete(String id) throws DbException {
+        synchronized (cache) {
+            Iterator<EncryptionKey> iter = cache.values().iterator();
+            while (iter.hasNext()) {
+                if (id.equals(iter.next().getId())) {
+                    iter.remove();
+                }
+            }
+        }
+
+        actualRepository.delete(id);
+    }
+
+    @Override
+    public void deleteAll() throws DbException {
+        synchronized (cache) {
+            cache.clear();
+        }
+
+        actualRepository.deleteAll();
+    }
+
+    private void cacheKey(EncryptionKey key) {
+        synchronized (cache) {
+            cache.put(key.getDataId(), key);
+        }
+    }
+
+    private void uncacheKeys(Collection<String> dataIds) {
+        synchronized (cache) {
+            for (String dataId : dataIds) {
+                cache.remove(dataId);
+            }
+        }
+    }
+
+    /**
+     * Groups the items added by concurrent callers into batches. The first caller that finds no batch in flight waits
+     * for the batch window to collect the items of other callers and then writes them all, while the rest wait for
+     * the batch that contains their items. Uses a {@link java.util.concurrent.locks.Lock} instead of monitors so that
+     * waiting virtual threads don't pin their carrier threads.
+     */
+    private abstract class GroupWriter<T> {
+
+        private final Lock lock = new ReentrantLock();
+        private final Condition batchFull = lock.newCondition();
+        private final Condition batchDone = lock.newCondition();
+
+        private Batch<T> currentBatch = new Batch<>();
+        private boolean writing;
+
+        public void add(T item) throws DbException {
+            addAll(Collections.singleton(item));
+        }
+
+        public void addAll(Collection<? extends T> items) throws DbException {
+            Batch<T> batch;
+
+            lock.lock();
+            try {
+                batch = currentBatch;
+                batch.items.addAll(items);
+
+                if (batch.items.size() >= maxBatchSize) {
+                    batchFull.signal();
+                }
+
+                try {
+                    while (writing && !batch.done) {
+                        batchDone.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    throw new DbException("Interrupted while waiting for batch write", e);
+                }
+
+                if (batch.done) {
+                    checkFailure(batch);
+
+                    return;
+                }
+
+                // No write in flight, so this caller writes the batch, after giving concurrent callers a chance to
+                // add their items to it
+                writing = true;
+
+                awaitBatchWindow(batch);
+
+                currentBatch = new Batch<>();
+            } finally {
+                lock.unlock();
+            }
+
+            Exception failure = null;
+            try {
+                logger.debug("Writing batch of {} items", batch.items.size());
+
+                write(batch.items);
+            } catch (DbException | RuntimeException e) {
+                failure = e;
+            } finally {
+                lock.lock();
+                try {
+                    batch.done = true;
+                    batch.failure = failure;
+                    writing = false;
+
+                    batchDone.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            checkFailure(batch);
+        }
+
+        protected abstract void write(List<T> items) throws DbException;
+
+        private void awaitBatchWindow(Batch<T> batch) {
+            long nanosLeft = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+
+            try {
+                while (nanosLeft > 0 && batch.items.size() < maxBatchSize) {
+                    nanosLeft = batchFull.awaitNanos(nanosLeft);
+                }
+            } catch (InterruptedException e) {
+                // Write what's been collected so far, the other callers are waiting for it
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkFailure(Batch<T> batch) throws DbException {
+            if (batch.failure != null) {
+                throw new DbException("Batch write of " + batch.items.size() + " items failed", batch.failure);
+            }
+        }
+
+    }
+
+    private static class Batch<T> {
+
+        private List<T> items = new ArrayList<>();
+        private boolean done;
+        private Exception failure;
+
+    }
+
+}
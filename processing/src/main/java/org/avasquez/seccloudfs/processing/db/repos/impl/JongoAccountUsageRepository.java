@@ -0,0 +1,60 @@
+package org.avasquez.seccloudfs.processing.db.repos.impl;
+
+import com.mongodb.MongoException;
+
+import org.avasquez.seccloudfs.db.impl.JongoRepository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.AccountUsage;
+import org.avasquez.seccloudfs.processing.db.repos.AccountUsageRepository;
+import org.jongo.Jongo;
+
+/**
+ * Jongo repository for {@link org.avasquez.seccloudfs.processing.db.model.AccountUsage}. Usage IDs are account names
+ * and not object IDs, so the ID based operations are overridden to query by the plain string.
+ *
+ * @author avasquez
+ */
+public class JongoAccountUsageRepository extends JongoRepository<AccountUsage> implements AccountUsageRepository {
+
+    public static final String ACCOUNT_USAGE_COLLECTION_NAME = "accountUsage";
+    public static final String FIND_BY_ID_QUERY = "{_id: #}";
+    public static final String ADD_USED_SPACE_MODIFIER = "{$inc: {usedSpace: #}}";
+
+    public JongoAccountUsageRepository(Jongo jongo) {
+        super(ACCOUNT_USAGE_COLLECTION_NAME, jongo);
+    }
+
+    @Override
+    public Class<AccountUsage> getPojoClass() {
+        return AccountUsage.class;
+    }
+
+    @Override
+    public AccountUsage find(String id) throws DbException {
+        try {
+            return collection.findOne(FIND_BY_ID_QUERY, id).as(AccountUsage.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Find for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public void delete(String id) throws DbException {
+        try {
+            collection.remove(FIND_BY_ID_QUERY, id);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Delete for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public void addUsedSpace(String account, long delta) throws DbException {
+        try {
+            collection.update(FIND_BY_ID_QUERY, account).upsert().with(ADD_USED_SPACE_MODIFIER, delta);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Add used space for ID '" + account + "' failed",
+                                  e);
+        }
+    }
+
+}
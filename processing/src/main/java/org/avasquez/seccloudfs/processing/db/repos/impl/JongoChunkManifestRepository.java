@@ -0,0 +1,54 @@
+package org.avasquez.seccloudfs.processing.db.repos.impl;
+
+import com.mongodb.MongoException;
+
+import java.util.Iterator;
+
+import org.avasquez.seccloudfs.db.impl.JongoRepository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.ChunkManifest;
+import org.avasquez.seccloudfs.processing.db.repos.ChunkManifestRepository;
+import org.jongo.Jongo;
+
+/**
+ * Jongo repository for {@link org.avasquez.seccloudfs.processing.db.model.ChunkManifest}.
+ *
+ * @author avasquez
+ */
+public class JongoChunkManifestRepository extends JongoRepository<ChunkManifest> implements ChunkManifestRepository {
+
+    public static final String CHUNK_MANIFEST_COLLECTION_NAME = "chunkManifests";
+    public static final String CHUNK_MANIFEST_COLLECTION_INDEX_KEYS = "{dataId: 1, creationDate: -1}";
+    public static final String FIND_BY_DATA_ID_QUERY = "{dataId: #}";
+    public static final String CREATION_DATE_DESCENDING_SORT = "{creationDate: -1}";
+
+    public JongoChunkManifestRepository(Jongo jongo) {
+        super(CHUNK_MANIFEST_COLLECTION_NAME, jongo);
+
+        collection.ensureIndex(CHUNK_MANIFEST_COLLECTION_INDEX_KEYS);
+    }
+
+    @Override
+    public Class<ChunkManifest> getPojoClass() {
+        return ChunkManifest.class;
+    }
+
+    @Override
+    public ChunkManifest findLastByDataId(String dataId) throws DbException {
+        try {
+            Iterator<ChunkManifest> iter = collection.find(FIND_BY_DATA_ID_QUERY, dataId)
+                    .sort(CREATION_DATE_DESCENDING_SORT)
+                    .limit(1)
+                    .as(ChunkManifest.class);
+
+            if (iter.hasNext()) {
+                return iter.next();
+            } else {
+                return null;
+            }
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Find last by data ID '" + dataId + "' failed", e);
+        }
+    }
+
+}
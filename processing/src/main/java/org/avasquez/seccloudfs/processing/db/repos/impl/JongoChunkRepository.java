@@ -0,0 +1,75 @@
+package org.avasquez.seccloudfs.processing.db.repos.impl;
+
+import com.mongodb.MongoException;
+
+import org.avasquez.seccloudfs.db.impl.JongoRepository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.Chunk;
+import org.avasquez.seccloudfs.processing.db.repos.ChunkRepository;
+import org.jongo.Jongo;
+
+/**
+ * Jongo repository for {@link org.avasquez.seccloudfs.processing.db.model.Chunk}. Chunk IDs are fingerprints and
+ * not object IDs, so the ID based operations are overridden to query by the plain string.
+ *
+ * @author avasquez
+ */
+public class JongoChunkRepository extends JongoRepository<Chunk> implements ChunkRepository {
+
+    public static final String CHUNK_COLLECTION_NAME = "chunks";
+    public static final String FIND_BY_ID_QUERY = "{_id: #}";
+    public static final String INCREMENT_REF_COUNT_MODIFIER = "{$inc: {refCount: 1}}";
+    public static final String DECREMENT_REF_COUNT_MODIFIER = "{$inc: {refCount: -1}}";
+
+    public JongoChunkRepository(Jongo jongo) {
+        super(CHUNK_COLLECTION_NAME, jongo);
+    }
+
+    @Override
+    public Class<Chunk> getPojoClass() {
+        return Chunk.class;
+    }
+
+    @Override
+    public Chunk find(String id) throws DbException {
+        try {
+            return collection.findOne(FIND_BY_ID_QUERY, id).as(Chunk.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Find for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public void delete(String id) throws DbException {
+        try {
+            collection.remove(FIND_BY_ID_QUERY, id);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Delete for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public Chunk incrementRefCount(String id) throws DbException {
+        try {
+            return collection.findAndModify(FIND_BY_ID_QUERY, id)
+                    .with(INCREMENT_REF_COUNT_MODIFIER)
+                    .returnNew()
+                    .as(Chunk.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Increment ref count for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public Chunk decrementRefCount(String id) throws DbException {
+        try {
+            return collection.findAndModify(FIND_BY_ID_QUERY, id)
+                    .with(DECREMENT_REF_COUNT_MODIFIER)
+                    .returnNew()
+                    .as(Chunk.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Decrement ref count for ID '" + id + "' failed", e);
+        }
+    }
+
+}
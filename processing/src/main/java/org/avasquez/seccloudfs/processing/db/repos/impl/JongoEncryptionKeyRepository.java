@@ -2,6 +2,8 @@ package org.avasquez.seccloudfs.processing.db.repos.impl;
 
 import com.mongodb.MongoException;
 
+import java.util.Collection;
+
 import org.avasquez.seccloudfs.db.impl.JongoRepository;
 import org.avasquez.seccloudfs.exception.DbException;
 import org.avasquez.seccloudfs.processing.db.model.EncryptionKey;
@@ -18,6 +20,7 @@ public class JongoEncryptionKeyRepository extends JongoRepository<EncryptionKey>
     public static final String ENC_KEY_COLLECTION_NAME = "encryptionKeys";
     public static final String ENC_KEY_COLLECTION_INDEX_KEYS = "{dataId: 1}";
     public static final String FIND_BY_DATA_ID_QUERY = "{dataId: #}";
+    public static final String FIND_BY_DATA_IDS_QUERY = "{dataId: {$in: #}}";
 
     public JongoEncryptionKeyRepository(Jongo jongo) {
         super(ENC_KEY_COLLECTION_NAME, jongo);
@@ -48,4 +51,30 @@ public class JongoEncryptionKeyRepository extends JongoRepository<EncryptionKey>
         }
     }
 
+    @Override
+    public void insertAll(Collection<EncryptionKey> keys) throws DbException {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        try {
+            collection.insert(keys.toArray());
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Insert of " + keys.size() + " keys failed", e);
+        }
+    }
+
+    @Override
+    public void deleteByDataIds(Collection<String> dataIds) throws DbException {
+        if (dataIds.isEmpty()) {
+            return;
+        }
+
+        try {
+            collection.remove(FIND_BY_DATA_IDS_QUERY, dataIds);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Delete by data IDs " + dataIds + " failed", e);
+        }
+    }
+
 }
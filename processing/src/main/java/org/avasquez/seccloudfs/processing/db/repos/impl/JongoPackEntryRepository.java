@@ -0,0 +1,90 @@
+package org.avasquez.seccloudfs.processing.db.repos.impl;
+
+import com.mongodb.MongoException;
+
+import java.util.Iterator;
+
+import org.avasquez.seccloudfs.db.impl.JongoRepository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.PackEntry;
+import org.avasquez.seccloudfs.processing.db.repos.PackEntryRepository;
+import org.bson.types.ObjectId;
+import org.jongo.Jongo;
+
+/**
+ * Jongo repository for {@link org.avasquez.seccloudfs.processing.db.model.PackEntry}.
+ *
+ * @author avasquez
+ */
+public class JongoPackEntryRepository extends JongoRepository<PackEntry> implements PackEntryRepository {
+
+    public static final String PACK_ENTRY_COLLECTION_NAME = "packEntries";
+    public static final String DATA_ID_INDEX_KEYS = "{dataId: 1}";
+    public static final String PACK_ID_INDEX_KEYS = "{packId: 1}";
+    public static final String FIND_BY_ID_QUERY = "{_id: #}";
+    public static final String FIND_BY_DATA_ID_QUERY = "{dataId: #}";
+    public static final String FIND_BY_PACK_ID_QUERY = "{packId: #}";
+    public static final String FIND_BY_ID_AND_PACK_ID_QUERY = "{_id: #, packId: #}";
+    public static final String MOVE_MODIFIER = "{$set: {packId: #, offset: #}}";
+    public static final String ID_DESCENDING_SORT = "{_id: -1}";
+
+    public JongoPackEntryRepository(Jongo jongo) {
+        super(PACK_ENTRY_COLLECTION_NAME, jongo);
+
+        collection.ensureIndex(DATA_ID_INDEX_KEYS);
+        collection.ensureIndex(PACK_ID_INDEX_KEYS);
+    }
+
+    @Override
+    public Class<PackEntry> getPojoClass() {
+        return PackEntry.class;
+    }
+
+    @Override
+    public PackEntry findLastByDataId(String dataId) throws DbException {
+        try {
+            Iterator<PackEntry> iter = collection.find(FIND_BY_DATA_ID_QUERY, dataId)
+                    .sort(ID_DESCENDING_SORT)
+                    .limit(1)
+                    .as(PackEntry.class);
+
+            if (iter.hasNext()) {
+                return iter.next();
+            } else {
+                return null;
+            }
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Find last by data ID '" + dataId + "' failed", e);
+        }
+    }
+
+    @Override
+    public Iterable<PackEntry> findByPackId(String packId) throws DbException {
+        try {
+            return collection.find(FIND_BY_PACK_ID_QUERY, packId).as(PackEntry.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Find by pack ID '" + packId + "' failed", e);
+        }
+    }
+
+    @Override
+    public PackEntry remove(String id) throws DbException {
+        try {
+            return collection.findAndModify(FIND_BY_ID_QUERY, new ObjectId(id)).remove().as(PackEntry.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Remove for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public boolean move(String id, String oldPackId, String newPackId, int newOffset) throws DbException {
+        try {
+            return collection.update(FIND_BY_ID_AND_PACK_ID_QUERY, new ObjectId(id), oldPackId)
+                    .with(MOVE_MODIFIER, newPackId, newOffset)
+                    .getN() > 0;
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Move for ID '" + id + "' failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.avasquez.seccloudfs.processing.db.repos.impl;
+
+import com.mongodb.MongoException;
+
+import org.avasquez.seccloudfs.db.impl.JongoRepository;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.Pack;
+import org.avasquez.seccloudfs.processing.db.repos.PackRepository;
+import org.bson.types.ObjectId;
+import org.jongo.Jongo;
+
+/**
+ * Jongo repository for {@link org.avasquez.seccloudfs.processing.db.model.Pack}.
+ *
+ * @author avasquez
+ */
+public class JongoPackRepository extends JongoRepository<Pack> implements PackRepository {
+
+    public static final String PACK_COLLECTION_NAME = "packs";
+    public static final String PACK_COLLECTION_INDEX_KEYS = "{compactable: 1}";
+    public static final String FIND_BY_ID_QUERY = "{_id: #}";
+    public static final String FIND_COMPACTABLE_QUERY = "{compactable: true}";
+    public static final String REMOVE_LIVE_ENTRY_MODIFIER = "{$inc: {liveSize: #, liveEntries: -1}}";
+    public static final String MARK_COMPACTABLE_MODIFIER = "{$set: {compactable: true}}";
+
+    public JongoPackRepository(Jongo jongo) {
+        super(PACK_COLLECTION_NAME, jongo);
+
+        collection.ensureIndex(PACK_COLLECTION_INDEX_KEYS);
+    }
+
+    @Override
+    public Class<Pack> getPojoClass() {
+        return Pack.class;
+    }
+
+    @Override
+    public Pack removeLiveEntry(String id, int length) throws DbException {
+        try {
+            return collection.findAndModify(FIND_BY_ID_QUERY, new ObjectId(id))
+                    .with(REMOVE_LIVE_ENTRY_MODIFIER, -length)
+                    .returnNew()
+                    .as(Pack.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Remove live entry for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public Pack remove(String id) throws DbException {
+        try {
+            return collection.findAndModify(FIND_BY_ID_QUERY, new ObjectId(id)).remove().as(Pack.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Remove for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public void markCompactable(String id) throws DbException {
+        try {
+            collection.update(new ObjectId(id)).with(MARK_COMPACTABLE_MODIFIER);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Mark compactable for ID '" + id + "' failed", e);
+        }
+    }
+
+    @Override
+    public Iterable<Pack> findCompactable() throws DbException {
+        try {
+            return collection.find(FIND_COMPACTABLE_QUERY).as(Pack.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Find compactable failed", e);
+        }
+    }
+
+}
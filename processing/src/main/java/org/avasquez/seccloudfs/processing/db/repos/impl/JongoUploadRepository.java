@@ -5,9 +5,14 @@ import org.avasquez.seccloudfs.db.impl.JongoRepository;
 import org.avasquez.seccloudfs.exception.DbException;
 import org.avasquez.seccloudfs.processing.db.model.Upload;
 import org.avasquez.seccloudfs.processing.db.repos.UploadRepository;
+import org.bson.types.ObjectId;
 import org.jongo.Jongo;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Jongo repository for {@link org.avasquez.seccloudfs.processing.db.model.Upload}.
@@ -17,12 +22,21 @@ import java.util.Iterator;
 public class JongoUploadRepository extends JongoRepository<Upload> implements UploadRepository {
 
     public static final String UPLOAD_COLLECTION_NAME = "uploads";
+    public static final String UPLOAD_COLLECTION_INDEX_KEYS = "{dataId: 1, success: 1, finishDate: -1}";
     public static final String FIND_LAST_SUCCESSFUL_BY_DATA_ID_QUERY = "{dataId: #, success: true}";
     public static final String FIND_BY_DATA_ID_QUERY = "{dataId: #}";
     public static final String FINISH_DATE_DESCENDING_SORT = "{finishDate: -1}";
+    public static final String LAST_CHECKED_DATE_INDEX_KEYS = "{success: 1, lastCheckedDate: 1}";
+    public static final String FIND_SUCCESSFUL_QUERY = "{success: true}";
+    public static final String LAST_CHECKED_DATE_ASCENDING_SORT = "{lastCheckedDate: 1}";
+    public static final String FIND_BY_IDS_QUERY = "{_id: {$in: #}}";
+    public static final String SET_LAST_CHECKED_DATE_MODIFIER = "{$set: {lastCheckedDate: #}}";
 
     public JongoUploadRepository(Jongo jongo) {
         super(UPLOAD_COLLECTION_NAME, jongo);
+
+        collection.ensureIndex(UPLOAD_COLLECTION_INDEX_KEYS);
+        collection.ensureIndex(LAST_CHECKED_DATE_INDEX_KEYS);
     }
 
     @Override
@@ -58,4 +72,43 @@ public class JongoUploadRepository extends JongoRepository<Upload> implements Up
         }
     }
 
+    @Override
+    public boolean update(Upload upload) throws DbException {
+        try {
+            return collection.update(new ObjectId(upload.getId())).with(upload).getN() > 0;
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Update for " + upload + " failed", e);
+        }
+    }
+
+    @Override
+    public Iterable<Upload> findSuccessfulByLeastRecentlyChecked(int limit) throws DbException {
+        try {
+            // Uploads without a last checked date are sorted first
+            return collection.find(FIND_SUCCESSFUL_QUERY)
+                    .sort(LAST_CHECKED_DATE_ASCENDING_SORT)
+                    .limit(limit)
+                    .as(Upload.class);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Find successful by least recently checked failed",
+                                  e);
+        }
+    }
+
+    @Override
+    public void updateLastCheckedDate(Collection<String> ids, Date lastCheckedDate) throws DbException {
+        List<ObjectId> objectIds = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            objectIds.add(new ObjectId(id));
+        }
+
+        try {
+            collection.update(FIND_BY_IDS_QUERY, objectIds).multi().with(SET_LAST_CHECKED_DATE_MODIFIER,
+                                                                        lastCheckedDate);
+        } catch (MongoException e) {
+            throw new DbException("[" + collection.getName() + "] Update of last checked date for IDs " + ids +
+                    " failed", e);
+        }
+    }
+
 }
@@ -1,47 +1,71 @@
 package org.avasquez.seccloudfs.processing.impl;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import org.avasquez.seccloudfs.cloud.CloudStore;
 import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
+import org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Asynchronous task, implemented as a {@link java.util.concurrent.Callable}, to delete a slice from a
- * {@link org.avasquez.seccloudfs.cloud.CloudStore}.
+ * Asynchronous task, implemented as a {@link java.util.concurrent.Callable}, to delete a batch of slices from a
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore}. The deleted slices are reported to the
+ * {@link org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy}. The task returns the number of slices
+ * deleted.
  *
  * @author avasquez
  */
-public class DeleteTask implements Callable<Boolean> {
+public class DeleteTask implements Callable<Integer> {
 
     private static final Logger logger = LoggerFactory.getLogger(DeleteTask.class);
 
-    private SliceMetadata sliceMetadata;
+    private List<SliceMetadata> slices;
     private CloudStore cloudStore;
+    private SliceCache sliceCache;
+    private SlicePlacementPolicy placementPolicy;
 
-    public DeleteTask(final SliceMetadata sliceMetadata, final CloudStore cloudStore) {
-        this.sliceMetadata = sliceMetadata;
+    public DeleteTask(final List<SliceMetadata> slices, final CloudStore cloudStore, final SliceCache sliceCache,
+                      final SlicePlacementPolicy placementPolicy) {
+        this.slices = slices;
         this.cloudStore = cloudStore;
+        this.sliceCache = sliceCache;
+        this.placementPolicy = placementPolicy;
     }
 
     @Override
-    public Boolean call() throws Exception {
-        String sliceId = sliceMetadata.getId();
+    public Integer call() throws Exception {
         String cloudStoreName = cloudStore.getName();
+        List<String> sliceIds = new ArrayList<>(slices.size());
 
-        logger.debug("Deleting slice '{}' from [{}]", sliceId, cloudStoreName);
+        for (SliceMetadata slice : slices) {
+            sliceIds.add(slice.getId());
+        }
+
+        logger.debug("Deleting slices {} from [{}]", sliceIds, cloudStoreName);
 
         try {
-            cloudStore.delete(sliceId);
+            if (sliceCache != null) {
+                for (String sliceId : sliceIds) {
+                    sliceCache.remove(sliceId);
+                }
+            }
+
+            cloudStore.delete(sliceIds);
+
+            for (SliceMetadata slice : slices) {
+                placementPolicy.onSliceDeleted(cloudStoreName, slice.getSize());
+            }
 
-            logger.debug("Slice '{}' deleted from [{}]", sliceId, cloudStoreName);
+            logger.debug("Slices {} deleted from [{}]", sliceIds, cloudStoreName);
 
-            return true;
+            return sliceIds.size();
         } catch (Exception e) {
-            logger.error("Failed to delete slice '" + sliceId + "' from [" + cloudStoreName + "]", e);
+            logger.error("Failed to delete slices " + sliceIds + " from [" + cloudStoreName + "]", e);
 
-            return false;
+            return 0;
         }
     }
 
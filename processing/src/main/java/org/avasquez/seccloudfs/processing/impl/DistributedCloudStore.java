@@ -1,6 +1,10 @@
 package org.avasquez.seccloudfs.processing.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
@@ -8,43 +12,77 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.avasquez.seccloudfs.cloud.CloudStore;
 import org.avasquez.seccloudfs.cloud.CloudStoreRegistry;
+import org.avasquez.seccloudfs.cloud.impl.AbstractCloudStore;
 import org.avasquez.seccloudfs.erasure.DecodingException;
 import org.avasquez.seccloudfs.erasure.EncodingException;
 import org.avasquez.seccloudfs.erasure.ErasureDecoder;
 import org.avasquez.seccloudfs.erasure.ErasureEncoder;
 import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.compression.CompressibilityEstimator;
+import org.avasquez.seccloudfs.processing.compression.CompressionCodec;
+import org.avasquez.seccloudfs.processing.compression.impl.GZipCompressionCodec;
 import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
+import org.avasquez.seccloudfs.processing.db.model.Stripe;
 import org.avasquez.seccloudfs.processing.db.model.Upload;
 import org.avasquez.seccloudfs.processing.db.repos.UploadRepository;
+import org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy;
+import org.avasquez.seccloudfs.processing.placement.impl.SequentialSlicePlacementPolicy;
 import org.avasquez.seccloudfs.utils.FileUtils;
+import org.infinispan.Cache;
+import org.infinispan.manager.CacheContainer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
 
 /**
  * {@link org.avasquez.seccloudfs.cloud.CloudStore} implementation that uses erasure coding to distribute the data
- * across several clouds.
+ * across several clouds. The data is split in fixed size {@link org.avasquez.seccloudfs.processing.db.model.Stripe}s
+ * that are encoded separately, so that large data doesn't result in huge slices. If a {@link org.avasquez.seccloudfs.processing.compression.CompressionCodec} is set, each stripe is
+ * compressed once before it's encoded, so that compression runs only over the original data instead of over every
+ * slice in every store. Stripes that a {@link org.avasquez.seccloudfs.processing.compression.CompressibilityEstimator}
+ * finds incompressible are encoded without trying to compress them.
  *
  * @author avasquez
  */
-public class DistributedCloudStore implements CloudStore {
+public class DistributedCloudStore extends AbstractCloudStore {
 
     private static final Logger logger = LoggerFactory.getLogger(DistributedCloudStore.class);
 
+    public static final String UPLOAD_CACHE_NAME = "uploads";
+
     private static final String SLICE_FILE_SUFFIX = ".slice";
+    private static final String STRIPE_FILE_SUFFIX = ".stripe";
+    private static final String COMPRESSED_STRIPE_FILE_SUFFIX = ".zstripe";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long DEFAULT_MAX_STRIPE_SIZE = 64 * 1024 * 1024;
+    /**
+     * Codec of the slices of uploads done before the data was split in stripes, when each slice was GZIP compressed
+     * before being encrypted.
+     */
+    private static final CompressionCodec LEGACY_SLICE_CODEC = new GZipCompressionCodec();
 
     private CloudStoreRegistry cloudStoreRegistry;
     private UploadRepository uploadRepository;
@@ -52,6 +90,26 @@ public class DistributedCloudStore implements CloudStore {
     private ErasureDecoder erasureDecoder;
     private Executor taskExecutor;
     private Path tmpDir;
+    private long stripeSize;
+    private SliceRepairService repairService;
+    private int maxSliceRetries;
+    private long sliceRetryDelayMillis;
+    private long sliceUploadTimeoutMillis;
+    private SliceCache sliceCache;
+    private Cache<String, Upload> uploadCache;
+    private final AtomicLong uploadCacheInvalidations;
+    private SlicePlacementPolicy placementPolicy;
+    private CompressionCodec compressionCodec;
+    private Map<String, CompressionCodec> compressionCodecs;
+    private CompressibilityEstimator compressibilityEstimator;
+
+    public DistributedCloudStore() {
+        placementPolicy = new SequentialSlicePlacementPolicy();
+        uploadCacheInvalidations = new AtomicLong();
+        compressionCodecs = new HashMap<>();
+
+        registerCompressionCodec(new GZipCompressionCodec());
+    }
 
     @Override
     public String getName() {
@@ -88,8 +146,377 @@ public class DistributedCloudStore implements CloudStore {
         this.tmpDir = Paths.get(tmpDir);
     }
 
+    /**
+     * Sets the size of the stripes the data is split in before encoding. Each stripe is encoded and uploaded
+     * separately, so large data doesn't result in huge slices. If not set, data is split in stripes of 64MB.
+     */
+    public void setStripeSize(String stripeSize) {
+        this.stripeSize = FileUtils.humanReadableByteSizeToByteCount(stripeSize);
+    }
+
+    /**
+     * Sets the max number of times the upload of a slice is retried after it failed with all the available stores.
+     * Retries are done with an exponential backoff, starting with {@link #setSliceRetryDelayMillis(long)}. Defaults
+     * to 0 (no retries).
+     */
+    public void setMaxSliceRetries(int maxSliceRetries) {
+        this.maxSliceRetries = maxSliceRetries;
+    }
+
+    public void setSliceRetryDelayMillis(long sliceRetryDelayMillis) {
+        this.sliceRetryDelayMillis = sliceRetryDelayMillis;
+    }
+
+    /**
+     * Sets the time after which the slices of a stripe that haven't been uploaded are not retried anymore. If at
+     * least k slices were uploaded, the upload is still saved as successful, but degraded, and the missing slices are
+     * left to the repair service. Defaults to 0 (no deadline, only the max number of retries applies).
+     */
+    public void setSliceUploadTimeoutMillis(long sliceUploadTimeoutMillis) {
+        this.sliceUploadTimeoutMillis = sliceUploadTimeoutMillis;
+    }
+
+    /**
+     * Sets the cache container used to get the cache of the last successful upload of each data, which saves a DB
+     * query on every download and delete. If not set, the upload is always looked up in the DB.
+     */
+    public void setCacheContainer(CacheContainer cacheContainer) {
+        uploadCache = cacheContainer.getCache(UPLOAD_CACHE_NAME);
+        if (uploadCache == null) {
+            throw new IllegalArgumentException("No '" + UPLOAD_CACHE_NAME + "' cache found");
+        }
+    }
+
+    /**
+     * Sets the local cache of recently uploaded and downloaded slices. If set, slices are read from the cache when
+     * possible, and the cached slices are downloaded first when decoding a stripe.
+     */
+    public void setSliceCache(SliceCache sliceCache) {
+        this.sliceCache = sliceCache;
+    }
+
+    /**
+     * Sets the policy that decides which stores get the slices of each stripe. Defaults to a
+     * {@link org.avasquez.seccloudfs.processing.placement.impl.SequentialSlicePlacementPolicy}, which uses the
+     * stores in the order of the registry.
+     */
+    public void setPlacementPolicy(SlicePlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
+    }
+
+    /**
+     * Sets the codec used to compress each stripe before it's encoded. Stripes that don't get smaller are encoded
+     * uncompressed. If not set, no stripe is compressed.
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        this.compressionCodec = compressionCodec;
+
+        registerCompressionCodec(compressionCodec);
+    }
+
+    /**
+     * Sets additional codecs, so that stripes compressed with a codec other than the current one can still be read.
+     * The GZIP codec is always available.
+     */
+    public void setCompressionCodecs(List<CompressionCodec> compressionCodecs) {
+        for (CompressionCodec codec : compressionCodecs) {
+            registerCompressionCodec(codec);
+        }
+    }
+
+    /**
+     * Sets the estimator used to skip the compression of stripes that look incompressible. If not set, the
+     * compression of every stripe is attempted.
+     */
+    public void setCompressibilityEstimator(CompressibilityEstimator compressibilityEstimator) {
+        this.compressibilityEstimator = compressibilityEstimator;
+    }
+
+    /**
+     * Sets the service that's notified of the slices that couldn't be downloaded, so that they're repaired in the
+     * background. If not set, missing slices are only worked around at read time.
+     */
+    public void setRepairService(SliceRepairService repairService) {
+        this.repairService = repairService;
+    }
+
     @Override
     public void upload(String id, ReadableByteChannel src, long length) throws IOException {
+        Upload lastUpload = findLastSuccessfulUpload(id);
+        List<Stripe> stripes = new ArrayList<>();
+        int numStripes = getNumStripes(length);
+        boolean success = true;
+        boolean degraded = false;
+
+        IOException failureCause = null;
+        Path stripeFile = Files.createTempFile(tmpDir, id, STRIPE_FILE_SUFFIX);
+        Path compressedStripeFile = compressionCodec != null ?
+            Files.createTempFile(tmpDir, id, COMPRESSED_STRIPE_FILE_SUFFIX) : null;
+
+        try (FileChannel stripeChannel = FileChannel.open(stripeFile, FileUtils.TMP_FILE_OPEN_OPTIONS);
+             FileChannel compressedStripeChannel = compressedStripeFile != null ?
+                 FileChannel.open(compressedStripeFile, FileUtils.TMP_FILE_OPEN_OPTIONS) : null) {
+            for (int i = 0; i < numStripes && success; i++) {
+                long offset = i * getEffectiveStripeSize(length);
+                int size = (int) Math.min(getEffectiveStripeSize(length), length - offset);
+
+                Stripe stripe = new Stripe();
+                stripe.setOffset(offset);
+                stripe.setSize(size);
+
+                stripes.add(stripe);
+
+                try {
+                    stripeChannel.truncate(0);
+
+                    copyStripe(src, stripeChannel, size);
+
+                    // Reset channel for reading
+                    stripeChannel.position(0);
+
+                    ReadableByteChannel encodingSrc = compressedStripeChannel != null ?
+                        compressStripe(id, i, stripe, stripeChannel, compressedStripeChannel) : stripeChannel;
+
+                    int missingSlices = uploadStripe(id, i, stripe, encodingSrc);
+                    if (missingSlices > erasureEncoder.getM()) {
+                        success = false;
+                    } else if (missingSlices > 0) {
+                        degraded = true;
+                    }
+                } catch (IOException e) {
+                    logger.error("Unable to upload stripe " + i + " of data '" + id + "'", e);
+
+                    failureCause = e;
+                    success = false;
+                }
+            }
+        }
+
+        Upload upload = new Upload();
+        upload.setDataId(id);
+        upload.setDataSize(length);
+        upload.setFinishDate(new Date());
+        upload.setStripes(stripes.toArray(new Stripe[stripes.size()]));
+
+        if (success) {
+            upload.setSuccess(true);
+            upload.setDegraded(degraded);
+
+            try {
+                uploadRepository.insert(upload);
+            } catch (DbException e) {
+                throw new IOException("Unable to save upload for data '" + id + "' to DB");
+            }
+
+            if (uploadCache != null) {
+                uploadCache.put(id, upload);
+            }
+
+            if (degraded) {
+                logger.warn("Upload '{}' for data '{}' is degraded: some slices couldn't be uploaded",
+                            upload.getId(), id);
+
+                if (repairService != null) {
+                    repairService.requestRepair(upload.getId(), Collections.<String>emptySet());
+                }
+            }
+
+            if (lastUpload != null) {
+                // Delete the last upload, but just after the new one has been saved, so that no data is lost
+                deleteUpload(lastUpload);
+            }
+        } else {
+            upload.setSuccess(false);
+
+            try {
+                uploadRepository.insert(upload);
+            } catch (DbException e) {
+                throw new IOException("Unable to save upload for data '" + id + "' to DB");
+            }
+
+            logger.error("Upload '{}' for data '{}' failed. Trying to rollback...", upload.getId(), id);
+
+            deleteUpload(upload);
+
+            throw new IOException("Upload '" + upload.getId() + "' for data '" + id + "' failed", failureCause);
+        }
+    }
+
+    @Override
+    public void download(String id, WritableByteChannel target) throws IOException {
+        Upload upload = findLastSuccessfulUpload(id);
+        if (upload == null) {
+            throw new IOException("No last successful upload found for data '" + id + "' in DB");
+        }
+
+        Stripe[] stripes = getStripes(upload);
+
+        for (int i = 0; i < stripes.length; i++) {
+            downloadStripe(upload, i, stripes[i], target);
+        }
+    }
+
+    @Override
+    public boolean exists(String id) throws IOException {
+        return findLastSuccessfulUpload(id) != null;
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        Upload upload = findLastSuccessfulUpload(id);
+        if (upload == null) {
+            throw new IOException("No last successful upload found for data '" + id + "' in DB");
+        }
+
+        deleteUpload(upload);
+
+        if (uploadCache != null) {
+            // Counted before removing, so that a lookup racing with the delete can't cache the deleted upload again
+            uploadCacheInvalidations.incrementAndGet();
+            uploadCache.remove(id);
+        }
+    }
+
+    /**
+     * Rebuilds the missing slices of an upload. A slice is considered missing if it's one of the specified suspect
+     * slices and its cloud store confirms it doesn't have it, if its cloud store is not registered anymore or if it
+     * was never uploaded. The content of each affected stripe is decoded from the surviving slices and encoded again,
+     * and only the missing slices are uploaded, to stores that preferably don't hold another slice of the stripe. The
+     * upload is then updated with the new slice locations.
+     *
+     * @param uploadId          the ID of the upload to repair
+     * @param suspectSliceIds   the IDs of slices known to be missing or unreadable
+     *
+     * @return the number of slices repaired
+     */
+    public int repair(String uploadId, Set<String> suspectSliceIds) throws IOException {
+        Upload upload;
+        try {
+            upload = uploadRepository.find(uploadId);
+        } catch (DbException e) {
+            throw new IOException("Unable to retrieve upload " + uploadId + " from DB", e);
+        }
+
+        if (upload == null || !upload.isSuccess()) {
+            logger.debug("Upload '{}' doesn't exist anymore. No repair needed", uploadId);
+
+            return 0;
+        }
+
+        Stripe[] stripes = getStripes(upload);
+        List<SliceMetadata> oldSlices = new ArrayList<>();
+        List<SliceMetadata> newSlices = new ArrayList<>();
+
+        boolean degraded = false;
+
+        for (int i = 0; i < stripes.length; i++) {
+            Set<String> missingSliceIds = findMissingSlices(stripes[i], suspectSliceIds);
+            if (!missingSliceIds.isEmpty()) {
+                repairStripe(upload, i, stripes[i], missingSliceIds, oldSlices, newSlices);
+
+                if (!findMissingSlices(stripes[i], Collections.<String>emptySet()).isEmpty()) {
+                    degraded = true;
+                }
+            }
+        }
+
+        if (newSlices.isEmpty()) {
+            return 0;
+        }
+
+        upload.setDegraded(degraded);
+
+        boolean updated;
+        try {
+            updated = uploadRepository.update(upload);
+        } catch (DbException e) {
+            throw new IOException("Unable to update upload " + uploadId + " in DB", e);
+        }
+
+        if (updated) {
+            logger.info("{} slices of upload '{}' repaired", newSlices.size(), uploadId);
+
+            if (uploadCache != null) {
+                Upload cachedUpload = uploadCache.get(upload.getDataId());
+                if (cachedUpload != null && cachedUpload.getId().equals(uploadId)) {
+                    uploadCache.replace(upload.getDataId(), cachedUpload, upload);
+                }
+            }
+
+            // Just in case the old slices are still somewhere
+            deleteSlicesQuietly(oldSlices);
+
+            return newSlices.size();
+        } else {
+            logger.info("Upload '{}' was replaced while being repaired. Deleting repaired slices", uploadId);
+
+            deleteSlicesQuietly(newSlices);
+
+            return 0;
+        }
+    }
+
+    /**
+     * Compresses the stripe. If the stripe gets smaller, the codec and compressed size are recorded in the stripe and
+     * the compressed stripe is returned for encoding. Otherwise, the original stripe is returned.
+     */
+    private ReadableByteChannel compressStripe(String id, int stripeIdx, Stripe stripe, FileChannel stripeChannel,
+                                               FileChannel compressedStripeChannel) throws IOException {
+        if (compressibilityEstimator != null && !compressibilityEstimator.isCompressible(stripeChannel,
+                                                                                         stripe.getSize())) {
+            logger.debug("Stripe {} of data '{}' looks incompressible. Encoding it uncompressed", stripeIdx, id);
+
+            return stripeChannel;
+        }
+
+        compressedStripeChannel.truncate(0);
+
+        // Shield the channel, which is reused for the next stripes, from being closed with the compressing stream
+        try (OutputStream out = compressionCodec.compress(new CloseShieldOutputStream(
+            Channels.newOutputStream(compressedStripeChannel)))) {
+            IOUtils.copyLarge(Channels.newInputStream(stripeChannel), out);
+        }
+
+        // Reset channels for reading
+        stripeChannel.position(0);
+        compressedStripeChannel.position(0);
+
+        long compressedSize = compressedStripeChannel.size();
+        if (compressedSize < stripe.getSize()) {
+            logger.debug("Stripe {} of data '{}' compressed with {} from {} to {} bytes", stripeIdx, id,
+                         compressionCodec.getName(), stripe.getSize(), compressedSize);
+
+            stripe.setCompressionCodec(compressionCodec.getName());
+            stripe.setCompressedSize((int) compressedSize);
+
+            return compressedStripeChannel;
+        } else {
+            logger.debug("Stripe {} of data '{}' doesn't compress. Encoding it uncompressed", stripeIdx, id);
+
+            return stripeChannel;
+        }
+    }
+
+    private void decompressStripe(String id, int stripeIdx, Stripe stripe, CompressionCodec codec,
+                                  FileChannel compressedStripeChannel, WritableByteChannel target)
+        throws IOException {
+        long size;
+        try (InputStream in = codec.decompress(Channels.newInputStream(compressedStripeChannel))) {
+            size = IOUtils.copyLarge(in, Channels.newOutputStream(target));
+        }
+
+        if (size != stripe.getSize()) {
+            throw new IOException("Stripe " + stripeIdx + " of data '" + id + "' was decompressed to " + size +
+                                  " bytes, but " + stripe.getSize() + " were expected");
+        }
+    }
+
+    /**
+     * Encodes the stripe and uploads its slices. Slices that were uploaded are kept even if others failed.
+     *
+     * @return the number of slices that couldn't be uploaded
+     */
+    private int uploadStripe(String id, int stripeIdx, Stripe stripe, ReadableByteChannel src) throws IOException {
         FileChannel[] dataSlices = null;
         FileChannel[] codingSlices = null;
         int k = erasureEncoder.getK();
@@ -102,21 +529,27 @@ public class DistributedCloudStore implements CloudStore {
             int sliceSize;
 
             try {
-                logger.debug("Encoding data '{}' with k = {} and m = {}", id, k, m);
+                logger.debug("Encoding stripe {} of data '{}' with k = {} and m = {}", stripeIdx, id, k, m);
 
-                sliceSize = erasureEncoder.encode(src, (int) length, dataSlices, codingSlices);
+                sliceSize = erasureEncoder.encode(src, getEncodedSize(stripe), dataSlices, codingSlices);
             } catch (EncodingException e) {
-                throw new IOException("Unable to encode data '" + id + "'", e);
+                throw new IOException("Unable to encode stripe " + stripeIdx + " of data '" + id + "'", e);
             }
 
             resetChannels(dataSlices);
             resetChannels(codingSlices);
 
-            SliceMetadata[] dataSliceMetadata = createSliceMetadata(dataSlices);
-            SliceMetadata[] codingSliceMetadata = createSliceMetadata(codingSlices);
-            Queue<CloudStore> availableCloudStores = new ConcurrentLinkedQueue<>(cloudStoreRegistry.list());
+            SliceMetadata[] dataSliceMetadata = createSliceMetadata(dataSlices, sliceSize);
+            SliceMetadata[] codingSliceMetadata = createSliceMetadata(codingSlices, sliceSize);
+
+            stripe.setDataSliceMetadata(dataSliceMetadata);
+            stripe.setCodingSliceMetadata(codingSliceMetadata);
+
+            Queue<CloudStore> availableCloudStores = new ConcurrentLinkedQueue<>(
+                placementPolicy.placeSlices(cloudStoreRegistry.list(), k + m, sliceSize));
             List<UploadTask> uploadTasks = createUploadTasks(dataSlices, codingSlices, dataSliceMetadata,
-                                                             codingSliceMetadata, sliceSize, availableCloudStores);
+                                                             codingSliceMetadata, sliceSize, availableCloudStores,
+                                                             getSliceUploadDeadline());
             CompletionService<Boolean> uploadCompletionService = new ExecutorCompletionService<>(taskExecutor);
 
             for (UploadTask task : uploadTasks) {
@@ -136,89 +569,82 @@ public class DistributedCloudStore implements CloudStore {
                 }
             }
 
-            logger.debug("Slices uploaded for data '{}': {}", id, slicesUploaded);
+            logger.debug("Slices uploaded for stripe {} of data '{}': {}", stripeIdx, id, slicesUploaded);
 
-            Upload upload = new Upload();
-            upload.setDataId(id);
-            upload.setDataSize((int) length);
-            upload.setFinishDate(new Date());
-            upload.setDataSliceMetadata(dataSliceMetadata);
-            upload.setCodingSliceMetadata(codingSliceMetadata);
+            return uploadTasks.size() - slicesUploaded;
+        } finally {
+            closeChannels(dataSlices);
+            closeChannels(codingSlices);
+        }
+    }
 
-            if (slicesUploaded == uploadTasks.size()) {
-                Upload lastUpload;
-                try {
-                    lastUpload = uploadRepository.findLastSuccessfulByDataId(id);
-                } catch (DbException e) {
-                    throw new IOException("Unable to retrieve upload for data '" + id + "' from DB");
-                }
+    private void downloadStripe(Upload upload, int stripeIdx, Stripe stripe, WritableByteChannel target)
+        throws IOException {
+        Set<String> failedSliceIds = new HashSet<>();
 
-                upload.setSuccess(true);
+        try {
+            if (stripe.getCompressionCodec() != null) {
+                CompressionCodec codec = getCompressionCodec(stripe);
+                Path compressedStripeFile = Files.createTempFile(tmpDir, upload.getDataId(),
+                                                                 COMPRESSED_STRIPE_FILE_SUFFIX);
 
-                try {
-                    uploadRepository.insert(upload);
-                } catch (DbException e) {
-                    throw new IOException("Unable to save upload for data '" + id + "' to DB");
-                }
+                try (FileChannel compressedStripeChannel = FileChannel.open(compressedStripeFile,
+                                                                            FileUtils.TMP_FILE_OPEN_OPTIONS)) {
+                    decodeStripe(upload, stripeIdx, stripe, Collections.<String>emptySet(), failedSliceIds,
+                                 compressedStripeChannel);
 
-                if (lastUpload != null) {
-                    // Delete the last upload, but just after the new one has been saved, so that no data is lost
-                    deleteUpload(lastUpload);
-                }
-            } else {
-                upload.setSuccess(false);
+                    // Reset channel for reading
+                    compressedStripeChannel.position(0);
 
-                try {
-                    uploadRepository.insert(upload);
-                } catch (DbException e) {
-                    throw new IOException("Unable to save upload for data '" + id + "' to DB");
+                    decompressStripe(upload.getDataId(), stripeIdx, stripe, codec, compressedStripeChannel, target);
                 }
-
-                logger.error("Upload '{}' for data '{}' failed. Trying to rollback...", upload.getId(), id);
-
-                deleteUpload(upload);
-
-                throw new IOException("Upload '" + upload.getId() + "' for data '" + id + "' failed");
+            } else {
+                decodeStripe(upload, stripeIdx, stripe, Collections.<String>emptySet(), failedSliceIds, target);
             }
         } finally {
-            closeChannels(dataSlices);
-            closeChannels(codingSlices);
-        }
-    }
-
-    @Override
-    public void download(String id, WritableByteChannel target) throws IOException {
-        Upload upload;
-        try {
-            upload = uploadRepository.findLastSuccessfulByDataId(id);
-            if (upload == null) {
-                throw new IOException("No last successful upload found for data '" + id + "' in DB");
+            if (!failedSliceIds.isEmpty() && repairService != null) {
+                repairService.requestRepair(upload.getId(), failedSliceIds);
             }
-        } catch (DbException e) {
-            throw new IOException("Unable to retrieve last successful upload found for data '" + id + "' from DB", e);
         }
+    }
 
-        Queue<DownloadTask> downloadTasks = new LinkedList<>(createDownloadTasks(upload));
+    private void decodeStripe(Upload upload, int stripeIdx, Stripe stripe, Set<String> excludedSliceIds,
+                              Set<String> failedSliceIds, WritableByteChannel target) throws IOException {
+        String id = upload.getDataId();
+        int encodedSize = getEncodedSize(upload, stripe);
+        Queue<DownloadTask> downloadTasks = new LinkedList<>(createDownloadTasks(stripe, getSliceCodec(upload),
+                                                                                 excludedSliceIds, failedSliceIds));
+        Map<Future<DownloadResult>, DownloadTask> submittedTasks = new HashMap<>();
         CompletionService<DownloadResult> downloadCompletionService = new ExecutorCompletionService<>(taskExecutor);
         int requiredNumSlices = erasureDecoder.getK();
 
         // Submit the main tasks (number of main tasks = required fragment number).
-        for (int i = 0; i < requiredNumSlices; i++) {
-            downloadCompletionService.submit(downloadTasks.remove());
+        for (int i = 0; i < requiredNumSlices && !downloadTasks.isEmpty(); i++) {
+            DownloadTask task = downloadTasks.remove();
+            submittedTasks.put(downloadCompletionService.submit(task), task);
         }
 
         // Keep polling for slices until we reach the required number. If a slice couldn't be loaded, try with a
         // backup task. If there are no more backup tasks, then stop.
-        FileChannel[] dataSlices = new FileChannel[upload.getDataSliceMetadata().length];
-        FileChannel[] codingSlices = new FileChannel[upload.getCodingSliceMetadata().length];
+        FileChannel[] dataSlices = new FileChannel[stripe.getDataSliceMetadata().length];
+        FileChannel[] codingSlices = new FileChannel[stripe.getCodingSliceMetadata().length];
 
         try {
             int slicesDownloaded = 0;
 
             while (slicesDownloaded < requiredNumSlices) {
+                if (submittedTasks.isEmpty()) {
+                    throw new IOException("Not enough slices could be downloaded to reconstruct stripe " +
+                                          stripeIdx + " of data " + id);
+                }
+
                 DownloadResult result = null;
+                DownloadTask completedTask = null;
                 try {
-                    result = downloadCompletionService.take().get();
+                    Future<DownloadResult> future = downloadCompletionService.take();
+
+                    completedTask = submittedTasks.remove(future);
+                    result = future.get();
                     if (result != null) {
                         slicesDownloaded++;
 
@@ -233,26 +659,28 @@ public class DistributedCloudStore implements CloudStore {
                 }
 
                 if (result == null) {
+                    if (completedTask != null) {
+                        failedSliceIds.add(completedTask.getSliceMetadata().getId());
+                    }
+
                     DownloadTask task = downloadTasks.poll();
                     if (task != null) {
-                        downloadCompletionService.submit(task);
-                    } else {
-                        throw new IOException("Not enough slices could be downloaded to reconstruct data " + id);
+                        submittedTasks.put(downloadCompletionService.submit(task), task);
                     }
                 }
             }
 
-            logger.debug("Slices downloaded for data '{}': {}", id, slicesDownloaded);
+            logger.debug("Slices downloaded for stripe {} of data '{}': {}", stripeIdx, id, slicesDownloaded);
 
             resetChannels(dataSlices);
             resetChannels(codingSlices);
 
             try {
-                logger.debug("Decoding data '{}'", id);
+                logger.debug("Decoding stripe {} of data '{}'", stripeIdx, id);
 
-                erasureDecoder.decode(upload.getDataSize(), dataSlices, codingSlices, target);
+                erasureDecoder.decode(encodedSize, dataSlices, codingSlices, target);
             } catch (DecodingException e) {
-                throw new IOException("Unable to decode data '" + id + "'", e);
+                throw new IOException("Unable to decode stripe " + stripeIdx + " of data '" + id + "'", e);
             }
         } finally {
             closeChannels(dataSlices);
@@ -260,24 +688,263 @@ public class DistributedCloudStore implements CloudStore {
         }
     }
 
-    @Override
-    public void delete(String id) throws IOException {
-        Upload upload;
+    private void repairStripe(Upload upload, int stripeIdx, Stripe stripe, Set<String> missingSliceIds,
+                              List<SliceMetadata> oldSlices, List<SliceMetadata> newSlices) throws IOException {
+        String id = upload.getDataId();
+        CompressionCodec sliceCodec = getSliceCodec(upload);
+        FileChannel[] dataSlices = null;
+        FileChannel[] codingSlices = null;
+        List<FileChannel> compressedSlices = new ArrayList<>();
+        int k = erasureEncoder.getK();
+        int m = erasureEncoder.getM();
+
+        logger.debug("Repairing {} slices of stripe {} of data '{}'", missingSliceIds.size(), stripeIdx, id);
+
+        Path stripeFile = Files.createTempFile(tmpDir, id, STRIPE_FILE_SUFFIX);
+
+        try (FileChannel stripeChannel = FileChannel.open(stripeFile, FileUtils.TMP_FILE_OPEN_OPTIONS)) {
+            decodeStripe(upload, stripeIdx, stripe, missingSliceIds, new HashSet<String>(), stripeChannel);
+
+            // Reset channel for reading
+            stripeChannel.position(0);
+
+            dataSlices = createSliceFiles(k);
+            codingSlices = createSliceFiles(m);
+
+            int sliceSize;
+            try {
+                sliceSize = erasureEncoder.encode(stripeChannel, getEncodedSize(upload, stripe), dataSlices,
+                                                  codingSlices);
+            } catch (EncodingException e) {
+                throw new IOException("Unable to encode stripe " + stripeIdx + " of data '" + id + "'", e);
+            }
+
+            resetChannels(dataSlices);
+            resetChannels(codingSlices);
+
+            Queue<CloudStore> candidateStores = getRepairCandidateStores(stripe, missingSliceIds, sliceSize);
+            long deadline = getSliceUploadDeadline();
+            List<SliceMetadata> missingSlices = new ArrayList<>();
+            List<SliceMetadata> repairedSlices = new ArrayList<>();
+            List<UploadTask> uploadTasks = new ArrayList<>();
+
+            for (int i = 0; i < k; i++) {
+                SliceMetadata metadata = stripe.getDataSliceMetadata()[i];
+                if (missingSliceIds.contains(metadata.getId())) {
+                    createRepairTask(dataSlices[i], sliceSize, sliceCodec, metadata, candidateStores, deadline,
+                                     compressedSlices, missingSlices, repairedSlices, uploadTasks);
+                }
+            }
+            for (int i = 0; i < m; i++) {
+                SliceMetadata metadata = stripe.getCodingSliceMetadata()[i];
+                if (missingSliceIds.contains(metadata.getId())) {
+                    createRepairTask(codingSlices[i], sliceSize, sliceCodec, metadata, candidateStores, deadline,
+                                     compressedSlices, missingSlices, repairedSlices, uploadTasks);
+                }
+            }
+
+            CompletionService<Boolean> uploadCompletionService = new ExecutorCompletionService<>(taskExecutor);
+
+            for (UploadTask task : uploadTasks) {
+                uploadCompletionService.submit(task);
+            }
+
+            for (int i = 0; i < uploadTasks.size(); i++) {
+                try {
+                    uploadCompletionService.take().get();
+                } catch (Exception e) {
+                    logger.error("Error while trying to retrieve upload task result", e);
+                }
+            }
+
+            for (int i = 0; i < missingSlices.size(); i++) {
+                SliceMetadata missingSlice = missingSlices.get(i);
+                SliceMetadata repairedSlice = repairedSlices.get(i);
+
+                if (StringUtils.isNotEmpty(repairedSlice.getCloudStoreName())) {
+                    SliceMetadata oldSlice = new SliceMetadata();
+                    oldSlice.setId(missingSlice.getId());
+                    oldSlice.setCloudStoreName(missingSlice.getCloudStoreName());
+                    oldSlice.setSize(missingSlice.getSize());
+
+                    oldSlices.add(oldSlice);
+
+                    // Update in place, so that the upload now points to the repaired slice
+                    missingSlice.setId(repairedSlice.getId());
+                    missingSlice.setCloudStoreName(repairedSlice.getCloudStoreName());
+                    missingSlice.setSize(repairedSlice.getSize());
+
+                    newSlices.add(missingSlice);
+                }
+            }
+        } finally {
+            closeChannels(dataSlices);
+            closeChannels(codingSlices);
+            closeChannels(compressedSlices.toArray(new FileChannel[compressedSlices.size()]));
+        }
+    }
+
+    /**
+     * Creates the task to upload a repaired slice. If the slices of the stripe are stored compressed, the repaired
+     * slice is compressed with the same codec before the upload, and it's not cached, since the cache only holds
+     * decompressed slices.
+     */
+    private void createRepairTask(FileChannel slice, int sliceSize, CompressionCodec sliceCodec,
+                                  SliceMetadata missingSlice, Queue<CloudStore> candidateStores, long deadline,
+                                  List<FileChannel> compressedSlices, List<SliceMetadata> missingSlices,
+                                  List<SliceMetadata> repairedSlices, List<UploadTask> uploadTasks)
+        throws IOException {
+        SliceCache cache = sliceCache;
+
+        if (sliceCodec != null) {
+            FileChannel compressedSlice = createSliceFiles(1)[0];
+            compressedSlices.add(compressedSlice);
+
+            try (OutputStream out = sliceCodec.compress(new CloseShieldOutputStream(
+                Channels.newOutputStream(compressedSlice)))) {
+                IOUtils.copyLarge(Channels.newInputStream(slice), out);
+            }
+
+            // Reset channel for reading
+            compressedSlice.position(0);
+
+            slice = compressedSlice;
+            sliceSize = (int) compressedSlice.size();
+            cache = null;
+        }
+
+        SliceMetadata repairedSlice = new SliceMetadata();
+        repairedSlice.setId(SliceMetadata.generateId());
+        repairedSlice.setSize(sliceSize);
+
+        missingSlices.add(missingSlice);
+        repairedSlices.add(repairedSlice);
+        uploadTasks.add(new UploadTask(slice, sliceSize, repairedSlice, candidateStores, maxSliceRetries,
+                                       sliceRetryDelayMillis, deadline, cache, placementPolicy));
+    }
+
+    /**
+     * Returns the registered stores where the repaired slices of a stripe can be uploaded: first the stores that
+     * don't hold any slice of the stripe, in the order of the placement policy, and then the rest.
+     */
+    private Queue<CloudStore> getRepairCandidateStores(Stripe stripe, Set<String> missingSliceIds, int sliceSize) {
+        Set<String> usedStoreNames = new HashSet<>();
+
+        for (SliceMetadata metadata : getSlices(stripe)) {
+            if (!missingSliceIds.contains(metadata.getId()) && StringUtils.isNotEmpty(metadata.getCloudStoreName())) {
+                usedStoreNames.add(metadata.getCloudStoreName());
+            }
+        }
+
+        List<CloudStore> preferredStores = new ArrayList<>();
+        List<CloudStore> otherStores = new ArrayList<>();
+
+        for (CloudStore cloudStore : cloudStoreRegistry.list()) {
+            if (usedStoreNames.contains(cloudStore.getName())) {
+                otherStores.add(cloudStore);
+            } else {
+                preferredStores.add(cloudStore);
+            }
+        }
+
+        Queue<CloudStore> candidateStores = new ConcurrentLinkedQueue<>(
+            placementPolicy.placeSlices(preferredStores, missingSliceIds.size(), sliceSize));
+        candidateStores.addAll(otherStores);
+
+        return candidateStores;
+    }
+
+    private Set<String> findMissingSlices(Stripe stripe, Set<String> suspectSliceIds) {
+        Set<String> missingSliceIds = new HashSet<>();
+
+        for (SliceMetadata metadata : getSlices(stripe)) {
+            String sliceId = metadata.getId();
+            String cloudStoreName = metadata.getCloudStoreName();
+            CloudStore cloudStore = StringUtils.isNotEmpty(cloudStoreName) ? cloudStoreRegistry.find(cloudStoreName) :
+                null;
+
+            if (cloudStore == null || (suspectSliceIds.contains(sliceId) && isSliceMissing(cloudStore, sliceId))) {
+                missingSliceIds.add(sliceId);
+            }
+        }
+
+        return missingSliceIds;
+    }
+
+    /**
+     * Asks the store if a suspect slice is really missing. A slice is only suspect because its download failed, which
+     * can be a temporary error, so if the slice still exists, or if the store can't tell, the slice is not considered
+     * missing. It will be suspect again the next time its download fails.
+     */
+    private boolean isSliceMissing(CloudStore cloudStore, String sliceId) {
         try {
-            upload = uploadRepository.findLastSuccessfulByDataId(id);
-            if (upload == null) {
-                throw new IOException("No last successful upload found for data '" + id + "' in DB");
+            if (!cloudStore.exists(sliceId)) {
+                return true;
             }
-        } catch (DbException e) {
-            throw new IOException("Unable to retrieve last successful upload found for data '" + id + "' from DB", e);
+
+            logger.debug("Suspect slice '{}' still exists in [{}]", sliceId, cloudStore.getName());
+        } catch (IOException e) {
+            logger.warn("Unable to check if suspect slice '" + sliceId + "' exists in [" + cloudStore.getName() + "]",
+                        e);
         }
 
-        deleteUpload(upload);
+        return false;
+    }
+
+    private List<SliceMetadata> getSlices(Stripe stripe) {
+        List<SliceMetadata> slices = new ArrayList<>();
+
+        Collections.addAll(slices, stripe.getDataSliceMetadata());
+        Collections.addAll(slices, stripe.getCodingSliceMetadata());
+
+        return slices;
+    }
+
+    private void deleteSlicesQuietly(List<SliceMetadata> slices) {
+        Map<String, List<SliceMetadata>> slicesByStore = new HashMap<>();
+
+        for (SliceMetadata slice : slices) {
+            addSliceToDelete(slice, slicesByStore);
+        }
+
+        // The slices of each store are deleted in a single batch
+        for (Map.Entry<String, List<SliceMetadata>> entry : slicesByStore.entrySet()) {
+            String cloudStoreName = entry.getKey();
+            CloudStore cloudStore = cloudStoreRegistry.find(cloudStoreName);
+
+            if (cloudStore != null) {
+                List<String> sliceIds = new ArrayList<>();
+                for (SliceMetadata slice : entry.getValue()) {
+                    sliceIds.add(slice.getId());
+                }
+
+                try {
+                    cloudStore.delete(sliceIds);
+
+                    for (SliceMetadata slice : entry.getValue()) {
+                        placementPolicy.onSliceDeleted(cloudStoreName, slice.getSize());
+                    }
+                } catch (IOException e) {
+                    logger.debug("Unable to delete slices {} from [{}]: {}", sliceIds, cloudStoreName,
+                                 e.getMessage());
+                }
+            }
+        }
     }
 
     private void deleteUpload(Upload upload) throws IOException {
-        List<DeleteTask> deleteTasks = createDeleteTasks(upload);
-        CompletionService<Boolean> deleteCompletionService = new ExecutorCompletionService<>(taskExecutor);
+        deleteStripes(upload.getId(), Arrays.asList(getStripes(upload)));
+
+        try {
+            uploadRepository.delete(upload.getId());
+        } catch (DbException e) {
+            throw new IOException("Unable to delete upload " + upload.getId() + " from DB", e);
+        }
+    }
+
+    private void deleteStripes(String id, List<Stripe> stripes) {
+        List<DeleteTask> deleteTasks = createDeleteTasks(stripes);
+        CompletionService<Integer> deleteCompletionService = new ExecutorCompletionService<>(taskExecutor);
 
         for (DeleteTask task : deleteTasks) {
             deleteCompletionService.submit(task);
@@ -286,23 +953,149 @@ public class DistributedCloudStore implements CloudStore {
         int slicesDeleted = 0;
 
         for (int i = 0; i < deleteTasks.size(); i++) {
-            boolean deleted;
             try {
-                deleted = deleteCompletionService.take().get();
-                if (deleted) {
-                    slicesDeleted++;
-                }
+                slicesDeleted += deleteCompletionService.take().get();
             } catch (Exception e) {
                 logger.error("Error while trying to retrieve delete task result", e);
             }
         }
 
-        logger.debug("Slices deleted for upload '{}': {}", upload.getId(), slicesDeleted);
+        logger.debug("Slices deleted for '{}': {}", id, slicesDeleted);
+    }
+
+    private Upload findLastSuccessfulUpload(String id) throws IOException {
+        Upload upload;
+
+        if (uploadCache != null && (upload = uploadCache.get(id)) != null) {
+            return upload;
+        }
+
+        long invalidations = uploadCacheInvalidations.get();
 
         try {
-            uploadRepository.delete(upload.getId());
+            upload = uploadRepository.findLastSuccessfulByDataId(id);
         } catch (DbException e) {
-            throw new IOException("Unable to delete upload " + upload.getId() + " from DB", e);
+            throw new IOException("Unable to retrieve upload for data '" + id + "' from DB");
+        }
+
+        if (uploadCache != null && upload != null) {
+            // Only cache if no newer upload was cached meanwhile
+            uploadCache.putIfAbsent(id, upload);
+
+            // If an upload was deleted since the DB was queried, the cached upload might be the deleted one, so it's
+            // removed (only if it's still the one cached) and the next lookup goes to the DB
+            if (uploadCacheInvalidations.get() != invalidations) {
+                uploadCache.remove(id, upload);
+            }
+        }
+
+        return upload;
+    }
+
+    /**
+     * Returns the time by which the slice uploads started now should give up retrying.
+     */
+    private long getSliceUploadDeadline() {
+        return sliceUploadTimeoutMillis > 0 ? System.currentTimeMillis() + sliceUploadTimeoutMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the stripes of the upload. Uploads done before the data was split in stripes are returned as a single
+     * stripe. The size of that stripe is left unset, since the data size is a long: the size to decode
+     * is taken from the upload instead (see {@link #getEncodedSize(Upload, Stripe)}).
+     */
+    private Stripe[] getStripes(Upload upload) {
+        if (upload.getStripes() != null) {
+            return upload.getStripes();
+        } else {
+            Stripe stripe = new Stripe();
+            stripe.setDataSliceMetadata(upload.getDataSliceMetadata());
+            stripe.setCodingSliceMetadata(upload.getCodingSliceMetadata());
+
+            return new Stripe[] {stripe};
+        }
+    }
+
+    /**
+     * Returns the codec the slices of the upload are stored compressed with, which is only the case for uploads done
+     * before the data was split in stripes, or null if the slices are stored as they were encoded.
+     */
+    private CompressionCodec getSliceCodec(Upload upload) {
+        return upload.getStripes() == null ? LEGACY_SLICE_CODEC : null;
+    }
+
+    private long getEffectiveStripeSize(long length) {
+        return stripeSize > 0 ? stripeSize : Math.max(Math.min(length, DEFAULT_MAX_STRIPE_SIZE), 1);
+    }
+
+    /**
+     * Returns the size of the stripe as it was encoded, which is the compressed size if the stripe was compressed.
+     */
+    private int getEncodedSize(Stripe stripe) {
+        return stripe.getCompressionCodec() != null ? stripe.getCompressedSize() : stripe.getSize();
+    }
+
+    /**
+     * Returns the size a stored stripe of the upload has to be decoded to. Uploads done before the data was split in
+     * stripes were encoded as a whole, when their size was still an int, so their size can only be bigger than an int
+     * if the upload record is corrupt.
+     */
+    private int getEncodedSize(Upload upload, Stripe stripe) throws IOException {
+        if (upload.getStripes() != null) {
+            return getEncodedSize(stripe);
+        }
+
+        long dataSize = upload.getDataSize();
+        if (dataSize < 0 || dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Upload '" + upload.getId() + "' of data '" + upload.getDataId() + "' has a size " +
+                                  "of " + dataSize + " bytes, which can't be decoded in a single stripe");
+        }
+
+        return (int) dataSize;
+    }
+
+    private CompressionCodec getCompressionCodec(Stripe stripe) throws IOException {
+        CompressionCodec codec = compressionCodecs.get(stripe.getCompressionCodec());
+        if (codec == null) {
+            throw new IOException("Unknown compression codec '" + stripe.getCompressionCodec() + "'");
+        }
+
+        return codec;
+    }
+
+    private void registerCompressionCodec(CompressionCodec codec) {
+        compressionCodecs.put(codec.getName(), codec);
+    }
+
+    private int getNumStripes(long length) {
+        long effectiveStripeSize = getEffectiveStripeSize(length);
+
+        return (int) Math.max(1, (length + effectiveStripeSize - 1) / effectiveStripeSize);
+    }
+
+    /**
+     * Copies the next stripe of the source to the target.
+     */
+    private void copyStripe(ReadableByteChannel src, WritableByteChannel target, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        int remaining = size;
+
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), remaining));
+
+            int read = src.read(buffer);
+            if (read < 0) {
+                throw new IOException("Unexpected end of stream: " + remaining + " more bytes were expected");
+            }
+
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+
+            remaining -= read;
         }
     }
 
@@ -341,12 +1134,13 @@ public class DistributedCloudStore implements CloudStore {
         }
     }
 
-    private SliceMetadata[] createSliceMetadata(ReadableByteChannel[] slices) {
+    private SliceMetadata[] createSliceMetadata(ReadableByteChannel[] slices, int sliceSize) {
         SliceMetadata[] sliceMetadata = new SliceMetadata[slices.length];
 
         for (int i = 0; i < slices.length; i++) {
             SliceMetadata metadata = new SliceMetadata();
             metadata.setId(SliceMetadata.generateId());
+            metadata.setSize(sliceSize);
 
             sliceMetadata[i] = metadata;
         }
@@ -354,80 +1148,139 @@ public class DistributedCloudStore implements CloudStore {
         return sliceMetadata;
     }
 
-    private List<UploadTask> createUploadTasks(ReadableByteChannel[] dataSlices, ReadableByteChannel[] codingSlices,
+    private List<UploadTask> createUploadTasks(FileChannel[] dataSlices, FileChannel[] codingSlices,
                                                SliceMetadata[] dataSliceMetadata, SliceMetadata[] codingSliceMetadata,
-                                               int sliceSize, Queue<CloudStore> availableCloudStores) {
+                                               int sliceSize, Queue<CloudStore> availableCloudStores, long deadline) {
         List<UploadTask> tasks = new ArrayList<>();
 
         for (int i = 0; i < dataSlices.length; i++) {
-            tasks.add(new UploadTask(dataSlices[i], sliceSize, dataSliceMetadata[i], availableCloudStores));
+            tasks.add(new UploadTask(dataSlices[i], sliceSize, dataSliceMetadata[i], availableCloudStores,
+                                     maxSliceRetries, sliceRetryDelayMillis, deadline, sliceCache,
+                                     placementPolicy));
         }
 
         for (int i = 0; i < codingSlices.length; i++) {
-            tasks.add(new UploadTask(codingSlices[i], sliceSize, codingSliceMetadata[i], availableCloudStores));
+            tasks.add(new UploadTask(codingSlices[i], sliceSize, codingSliceMetadata[i], availableCloudStores,
+                                     maxSliceRetries, sliceRetryDelayMillis, deadline, sliceCache,
+                                     placementPolicy));
         }
 
         return tasks;
     }
 
-    private List<DownloadTask> createDownloadTasks(Upload upload) throws IOException {
+    private List<DownloadTask> createDownloadTasks(Stripe stripe, CompressionCodec sliceCodec,
+                                                   Set<String> excludedSliceIds, Set<String> unavailableSliceIds)
+        throws IOException {
         List<DownloadTask> tasks = new ArrayList<>();
-        SliceMetadata[] dataSliceMetadata = upload.getDataSliceMetadata();
-        SliceMetadata[] codingSliceMetadata = upload.getCodingSliceMetadata();
+        SliceMetadata[] dataSliceMetadata = stripe.getDataSliceMetadata();
+        SliceMetadata[] codingSliceMetadata = stripe.getCodingSliceMetadata();
 
         for (int i = 0; i < dataSliceMetadata.length; i++) {
-            createDownloadTask(dataSliceMetadata[i], i, true, tasks);
+            createDownloadTask(dataSliceMetadata[i], i, true, sliceCodec, excludedSliceIds, unavailableSliceIds,
+                               tasks);
         }
 
         for (int i = 0; i < codingSliceMetadata.length; i++) {
-            createDownloadTask(codingSliceMetadata[i], i, true, tasks);
+            createDownloadTask(codingSliceMetadata[i], i, false, sliceCodec, excludedSliceIds, unavailableSliceIds,
+                               tasks);
+        }
+
+        if (sliceCache != null) {
+            // Cached slices go first, so that they're used before any remote slice
+            List<DownloadTask> cachedTasks = new ArrayList<>();
+            List<DownloadTask> remoteTasks = new ArrayList<>();
+
+            for (DownloadTask task : tasks) {
+                if (sliceCache.contains(task.getSliceMetadata().getId())) {
+                    cachedTasks.add(task);
+                } else {
+                    remoteTasks.add(task);
+                }
+            }
+
+            tasks = cachedTasks;
+            tasks.addAll(remoteTasks);
         }
 
         return tasks;
     }
 
-    private List<DeleteTask> createDeleteTasks(Upload upload) throws IOException {
-        List<DeleteTask> tasks = new ArrayList<>();
-        SliceMetadata[] dataSliceMetadata = upload.getDataSliceMetadata();
-        SliceMetadata[] codingSliceMetadata = upload.getCodingSliceMetadata();
+    /**
+     * Creates one delete task per cloud store, so that the slices of the same store are deleted in a single batch.
+     */
+    private List<DeleteTask> createDeleteTasks(List<Stripe> stripes) {
+        Map<String, List<SliceMetadata>> slicesByStore = new HashMap<>();
 
-        for (int i = 0; i < dataSliceMetadata.length; i++) {
-            createDeleteTask(dataSliceMetadata[i], tasks);
+        for (Stripe stripe : stripes) {
+            SliceMetadata[] dataSliceMetadata = stripe.getDataSliceMetadata();
+            SliceMetadata[] codingSliceMetadata = stripe.getCodingSliceMetadata();
+
+            // Slice metadata is null if the upload failed before the stripe could be encoded
+            if (dataSliceMetadata != null) {
+                for (SliceMetadata sliceMetadata : dataSliceMetadata) {
+                    addSliceToDelete(sliceMetadata, slicesByStore);
+                }
+            }
+
+            if (codingSliceMetadata != null) {
+                for (SliceMetadata sliceMetadata : codingSliceMetadata) {
+                    addSliceToDelete(sliceMetadata, slicesByStore);
+                }
+            }
         }
 
-        for (int i = 0; i < codingSliceMetadata.length; i++) {
-            createDeleteTask(codingSliceMetadata[i], tasks);
+        List<DeleteTask> tasks = new ArrayList<>();
+
+        for (Map.Entry<String, List<SliceMetadata>> entry : slicesByStore.entrySet()) {
+            CloudStore cloudStore = cloudStoreRegistry.find(entry.getKey());
+            if (cloudStore != null) {
+                tasks.add(new DeleteTask(entry.getValue(), cloudStore, sliceCache, placementPolicy));
+            } else {
+                logger.warn("{} slices can't be deleted: no cloud store found for name '{}'", entry.getValue().size(),
+                            entry.getKey());
+            }
         }
 
         return tasks;
     }
 
     private void createDownloadTask(SliceMetadata sliceMetadata, int sliceIdx, boolean dataSlice,
-                                    List<DownloadTask> tasks) throws IOException {
+                                    CompressionCodec sliceCodec, Set<String> excludedSliceIds,
+                                    Set<String> unavailableSliceIds, List<DownloadTask> tasks) throws IOException {
+        String sliceId = sliceMetadata.getId();
         String cloudStoreName = sliceMetadata.getCloudStoreName();
-        if (StringUtils.isNotEmpty(cloudStoreName)) {
-            CloudStore cloudStore = getCloudStoreByName(cloudStoreName);
-            Path sliceFile = Files.createTempFile(tmpDir, sliceMetadata.getId(), SLICE_FILE_SUFFIX);
 
-            tasks.add(new DownloadTask(sliceMetadata, sliceIdx, dataSlice, cloudStore, sliceFile));
+        if (excludedSliceIds.contains(sliceId)) {
+            return;
         }
-    }
 
-    private void createDeleteTask(SliceMetadata sliceMetadata, List<DeleteTask> tasks) throws IOException {
-        String cloudStoreName = sliceMetadata.getCloudStoreName();
-        if (StringUtils.isNotEmpty(cloudStoreName)) {
-            CloudStore cloudStore = getCloudStoreByName(cloudStoreName);
+        CloudStore cloudStore = StringUtils.isNotEmpty(cloudStoreName) ? cloudStoreRegistry.find(cloudStoreName) :
+            null;
 
-            tasks.add(new DeleteTask(sliceMetadata, cloudStore));
+        if (cloudStore != null) {
+            Path sliceFile = Files.createTempFile(tmpDir, sliceId, SLICE_FILE_SUFFIX);
+
+            tasks.add(new DownloadTask(sliceMetadata, sliceIdx, dataSlice, cloudStore, sliceFile, sliceCache,
+                                       sliceCodec));
+        } else {
+            // The slice was never uploaded or its cloud store was removed, so it can't be downloaded
+            logger.warn("Slice '{}' not available in any registered cloud store", sliceId);
+
+            unavailableSliceIds.add(sliceId);
         }
     }
 
-    private CloudStore getCloudStoreByName(String name) throws IOException {
-        CloudStore cloudStore = cloudStoreRegistry.find(name);
-        if (cloudStore != null) {
-            return cloudStore;
-        } else {
-            throw new IOException("No cloud store found for name '" + name + "'");
+    private void addSliceToDelete(SliceMetadata sliceMetadata, Map<String, List<SliceMetadata>> slicesByStore) {
+        String cloudStoreName = sliceMetadata.getCloudStoreName();
+
+        if (StringUtils.isNotEmpty(cloudStoreName)) {
+            List<SliceMetadata> slices = slicesByStore.get(cloudStoreName);
+            if (slices == null) {
+                slices = new ArrayList<>();
+                slicesByStore.put(cloudStoreName, slices);
+            }
+
+            slices.add(sliceMetadata);
         }
     }
 
@@ -1,10 +1,16 @@
 package org.avasquez.seccloudfs.processing.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.Callable;
 
+import org.apache.commons.io.IOUtils;
 import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.processing.compression.CompressionCodec;
 import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
 import org.avasquez.seccloudfs.utils.FileUtils;
 import org.slf4j.Logger;
@@ -12,7 +18,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Asynchronous task, implemented as a {@link java.util.concurrent.Callable}, to download a slice from a
- * {@link org.avasquez.seccloudfs.cloud.CloudStore}.
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore}. If a {@link org.avasquez.seccloudfs.processing.impl.SliceCache}
+ * is provided, the slice is first looked up in the cache, and downloaded slices are added to it. If a slice codec is
+ * provided, the slice is stored compressed in the cloud store (like the slices of uploads done before the data was
+ * split in stripes) and it's decompressed after the download, so that the cache always holds decompressed slices.
  *
  * @author avasquez
  */
@@ -20,19 +29,29 @@ public class DownloadTask implements Callable<DownloadResult> {
 
     private static final Logger logger = LoggerFactory.getLogger(DownloadTask.class);
 
+    private static final String COMPRESSED_SLICE_FILE_SUFFIX = ".zslice";
+
     private SliceMetadata sliceMetadata;
     private int sliceIndex;
     private boolean dataSlice;
     private CloudStore cloudStore;
     private Path sliceFile;
+    private SliceCache sliceCache;
+    private CompressionCodec sliceCodec;
 
     public DownloadTask(SliceMetadata sliceMetadata, int sliceIndex, boolean dataSlice, CloudStore cloudStore,
-                        Path sliceFile) {
+                        Path sliceFile, SliceCache sliceCache, CompressionCodec sliceCodec) {
         this.sliceMetadata = sliceMetadata;
         this.sliceIndex = sliceIndex;
         this.dataSlice = dataSlice;
         this.cloudStore = cloudStore;
         this.sliceFile = sliceFile;
+        this.sliceCache = sliceCache;
+        this.sliceCodec = sliceCodec;
+    }
+
+    public SliceMetadata getSliceMetadata() {
+        return sliceMetadata;
     }
 
     @Override
@@ -42,19 +61,58 @@ public class DownloadTask implements Callable<DownloadResult> {
 
         logger.debug("Downloading slice '{}' from [{}]", sliceId, cloudStoreName);
 
+        FileChannel channel = null;
         try  {
-            FileChannel channel = FileChannel.open(sliceFile, FileUtils.TMP_FILE_OPEN_OPTIONS);
+            channel = FileChannel.open(sliceFile, FileUtils.TMP_FILE_OPEN_OPTIONS);
+
+            if (sliceCache != null && sliceCache.get(sliceId, channel)) {
+                return new DownloadResult(channel, dataSlice, sliceIndex);
+            }
 
-            cloudStore.download(sliceId, channel);
+            if (sliceCodec != null) {
+                downloadCompressed(sliceId, channel);
+            } else {
+                cloudStore.download(sliceId, channel);
+            }
 
             logger.debug("Slice '{}' downloaded from [{}]", sliceId, cloudStoreName);
 
+            if (sliceCache != null) {
+                cacheSlice(sliceId, channel);
+            }
+
             return new DownloadResult(channel, dataSlice, sliceIndex);
         } catch (Exception e) {
             logger.error("Failed to download slice '" + sliceId + "' from [" + cloudStoreName + "]", e);
 
+            IOUtils.closeQuietly(channel);
+
             return null;
         }
     }
 
+    private void downloadCompressed(String sliceId, FileChannel channel) throws IOException {
+        Path compressedSliceFile = Files.createTempFile(sliceFile.getParent(), sliceId, COMPRESSED_SLICE_FILE_SUFFIX);
+
+        try (FileChannel compressedChannel = FileChannel.open(compressedSliceFile, FileUtils.TMP_FILE_OPEN_OPTIONS)) {
+            cloudStore.download(sliceId, compressedChannel);
+
+            // Reset channel for reading
+            compressedChannel.position(0);
+
+            try (InputStream in = sliceCodec.decompress(Channels.newInputStream(compressedChannel))) {
+                IOUtils.copyLarge(in, Channels.newOutputStream(channel));
+            }
+        }
+    }
+
+    private void cacheSlice(String sliceId, FileChannel channel) {
+        try {
+            sliceCache.put(sliceId, channel);
+        } catch (Exception e) {
+            // Not fatal, the slice was already downloaded
+            logger.warn("Unable to cache slice '" + sliceId + "'", e);
+        }
+    }
+
 }
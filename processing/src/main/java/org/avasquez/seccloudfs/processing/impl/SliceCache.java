@@ -0,0 +1,255 @@
+package org.avasquez.seccloudfs.processing.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+
+import org.avasquez.seccloudfs.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * Local disk cache of the slices recently uploaded and downloaded by the
+ * {@link org.avasquez.seccloudfs.processing.impl.DistributedCloudStore}, so that reading again recently used data
+ * needs fewer (or no) remote downloads. The cache dir has a max size. When the max size has been reached, the LRU
+ * slices are deleted until the dir size is again less than the max size. Since the distributed store sits above the
+ * encrypting decorators of the cloud stores, the cached slices are decrypted plaintext, and any k slices of a stripe
+ * can be decoded back into the original data. So the cache dir needs the same protection as the plaintext file
+ * system data (restricted permissions, an encrypted disk, etc).
+ *
+ * @author avasquez
+ */
+public class SliceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SliceCache.class);
+
+    private static final String SLICE_FILE_SUFFIX = ".slice";
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+
+    private Path cacheDir;
+    private long maxSize;
+
+    private final Map<String, Long> slices;
+    private long size;
+
+    public SliceCache() {
+        // Access order, so the first entry is always the LRU
+        slices = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Required
+    public void setCacheDir(String cacheDir) {
+        this.cacheDir = Paths.get(cacheDir);
+    }
+
+    @Required
+    public void setMaxSize(String maxSize) {
+        this.maxSize = FileUtils.humanReadableByteSizeToByteCount(maxSize);
+    }
+
+    /**
+     * Creates the cache dir if it doesn't exist, and loads the slices that were cached before a restart, using the
+     * last modified time of the files as the access order.
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(cacheDir);
+
+        List<Path> files = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDir)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(SLICE_FILE_SUFFIX)) {
+                    files.add(file);
+                } else {
+                    // Leftover of an interrupted put
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        final Map<Path, Long> lastModifiedTimes = new LinkedHashMap<>();
+        for (Path file : files) {
+            lastModifiedTimes.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+
+        Collections.sort(files, new Comparator<Path>() {
+
+            @Override
+            public int compare(Path file1, Path file2) {
+                return lastModifiedTimes.get(file1).compareTo(lastModifiedTimes.get(file2));
+            }
+
+        });
+
+        synchronized (slices) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String sliceId = fileName.substring(0, fileName.length() - SLICE_FILE_SUFFIX.length());
+                long sliceSize = Files.size(file);
+
+                slices.put(sliceId, sliceSize);
+                size += sliceSize;
+            }
+        }
+
+        evict();
+
+        logger.info("Slice cache {} initialized with {} slices ({})", cacheDir, slices.size(),
+                    FileUtils.byteCountToHumanReadableByteSize(size));
+    }
+
+    /**
+     * Returns the current size of the cached slices.
+     */
+    public long getSize() {
+        synchronized (slices) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns true if the slice is currently in the cache.
+     *
+     * @param sliceId the ID of the slice
+     */
+    public boolean contains(String sliceId) {
+        synchronized (slices) {
+            return slices.containsKey(sliceId);
+        }
+    }
+
+    /**
+     * Copies the cached slice to the target.
+     *
+     * @param sliceId   the ID of the slice
+     * @param target    the channel where the slice should be written to
+     *
+     * @return true if the slice was found in the cache, false otherwise
+     */
+    public boolean get(String sliceId, WritableByteChannel target) throws IOException {
+        Long sliceSize;
+        synchronized (slices) {
+            sliceSize = slices.get(sliceId);
+        }
+
+        if (sliceSize == null) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(getSliceFile(sliceId), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < sliceSize) {
+                position += channel.transferTo(position, sliceSize - position, target);
+            }
+        } catch (NoSuchFileException e) {
+            // Evicted after the lookup
+            return false;
+        }
+
+        logger.debug("Slice '{}' retrieved from cache", sliceId);
+
+        return true;
+    }
+
+    /**
+     * Copies the slice to the cache, evicting the LRU slices if necessary. The whole slice is copied, without
+     * changing the position of the channel.
+     *
+     * @param sliceId   the ID of the slice
+     * @param slice     the channel of the slice
+     */
+    public void put(String sliceId, FileChannel slice) throws IOException {
+        long sliceSize = slice.size();
+        if (sliceSize > maxSize) {
+            return;
+        }
+
+        Path tmpFile = Files.createTempFile(cacheDir, sliceId, TMP_FILE_SUFFIX);
+
+        try {
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < sliceSize) {
+                    position += slice.transferTo(position, sliceSize - position, channel);
+                }
+            }
+
+            Files.move(tmpFile, getSliceFile(sliceId), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+
+        synchronized (slices) {
+            Long oldSize = slices.put(sliceId, sliceSize);
+            size += sliceSize - (oldSize != null ? oldSize : 0);
+        }
+
+        logger.debug("Slice '{}' added to cache", sliceId);
+
+        evict();
+    }
+
+    /**
+     * Removes the slice from the cache, if it's there.
+     *
+     * @param sliceId the ID of the slice
+     */
+    public void remove(String sliceId) throws IOException {
+        Long sliceSize;
+        synchronized (slices) {
+            sliceSize = slices.remove(sliceId);
+            if (sliceSize != null) {
+                size -= sliceSize;
+            }
+        }
+
+        if (sliceSize != null) {
+            Files.deleteIfExists(getSliceFile(sliceId));
+        }
+    }
+
+    private void evict() throws IOException {
+        List<String> evictedSliceIds = new ArrayList<>();
+
+        synchronized (slices) {
+            Iterator<Map.Entry<String, Long>> iter = slices.entrySet().iterator();
+            while (size > maxSize && iter.hasNext()) {
+                Map.Entry<String, Long> entry = iter.next();
+
+                evictedSliceIds.add(entry.getKey());
+                size -= entry.getValue();
+
+                iter.remove();
+            }
+        }
+
+        for (String sliceId : evictedSliceIds) {
+            logger.debug("Evicting slice '{}' from cache", sliceId);
+
+            Files.deleteIfExists(getSliceFile(sliceId));
+        }
+    }
+
+    private Path getSliceFile(String sliceId) {
+        return cacheDir.resolve(sliceId + SLICE_FILE_SUFFIX);
+    }
+
+}
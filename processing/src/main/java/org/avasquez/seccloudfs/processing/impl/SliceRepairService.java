@@ -0,0 +1,207 @@
+package org.avasquez.seccloudfs.processing.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.avasquez.seccloudfs.cloud.CloudStoreRegistry;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
+import org.avasquez.seccloudfs.processing.db.model.Stripe;
+import org.avasquez.seccloudfs.processing.db.model.Upload;
+import org.avasquez.seccloudfs.processing.db.repos.UploadRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Rebuilds in the background the slices that were lost by a {@link org.avasquez.seccloudfs.cloud.CloudStore}, so
+ * that reads don't have to work around them every time. Uploads are queued for repair when the
+ * {@link org.avasquez.seccloudfs.processing.impl.DistributedCloudStore} fails to download some of their slices, or
+ * when a periodic scan of the uploads finds slices that point to stores that are not registered anymore. Slices that
+ * failed to download are only suspect: before the repair, each one is checked in its store, and only the ones the
+ * store doesn't have are rebuilt, so that a temporary error doesn't trigger a repair. Only one upload is repaired per
+ * run, so that repair traffic doesn't starve foreground I/O. Likewise, each scan only checks a batch of the uploads,
+ * the ones checked the longest time ago, so that the whole collection is checked over several scans, and the scans
+ * pick up where they left off after a restart.
+ *
+ * @author avasquez
+ */
+public class SliceRepairService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SliceRepairService.class);
+
+    private DistributedCloudStore cloudStore;
+    private UploadRepository uploadRepository;
+    private CloudStoreRegistry cloudStoreRegistry;
+    private int maxPendingRepairs;
+    private int scanBatchSize;
+
+    private final Map<String, Set<String>> pendingRepairs;
+
+    public SliceRepairService() {
+        pendingRepairs = new LinkedHashMap<>();
+        scanBatchSize = 1000;
+    }
+
+    @Required
+    public void setCloudStore(DistributedCloudStore cloudStore) {
+        this.cloudStore = cloudStore;
+    }
+
+    @Required
+    public void setUploadRepository(UploadRepository uploadRepository) {
+        this.uploadRepository = uploadRepository;
+    }
+
+    @Required
+    public void setCloudStoreRegistry(CloudStoreRegistry cloudStoreRegistry) {
+        this.cloudStoreRegistry = cloudStoreRegistry;
+    }
+
+    @Required
+    public void setMaxPendingRepairs(int maxPendingRepairs) {
+        this.maxPendingRepairs = maxPendingRepairs;
+    }
+
+    /**
+     * Sets the max number of uploads checked by each scan. Defaults to 1000.
+     */
+    public void setScanBatchSize(int scanBatchSize) {
+        this.scanBatchSize = Math.max(1, scanBatchSize);
+    }
+
+    /**
+     * Returns the number of uploads waiting to be repaired.
+     */
+    public int getPendingRepairs() {
+        synchronized (pendingRepairs) {
+            return pendingRepairs.size();
+        }
+    }
+
+    /**
+     * Queues the upload for repair. If the queue is full, the request is dropped, since the upload will be queued
+     * again the next time it's read or scanned.
+     *
+     * @param uploadId  the ID of the upload
+     * @param sliceIds  the IDs of the slices that are known to be missing or unreadable
+     */
+    public void requestRepair(String uploadId, Collection<String> sliceIds) {
+        synchronized (pendingRepairs) {
+            Set<String> suspectSliceIds = pendingRepairs.get(uploadId);
+            if (suspectSliceIds == null) {
+                if (pendingRepairs.size() >= maxPendingRepairs) {
+                    logger.debug("Too many pending repairs. Repair of upload '{}' dropped", uploadId);
+
+                    return;
+                }
+
+                suspectSliceIds = new HashSet<>();
+                pendingRepairs.put(uploadId, suspectSliceIds);
+
+                logger.debug("Upload '{}' queued for repair", uploadId);
+            }
+
+            suspectSliceIds.addAll(sliceIds);
+        }
+    }
+
+    /**
+     * Scans the next batch of successful uploads, queueing for repair the ones that have slices in stores that are
+     * not registered anymore, or that were never uploaded.
+     */
+    @Scheduled(fixedDelayString = "${repair.scan.delayMillis}")
+    public void scanUploads() {
+        logger.debug("Scanning uploads for missing slices");
+
+        try {
+            List<String> checkedIds = new ArrayList<>();
+
+            for (Upload upload : uploadRepository.findSuccessfulByLeastRecentlyChecked(scanBatchSize)) {
+                if (hasMissingSlices(upload)) {
+                    requestRepair(upload.getId(), new HashSet<String>());
+                }
+
+                checkedIds.add(upload.getId());
+            }
+
+            if (!checkedIds.isEmpty()) {
+                uploadRepository.updateLastCheckedDate(checkedIds, new Date());
+            }
+
+            logger.debug("{} uploads scanned for missing slices", checkedIds.size());
+        } catch (DbException e) {
+            logger.error("Unable to scan uploads in DB", e);
+        }
+    }
+
+    /**
+     * Repairs the next upload in the queue, if any.
+     */
+    @Scheduled(fixedDelayString = "${repair.delayMillis}")
+    public void repairNext() {
+        String uploadId;
+        Set<String> suspectSliceIds;
+
+        synchronized (pendingRepairs) {
+            Iterator<Map.Entry<String, Set<String>>> iter = pendingRepairs.entrySet().iterator();
+            if (!iter.hasNext()) {
+                return;
+            }
+
+            Map.Entry<String, Set<String>> entry = iter.next();
+            uploadId = entry.getKey();
+            suspectSliceIds = entry.getValue();
+
+            iter.remove();
+        }
+
+        try {
+            cloudStore.repair(uploadId, suspectSliceIds);
+        } catch (IOException e) {
+            logger.error("Repair of upload '" + uploadId + "' failed", e);
+        }
+    }
+
+    private boolean hasMissingSlices(Upload upload) {
+        Stripe[] stripes = upload.getStripes();
+        if (stripes != null) {
+            for (Stripe stripe : stripes) {
+                if (hasMissingSlices(stripe.getDataSliceMetadata()) ||
+                    hasMissingSlices(stripe.getCodingSliceMetadata())) {
+                    return true;
+                }
+            }
+
+            return false;
+        } else {
+            return hasMissingSlices(upload.getDataSliceMetadata()) ||
+                   hasMissingSlices(upload.getCodingSliceMetadata());
+        }
+    }
+
+    private boolean hasMissingSlices(SliceMetadata[] slices) {
+        if (slices != null) {
+            for (SliceMetadata slice : slices) {
+                String cloudStoreName = slice.getCloudStoreName();
+
+                if (StringUtils.isEmpty(cloudStoreName) || cloudStoreRegistry.find(cloudStoreName) == null) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -1,17 +1,25 @@
 package org.avasquez.seccloudfs.processing.impl;
 
-import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.Callable;
 
 import org.avasquez.seccloudfs.cloud.CloudStore;
 import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
+import org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Asynchronous task, implemented as a {@link java.util.concurrent.Callable}, to upload a slice to a
- * {@link org.avasquez.seccloudfs.cloud.CloudStore}.
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore}. The stores are taken from a queue shared by all the slices of a
+ * stripe, so that each store gets at most one slice. If the upload to a store fails, the next store in the queue is
+ * tried. When the queue runs out, the task waits with an exponential backoff and tries again with the stores that
+ * failed, until the max number of retries or the deadline is reached. Uploaded slices are added to the
+ * {@link org.avasquez.seccloudfs.processing.impl.SliceCache}, if one is provided, and reported to the
+ * {@link org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy} with the time the upload took.
  *
  * @author avasquez
  */
@@ -19,50 +27,103 @@ public class UploadTask implements Callable<Boolean> {
 
     private static final Logger logger = LoggerFactory.getLogger(UploadTask.class);
 
-    private ReadableByteChannel slice;
+    private FileChannel slice;
     private int sliceSize;
     private SliceMetadata sliceMetadata;
     private Queue<CloudStore> availableCloudStores;
-
-    public UploadTask(ReadableByteChannel slice, int sliceSize, SliceMetadata sliceMetadata,
-                      Queue<CloudStore> availableCloudStores) {
+    private int maxRetries;
+    private long retryDelayMillis;
+    private long deadline;
+    private SliceCache sliceCache;
+    private SlicePlacementPolicy placementPolicy;
+
+    public UploadTask(FileChannel slice, int sliceSize, SliceMetadata sliceMetadata,
+                      Queue<CloudStore> availableCloudStores, int maxRetries, long retryDelayMillis, long deadline,
+                      SliceCache sliceCache, SlicePlacementPolicy placementPolicy) {
         this.slice = slice;
         this.sliceSize = sliceSize;
         this.sliceMetadata = sliceMetadata;
         this.availableCloudStores = availableCloudStores;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        this.deadline = deadline;
+        this.sliceCache = sliceCache;
+        this.placementPolicy = placementPolicy;
     }
 
     @Override
     public Boolean call() throws Exception {
         String sliceId = sliceMetadata.getId();
-        boolean uploaded = false;
+        List<CloudStore> failedCloudStores = new ArrayList<>();
 
-        while (!uploaded) {
-            CloudStore cloudStore = availableCloudStores.poll();
-            if (cloudStore != null) {
+        for (int retry = 0; ; retry++) {
+            CloudStore cloudStore;
+            while ((cloudStore = availableCloudStores.poll()) != null) {
                 String cloudStoreName = cloudStore.getName();
 
                 logger.debug("Uploading slice '{}' to [{}]", sliceId, cloudStoreName);
 
                 try {
-                    cloudStore.upload(sliceMetadata.getId(), slice, sliceSize);
+                    // Rewind, in case a previous attempt consumed part of the slice
+                    slice.position(0);
+
+                    long start = System.nanoTime();
+
+                    cloudStore.upload(sliceId, slice, sliceSize);
 
-                    sliceMetadata.setCloudStoreName(cloudStore.getName());
+                    sliceMetadata.setCloudStoreName(cloudStoreName);
 
-                    uploaded = true;
+                    placementPolicy.onSliceUploaded(cloudStoreName, sliceSize, System.nanoTime() - start);
 
                     logger.debug("Slice '{}' uploaded to [{}]", sliceId, cloudStoreName);
+
+                    releaseFailedCloudStores(failedCloudStores);
+
+                    if (sliceCache != null) {
+                        cacheSlice(sliceId);
+                    }
+
+                    return true;
                 } catch (Exception e) {
                     logger.error("Failed to upload slice '" + sliceId + "' to [" + cloudStoreName + "]", e);
+
+                    failedCloudStores.add(cloudStore);
                 }
-            } else {
+            }
+
+            releaseFailedCloudStores(failedCloudStores);
+
+            long delay = retryDelayMillis << retry;
+
+            if (retry >= maxRetries || System.currentTimeMillis() + delay > deadline) {
                 logger.error("No more available cloud stores to upload slice '{}'", sliceId);
 
-                break;
+                return false;
             }
+
+            logger.debug("Retrying upload of slice '{}' in {} ms", sliceId, delay);
+
+            Thread.sleep(delay);
+        }
+    }
+
+    private void cacheSlice(String sliceId) {
+        try {
+            sliceCache.put(sliceId, slice);
+        } catch (Exception e) {
+            // Not fatal, the slice was already uploaded
+            logger.warn("Unable to cache slice '" + sliceId + "'", e);
+        }
+    }
+
+    private void releaseFailedCloudStores(List<CloudStore> failedCloudStores) {
+        // If retries are enabled, the failure might be temporary, so the other slices can retry with the stores that
+        // failed for this one
+        if (maxRetries > 0) {
+            availableCloudStores.addAll(failedCloudStores);
         }
 
-        return uploaded;
+        failedCloudStores.clear();
     }
 
 }
@@ -0,0 +1,45 @@
+package org.avasquez.seccloudfs.processing.placement;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+
+/**
+ * Decides in which {@link org.avasquez.seccloudfs.cloud.CloudStore}s the slices of a stripe are placed. The policy
+ * is also notified of the slices uploaded and deleted, so that it can keep track of the usage of each store.
+ *
+ * @author avasquez
+ */
+public interface SlicePlacementPolicy {
+
+    /**
+     * Returns the stores where the slices of a stripe should be uploaded, in order of preference. Each slice takes
+     * the next store in the list, and the remaining stores are used as fallback when an upload fails.
+     *
+     * @param stores    the available stores
+     * @param numSlices the number of slices of the stripe
+     * @param sliceSize the size of each slice
+     *
+     * @return the stores, ordered by preference
+     */
+    List<CloudStore> placeSlices(Collection<CloudStore> stores, int numSlices, long sliceSize);
+
+    /**
+     * Called after a slice has been uploaded.
+     *
+     * @param cloudStoreName    the name of the store where the slice was uploaded
+     * @param sliceSize         the size of the slice
+     * @param latencyNanos      the time the upload took, in nanoseconds
+     */
+    void onSliceUploaded(String cloudStoreName, long sliceSize, long latencyNanos);
+
+    /**
+     * Called after a slice has been deleted.
+     *
+     * @param cloudStoreName    the name of the store where the slice was deleted from
+     * @param sliceSize         the size of the slice
+     */
+    void onSliceDeleted(String cloudStoreName, long sliceSize);
+
+}
@@ -0,0 +1,31 @@
+package org.avasquez.seccloudfs.processing.placement.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy;
+
+/**
+ * {@link org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy} that places the slices in the stores in
+ * the order they're provided, without tracking any usage.
+ *
+ * @author avasquez
+ */
+public class SequentialSlicePlacementPolicy implements SlicePlacementPolicy {
+
+    @Override
+    public List<CloudStore> placeSlices(Collection<CloudStore> stores, int numSlices, long sliceSize) {
+        return new ArrayList<>(stores);
+    }
+
+    @Override
+    public void onSliceUploaded(String cloudStoreName, long sliceSize, long latencyNanos) {
+    }
+
+    @Override
+    public void onSliceDeleted(String cloudStoreName, long sliceSize) {
+    }
+
+}
@@ -0,0 +1,432 @@
+package org.avasquez.seccloudfs.processing.placement.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.AccountUsage;
+import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
+import org.avasquez.seccloudfs.processing.db.model.Stripe;
+import org.avasquez.seccloudfs.processing.db.model.Upload;
+import org.avasquez.seccloudfs.processing.db.repos.AccountUsageRepository;
+import org.avasquez.seccloudfs.processing.db.repos.UploadRepository;
+import org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy;
+import org.avasquez.seccloudfs.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * {@link org.avasquez.seccloudfs.processing.placement.SlicePlacementPolicy} that picks the stores at random, with a
+ * weight that's proportional to the free quota of the store's account and to the recent upload throughput of the
+ * store. The stores of an account or provider that already got a slice of the stripe are penalized, so that the loss
+ * of a single account or provider affects as few slices as possible. Accounts without space for a slice are only
+ * used as fallback.
+ *
+ * <p>Store names are expected to have the {@code provider://account/folder} format used by the registrars. The used
+ * space of each account is kept in memory and updated incrementally. If a usage repository is set, the used space is
+ * loaded from it at startup, and the changes are periodically written back to it, so that the uploads don't need to
+ * be scanned at every startup.</p>
+ *
+ * @author avasquez
+ */
+public class WeightedRandomSlicePlacementPolicy implements SlicePlacementPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeightedRandomSlicePlacementPolicy.class);
+
+    private static final String PROVIDER_SEPARATOR = "://";
+    private static final double SMOOTHING_FACTOR = 0.2;
+    private static final double MIN_THROUGHPUT_FACTOR = 0.25;
+    private static final double MAX_THROUGHPUT_FACTOR = 4;
+
+    private UploadRepository uploadRepository;
+    private AccountUsageRepository usageRepository;
+    private long accountQuota;
+    private Map<String, Long> accountQuotas;
+    private double sameAccountPenalty;
+    private double sameProviderPenalty;
+
+    private final Random random;
+    private final Map<String, Long> usedSpaceByAccount;
+    private final Map<String, Long> unsavedSpaceByAccount;
+    private final Map<String, Double> throughputByStore;
+
+    public WeightedRandomSlicePlacementPolicy() {
+        random = new Random();
+        accountQuotas = new HashMap<>();
+        usedSpaceByAccount = new HashMap<>();
+        unsavedSpaceByAccount = new HashMap<>();
+        throughputByStore = new HashMap<>();
+        sameAccountPenalty = 0.1;
+        sameProviderPenalty = 0.5;
+    }
+
+    /**
+     * Sets the repository used to calculate the used space of each account at startup, when there's no usage
+     * repository or it's still empty (like the first time it's used). If not set, all accounts start empty.
+     */
+    public void setUploadRepository(UploadRepository uploadRepository) {
+        this.uploadRepository = uploadRepository;
+    }
+
+    /**
+     * Sets the repository where the used space of each account is saved. If not set, the used space is calculated
+     * from the uploads at every startup.
+     */
+    public void setUsageRepository(AccountUsageRepository usageRepository) {
+        this.usageRepository = usageRepository;
+    }
+
+    /**
+     * Sets the default quota of each account (e.g. 15GB).
+     */
+    @Required
+    public void setAccountQuota(String accountQuota) {
+        this.accountQuota = FileUtils.humanReadableByteSizeToByteCount(accountQuota);
+    }
+
+    /**
+     * Sets the quotas of specific accounts, which override the default quota. The keys are the account part of the
+     * store names (e.g. gdrive://jdoe).
+     */
+    public void setAccountQuotas(Map<String, String> accountQuotas) {
+        for (Map.Entry<String, String> entry : accountQuotas.entrySet()) {
+            this.accountQuotas.put(entry.getKey(), FileUtils.humanReadableByteSizeToByteCount(entry.getValue()));
+        }
+    }
+
+    /**
+     * Sets the factor the weight of a store is multiplied by when its account already got a slice of the stripe.
+     * Defaults to 0.1.
+     */
+    public void setSameAccountPenalty(double sameAccountPenalty) {
+        this.sameAccountPenalty = sameAccountPenalty;
+    }
+
+    /**
+     * Sets the factor the weight of a store is multiplied by when its provider already got a slice of the stripe.
+     * Defaults to 0.5.
+     */
+    public void setSameProviderPenalty(double sameProviderPenalty) {
+        this.sameProviderPenalty = sameProviderPenalty;
+    }
+
+    @PostConstruct
+    public void init() throws DbException {
+        boolean loaded = false;
+
+        if (usageRepository != null) {
+            synchronized (usedSpaceByAccount) {
+                for (AccountUsage usage : usageRepository.findAll()) {
+                    usedSpaceByAccount.put(usage.getId(), Math.max(0, usage.getUsedSpace()));
+                    loaded = true;
+                }
+            }
+        }
+
+        if (!loaded && uploadRepository != null) {
+            logger.info("No saved account usage found. Calculating it from the uploads...");
+
+            synchronized (usedSpaceByAccount) {
+                for (Upload upload : uploadRepository.findAll()) {
+                    if (upload.isSuccess()) {
+                        addUsedSpace(upload);
+                    }
+                }
+            }
+
+            // Save the calculated usage, so the uploads don't need to be scanned again
+            saveUsedSpace();
+        }
+
+        synchronized (usedSpaceByAccount) {
+            logger.info("Used space by account: {}", usedSpaceByAccount);
+        }
+    }
+
+    /**
+     * Writes the changes of the used space since the last save to the usage repository.
+     */
+    @Scheduled(fixedDelayString = "${placement.usage.saveDelayMillis}")
+    @PreDestroy
+    public void saveUsedSpace() {
+        if (usageRepository == null) {
+            return;
+        }
+
+        Map<String, Long> unsavedSpace;
+        synchronized (usedSpaceByAccount) {
+            if (unsavedSpaceByAccount.isEmpty()) {
+                return;
+            }
+
+            unsavedSpace = new HashMap<>(unsavedSpaceByAccount);
+            unsavedSpaceByAccount.clear();
+        }
+
+        for (Map.Entry<String, Long> entry : unsavedSpace.entrySet()) {
+            String account = entry.getKey();
+            long delta = entry.getValue();
+
+            try {
+                usageRepository.addUsedSpace(account, delta);
+            } catch (DbException e) {
+                logger.error("Unable to save used space of account " + account + ". Will retry later", e);
+
+                synchronized (usedSpaceByAccount) {
+                    addUnsavedSpace(account, delta);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the space used in the account of the specified store.
+     */
+    public long getUsedSpace(String cloudStoreName) {
+        synchronized (usedSpaceByAccount) {
+            Long usedSpace = usedSpaceByAccount.get(getAccount(cloudStoreName));
+
+            return usedSpace != null ? usedSpace : 0;
+        }
+    }
+
+    @Override
+    public List<CloudStore> placeSlices(Collection<CloudStore> stores, int numSlices, long sliceSize) {
+        List<CloudStore> candidates = new ArrayList<>(stores);
+        List<CloudStore> placedStores = new ArrayList<>(candidates.size());
+        Set<String> usedAccounts = new HashSet<>();
+        Set<String> usedProviders = new HashSet<>();
+        Map<String, Long> pendingSpaceByAccount = new HashMap<>();
+        double meanThroughput = getMeanThroughput();
+
+        while (placedStores.size() < numSlices && !candidates.isEmpty()) {
+            double[] weights = new double[candidates.size()];
+            double totalWeight = 0;
+
+            for (int i = 0; i < candidates.size(); i++) {
+                String cloudStoreName = candidates.get(i).getName();
+                String account = getAccount(cloudStoreName);
+
+                weights[i] = getWeight(cloudStoreName, sliceSize + getPendingSpace(pendingSpaceByAccount, account),
+                                       meanThroughput);
+
+                if (usedAccounts.contains(account)) {
+                    weights[i] *= sameAccountPenalty;
+                }
+                if (usedProviders.contains(getProvider(cloudStoreName))) {
+                    weights[i] *= sameProviderPenalty;
+                }
+
+                totalWeight += weights[i];
+            }
+
+            if (totalWeight <= 0) {
+                if (!usedAccounts.isEmpty()) {
+                    // All the stores with space left are penalized, so start a new round of spreading
+                    usedAccounts.clear();
+                    usedProviders.clear();
+
+                    continue;
+                }
+
+                // No store has space left, so the rest are only used as fallback
+                break;
+            }
+
+            double r = random.nextDouble() * totalWeight;
+            int picked = 0;
+
+            while (picked < weights.length - 1 && (r -= weights[picked]) >= 0) {
+                picked++;
+            }
+
+            CloudStore store = candidates.remove(picked);
+            String account = getAccount(store.getName());
+
+            placedStores.add(store);
+            usedAccounts.add(account);
+            usedProviders.add(getProvider(store.getName()));
+            pendingSpaceByAccount.put(account, sliceSize + getPendingSpace(pendingSpaceByAccount, account));
+        }
+
+        // The remaining stores are only used when an upload fails, so there's no need to spread them: just sort them
+        // by weight, which leaves the stores without space at the end
+        placedStores.addAll(sortByWeight(candidates, sliceSize, pendingSpaceByAccount, meanThroughput));
+
+        return placedStores;
+    }
+
+    @Override
+    public void onSliceUploaded(String cloudStoreName, long sliceSize, long latencyNanos) {
+        changeUsedSpace(getAccount(cloudStoreName), sliceSize);
+
+        if (sliceSize > 0 && latencyNanos > 0) {
+            double throughput = (double) sliceSize / latencyNanos * TimeUnit.SECONDS.toNanos(1);
+
+            synchronized (throughputByStore) {
+                Double average = throughputByStore.get(cloudStoreName);
+
+                throughputByStore.put(cloudStoreName, average != null ?
+                    average * (1 - SMOOTHING_FACTOR) + throughput * SMOOTHING_FACTOR : throughput);
+            }
+        }
+    }
+
+    @Override
+    public void onSliceDeleted(String cloudStoreName, long sliceSize) {
+        changeUsedSpace(getAccount(cloudStoreName), -sliceSize);
+    }
+
+    private List<CloudStore> sortByWeight(List<CloudStore> stores, long sliceSize,
+                                          Map<String, Long> pendingSpaceByAccount, double meanThroughput) {
+        final Map<CloudStore, Double> weights = new IdentityHashMap<>();
+
+        for (CloudStore store : stores) {
+            String account = getAccount(store.getName());
+
+            weights.put(store, getWeight(store.getName(), sliceSize + getPendingSpace(pendingSpaceByAccount, account),
+                                         meanThroughput));
+        }
+
+        Collections.sort(stores, new Comparator<CloudStore>() {
+
+            @Override
+            public int compare(CloudStore store1, CloudStore store2) {
+                return Double.compare(weights.get(store2), weights.get(store1));
+            }
+
+        });
+
+        return stores;
+    }
+
+    private long getPendingSpace(Map<String, Long> pendingSpaceByAccount, String account) {
+        Long pendingSpace = pendingSpaceByAccount.get(account);
+
+        return pendingSpace != null ? pendingSpace : 0;
+    }
+
+    private double getWeight(String cloudStoreName, long requiredSpace, double meanThroughput) {
+        long quota = getQuota(getAccount(cloudStoreName));
+        long freeSpace = quota - getUsedSpace(cloudStoreName) - requiredSpace;
+
+        if (quota <= 0 || freeSpace < 0) {
+            return 0;
+        }
+
+        double weight = (double) freeSpace / quota;
+
+        if (meanThroughput > 0) {
+            Double throughput;
+            synchronized (throughputByStore) {
+                throughput = throughputByStore.get(cloudStoreName);
+            }
+
+            if (throughput != null) {
+                weight *= Math.min(MAX_THROUGHPUT_FACTOR, Math.max(MIN_THROUGHPUT_FACTOR,
+                                                                   throughput / meanThroughput));
+            }
+        }
+
+        return weight;
+    }
+
+    private double getMeanThroughput() {
+        synchronized (throughputByStore) {
+            if (throughputByStore.isEmpty()) {
+                return 0;
+            }
+
+            double total = 0;
+            for (double throughput : throughputByStore.values()) {
+                total += throughput;
+            }
+
+            return total / throughputByStore.size();
+        }
+    }
+
+    private long getQuota(String account) {
+        Long quota = accountQuotas.get(account);
+
+        return quota != null ? quota : accountQuota;
+    }
+
+    private void addUsedSpace(Upload upload) {
+        Stripe[] stripes = upload.getStripes();
+        if (stripes != null) {
+            for (Stripe stripe : stripes) {
+                addUsedSpace(stripe.getDataSliceMetadata());
+                addUsedSpace(stripe.getCodingSliceMetadata());
+            }
+        } else {
+            addUsedSpace(upload.getDataSliceMetadata());
+            addUsedSpace(upload.getCodingSliceMetadata());
+        }
+    }
+
+    private void addUsedSpace(SliceMetadata[] slices) {
+        if (slices != null) {
+            for (SliceMetadata slice : slices) {
+                if (slice.getCloudStoreName() != null) {
+                    changeUsedSpace(getAccount(slice.getCloudStoreName()), slice.getSize());
+                }
+            }
+        }
+    }
+
+    private void changeUsedSpace(String account, long delta) {
+        synchronized (usedSpaceByAccount) {
+            Long usedSpace = usedSpaceByAccount.get(account);
+            long newUsedSpace = Math.max(0, (usedSpace != null ? usedSpace : 0) + delta);
+
+            usedSpaceByAccount.put(account, newUsedSpace);
+
+            addUnsavedSpace(account, newUsedSpace - (usedSpace != null ? usedSpace : 0));
+        }
+    }
+
+    private void addUnsavedSpace(String account, long delta) {
+        if (delta != 0) {
+            Long unsavedSpace = unsavedSpaceByAccount.get(account);
+
+            unsavedSpaceByAccount.put(account, (unsavedSpace != null ? unsavedSpace : 0) + delta);
+        }
+    }
+
+    /**
+     * Returns the account part of the store name (e.g. gdrive://jdoe for gdrive://jdoe/folder1).
+     */
+    private String getAccount(String cloudStoreName) {
+        int providerSepIdx = cloudStoreName.indexOf(PROVIDER_SEPARATOR);
+        int folderSepIdx = cloudStoreName.indexOf('/', providerSepIdx >= 0 ?
+            providerSepIdx + PROVIDER_SEPARATOR.length() : 0);
+
+        return folderSepIdx >= 0 ? cloudStoreName.substring(0, folderSepIdx) : cloudStoreName;
+    }
+
+    /**
+     * Returns the provider part of the store name (e.g. gdrive for gdrive://jdoe/folder1).
+     */
+    private String getProvider(String cloudStoreName) {
+        int providerSepIdx = cloudStoreName.indexOf(PROVIDER_SEPARATOR);
+
+        return providerSepIdx >= 0 ? cloudStoreName.substring(0, providerSepIdx) : cloudStoreName;
+    }
+
+}
@@ -0,0 +1,215 @@
+package org.avasquez.seccloudfs.processing.utils.concurrency;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of in-flight operations against a single resource, adjusting the limit with an AIMD (additive
+ * increase, multiplicative decrease) algorithm. Each successful operation increases the limit by {@code 1 / limit}
+ * (around one permit per round trip), while a failed operation, or one whose cost is a lot higher than the
+ * long-term average, multiplies the limit by the backoff ratio. Decreases happen at most once per average operation
+ * latency, so that a burst of slow operations started under the old limit doesn't collapse the limit to the minimum.
+ *
+ * <p>Callers are admitted in the order they arrive, so a caller that needs several permits is not starved by the
+ * callers that need one, and no caller gets more permits than the current limit.</p>
+ *
+ * @author avasquez
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double SMOOTHING_FACTOR = 0.05;
+
+    private final Lock lock;
+    private final Condition permitAvailable;
+    private final Deque<Object> waiters;
+
+    private int minLimit;
+    private int maxLimit;
+    private double backoffRatio;
+    private double latencyTolerance;
+
+    private double limit;
+    private int inFlight;
+    private double averageCost;
+    private double averageLatency;
+    private long lastDecreaseTime;
+    private boolean decreased;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                                      double latencyTolerance) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits should satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio should be between 0 and 1 (exclusive)");
+        }
+        if (latencyTolerance <= 1) {
+            throw new IllegalArgumentException("Latency tolerance should be greater than 1");
+        }
+
+        this.lock = new ReentrantLock();
+        this.permitAvailable = lock.newCondition();
+        this.waiters = new ArrayDeque<>();
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * Returns the current limit of in-flight operations.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of operations currently in flight.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the number of in-flight operations is below the limit, and then registers a new operation.
+     */
+    public void acquire() throws InterruptedIOException {
+        acquire(1);
+    }
+
+    /**
+     * Waits until all the callers that arrived before have been admitted and the specified number of operations fit
+     * below the limit, and then registers them. Since the limit might be lower than the permits, only up to the
+     * current limit of permits is granted, and the caller should not start more operations than the returned number.
+     *
+     * @param permits the number of operations to register, like the concurrent requests of a single transfer
+     *
+     * @return the number of operations actually registered, between 1 and the requested permits
+     */
+    public int acquire(int permits) throws InterruptedIOException {
+        Object waiter = new Object();
+
+        lock.lock();
+        try {
+            waiters.add(waiter);
+
+            try {
+                while (waiters.peek() != waiter || inFlight + getGrantedPermits(permits) > (int) limit) {
+                    permitAvailable.await();
+                }
+            } catch (InterruptedException e) {
+                waiters.remove(waiter);
+                // The next waiter might be able to go now
+                permitAvailable.signalAll();
+
+                Thread.currentThread().interrupt();
+
+                throw new InterruptedIOException("Interrupted while waiting for a concurrency permit");
+            }
+
+            waiters.poll();
+
+            int granted = getGrantedPermits(permits);
+            inFlight += granted;
+
+            if (!waiters.isEmpty()) {
+                permitAvailable.signalAll();
+            }
+
+            return granted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters an operation and adjusts the limit based on its outcome.
+     *
+     * @param latencyNanos  the time the operation took, in nanoseconds
+     * @param cost          a measure of how expensive the operation was relative to its size (e.g. nanoseconds per
+     *                      byte transferred), or a negative number if the cost is not comparable between
+     *                      operations and only errors should be taken into account
+     * @param failed        if the operation failed
+     */
+    public void release(long latencyNanos, double cost, boolean failed) {
+        release(1, latencyNanos, cost, failed);
+    }
+
+    /**
+     * Unregisters the operations registered together by {@link #acquire(int)}, and adjusts the limit once based on
+     * their outcome.
+     *
+     * @param permits       the number of operations registered, as returned by {@link #acquire(int)}
+     * @param latencyNanos  the time the operation took, in nanoseconds
+     * @param cost          a measure of how expensive the operation was relative to its size (e.g. nanoseconds per
+     *                      byte transferred), or a negative number if the cost is not comparable between
+     *                      operations and only errors should be taken into account
+     * @param failed        if the operation failed
+     */
+    public void release(int permits, long latencyNanos, double cost, boolean failed) {
+        lock.lock();
+        try {
+            inFlight -= permits;
+
+            long now = System.nanoTime();
+
+            if (failed) {
+                decreaseLimit(now);
+            } else {
+                boolean congested = false;
+
+                if (cost >= 0) {
+                    congested = averageCost > 0 && cost > averageCost * latencyTolerance;
+                    averageCost = averageCost > 0 ? smooth(averageCost, cost) : cost;
+                }
+
+                averageLatency = averageLatency > 0 ? smooth(averageLatency, latencyNanos) : latencyNanos;
+
+                if (congested) {
+                    decreaseLimit(now);
+                } else {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+
+            permitAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getGrantedPermits(int permits) {
+        return Math.max(1, Math.min(permits, (int) limit));
+    }
+
+    private void decreaseLimit(long now) {
+        long minInterval = averageLatency > 0 ? (long) averageLatency : TimeUnit.SECONDS.toNanos(1);
+
+        if (!decreased || now - lastDecreaseTime >= minInterval) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+            lastDecreaseTime = now;
+            decreased = true;
+        }
+    }
+
+    private double smooth(double average, double sample) {
+        return average * (1 - SMOOTHING_FACTOR) + sample * SMOOTHING_FACTOR;
+    }
+
+}
@@ -0,0 +1,232 @@
+package org.avasquez.seccloudfs.processing.utils.concurrency;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.ParallelTransferCloudStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore} decorator that limits the number of concurrent operations
+ * against the underlying store through an {@link org.avasquez.seccloudfs.processing.utils.concurrency
+ * .AdaptiveConcurrencyLimiter}. Uploads and downloads feed the limiter with their cost in nanoseconds per byte, so
+ * that slices of different sizes can be compared, while deletes and existence checks only report errors. Only
+ * errors that can be caused by congestion count: a {@link java.io.FileNotFoundException} or an interruption of the
+ * caller is not reported as a failure.
+ *
+ * <p>If the underlying store is a {@link org.avasquez.seccloudfs.cloud.ParallelTransferCloudStore}, a transfer takes
+ * a permit for each of the requests it sends at the same time, so that the limit applies to the requests against
+ * the store, and its cost is measured per request. When the limit is lower than the requests of the transfer, the
+ * transfer is told to send only as many requests as permits it got.</p>
+ *
+ * @author avasquez
+ */
+public class ConcurrencyLimitingCloudStore implements CloudStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimitingCloudStore.class);
+
+    private CloudStore underlyingStore;
+    private AdaptiveConcurrencyLimiter limiter;
+
+    @Required
+    public void setUnderlyingStore(CloudStore underlyingStore) {
+        this.underlyingStore = underlyingStore;
+    }
+
+    public AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    @Required
+    public void setLimiter(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    public String getName() {
+        return underlyingStore.getName();
+    }
+
+    @Override
+    public void upload(String id, ReadableByteChannel src, long length) throws IOException {
+        ParallelTransferCloudStore parallelStore = getParallelStore();
+        int permits = limiter.acquire(parallelStore != null ? parallelStore.getMaxUploadRequests(length) : 1);
+
+        long start = System.nanoTime();
+        boolean failed = false;
+
+        try {
+            if (parallelStore != null) {
+                parallelStore.upload(id, src, length, permits);
+            } else {
+                underlyingStore.upload(id, src, length);
+            }
+        } catch (IOException e) {
+            failed = isCongestion(e);
+
+            throw e;
+        } finally {
+            release(permits, start, length, failed);
+        }
+    }
+
+    @Override
+    public void download(String id, WritableByteChannel target) throws IOException {
+        ParallelTransferCloudStore parallelStore = getParallelStore();
+        int permits = limiter.acquire(parallelStore != null ? parallelStore.getMaxDownloadRequests(id) : 1);
+
+        long start = System.nanoTime();
+        boolean failed = false;
+        CountingByteChannel countingTarget = new CountingByteChannel(target);
+
+        try {
+            if (parallelStore != null) {
+                parallelStore.download(id, countingTarget, permits);
+            } else {
+                underlyingStore.download(id, countingTarget);
+            }
+        } catch (IOException e) {
+            failed = isCongestion(e);
+
+            throw e;
+        } finally {
+            release(permits, start, countingTarget.getCount(), failed);
+        }
+    }
+
+    @Override
+    public boolean exists(String id) throws IOException {
+        limiter.acquire();
+
+        long start = System.nanoTime();
+        boolean failed = false;
+
+        try {
+            return underlyingStore.exists(id);
+        } catch (IOException e) {
+            failed = isCongestion(e);
+
+            throw e;
+        } finally {
+            release(1, start, -1, failed);
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        limiter.acquire();
+
+        long start = System.nanoTime();
+        boolean failed = false;
+
+        try {
+            underlyingStore.delete(id);
+        } catch (IOException e) {
+            failed = isCongestion(e);
+
+            throw e;
+        } finally {
+            release(1, start, -1, failed);
+        }
+    }
+
+    @Override
+    public void delete(Collection<String> ids) throws IOException {
+        // A batch is a single operation for the store, so it only takes one permit
+        limiter.acquire();
+
+        long start = System.nanoTime();
+        boolean failed = false;
+
+        try {
+            underlyingStore.delete(ids);
+        } catch (IOException e) {
+            failed = isCongestion(e);
+
+            throw e;
+        } finally {
+            release(1, start, -1, failed);
+        }
+    }
+
+    /**
+     * Returns true if the error might be caused by an overloaded store. A missing data or an interrupted caller say
+     * nothing about the load of the store, so they shouldn't decrease the limit. Socket timeouts are interruptions
+     * too, but they're the typical sign of congestion.
+     */
+    private boolean isCongestion(IOException e) {
+        if (e instanceof FileNotFoundException) {
+            return false;
+        } else if (e instanceof InterruptedIOException) {
+            return e instanceof SocketTimeoutException;
+        } else {
+            return true;
+        }
+    }
+
+    private ParallelTransferCloudStore getParallelStore() {
+        if (underlyingStore instanceof ParallelTransferCloudStore) {
+            return (ParallelTransferCloudStore) underlyingStore;
+        } else {
+            return null;
+        }
+    }
+
+    private void release(int permits, long start, long bytes, boolean failed) {
+        long latency = System.nanoTime() - start;
+        // Each concurrent request transferred its share of the bytes in the whole latency
+        double cost = bytes > 0 ? (double) latency * permits / bytes : -1;
+
+        limiter.release(permits, latency, cost, failed);
+
+        logger.trace("Concurrency limit for [{}]: {} ({} in flight)", getName(), limiter.getLimit(),
+                     limiter.getInFlight());
+    }
+
+    /**
+     * {@link java.nio.channels.WritableByteChannel} wrapper that counts the bytes written to it.
+     */
+    private static class CountingByteChannel implements WritableByteChannel {
+
+        private WritableByteChannel channel;
+        private long count;
+
+        private CountingByteChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = channel.write(src);
+
+            count += written;
+
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+}
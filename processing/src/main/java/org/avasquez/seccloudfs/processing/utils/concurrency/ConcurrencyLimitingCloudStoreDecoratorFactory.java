@@ -0,0 +1,58 @@
+package org.avasquez.seccloudfs.processing.utils.concurrency;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.utils.DecoratorFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * {@link org.avasquez.seccloudfs.utils.DecoratorFactory} that decorates any {@link org.avasquez.seccloudfs.cloud
+ * .CloudStore} with a {@link org.avasquez.seccloudfs.processing.utils.concurrency.ConcurrencyLimitingCloudStore}.
+ * Each store gets its own {@link org.avasquez.seccloudfs.processing.utils.concurrency.AdaptiveConcurrencyLimiter},
+ * so the limits adapt independently for every account.
+ *
+ * @author avasquez
+ */
+public class ConcurrencyLimitingCloudStoreDecoratorFactory implements DecoratorFactory<CloudStore> {
+
+    private int initialLimit;
+    private int minLimit;
+    private int maxLimit;
+    private double backoffRatio;
+    private double latencyTolerance;
+
+    @Required
+    public void setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+    }
+
+    @Required
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    @Required
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    @Required
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    @Required
+    public void setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    @Override
+    public CloudStore decorate(CloudStore cloudStore) {
+        ConcurrencyLimitingCloudStore limitingCloudStore = new ConcurrencyLimitingCloudStore();
+        limitingCloudStore.setUnderlyingStore(cloudStore);
+        limitingCloudStore.setLimiter(new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxLimit, backoffRatio,
+                                                                     latencyTolerance));
+
+        return limitingCloudStore;
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.avasquez.seccloudfs.processing.utils.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Provides the AES/GCM implementation used by the {@link org.avasquez.seccloudfs.processing.utils.crypto
+ * .EncryptingCloudStore}. All providers must produce the same ciphertext for the same key and IV (a 128 bit tag
+ * appended to the encrypted data), so that data encrypted with one provider can be decrypted with another.
+ *
+ * @author avasquez
+ */
+public interface AesGcmCipherProvider {
+
+    /**
+     * Returns the size in bytes of the authentication tag that's appended to the encrypted data.
+     */
+    int getTagSize();
+
+    /**
+     * Returns a stream that encrypts the data read from the specified stream. The authentication tag is returned
+     * after the encrypted data.
+     *
+     * @param in    the stream of plain data
+     * @param key   the encryption key
+     * @param iv    the initialization vector, or nonce
+     */
+    InputStream encrypt(InputStream in, byte[] key, byte[] iv) throws IOException;
+
+    /**
+     * Returns a stream that decrypts the data written to it into the specified stream. Closing the returned stream
+     * checks the authentication tag, throwing an {@link java.io.IOException} if the check fails, and closes the
+     * underlying stream.
+     *
+     * @param out   the stream where the plain data should be written
+     * @param key   the encryption key
+     * @param iv    the initialization vector, or nonce
+     */
+    OutputStream decrypt(OutputStream out, byte[] key, byte[] iv) throws IOException;
+
+    /**
+     * Encrypts a single piece of data at once, returning the encrypted data with the authentication tag appended.
+     * Implementations must be thread safe, so that several pieces can be encrypted in parallel.
+     *
+     * @param key       the encryption key
+     * @param nonce     the nonce, which must not be reused with the same key
+     * @param aad       additional data that's authenticated but not encrypted
+     * @param data      the array that contains the plain data
+     * @param offset    the offset of the plain data in the array
+     * @param length    the length of the plain data
+     */
+    byte[] seal(byte[] key, byte[] nonce, byte[] aad, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Decrypts a single piece of data at once, checking its authentication tag. Implementations must be thread safe,
+     * so that several pieces can be decrypted in parallel.
+     *
+     * @param key       the encryption key
+     * @param nonce     the nonce the data was encrypted with
+     * @param aad       the additional data that was authenticated with the data
+     * @param data      the array that contains the encrypted data, with the authentication tag appended
+     * @param offset    the offset of the encrypted data in the array
+     * @param length    the length of the encrypted data, including the authentication tag
+     *
+     * @throws IOException if the authentication tag check fails
+     */
+    byte[] open(byte[] key, byte[] nonce, byte[] aad, byte[] data, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,74 @@
+package org.avasquez.seccloudfs.processing.utils.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.avasquez.seccloudfs.utils.CryptoUtils;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.io.CipherInputStream;
+import org.bouncycastle.crypto.io.CipherOutputStream;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * {@link org.avasquez.seccloudfs.processing.utils.crypto.AesGcmCipherProvider} that uses the pure Java AES/GCM
+ * implementation of BouncyCastle. It works in any JVM, but it's considerably slower than the JCA provider, since it
+ * can't use the AES-NI and CLMUL CPU instructions. Decrypted data is released before the authentication tag is
+ * checked.
+ *
+ * @author avasquez
+ */
+public class BouncyCastleAesGcmCipherProvider implements AesGcmCipherProvider {
+
+    private static final int TAG_BYTE_SIZE = 16;
+
+    @Override
+    public int getTagSize() {
+        return TAG_BYTE_SIZE;
+    }
+
+    @Override
+    public InputStream encrypt(InputStream in, byte[] key, byte[] iv) {
+        return new CipherInputStream(in, CryptoUtils.createAesWithGcmCipher(true, key, iv));
+    }
+
+    @Override
+    public OutputStream decrypt(OutputStream out, byte[] key, byte[] iv) {
+        return new CipherOutputStream(out, CryptoUtils.createAesWithGcmCipher(false, key, iv));
+    }
+
+    @Override
+    public byte[] seal(byte[] key, byte[] nonce, byte[] aad, byte[] data, int offset, int length)
+        throws IOException {
+        return process(true, key, nonce, aad, data, offset, length);
+    }
+
+    @Override
+    public byte[] open(byte[] key, byte[] nonce, byte[] aad, byte[] data, int offset, int length)
+        throws IOException {
+        return process(false, key, nonce, aad, data, offset, length);
+    }
+
+    private byte[] process(boolean forEncryption, byte[] key, byte[] nonce, byte[] aad, byte[] data, int offset,
+                           int length) throws IOException {
+        AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(forEncryption, new AEADParameters(new KeyParameter(key), TAG_BYTE_SIZE * 8, nonce, aad));
+
+        byte[] output = new byte[cipher.getOutputSize(length)];
+        int outputLength = cipher.processBytes(data, offset, length, output, 0);
+
+        try {
+            outputLength += cipher.doFinal(output, outputLength);
+        } catch (InvalidCipherTextException e) {
+            throw new IOException("Authentication tag check failed", e);
+        }
+
+        return outputLength == output.length ? output : Arrays.copyOf(output, outputLength);
+    }
+
+}
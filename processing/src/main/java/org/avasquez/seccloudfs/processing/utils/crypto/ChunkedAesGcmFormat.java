@@ -0,0 +1,380 @@
+package org.avasquez.seccloudfs.processing.utils.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Segmented authenticated encryption format, which splits the data in fixed size chunks that are encrypted
+ * separately with AES/GCM. Since every chunk has its own tag, chunks can be encrypted and decrypted in parallel,
+ * each chunk is authenticated as soon as it arrives, and any chunk can be decrypted without the ones before it.
+ *
+ * <p>The encrypted data starts with an 8 byte header: a 4 byte magic number and the chunk size (big endian). Each
+ * chunk follows, with its 16 byte tag appended. Only the last chunk can be smaller than the chunk size (even empty).
+ * The nonce of each chunk is built like in the STREAM construction: the first 7 bytes of the IV, the index of the
+ * chunk (4 bytes, big endian) and a flag byte that's 1 only for the last chunk, so chunks can't be reordered and the
+ * data can't be truncated at a chunk boundary. The header is authenticated with every chunk.</p>
+ *
+ * <p>The encrypted offset of the chunk that contains a given plain offset is {@code HEADER_SIZE + (offset /
+ * chunkSize) * (chunkSize + TAG_SIZE)}, so ranged reads only need to fetch and decrypt the chunks they cover.</p>
+ *
+ * @author avasquez
+ */
+public class ChunkedAesGcmFormat {
+
+    public static final int HEADER_SIZE = 8;
+
+    private static final int MAGIC = 0x53434631; // "SCF1"
+    private static final int NONCE_SIZE = 12;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final long MAX_CHUNKS = 0xffffffffL;
+
+    private AesGcmCipherProvider cipherProvider;
+    private int chunkSize;
+    private int parallelism;
+    private Executor executor;
+
+    /**
+     * Creates the format.
+     *
+     * @param cipherProvider    the AES/GCM implementation used for each chunk
+     * @param chunkSize         the size of the plain chunks
+     * @param parallelism       the max number of chunks that are encrypted or decrypted at the same time
+     * @param executor          the executor that encrypts or decrypts the chunks, or null to process them in the
+     *                          calling thread
+     */
+    public ChunkedAesGcmFormat(AesGcmCipherProvider cipherProvider, int chunkSize, int parallelism,
+                               Executor executor) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+
+        this.cipherProvider = cipherProvider;
+        this.chunkSize = chunkSize;
+        this.parallelism = executor != null ? Math.max(1, parallelism) : 1;
+        this.executor = executor;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the length of the encrypted data, for the specified plain data length.
+     */
+    public long getEncryptedLength(long length) {
+        // Empty data still has one (empty) chunk, with its tag
+        long numChunks = Math.max(1, (length + chunkSize - 1) / chunkSize);
+
+        return HEADER_SIZE + length + numChunks * cipherProvider.getTagSize();
+    }
+
+    /**
+     * Returns a stream that encrypts the data read from the specified stream.
+     *
+     * @param in    the stream of plain data
+     * @param key   the encryption key
+     * @param iv    the IV, from which the nonce prefix of the chunks is taken
+     */
+    public InputStream encrypt(InputStream in, byte[] key, byte[] iv) {
+        return new EncryptingInputStream(in, key, iv);
+    }
+
+    /**
+     * Returns a stream that decrypts the data written to it into the specified stream. Each chunk is written to the
+     * underlying stream only after its tag has been checked. Closing the returned stream decrypts the last chunk,
+     * throwing an {@link java.io.IOException} if the data was truncated, and closes the underlying stream.
+     *
+     * @param out   the stream where the plain data should be written
+     * @param key   the encryption key
+     * @param iv    the IV, from which the nonce prefix of the chunks is taken
+     */
+    public OutputStream decrypt(OutputStream out, byte[] key, byte[] iv) {
+        return new DecryptingOutputStream(out, key, iv);
+    }
+
+    private byte[] createHeader() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(chunkSize).array();
+    }
+
+    private byte[] createNonce(byte[] iv, long chunkIdx, boolean last) throws IOException {
+        if (chunkIdx > MAX_CHUNKS) {
+            throw new IOException("Max number of chunks exceeded");
+        }
+
+        ByteBuffer nonce = ByteBuffer.allocate(NONCE_SIZE);
+        nonce.put(iv, 0, NONCE_PREFIX_SIZE);
+        nonce.putInt((int) chunkIdx);
+        nonce.put((byte) (last ? 1 : 0));
+
+        return nonce.array();
+    }
+
+    private FutureTask<byte[]> submit(Callable<byte[]> callable) {
+        FutureTask<byte[]> task = new FutureTask<>(callable);
+
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+
+        return task;
+    }
+
+    private byte[] getResult(FutureTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while waiting for a chunk", e);
+        }
+    }
+
+    /**
+     * Pulls the plain chunks from the underlying stream, keeping up to {@code parallelism} chunks encrypting ahead
+     * of the reader.
+     */
+    private class EncryptingInputStream extends InputStream {
+
+        private InputStream in;
+        private byte[] key;
+        private byte[] iv;
+        private byte[] header;
+        private Deque<FutureTask<byte[]>> pendingChunks;
+        private byte[] nextChunk;
+        private long chunkIdx;
+        private boolean lastChunkRead;
+        private byte[] current;
+        private int position;
+
+        private EncryptingInputStream(InputStream in, byte[] key, byte[] iv) {
+            this.in = in;
+            this.key = key;
+            this.iv = iv;
+            this.header = createHeader();
+            this.pendingChunks = new ArrayDeque<>();
+            this.current = header;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+
+            return read > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (position == current.length) {
+                fillPendingChunks();
+
+                if (pendingChunks.isEmpty()) {
+                    return -1;
+                }
+
+                current = getResult(pendingChunks.poll());
+                position = 0;
+            }
+
+            int read = Math.min(len, current.length - position);
+
+            System.arraycopy(current, position, b, off, read);
+            position += read;
+
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FutureTask<byte[]> task : pendingChunks) {
+                task.cancel(false);
+            }
+
+            in.close();
+        }
+
+        private void fillPendingChunks() throws IOException {
+            while (!lastChunkRead && pendingChunks.size() < parallelism) {
+                // Read one chunk ahead, since a chunk is only known to be the last when the one after it is empty
+                final byte[] chunk = nextChunk != null ? nextChunk : readChunk();
+
+                nextChunk = chunk.length == chunkSize ? readChunk() : null;
+
+                if (nextChunk != null && nextChunk.length == 0) {
+                    nextChunk = null;
+                }
+
+                final boolean last = nextChunk == null;
+                final byte[] nonce = createNonce(iv, chunkIdx++, last);
+
+                pendingChunks.add(submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() throws Exception {
+                        return cipherProvider.seal(key, nonce, header, chunk, 0, chunk.length);
+                    }
+
+                }));
+
+                lastChunkRead = last;
+            }
+        }
+
+        private byte[] readChunk() throws IOException {
+            byte[] chunk = new byte[chunkSize];
+            int length = 0;
+            int read;
+
+            while (length < chunkSize && (read = in.read(chunk, length, chunkSize - length)) >= 0) {
+                length += read;
+            }
+
+            return length == chunkSize ? chunk : Arrays.copyOf(chunk, length);
+        }
+
+    }
+
+    /**
+     * Collects the encrypted chunks written to it, keeping up to {@code parallelism} chunks decrypting before
+     * writing them in order to the underlying stream.
+     */
+    private class DecryptingOutputStream extends OutputStream {
+
+        private OutputStream out;
+        private byte[] key;
+        private byte[] iv;
+        private byte[] header;
+        private int headerLength;
+        private Deque<FutureTask<byte[]>> pendingChunks;
+        private byte[] chunk;
+        private int chunkLength;
+        private long chunkIdx;
+        private boolean closed;
+
+        private DecryptingOutputStream(OutputStream out, byte[] key, byte[] iv) {
+            this.out = out;
+            this.key = key;
+            this.iv = iv;
+            this.header = new byte[HEADER_SIZE];
+            this.pendingChunks = new ArrayDeque<>();
+            this.chunk = new byte[chunkSize + cipherProvider.getTagSize()];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int copied;
+
+                if (headerLength < HEADER_SIZE) {
+                    copied = Math.min(len, HEADER_SIZE - headerLength);
+
+                    System.arraycopy(b, off, header, headerLength, copied);
+                    headerLength += copied;
+
+                    if (headerLength == HEADER_SIZE) {
+                        checkHeader();
+                    }
+                } else {
+                    if (chunkLength == chunk.length) {
+                        // More data follows, so the buffered chunk isn't the last
+                        submitChunk(false);
+                    }
+
+                    copied = Math.min(len, chunk.length - chunkLength);
+
+                    System.arraycopy(b, off, chunk, chunkLength, copied);
+                    chunkLength += copied;
+                }
+
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            try {
+                if (headerLength < HEADER_SIZE || chunkLength < cipherProvider.getTagSize()) {
+                    throw new IOException("Encrypted data is truncated");
+                }
+
+                submitChunk(true);
+
+                while (!pendingChunks.isEmpty()) {
+                    out.write(getResult(pendingChunks.poll()));
+                }
+            } finally {
+                for (FutureTask<byte[]> task : pendingChunks) {
+                    task.cancel(false);
+                }
+
+                out.close();
+            }
+        }
+
+        private void checkHeader() throws IOException {
+            if (!Arrays.equals(header, createHeader())) {
+                throw new IOException("Invalid header: unknown format or chunk size");
+            }
+        }
+
+        private void submitChunk(boolean last) throws IOException {
+            if (pendingChunks.size() >= parallelism) {
+                out.write(getResult(pendingChunks.poll()));
+            }
+
+            final byte[] encryptedChunk = Arrays.copyOf(chunk, chunkLength);
+            final byte[] nonce = createNonce(iv, chunkIdx++, last);
+
+            pendingChunks.add(submit(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws Exception {
+                    return cipherProvider.open(key, nonce, header, encryptedChunk, 0, encryptedChunk.length);
+                }
+
+            }));
+
+            chunkLength = 0;
+        }
+
+    }
+
+}
@@ -1,31 +1,52 @@
 package org.avasquez.seccloudfs.processing.utils.crypto;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.avasquez.seccloudfs.cloud.CloudStore;
 import org.avasquez.seccloudfs.exception.DbException;
 import org.avasquez.seccloudfs.processing.db.model.EncryptionKey;
 import org.avasquez.seccloudfs.processing.db.repos.EncryptionKeyRepository;
 import org.avasquez.seccloudfs.utils.CryptoUtils;
-import org.bouncycastle.crypto.io.CipherInputStream;
-import org.bouncycastle.crypto.io.CipherOutputStream;
-import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.avasquez.seccloudfs.utils.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 
 /**
  * {@link org.avasquez.seccloudfs.cloud.CloudStore} decorator that encrypts the data before upload and decrypts it
- * after download, using AES with GCM cipher mode.
+ * after download, using AES with GCM cipher mode. The data is encrypted and decrypted as it streams between the
+ * caller's channel and the underlying store, without intermediate temp files. Since GCM only adds the authentication
+ * tag to the data, the length of the encrypted data is known before the upload starts.
+ *
+ * <p>The AES/GCM implementation is provided by an {@link org.avasquez.seccloudfs.processing.utils.crypto
+ * .AesGcmCipherProvider}. By default the JCA implementation of the JVM is used, falling back to BouncyCastle when the
+ * JVM doesn't support AES/GCM. Depending on the provider, decrypted data might be written to the target before the
+ * authentication tag at the end of the data is checked. If the check fails, an exception is thrown after the
+ * download, and the content written to the target must be discarded.</p>
+ *
+ * <p>If a chunk size is set, the data is encrypted in the {@link org.avasquez.seccloudfs.processing.utils.crypto
+ * .ChunkedAesGcmFormat} instead, so that its chunks can be encrypted and decrypted in parallel and each chunk is
+ * authenticated before it's written to the target. The chunk size is saved with the key, so data encrypted in either
+ * format can always be decrypted.</p>
+ *
+ * <p>If a master key is set, the key and IV of each upload are derived with HKDF from the master key, the data ID and
+ * a random salt, instead of being generated at random and saved in the {@link org.avasquez.seccloudfs.processing.db
+ * .repos.EncryptionKeyRepository}. The salt and the chunk size are written in a header before the encrypted data, so
+ * uploads and downloads of derived key data don't access the repository. Data without the header was uploaded before
+ * the master key was set, and is still decrypted with the key in the repository.</p>
  *
  * @author avasquez
  */
@@ -34,10 +55,31 @@ public class EncryptingCloudStore implements CloudStore {
     private static final Logger logger = LoggerFactory.getLogger(EncryptingCloudStore.class);
 
     private static final int AES_KEY_BYTE_SIZE = 16;
+    private static final int MIN_MASTER_KEY_BYTE_SIZE = 16;
+    private static final byte[] DERIVED_KEY_HEADER_MAGIC = "SCFSHKDF".getBytes(StandardCharsets.US_ASCII);
+    private static final int SALT_BYTE_SIZE = 16;
+    private static final int DERIVED_KEY_HEADER_LENGTH = DERIVED_KEY_HEADER_MAGIC.length + SALT_BYTE_SIZE + 4;
+    private static final String DERIVED_KEY_INFO_PREFIX = "seccloudfs-data-key:";
 
     private CloudStore underlyingStore;
     private EncryptionKeyRepository keyRepository;
-    private Path tmpDir;
+    private AesGcmCipherProvider cipherProvider;
+    private int chunkSize;
+    private int chunkParallelism;
+    private Executor chunkExecutor;
+    private byte[] masterKey;
+
+    public EncryptingCloudStore() {
+        if (JcaAesGcmCipherProvider.isSupported()) {
+            cipherProvider = new JcaAesGcmCipherProvider();
+        } else {
+            logger.warn("AES/GCM not supported by the JVM. Using the slower BouncyCastle implementation");
+
+            cipherProvider = new BouncyCastleAesGcmCipherProvider();
+        }
+
+        chunkParallelism = Runtime.getRuntime().availableProcessors();
+    }
 
     @Required
     public void setUnderlyingStore(CloudStore underlyingStore) {
@@ -49,9 +91,50 @@ public class EncryptingCloudStore implements CloudStore {
         this.keyRepository = keyRepository;
     }
 
-    @Required
-    public void setTmpDir(String tmpDirPath) {
-        tmpDir = Paths.get(tmpDirPath);
+    /**
+     * Sets the AES/GCM implementation. Defaults to {@link org.avasquez.seccloudfs.processing.utils.crypto
+     * .JcaAesGcmCipherProvider}, or {@link org.avasquez.seccloudfs.processing.utils.crypto
+     * .BouncyCastleAesGcmCipherProvider} if the JVM doesn't support AES/GCM.
+     */
+    public void setCipherProvider(AesGcmCipherProvider cipherProvider) {
+        this.cipherProvider = cipherProvider;
+    }
+
+    /**
+     * Sets the chunk size (e.g. 64KB) for encrypting the data in the chunked format. If not set, the data is
+     * encrypted as a single AES/GCM stream.
+     */
+    public void setChunkSize(String chunkSize) {
+        this.chunkSize = (int) FileUtils.humanReadableByteSizeToByteCount(chunkSize);
+    }
+
+    /**
+     * Sets the max number of chunks of a single upload or download that are encrypted or decrypted at the same time.
+     * Defaults to the number of processors.
+     */
+    public void setChunkParallelism(int chunkParallelism) {
+        this.chunkParallelism = chunkParallelism;
+    }
+
+    /**
+     * Sets the executor that encrypts and decrypts the chunks in parallel. If not set, the chunks are processed in
+     * the calling thread.
+     */
+    public void setChunkExecutor(Executor chunkExecutor) {
+        this.chunkExecutor = chunkExecutor;
+    }
+
+    /**
+     * Sets the master key (at least 16 bytes) the keys of new uploads are derived from. If not set, a random key is
+     * generated for each upload and saved in the repository.
+     */
+    public void setMasterKey(byte[] masterKey) {
+        if (masterKey.length < MIN_MASTER_KEY_BYTE_SIZE) {
+            throw new IllegalArgumentException("The master key should have at least " + MIN_MASTER_KEY_BYTE_SIZE +
+                                               " bytes");
+        }
+
+        this.masterKey = masterKey;
     }
 
     @Override
@@ -61,73 +144,97 @@ public class EncryptingCloudStore implements CloudStore {
 
     @Override
     public void upload(String id, ReadableByteChannel src, long length) throws IOException {
-        Path tmpFile = Files.createTempFile(tmpDir, id, ".encrypted");
+        byte[] key;
+        byte[] iv;
+        byte[] header = null;
 
-        try {
-            InputStream in = Channels.newInputStream(src);
-            OutputStream out = new FileOutputStream(tmpFile.toFile());
-            byte[] key = CryptoUtils.generateRandomBytes(AES_KEY_BYTE_SIZE);
-            byte[] iv = CryptoUtils.generateRandomBytes(AES_KEY_BYTE_SIZE);
+        if (masterKey != null) {
+            byte[] salt = CryptoUtils.generateRandomBytes(SALT_BYTE_SIZE);
+            byte[] keyAndIv = deriveKeyAndIv(id, salt);
+
+            key = Arrays.copyOfRange(keyAndIv, 0, AES_KEY_BYTE_SIZE);
+            iv = Arrays.copyOfRange(keyAndIv, AES_KEY_BYTE_SIZE, keyAndIv.length);
+            header = ByteBuffer.allocate(DERIVED_KEY_HEADER_LENGTH)
+                .put(DERIVED_KEY_HEADER_MAGIC)
+                .put(salt)
+                .putInt(chunkSize)
+                .array();
+        } else {
+            key = CryptoUtils.generateRandomBytes(AES_KEY_BYTE_SIZE);
+            iv = CryptoUtils.generateRandomBytes(AES_KEY_BYTE_SIZE);
 
-            encrypt(id, in, out, key, iv);
             saveEncryptionKey(id, key, iv);
+        }
+
+        InputStream in;
+        long encryptedLength;
 
-            logger.debug("Data '{}' successfully encrypted", id);
-        } catch (Exception e) {
-            Files.delete(tmpFile);
+        if (chunkSize > 0) {
+            ChunkedAesGcmFormat format = createChunkedFormat(chunkSize);
 
-            throw e;
+            in = format.encrypt(Channels.newInputStream(src), key, iv);
+            encryptedLength = format.getEncryptedLength(length);
+        } else {
+            in = cipherProvider.encrypt(Channels.newInputStream(src), key, iv);
+            encryptedLength = length + cipherProvider.getTagSize();
         }
 
-        try (FileChannel tmpChannel = FileChannel.open(tmpFile, StandardOpenOption.READ,
-             StandardOpenOption.DELETE_ON_CLOSE)) {
-            underlyingStore.upload(id, tmpChannel, tmpChannel.size());
+        if (header != null) {
+            in = new SequenceInputStream(new ByteArrayInputStream(header), in);
+            encryptedLength += header.length;
         }
+
+        underlyingStore.upload(id, Channels.newChannel(in), encryptedLength);
+
+        logger.debug("Data '{}' successfully encrypted and uploaded", id);
     }
 
     @Override
     public void download(String id, WritableByteChannel target) throws IOException {
-        Path tmpFile = Files.createTempFile(tmpDir, id, ".decrypted");
+        // Shield the target, which belongs to the caller, from being closed with the decrypting stream
+        OutputStream out = new CloseShieldOutputStream(Channels.newOutputStream(target));
 
-        try (FileChannel tmpChannel = FileChannel.open(tmpFile, StandardOpenOption.WRITE,
-             StandardOpenOption.TRUNCATE_EXISTING)) {
-            underlyingStore.download(id, tmpChannel);
-        }
+        OutputStream cipherOut;
 
-        try {
-            InputStream in = new FileInputStream(tmpFile.toFile());
-            OutputStream out = Channels.newOutputStream(target);
+        if (masterKey != null) {
+            // The data tells with its header if the key is derived or if it's in the repository
+            cipherOut = new HeaderReadingOutputStream(id, out);
+        } else {
             EncryptionKey key = getEncryptionKey(id);
 
-            decrypt(id, in, out, key.getKey(), key.getIv());
+            cipherOut = createDecryptingStream(out, key.getKey(), key.getIv(), key.getChunkSize());
+        }
+
+        underlyingStore.download(id, Channels.newChannel(cipherOut));
 
-            logger.debug("Data '{}' successfully decrypted", id);
-        } finally {
-            Files.delete(tmpFile);
+        try {
+            // Closing the stream finishes the decryption and checks the authentication tag
+            cipherOut.close();
+        } catch (IOException e) {
+            throw new IOException("Failed to decrypt data '" + id + "'", e);
         }
+
+        logger.debug("Data '{}' successfully decrypted", id);
+    }
+
+    @Override
+    public boolean exists(String id) throws IOException {
+        return underlyingStore.exists(id);
     }
 
     @Override
     public void delete(String id) throws IOException {
+        // The data might have been uploaded before the master key was set, so its key might be in the repository
         deleteEncryptionKey(id);
 
         underlyingStore.delete(id);
     }
 
-    private void encrypt(String dataId, InputStream in, OutputStream out, byte[] key, byte[] iv) throws IOException {
-        try (CipherOutputStream cipherOut = new CipherOutputStream(out, createEncryptionCipher(key, iv))) {
-            IOUtils.copy(in, cipherOut);
-        } catch (Exception e) {
-            throw new IOException("Failed to encrypt data '" + dataId + "'", e);
-        }
-    }
+    @Override
+    public void delete(Collection<String> ids) throws IOException {
+        deleteEncryptionKeys(ids);
 
-    private void decrypt(String dataId, InputStream in, OutputStream out, byte[] key, byte[] iv) throws IOException {
-        try (CipherInputStream cipherIn = new CipherInputStream(in, createDecryptionCipher(key, iv))) {
-            IOUtils.copy(cipherIn, out);
-        } catch (Exception e) {
-            throw new IOException("Failed to decrypt data '" + dataId + "'", e);
-        }
+        underlyingStore.delete(ids);
     }
 
     private EncryptionKey getEncryptionKey(String dataId) throws IOException {
@@ -145,12 +252,39 @@ public class EncryptingCloudStore implements CloudStore {
 
     private void saveEncryptionKey(String dataId, byte[] key, byte[] iv) throws IOException {
         try {
-            keyRepository.insert(new EncryptionKey(dataId, key, iv));
+            keyRepository.insert(new EncryptionKey(dataId, key, iv, chunkSize));
         } catch (DbException e) {
             throw new IOException("Unable to save encryption key for data '" + dataId + "' in repository", e);
         }
     }
 
+    private void deleteEncryptionKeys(Collection<String> dataIds) throws IOException {
+        try {
+            keyRepository.deleteByDataIds(dataIds);
+        } catch (DbException e) {
+            throw new IOException("Unable to delete encryption keys for data " + dataIds + " in repository", e);
+        }
+    }
+
+    private byte[] deriveKeyAndIv(String dataId, byte[] salt) {
+        byte[] info = (DERIVED_KEY_INFO_PREFIX + dataId).getBytes(StandardCharsets.UTF_8);
+
+        return CryptoUtils.deriveKey(masterKey, salt, info, AES_KEY_BYTE_SIZE * 2);
+    }
+
+    private OutputStream createDecryptingStream(OutputStream out, byte[] key, byte[] iv, int chunkSize)
+        throws IOException {
+        if (chunkSize > 0) {
+            return createChunkedFormat(chunkSize).decrypt(out, key, iv);
+        } else {
+            return cipherProvider.decrypt(out, key, iv);
+        }
+    }
+
+    private ChunkedAesGcmFormat createChunkedFormat(int chunkSize) {
+        return new ChunkedAesGcmFormat(cipherProvider, chunkSize, chunkParallelism, chunkExecutor);
+    }
+
     private void deleteEncryptionKey(String dataId) throws IOException {
         try {
             keyRepository.deleteByDataId(dataId);
@@ -159,12 +293,100 @@ public class EncryptingCloudStore implements CloudStore {
         }
     }
 
-    private AEADBlockCipher createEncryptionCipher(byte[] key, byte[] iv) {
-        return CryptoUtils.createAesWithGcmCipher(true, key, iv);
-    }
+    /**
+     * {@link java.io.OutputStream} that reads the derived key header at the start of the downloaded data, and then
+     * decrypts the rest of the data with the key derived from the header. If the data doesn't start with the header,
+     * the whole data is decrypted with the key in the repository.
+     */
+    private class HeaderReadingOutputStream extends OutputStream {
+
+        private String dataId;
+        private OutputStream out;
+        private ByteBuffer header;
+        private OutputStream cipherOut;
+
+        private HeaderReadingOutputStream(String dataId, OutputStream out) {
+            this.dataId = dataId;
+            this.out = out;
+            this.header = ByteBuffer.allocate(DERIVED_KEY_HEADER_LENGTH);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (cipherOut == null) {
+                int headerLen = Math.min(len, header.remaining());
+
+                header.put(b, off, headerLen);
+                off += headerLen;
+                len -= headerLen;
+
+                if (header.hasRemaining()) {
+                    return;
+                }
+
+                readHeader();
+            }
+
+            if (len > 0) {
+                cipherOut.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (cipherOut != null) {
+                cipherOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (cipherOut == null) {
+                // Data shorter than the header, so it can only have been encrypted with a key in the repository
+                readHeader();
+            }
+
+            cipherOut.close();
+        }
+
+        private void readHeader() throws IOException {
+            header.flip();
+
+            byte[] magic = new byte[DERIVED_KEY_HEADER_MAGIC.length];
+
+            if (header.remaining() == DERIVED_KEY_HEADER_LENGTH &&
+                Arrays.equals(DERIVED_KEY_HEADER_MAGIC, readBytes(magic))) {
+                byte[] salt = readBytes(new byte[SALT_BYTE_SIZE]);
+                int chunkSize = header.getInt();
+                byte[] keyAndIv = deriveKeyAndIv(dataId, salt);
+
+                if (chunkSize < 0) {
+                    throw new IOException("Invalid chunk size in header of data '" + dataId + "': " + chunkSize);
+                }
+
+                cipherOut = createDecryptingStream(out, Arrays.copyOfRange(keyAndIv, 0, AES_KEY_BYTE_SIZE),
+                                                   Arrays.copyOfRange(keyAndIv, AES_KEY_BYTE_SIZE, keyAndIv.length),
+                                                   chunkSize);
+            } else {
+                EncryptionKey key = getEncryptionKey(dataId);
+
+                cipherOut = createDecryptingStream(out, key.getKey(), key.getIv(), key.getChunkSize());
+                // The bytes read so far are the start of the encrypted data
+                cipherOut.write(header.array(), 0, header.limit());
+            }
+        }
+
+        private byte[] readBytes(byte[] bytes) {
+            header.get(bytes);
+
+            return bytes;
+        }
 
-    private AEADBlockCipher createDecryptionCipher(byte[] key, byte[] iv) {
-        return CryptoUtils.createAesWithGcmCipher(false, key, iv);
     }
 
 }
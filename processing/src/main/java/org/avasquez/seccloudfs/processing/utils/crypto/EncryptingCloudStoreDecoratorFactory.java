@@ -1,10 +1,16 @@
 package org.avasquez.seccloudfs.processing.utils.crypto;
 
+import org.apache.commons.lang3.StringUtils;
 import org.avasquez.seccloudfs.cloud.CloudStore;
 import org.avasquez.seccloudfs.processing.db.repos.EncryptionKeyRepository;
 import org.avasquez.seccloudfs.utils.DecoratorFactory;
 import org.springframework.beans.factory.annotation.Required;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+
 /**
  * {@link org.avasquez.seccloudfs.utils.DecoratorFactory} that decorates any {@link org.avasquez.seccloudfs.cloud
  * .CloudStore} with an {@link org.avasquez.seccloudfs.processing.utils.crypto.EncryptingCloudStore}.
@@ -14,16 +20,55 @@ import org.springframework.beans.factory.annotation.Required;
 public class EncryptingCloudStoreDecoratorFactory implements DecoratorFactory<CloudStore> {
 
     private EncryptionKeyRepository keyRepository;
-    private String tmpDir;
+    private AesGcmCipherProvider cipherProvider;
+    private String chunkSize;
+    private Integer chunkParallelism;
+    private Executor chunkExecutor;
+    private byte[] masterKey;
 
     @Required
     public void setKeyRepository(EncryptionKeyRepository keyRepository) {
         this.keyRepository = keyRepository;
     }
 
-    @Required
-    public void setTmpDir(String tmpDir) {
-        this.tmpDir = tmpDir;
+    /**
+     * Sets the AES/GCM implementation used by the stores. If not set, the store's default is used.
+     */
+    public void setCipherProvider(AesGcmCipherProvider cipherProvider) {
+        this.cipherProvider = cipherProvider;
+    }
+
+    /**
+     * Sets the chunk size for encrypting the data in the chunked format. If not set, the data is encrypted as a
+     * single AES/GCM stream.
+     */
+    public void setChunkSize(String chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the max number of chunks that are encrypted or decrypted at the same time. If not set, the store's default
+     * is used.
+     */
+    public void setChunkParallelism(int chunkParallelism) {
+        this.chunkParallelism = chunkParallelism;
+    }
+
+    /**
+     * Sets the executor that encrypts and decrypts the chunks in parallel.
+     */
+    public void setChunkExecutor(Executor chunkExecutor) {
+        this.chunkExecutor = chunkExecutor;
+    }
+
+    /**
+     * Sets the file with the master key (raw bytes) the keys of new uploads are derived from. If not set or empty,
+     * the keys are generated at random and saved in the repository.
+     */
+    public void setMasterKeyFile(String masterKeyFile) throws IOException {
+        if (StringUtils.isNotEmpty(masterKeyFile)) {
+            masterKey = Files.readAllBytes(Paths.get(masterKeyFile));
+        }
     }
 
     @Override
@@ -31,7 +76,21 @@ public class EncryptingCloudStoreDecoratorFactory implements DecoratorFactory<Cl
         EncryptingCloudStore encryptingCloudStore = new EncryptingCloudStore();
         encryptingCloudStore.setUnderlyingStore(cloudStore);
         encryptingCloudStore.setKeyRepository(keyRepository);
-        encryptingCloudStore.setTmpDir(tmpDir);
+
+        if (cipherProvider != null) {
+            encryptingCloudStore.setCipherProvider(cipherProvider);
+        }
+        if (chunkSize != null) {
+            encryptingCloudStore.setChunkSize(chunkSize);
+        }
+        if (chunkParallelism != null) {
+            encryptingCloudStore.setChunkParallelism(chunkParallelism);
+        }
+        if (masterKey != null) {
+            encryptingCloudStore.setMasterKey(masterKey);
+        }
+
+        encryptingCloudStore.setChunkExecutor(chunkExecutor);
 
         return encryptingCloudStore;
     }
@@ -0,0 +1,238 @@
+package org.avasquez.seccloudfs.processing.utils.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * {@link org.avasquez.seccloudfs.processing.utils.crypto.AesGcmCipherProvider} that uses the JCA AES/GCM
+ * implementation of the JVM (Java 8+). HotSpot compiles it to AES-NI and CLMUL instructions when the CPU supports
+ * them, which makes it several times faster than the BouncyCastle implementation.
+ *
+ * <p>The JCA implementation holds the decrypted data until the authentication tag is checked, so no unauthenticated
+ * data is released, at the cost of buffering the whole ciphertext in memory while decrypting.</p>
+ *
+ * @author avasquez
+ */
+public class JcaAesGcmCipherProvider implements AesGcmCipherProvider {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final String GCM_PARAMETER_SPEC_CLASS = "javax.crypto.spec.GCMParameterSpec";
+    private static final int TAG_BYTE_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Cipher.getInstance() is relatively expensive, so one instance is kept per thread and re-initialized
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+
+    /**
+     * Returns true if the JVM provides AES/GCM through the JCA.
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName(GCM_PARAMETER_SPEC_CLASS);
+            Cipher.getInstance(TRANSFORMATION);
+
+            return true;
+        } catch (ClassNotFoundException | GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int getTagSize() {
+        return TAG_BYTE_SIZE;
+    }
+
+    @Override
+    public InputStream encrypt(InputStream in, byte[] key, byte[] iv) throws IOException {
+        return new EncryptingInputStream(in, createCipher(Cipher.ENCRYPT_MODE, key, iv));
+    }
+
+    @Override
+    public OutputStream decrypt(OutputStream out, byte[] key, byte[] iv) throws IOException {
+        return new DecryptingOutputStream(out, createCipher(Cipher.DECRYPT_MODE, key, iv));
+    }
+
+    @Override
+    public byte[] seal(byte[] key, byte[] nonce, byte[] aad, byte[] data, int offset, int length)
+        throws IOException {
+        try {
+            return initCipher(Cipher.ENCRYPT_MODE, key, nonce, aad).doFinal(data, offset, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt data", e);
+        }
+    }
+
+    @Override
+    public byte[] open(byte[] key, byte[] nonce, byte[] aad, byte[] data, int offset, int length)
+        throws IOException {
+        try {
+            return initCipher(Cipher.DECRYPT_MODE, key, nonce, aad).doFinal(data, offset, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt data", e);
+        }
+    }
+
+    private Cipher initCipher(int mode, byte[] key, byte[] nonce, byte[] aad) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            ciphers.set(cipher);
+        }
+
+        cipher.init(mode, new SecretKeySpec(key, KEY_ALGORITHM), new GCMParameterSpec(TAG_BYTE_SIZE * 8, nonce));
+        cipher.updateAAD(aad);
+
+        return cipher;
+    }
+
+    private Cipher createCipher(int mode, byte[] key, byte[] iv) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, new SecretKeySpec(key, KEY_ALGORITHM), new GCMParameterSpec(TAG_BYTE_SIZE * 8, iv));
+
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to create " + TRANSFORMATION + " cipher", e);
+        }
+    }
+
+    /**
+     * {@link java.io.InputStream} that encrypts the data of the underlying stream. Unlike
+     * {@link javax.crypto.CipherInputStream}, it feeds the cipher with big chunks, so the intrinsics are used
+     * efficiently.
+     */
+    private static class EncryptingInputStream extends InputStream {
+
+        private InputStream in;
+        private Cipher cipher;
+        private byte[] inBuffer;
+        private byte[] outBuffer;
+        private int outPosition;
+        private int outLimit;
+        private boolean finished;
+
+        private EncryptingInputStream(InputStream in, Cipher cipher) {
+            this.in = in;
+            this.cipher = cipher;
+            this.inBuffer = new byte[BUFFER_SIZE];
+            this.outBuffer = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+
+            return read > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (outPosition == outLimit) {
+                if (finished) {
+                    return -1;
+                }
+
+                fill();
+            }
+
+            int read = Math.min(len, outLimit - outPosition);
+
+            System.arraycopy(outBuffer, outPosition, b, off, read);
+            outPosition += read;
+
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return outLimit - outPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void fill() throws IOException {
+            int read = in.read(inBuffer);
+
+            try {
+                if (read < 0) {
+                    outLimit = cipher.doFinal(outBuffer, 0);
+                    finished = true;
+                } else {
+                    outLimit = cipher.update(inBuffer, 0, read, outBuffer, 0);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt data", e);
+            }
+
+            outPosition = 0;
+        }
+
+    }
+
+    /**
+     * {@link java.io.OutputStream} that decrypts the data written to it into the underlying stream. Unlike
+     * {@link javax.crypto.CipherOutputStream}, it reports a failed authentication tag check on close.
+     */
+    private static class DecryptingOutputStream extends OutputStream {
+
+        private OutputStream out;
+        private Cipher cipher;
+        private boolean closed;
+
+        private DecryptingOutputStream(OutputStream out, Cipher cipher) {
+            this.out = out;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            byte[] decrypted = cipher.update(b, off, len);
+            if (decrypted != null && decrypted.length > 0) {
+                out.write(decrypted);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            try {
+                out.write(cipher.doFinal());
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to decrypt data", e);
+            } finally {
+                out.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.avasquez.seccloudfs.processing.utils.dedup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+/**
+ * Splits the data read from a channel into content-defined chunks, using the FastCDC algorithm: a gear rolling hash
+ * is computed over the bytes, and a chunk ends where the hash matches a mask. Since chunk boundaries depend only on
+ * the content around them, inserting or deleting bytes just changes the chunks near the edit, and the rest of the
+ * chunks keep the same content (and fingerprint) as before. Normalized chunking is used to keep chunk sizes close to
+ * the average size: a harder mask is used before the average size and an easier one after it.
+ *
+ * @author avasquez
+ */
+public class ContentDefinedChunker {
+
+    /**
+     * Seed of the gear table. Should never be changed, since that would change every chunk boundary and with it
+     * the chunk fingerprints already stored.
+     */
+    private static final long GEAR_SEED = 0x5ec0c1f5L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private ReadableByteChannel src;
+    private long remaining;
+    private int minSize;
+    private int avgSize;
+    private long smallMask;
+    private long largeMask;
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    /**
+     * Creates a new chunker.
+     *
+     * @param src       the channel to read the data from
+     * @param length    the number of bytes to read from the channel
+     * @param minSize   the min size of a chunk
+     * @param avgSize   the expected average size of the chunks (should be a power of 2)
+     * @param maxSize   the max size of a chunk
+     */
+    public ContentDefinedChunker(ReadableByteChannel src, long length, int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || avgSize <= minSize || maxSize <= avgSize) {
+            throw new IllegalArgumentException("Chunk sizes should satisfy 0 < minSize < avgSize < maxSize");
+        }
+
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+
+        this.src = src;
+        this.remaining = length;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        // The gear hash shifts left on every byte, so the high bits are the ones that depend on the most bytes
+        this.smallMask = highBitsMask(bits + 1);
+        this.largeMask = highBitsMask(bits - 1);
+        this.buffer = new byte[maxSize];
+    }
+
+    /**
+     * Returns the next chunk of data. The returned buffer is backed by the internal buffer of the chunker, so it's
+     * only valid until the next call to this method.
+     *
+     * @return the next chunk, or null if there's no more data
+     */
+    public ByteBuffer nextChunk() throws IOException {
+        fillBuffer();
+
+        if (start == end) {
+            return null;
+        }
+
+        int chunkSize = findCutPoint(start, end - start);
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, start, chunkSize).slice();
+
+        start += chunkSize;
+
+        return chunk;
+    }
+
+    private void fillBuffer() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+
+            end -= start;
+            start = 0;
+        }
+
+        while (remaining > 0 && end < buffer.length) {
+            int len = (int) Math.min(buffer.length - end, remaining);
+            int read = src.read(ByteBuffer.wrap(buffer, end, len));
+
+            if (read < 0) {
+                throw new IOException("Unexpected end of stream: " + remaining + " more bytes were expected");
+            }
+
+            end += read;
+            remaining -= read;
+        }
+    }
+
+    private int findCutPoint(int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+
+        int normalSize = Math.min(avgSize, length);
+        long hash = 0;
+        int i = minSize;
+
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+            if ((hash & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+            if ((hash & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+
+        return length;
+    }
+
+    private static long highBitsMask(int numBits) {
+        return -1L << (64 - numBits);
+    }
+
+}
@@ -0,0 +1,613 @@
+package org.avasquez.seccloudfs.processing.utils.dedup;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.impl.AbstractCloudStore;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.Chunk;
+import org.avasquez.seccloudfs.processing.db.model.ChunkManifest;
+import org.avasquez.seccloudfs.processing.db.repos.ChunkManifestRepository;
+import org.avasquez.seccloudfs.processing.db.repos.ChunkRepository;
+import org.avasquez.seccloudfs.utils.FileUtils;
+import org.avasquez.seccloudfs.utils.nio.ByteBufferChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore} decorator that deduplicates the data before it reaches the
+ * underlying store (normally the {@link org.avasquez.seccloudfs.processing.impl.DistributedCloudStore}, so that only
+ * new chunks are erasure coded and uploaded). On upload, the data is split in content-defined chunks by a
+ * {@link org.avasquez.seccloudfs.processing.utils.dedup.ContentDefinedChunker}, and each chunk is identified by its
+ * SHA-256 fingerprint. Chunks already stored just get their reference count incremented, and the data is saved as a
+ * {@link org.avasquez.seccloudfs.processing.db.model.ChunkManifest}. When the reference count of a chunk reaches
+ * zero, the chunk is deleted from the underlying store.
+ *
+ * <p>Each new chunk is a separate upload to the underlying store, so the chunk sizes should be tuned to the layers
+ * below: with an average chunk size close to the stripe size of the distributed store, a chunk is encoded in about
+ * one stripe, and the number of slice objects per MB is the same as without deduplication, while chunks smaller than
+ * the max packed size (the last chunk of a data, or small data) are packed together by the
+ * {@link org.avasquez.seccloudfs.processing.utils.packing.PackingCloudStore}. Since a chunk is too small to benefit
+ * from the stripe pipelining of the distributed store, if a task executor is set several chunks of the same data are
+ * uploaded and downloaded at the same time instead.</p>
+ *
+ * <p>Reference counts are updated under a lock striped by chunk ID, but chunks are uploaded and deleted outside of
+ * it, so that a slow upload doesn't block the chunks that share its lock. Instead, an acquire of a chunk that's
+ * being uploaded or deleted by another thread waits for it to finish, and then checks the chunk again.</p>
+ *
+ * <p>Data uploaded before this decorator was introduced has no manifest, so it's downloaded and deleted directly
+ * from the underlying store.</p>
+ *
+ * @author avasquez
+ */
+public class DeduplicatingCloudStore extends AbstractCloudStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeduplicatingCloudStore.class);
+
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+    private static final int NUM_CHUNK_LOCKS = 64;
+
+    private CloudStore underlyingStore;
+    private ChunkRepository chunkRepository;
+    private ChunkManifestRepository manifestRepository;
+    private int minChunkSize;
+    private int avgChunkSize;
+    private int maxChunkSize;
+    private Executor taskExecutor;
+    private int maxConcurrentChunks;
+    private Lock[] chunkLocks;
+    private Map<String, FutureTask<Void>> chunksInProgress;
+
+    public DeduplicatingCloudStore() {
+        maxConcurrentChunks = 4;
+        chunkLocks = new Lock[NUM_CHUNK_LOCKS];
+        chunksInProgress = new ConcurrentHashMap<>();
+
+        for (int i = 0; i < chunkLocks.length; i++) {
+            chunkLocks[i] = new ReentrantLock();
+        }
+    }
+
+    @Required
+    public void setUnderlyingStore(CloudStore underlyingStore) {
+        this.underlyingStore = underlyingStore;
+    }
+
+    @Required
+    public void setChunkRepository(ChunkRepository chunkRepository) {
+        this.chunkRepository = chunkRepository;
+    }
+
+    @Required
+    public void setManifestRepository(ChunkManifestRepository manifestRepository) {
+        this.manifestRepository = manifestRepository;
+    }
+
+    @Required
+    public void setMinChunkSize(String minChunkSize) {
+        this.minChunkSize = (int) FileUtils.humanReadableByteSizeToByteCount(minChunkSize);
+    }
+
+    @Required
+    public void setAvgChunkSize(String avgChunkSize) {
+        this.avgChunkSize = (int) FileUtils.humanReadableByteSizeToByteCount(avgChunkSize);
+    }
+
+    @Required
+    public void setMaxChunkSize(String maxChunkSize) {
+        this.maxChunkSize = (int) FileUtils.humanReadableByteSizeToByteCount(maxChunkSize);
+    }
+
+    /**
+     * Sets the executor that uploads and downloads the chunks of a data in parallel. Since the caller waits for the
+     * chunks, the executor shouldn't be limited to the threads of the callers. If not set, the chunks are transferred
+     * one by one by the calling thread.
+     */
+    public void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Sets the max number of chunks of a single data that are uploaded or downloaded at the same time. Defaults to 4.
+     */
+    public void setMaxConcurrentChunks(int maxConcurrentChunks) {
+        this.maxConcurrentChunks = Math.max(1, maxConcurrentChunks);
+    }
+
+    @Override
+    public String getName() {
+        return underlyingStore.getName();
+    }
+
+    @Override
+    public void upload(String id, ReadableByteChannel src, long length) throws IOException {
+        ChunkManifest lastManifest = findLastManifest(id);
+        ContentDefinedChunker chunker = new ContentDefinedChunker(src, length, minChunkSize, avgChunkSize,
+                                                                  maxChunkSize);
+        List<String> chunkIds = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        List<String> acquiredChunkIds = new ArrayList<>();
+        Deque<PendingChunk> pendingChunks = new ArrayDeque<>();
+        int newChunks = 0;
+        ChunkManifest manifest;
+
+        try {
+            ByteBuffer chunk;
+            while ((chunk = chunker.nextChunk()) != null) {
+                if (pendingChunks.size() >= maxConcurrentChunks) {
+                    newChunks += finishAcquire(pendingChunks.poll(), acquiredChunkIds);
+                }
+
+                int chunkSize = chunk.remaining();
+                String chunkId = fingerprint(chunk);
+
+                chunkIds.add(chunkId);
+                chunkSizes.add(chunkSize);
+                pendingChunks.add(startAcquire(chunkId, chunk));
+            }
+
+            while (!pendingChunks.isEmpty()) {
+                newChunks += finishAcquire(pendingChunks.poll(), acquiredChunkIds);
+            }
+
+            manifest = new ChunkManifest(id, length, chunkIds.toArray(new String[chunkIds.size()]),
+                                         toIntArray(chunkSizes));
+
+            try {
+                manifestRepository.insert(manifest);
+            } catch (DbException e) {
+                throw new IOException("Unable to save chunk manifest for data '" + id + "' to DB", e);
+            }
+        } catch (IOException e) {
+            logger.error("Chunked upload for data '{}' failed. Trying to rollback...", id);
+
+            // Wait for the chunks still being acquired, so that they're released too
+            while (!pendingChunks.isEmpty()) {
+                try {
+                    finishAcquire(pendingChunks.poll(), acquiredChunkIds);
+                } catch (IOException ex) {
+                    logger.debug("Chunk of data '{}' failed during rollback: {}", id, ex.getMessage());
+                }
+            }
+
+            releaseChunks(acquiredChunkIds);
+
+            throw e;
+        }
+
+        logger.debug("Data '{}' uploaded as {} chunks ({} new)", id, chunkIds.size(), newChunks);
+
+        // Release the chunks of the last version, but just after the new manifest has been saved, so that no data
+        // is lost (and so that the chunks shared between both versions are never deleted)
+        if (lastManifest != null) {
+            deleteManifest(lastManifest);
+        } else if (underlyingStore.exists(id)) {
+            deleteUnchunkedData(id);
+        }
+    }
+
+    @Override
+    public void download(String id, WritableByteChannel target) throws IOException {
+        ChunkManifest manifest = findLastManifest(id);
+        if (manifest == null) {
+            underlyingStore.download(id, target);
+            return;
+        }
+
+        String[] chunkIds = manifest.getChunkIds();
+        int[] chunkSizes = manifest.getChunkSizes();
+        Map<String, Integer> remainingRefs = countRefs(chunkIds);
+        Map<String, FutureTask<ByteBuffer>> repeatedChunks = new HashMap<>();
+        Deque<FutureTask<ByteBuffer>> pendingChunks = new ArrayDeque<>();
+        boolean completed = false;
+
+        try {
+            for (int i = 0; i < chunkIds.length; i++) {
+                String chunkId = chunkIds[i];
+                int refs = remainingRefs.get(chunkId);
+
+                remainingRefs.put(chunkId, refs - 1);
+
+                FutureTask<ByteBuffer> chunk = refs > 1 ? repeatedChunks.get(chunkId) : repeatedChunks.remove(chunkId);
+                if (chunk == null) {
+                    chunk = startDownload(chunkId, chunkSizes[i]);
+
+                    if (refs > 1) {
+                        // The chunk appears again later in the data, so keep it in memory instead of fetching it again
+                        repeatedChunks.put(chunkId, chunk);
+                    }
+                }
+
+                if (pendingChunks.size() >= maxConcurrentChunks) {
+                    writeFully(getResult(pendingChunks.poll()).duplicate(), target);
+                }
+
+                pendingChunks.add(chunk);
+            }
+
+            while (!pendingChunks.isEmpty()) {
+                writeFully(getResult(pendingChunks.poll()).duplicate(), target);
+            }
+
+            completed = true;
+        } finally {
+            if (!completed) {
+                for (FutureTask<ByteBuffer> chunk : pendingChunks) {
+                    chunk.cancel(true);
+                }
+            }
+        }
+
+        logger.debug("Data '{}' reassembled from {} chunks", id, chunkIds.length);
+    }
+
+    @Override
+    public boolean exists(String id) throws IOException {
+        return findLastManifest(id) != null || underlyingStore.exists(id);
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        ChunkManifest manifest = findLastManifest(id);
+        if (manifest != null) {
+            deleteManifest(manifest);
+        } else {
+            underlyingStore.delete(id);
+        }
+    }
+
+    /**
+     * Starts acquiring the chunk in the task executor. Since the chunker reuses its buffer, the chunk is copied first.
+     */
+    private PendingChunk startAcquire(final String chunkId, ByteBuffer chunk) {
+        final ByteBuffer chunkCopy;
+        if (taskExecutor != null) {
+            chunkCopy = ByteBuffer.allocate(chunk.remaining());
+            chunkCopy.put(chunk);
+            chunkCopy.flip();
+        } else {
+            chunkCopy = chunk;
+        }
+
+        return new PendingChunk(chunkId, submit(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return acquireChunk(chunkId, chunkCopy);
+            }
+
+        }));
+    }
+
+    /**
+     * Waits for the chunk to be acquired.
+     *
+     * @return 1 if the chunk was uploaded, 0 if it was already stored
+     */
+    private int finishAcquire(PendingChunk pendingChunk, List<String> acquiredChunkIds) throws IOException {
+        boolean uploaded = getResult(pendingChunk.task);
+
+        acquiredChunkIds.add(pendingChunk.chunkId);
+
+        return uploaded ? 1 : 0;
+    }
+
+    private FutureTask<ByteBuffer> startDownload(final String chunkId, final int chunkSize) {
+        return submit(new Callable<ByteBuffer>() {
+
+            @Override
+            public ByteBuffer call() throws Exception {
+                ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+
+                underlyingStore.download(chunkId, new ByteBufferChannel(chunk));
+
+                chunk.flip();
+
+                return chunk;
+            }
+
+        });
+    }
+
+    /**
+     * Adds a reference to the chunk, uploading the chunk if it's not stored yet. Only the reference count is updated
+     * under the chunk lock: if the chunk is new, it's marked as in progress and uploaded after releasing the lock, and
+     * other acquires of the same chunk wait for the upload and then try again.
+     *
+     * @return true if the chunk was uploaded, false if it was already stored
+     */
+    private boolean acquireChunk(final String chunkId, final ByteBuffer chunk) throws IOException {
+        while (true) {
+            FutureTask<Void> chunkInProgress;
+            FutureTask<Void> upload = null;
+            Lock lock = getChunkLock(chunkId);
+
+            lock.lock();
+            try {
+                chunkInProgress = chunksInProgress.get(chunkId);
+                if (chunkInProgress == null) {
+                    try {
+                        if (chunkRepository.incrementRefCount(chunkId) != null) {
+                            return false;
+                        }
+                    } catch (DbException e) {
+                        throw new IOException("Unable to increment reference count of chunk '" + chunkId + "' in DB",
+                                              e);
+                    }
+
+                    upload = new FutureTask<>(new Callable<Void>() {
+
+                        @Override
+                        public Void call() throws Exception {
+                            try {
+                                uploadChunk(chunkId, chunk);
+                            } finally {
+                                removeChunkInProgress(chunkId);
+                            }
+
+                            return null;
+                        }
+
+                    });
+
+                    chunksInProgress.put(chunkId, upload);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (upload != null) {
+                upload.run();
+                getResult(upload);
+
+                return true;
+            } else {
+                awaitChunkInProgress(chunkInProgress);
+            }
+        }
+    }
+
+    private void uploadChunk(String chunkId, ByteBuffer chunk) throws IOException {
+        int chunkSize = chunk.remaining();
+
+        underlyingStore.upload(chunkId, new ByteBufferChannel(chunk), chunkSize);
+
+        try {
+            chunkRepository.insert(new Chunk(chunkId, chunkSize, 1));
+        } catch (DbException e) {
+            throw new IOException("Unable to save chunk '" + chunkId + "' to DB", e);
+        }
+    }
+
+    /**
+     * Removes a reference to the chunk, deleting the chunk if it's not referenced anymore. Like in
+     * {@link #acquireChunk(String, java.nio.ByteBuffer)}, the chunk is deleted from the underlying store after
+     * releasing the chunk lock, and an acquire of the chunk waits for the delete before uploading it again.
+     */
+    private void releaseChunk(final String chunkId) throws IOException {
+        FutureTask<Void> delete = null;
+        Lock lock = getChunkLock(chunkId);
+
+        lock.lock();
+        try {
+            Chunk chunk;
+            try {
+                chunk = chunkRepository.decrementRefCount(chunkId);
+            } catch (DbException e) {
+                throw new IOException("Unable to decrement reference count of chunk '" + chunkId + "' in DB", e);
+            }
+
+            if (chunk != null && chunk.getRefCount() <= 0) {
+                // Delete from DB first: if the delete from the store fails the chunk is just orphaned, but it's
+                // never referenced again without its data
+                try {
+                    chunkRepository.delete(chunkId);
+                } catch (DbException e) {
+                    throw new IOException("Unable to delete chunk '" + chunkId + "' from DB", e);
+                }
+
+                delete = new FutureTask<>(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            underlyingStore.delete(chunkId);
+                        } finally {
+                            removeChunkInProgress(chunkId);
+                        }
+
+                        return null;
+                    }
+
+                });
+
+                chunksInProgress.put(chunkId, delete);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (delete != null) {
+            delete.run();
+            getResult(delete);
+        }
+    }
+
+    private void removeChunkInProgress(String chunkId) {
+        Lock lock = getChunkLock(chunkId);
+
+        lock.lock();
+        try {
+            chunksInProgress.remove(chunkId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the upload or delete of a chunk by another thread. Whether it failed or not doesn't matter, since
+     * the caller checks the chunk again afterwards.
+     */
+    private void awaitChunkInProgress(FutureTask<Void> chunkInProgress) throws IOException {
+        try {
+            chunkInProgress.get();
+        } catch (ExecutionException e) {
+            logger.debug("Concurrent upload or delete of a chunk failed: {}", e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while waiting for a chunk", e);
+        }
+    }
+
+    private void releaseChunks(List<String> chunkIds) {
+        for (String chunkId : chunkIds) {
+            try {
+                releaseChunk(chunkId);
+            } catch (IOException e) {
+                logger.error("Unable to release chunk '" + chunkId + "'", e);
+            }
+        }
+    }
+
+    private void deleteManifest(ChunkManifest manifest) throws IOException {
+        releaseChunks(Arrays.asList(manifest.getChunkIds()));
+
+        try {
+            manifestRepository.delete(manifest.getId());
+        } catch (DbException e) {
+            throw new IOException("Unable to delete chunk manifest " + manifest.getId() + " from DB", e);
+        }
+    }
+
+    private void deleteUnchunkedData(String id) {
+        try {
+            underlyingStore.delete(id);
+
+            logger.debug("Unchunked version of data '{}' deleted", id);
+        } catch (IOException e) {
+            // Not fatal, the data is just orphaned
+            logger.warn("Unable to delete unchunked version of data '" + id + "'", e);
+        }
+    }
+
+    private ChunkManifest findLastManifest(String id) throws IOException {
+        try {
+            return manifestRepository.findLastByDataId(id);
+        } catch (DbException e) {
+            throw new IOException("Unable to retrieve chunk manifest for data '" + id + "' from DB", e);
+        }
+    }
+
+    /**
+     * Runs the task in the task executor, or in the calling thread if there's no executor.
+     */
+    private <T> FutureTask<T> submit(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+
+        if (taskExecutor != null) {
+            taskExecutor.execute(task);
+        } else {
+            task.run();
+        }
+
+        return task;
+    }
+
+    private <T> T getResult(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while waiting for a chunk", e);
+        }
+    }
+
+    private Lock getChunkLock(String chunkId) {
+        return chunkLocks[(chunkId.hashCode() & Integer.MAX_VALUE) % chunkLocks.length];
+    }
+
+    private String fingerprint(ByteBuffer chunk) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to create " + FINGERPRINT_ALGORITHM + " digest", e);
+        }
+
+        digest.update(chunk.duplicate());
+
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    private Map<String, Integer> countRefs(String[] chunkIds) {
+        Map<String, Integer> refs = new HashMap<>();
+
+        for (String chunkId : chunkIds) {
+            Integer count = refs.get(chunkId);
+            refs.put(chunkId, count != null ? count + 1 : 1);
+        }
+
+        return refs;
+    }
+
+    private void writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+
+        return array;
+    }
+
+    /**
+     * A chunk that's being acquired.
+     */
+    private static class PendingChunk {
+
+        private String chunkId;
+        private FutureTask<Boolean> task;
+
+        private PendingChunk(String chunkId, FutureTask<Boolean> task) {
+            this.chunkId = chunkId;
+            this.task = task;
+        }
+
+    }
+
+}
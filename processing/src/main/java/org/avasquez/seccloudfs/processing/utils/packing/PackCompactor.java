@@ -0,0 +1,162 @@
+package org.avasquez.seccloudfs.processing.utils.packing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.Pack;
+import org.avasquez.seccloudfs.processing.db.model.PackEntry;
+import org.avasquez.seccloudfs.processing.db.repos.PackEntryRepository;
+import org.avasquez.seccloudfs.processing.db.repos.PackRepository;
+import org.avasquez.seccloudfs.utils.nio.ByteBufferChannel;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Rewrites the packs marked as compactable by the {@link org.avasquez.seccloudfs.processing.utils.packing
+ * .PackingCloudStore}, copying their live entries to a new pack and deleting the old one. Entries are moved to the
+ * new pack only if they're still in the old pack, so entries deleted during the compaction are just counted as dead
+ * in the new pack. A pack is only deleted from the underlying store by whoever removes it from the DB, since the
+ * deletion of its last live entry can delete it at the same time.
+ *
+ * @author avasquez
+ */
+public class PackCompactor {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackCompactor.class);
+
+    private CloudStore underlyingStore;
+    private PackRepository packRepository;
+    private PackEntryRepository entryRepository;
+
+    @Required
+    public void setUnderlyingStore(CloudStore underlyingStore) {
+        this.underlyingStore = underlyingStore;
+    }
+
+    @Required
+    public void setPackRepository(PackRepository packRepository) {
+        this.packRepository = packRepository;
+    }
+
+    @Required
+    public void setEntryRepository(PackEntryRepository entryRepository) {
+        this.entryRepository = entryRepository;
+    }
+
+    @Scheduled(fixedDelayString = "${pack.compaction.delayMillis}")
+    public void compactPacks() {
+        List<Pack> packs = new ArrayList<>();
+        try {
+            for (Pack pack : packRepository.findCompactable()) {
+                packs.add(pack);
+            }
+        } catch (DbException e) {
+            logger.error("Unable to retrieve compactable packs from DB", e);
+
+            return;
+        }
+
+        for (Pack pack : packs) {
+            try {
+                compactPack(pack);
+            } catch (IOException e) {
+                logger.error("Compaction of pack '" + pack.getId() + "' failed", e);
+            }
+        }
+    }
+
+    private void compactPack(Pack pack) throws IOException {
+        String packId = pack.getId();
+        List<PackEntry> entries = findEntries(packId);
+
+        if (!entries.isEmpty()) {
+            ByteBuffer content = ByteBuffer.allocate(pack.getSize());
+
+            underlyingStore.download(packId, new ByteBufferChannel(content));
+
+            int newSize = 0;
+            for (PackEntry entry : entries) {
+                newSize += entry.getLength();
+            }
+
+            ByteBuffer newContent = ByteBuffer.allocate(newSize);
+            int[] newOffsets = new int[entries.size()];
+
+            for (int i = 0; i < entries.size(); i++) {
+                PackEntry entry = entries.get(i);
+
+                content.limit(entry.getOffset() + entry.getLength());
+                content.position(entry.getOffset());
+
+                newOffsets[i] = newContent.position();
+                newContent.put(content);
+            }
+
+            newContent.flip();
+
+            String newPackId = ObjectId.get().toString();
+
+            underlyingStore.upload(newPackId, new ByteBufferChannel(newContent), newSize);
+
+            try {
+                packRepository.insert(new Pack(newPackId, newSize, entries.size()));
+
+                int movedEntries = 0;
+
+                for (int i = 0; i < entries.size(); i++) {
+                    PackEntry entry = entries.get(i);
+
+                    if (entryRepository.move(entry.getId(), packId, newPackId, newOffsets[i])) {
+                        movedEntries++;
+                    } else {
+                        // Deleted while compacting
+                        packRepository.removeLiveEntry(newPackId, entry.getLength());
+                    }
+                }
+
+                if (movedEntries == 0 && packRepository.remove(newPackId) != null) {
+                    underlyingStore.delete(newPackId);
+                }
+
+                logger.debug("Pack '{}' compacted to pack '{}' ({} -> {} bytes)", packId, newPackId, pack.getSize(),
+                             newSize);
+            } catch (DbException e) {
+                throw new IOException("Unable to save pack '" + newPackId + "' to DB", e);
+            }
+        }
+
+        Pack removedPack;
+        try {
+            removedPack = packRepository.remove(packId);
+        } catch (DbException e) {
+            throw new IOException("Unable to delete pack '" + packId + "' from DB", e);
+        }
+
+        if (removedPack != null) {
+            underlyingStore.delete(packId);
+        } else {
+            logger.debug("Pack '{}' already deleted since it had no more live entries", packId);
+        }
+    }
+
+    private List<PackEntry> findEntries(String packId) throws IOException {
+        List<PackEntry> entries = new ArrayList<>();
+        try {
+            for (PackEntry entry : entryRepository.findByPackId(packId)) {
+                entries.add(entry);
+            }
+        } catch (DbException e) {
+            throw new IOException("Unable to retrieve entries of pack '" + packId + "' from DB", e);
+        }
+
+        return entries;
+    }
+
+}
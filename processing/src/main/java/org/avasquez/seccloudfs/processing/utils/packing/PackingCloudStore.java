@@ -0,0 +1,520 @@
+package org.avasquez.seccloudfs.processing.utils.packing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.impl.AbstractCloudStore;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.Pack;
+import org.avasquez.seccloudfs.processing.db.model.PackEntry;
+import org.avasquez.seccloudfs.processing.db.repos.PackEntryRepository;
+import org.avasquez.seccloudfs.processing.db.repos.PackRepository;
+import org.avasquez.seccloudfs.utils.FileUtils;
+import org.avasquez.seccloudfs.utils.nio.ByteBufferChannel;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * {@link org.avasquez.seccloudfs.cloud.CloudStore} decorator that packs small data together, so that they're
+ * uploaded to the underlying store (and erasure coded) as a single {@link org.avasquez.seccloudfs.processing.db
+ * .model.Pack} object instead of each one becoming several slice objects. Small uploads are appended to the open
+ * pack, which is flushed when it's full, when no upload has been appended to it during the flush idle time, or at
+ * the latest when the flush window since its creation expires, so a lone upload only waits the idle time while a
+ * burst of uploads is still packed together. Uploads don't return until their pack has been flushed, so a successful
+ * upload is always stored in the cloud. Data bigger than the max packed size is uploaded directly to the underlying
+ * store.
+ *
+ * <p>Deleting a packed data just removes its {@link org.avasquez.seccloudfs.processing.db.model.PackEntry}. When a
+ * pack has no entries left it's deleted, and when most of its content is dead it's marked as compactable, for the
+ * {@link org.avasquez.seccloudfs.processing.utils.packing.PackCompactor} to rewrite it. Since the compactor can
+ * delete the same pack at the same time, the pack object is only deleted by whoever removes the pack from the
+ * DB.</p>
+ *
+ * @author avasquez
+ */
+public class PackingCloudStore extends AbstractCloudStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackingCloudStore.class);
+
+    private CloudStore underlyingStore;
+    private PackRepository packRepository;
+    private PackEntryRepository entryRepository;
+    private ScheduledExecutorService flushScheduler;
+    private Executor flushExecutor;
+    private int maxPackedSize;
+    private int packSize;
+    private long flushWindowMillis;
+    private long flushIdleMillis;
+    private double compactionThreshold;
+
+    private Lock lock;
+    private OpenPack openPack;
+
+    public PackingCloudStore() {
+        flushIdleMillis = 100;
+        lock = new ReentrantLock();
+    }
+
+    @Required
+    public void setUnderlyingStore(CloudStore underlyingStore) {
+        this.underlyingStore = underlyingStore;
+    }
+
+    @Required
+    public void setPackRepository(PackRepository packRepository) {
+        this.packRepository = packRepository;
+    }
+
+    @Required
+    public void setEntryRepository(PackEntryRepository entryRepository) {
+        this.entryRepository = entryRepository;
+    }
+
+    @Required
+    public void setFlushScheduler(ScheduledExecutorService flushScheduler) {
+        this.flushScheduler = flushScheduler;
+    }
+
+    /**
+     * Sets the executor where the scheduled flushes run, so that the upload of the pack doesn't block the scheduler.
+     * If not set, the flushes run in the scheduler. The executor shouldn't be the one used by the underlying store for
+     * its transfers, or by the callers of {@link #upload(String, ReadableByteChannel, long)}, since the flush blocks
+     * waiting for the former, and the latter block waiting for the flush.
+     */
+    public void setFlushExecutor(Executor flushExecutor) {
+        this.flushExecutor = flushExecutor;
+    }
+
+    @Required
+    public void setMaxPackedSize(String maxPackedSize) {
+        this.maxPackedSize = (int) FileUtils.humanReadableByteSizeToByteCount(maxPackedSize);
+    }
+
+    @Required
+    public void setPackSize(String packSize) {
+        this.packSize = (int) FileUtils.humanReadableByteSizeToByteCount(packSize);
+    }
+
+    @Required
+    public void setFlushWindowMillis(long flushWindowMillis) {
+        this.flushWindowMillis = flushWindowMillis;
+    }
+
+    /**
+     * Sets how long the open pack waits for a new upload before being flushed, even if the flush window hasn't
+     * expired yet. Defaults to 100 ms.
+     */
+    public void setFlushIdleMillis(long flushIdleMillis) {
+        this.flushIdleMillis = flushIdleMillis;
+    }
+
+    /**
+     * Sets the ratio of live bytes below which a pack is marked as compactable.
+     */
+    @Required
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public String getName() {
+        return underlyingStore.getName();
+    }
+
+    @Override
+    public void upload(String id, ReadableByteChannel src, long length) throws IOException {
+        PackEntry lastEntry = findLastEntry(id);
+
+        if (length > maxPackedSize) {
+            underlyingStore.upload(id, src, length);
+        } else {
+            OpenPack pack = append(id, readFully(src, (int) length));
+
+            pack.awaitFlush();
+
+            if (lastEntry == null && underlyingStore.exists(id)) {
+                deleteUnpackedData(id);
+            }
+        }
+
+        // Delete the last entry just after the new version has been saved, so that no data is lost
+        if (lastEntry != null) {
+            deleteEntry(lastEntry);
+        }
+    }
+
+    @Override
+    public void download(String id, WritableByteChannel target) throws IOException {
+        PackEntry entry = findLastEntry(id);
+        if (entry == null) {
+            underlyingStore.download(id, target);
+            return;
+        }
+
+        ByteBuffer data;
+        try {
+            data = readEntry(entry);
+        } catch (IOException e) {
+            // The pack might have been compacted since the entry was read, so try again with the current entry
+            PackEntry currentEntry = findLastEntry(id);
+            if (currentEntry != null && !currentEntry.getPackId().equals(entry.getPackId())) {
+                data = readEntry(currentEntry);
+            } else {
+                throw e;
+            }
+        }
+
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+    }
+
+    @Override
+    public boolean exists(String id) throws IOException {
+        return findLastEntry(id) != null || underlyingStore.exists(id);
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        PackEntry entry = findLastEntry(id);
+        if (entry != null) {
+            deleteEntry(entry);
+        } else {
+            underlyingStore.delete(id);
+        }
+    }
+
+    private OpenPack append(String id, byte[] data) throws IOException {
+        List<OpenPack> fullPacks = new ArrayList<>(2);
+        final OpenPack pack;
+
+        lock.lock();
+        try {
+            if (openPack != null && openPack.getSize() + data.length > packSize) {
+                fullPacks.add(openPack);
+                openPack = null;
+            }
+
+            if (openPack == null) {
+                openPack = new OpenPack(ObjectId.get().toString());
+
+                scheduleFlush(openPack, Math.min(flushIdleMillis, flushWindowMillis));
+            }
+
+            pack = openPack;
+            pack.add(id, data);
+
+            if (pack.getSize() >= packSize) {
+                fullPacks.add(pack);
+                openPack = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (OpenPack fullPack : fullPacks) {
+            flush(fullPack);
+        }
+
+        return pack;
+    }
+
+    private void scheduleFlush(final OpenPack pack, long delayMillis) {
+        final Runnable flush = new Runnable() {
+
+            @Override
+            public void run() {
+                flush(pack);
+            }
+
+        };
+
+        flushScheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (closeIfDue(pack)) {
+                    if (flushExecutor != null) {
+                        flushExecutor.execute(flush);
+                    } else {
+                        flush.run();
+                    }
+                }
+            }
+
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the pack if it's still open and it has been idle for the flush idle time or open for the flush window,
+     * or else schedules the check again for when one of them expires.
+     *
+     * @return true if the pack was closed and should be flushed
+     */
+    private boolean closeIfDue(OpenPack pack) {
+        lock.lock();
+        try {
+            if (openPack != pack) {
+                // Already flushed because it was full
+                return false;
+            }
+
+            long now = System.nanoTime();
+            long idleDeadline = pack.getLastAppendTime() + TimeUnit.MILLISECONDS.toNanos(flushIdleMillis);
+            long windowDeadline = pack.getCreationTime() + TimeUnit.MILLISECONDS.toNanos(flushWindowMillis);
+            long delay = Math.min(idleDeadline, windowDeadline) - now;
+
+            if (delay > 0) {
+                scheduleFlush(pack, TimeUnit.NANOSECONDS.toMillis(delay) + 1);
+
+                return false;
+            }
+
+            openPack = null;
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush(OpenPack pack) {
+        String packId = pack.getId();
+        byte[] content = pack.getContent();
+        List<PackEntry> insertedEntries = new ArrayList<>();
+        boolean uploaded = false;
+
+        try {
+            underlyingStore.upload(packId, new ByteBufferChannel(ByteBuffer.wrap(content)), content.length);
+
+            uploaded = true;
+
+            try {
+                packRepository.insert(new Pack(packId, content.length, pack.getEntries().size()));
+
+                for (PackEntry entry : pack.getEntries()) {
+                    entryRepository.insert(entry);
+                    insertedEntries.add(entry);
+                }
+            } catch (DbException e) {
+                throw new IOException("Unable to save pack '" + packId + "' to DB", e);
+            }
+
+            logger.debug("Pack '{}' flushed with {} entries ({} bytes)", packId, pack.getEntries().size(),
+                         content.length);
+        } catch (IOException e) {
+            logger.error("Flush of pack '" + packId + "' failed", e);
+
+            pack.setFailure(e);
+
+            rollback(packId, uploaded, insertedEntries);
+        } finally {
+            pack.markFlushed();
+        }
+    }
+
+    private void rollback(String packId, boolean uploaded, List<PackEntry> insertedEntries) {
+        try {
+            for (PackEntry entry : insertedEntries) {
+                entryRepository.delete(entry.getId());
+            }
+
+            packRepository.delete(packId);
+        } catch (DbException e) {
+            logger.error("Unable to delete pack '" + packId + "' from DB", e);
+        }
+
+        if (uploaded) {
+            try {
+                underlyingStore.delete(packId);
+            } catch (IOException e) {
+                logger.error("Unable to delete pack '" + packId + "'", e);
+            }
+        }
+    }
+
+    private ByteBuffer readEntry(PackEntry entry) throws IOException {
+        String packId = entry.getPackId();
+        Pack pack;
+        try {
+            pack = packRepository.find(packId);
+        } catch (DbException e) {
+            throw new IOException("Unable to retrieve pack '" + packId + "' from DB", e);
+        }
+
+        if (pack == null) {
+            throw new IOException("No pack '" + packId + "' found in DB");
+        }
+
+        ByteBuffer content = ByteBuffer.allocate(pack.getSize());
+
+        underlyingStore.download(packId, new ByteBufferChannel(content));
+
+        content.limit(entry.getOffset() + entry.getLength());
+        content.position(entry.getOffset());
+
+        return content;
+    }
+
+    private void deleteEntry(PackEntry entry) throws IOException {
+        PackEntry removedEntry;
+        try {
+            removedEntry = entryRepository.remove(entry.getId());
+        } catch (DbException e) {
+            throw new IOException("Unable to delete pack entry " + entry.getId() + " from DB", e);
+        }
+
+        if (removedEntry != null) {
+            // The entry might have been moved to another pack by compaction, so the removed entry is used
+            releasePackSpace(removedEntry.getPackId(), removedEntry.getLength());
+        }
+    }
+
+    /**
+     * Removes a dead entry from the live size of a pack, deleting the pack if it has no more live entries or marking
+     * it as compactable if its live size is below the threshold.
+     */
+    private void releasePackSpace(String packId, int length) throws IOException {
+        try {
+            Pack pack = packRepository.removeLiveEntry(packId, length);
+            if (pack != null) {
+                if (pack.getLiveEntries() <= 0) {
+                    // Only delete the pack object if the compactor didn't delete the pack in the meantime
+                    if (packRepository.remove(packId) != null) {
+                        underlyingStore.delete(packId);
+
+                        logger.debug("Pack '{}' deleted since it has no more live entries", packId);
+                    }
+                } else if (!pack.isCompactable() && pack.getLiveSize() < pack.getSize() * compactionThreshold) {
+                    packRepository.markCompactable(packId);
+                }
+            }
+        } catch (DbException e) {
+            throw new IOException("Unable to update pack '" + packId + "' in DB", e);
+        }
+    }
+
+    private void deleteUnpackedData(String id) {
+        try {
+            underlyingStore.delete(id);
+
+            logger.debug("Unpacked version of data '{}' deleted", id);
+        } catch (IOException e) {
+            // Not fatal, the data is just orphaned
+            logger.warn("Unable to delete unpacked version of data '" + id + "'", e);
+        }
+    }
+
+    private PackEntry findLastEntry(String id) throws IOException {
+        try {
+            return entryRepository.findLastByDataId(id);
+        } catch (DbException e) {
+            throw new IOException("Unable to retrieve pack entry for data '" + id + "' from DB", e);
+        }
+    }
+
+    private byte[] readFully(ReadableByteChannel src, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (src.read(buffer) < 0) {
+                throw new IOException("Unexpected end of stream: " + buffer.remaining() + " more bytes were " +
+                                      "expected");
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * A pack that's still receiving data and hasn't been flushed.
+     */
+    private static class OpenPack {
+
+        private String id;
+        private ByteArrayOutputStream content;
+        private List<PackEntry> entries;
+        private CountDownLatch flushed;
+        private long creationTime;
+        private long lastAppendTime;
+        private volatile IOException failure;
+
+        private OpenPack(String id) {
+            this.id = id;
+            this.content = new ByteArrayOutputStream();
+            this.entries = new ArrayList<>();
+            this.flushed = new CountDownLatch(1);
+            this.creationTime = System.nanoTime();
+            this.lastAppendTime = creationTime;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        public long getLastAppendTime() {
+            return lastAppendTime;
+        }
+
+        public int getSize() {
+            return content.size();
+        }
+
+        public byte[] getContent() {
+            return content.toByteArray();
+        }
+
+        public List<PackEntry> getEntries() {
+            return entries;
+        }
+
+        public void add(String dataId, byte[] data) {
+            entries.add(new PackEntry(dataId, id, content.size(), data.length));
+            content.write(data, 0, data.length);
+            lastAppendTime = System.nanoTime();
+        }
+
+        public void setFailure(IOException failure) {
+            this.failure = failure;
+        }
+
+        public void markFlushed() {
+            flushed.countDown();
+        }
+
+        public void awaitFlush() throws IOException {
+            try {
+                flushed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new InterruptedIOException("Interrupted while waiting for pack '" + id + "' to be flushed");
+            }
+
+            if (failure != null) {
+                throw new IOException("Flush of pack '" + id + "' failed", failure);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.avasquez.seccloudfs.processing.compression;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.avasquez.seccloudfs.utils.CryptoUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ClassPathResource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.compression.CompressibilityEstimator}.
+ *
+ * @author avasquez
+ */
+public class CompressibilityEstimatorTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private CompressibilityEstimator estimator;
+
+    @Before
+    public void setUp() throws Exception {
+        estimator = new CompressibilityEstimator();
+    }
+
+    @Test
+    public void testTextIsCompressible() throws Exception {
+        byte[] text = FileUtils.readFileToByteArray(new ClassPathResource("gpl-3.0.txt").getFile());
+
+        assertTrue(estimator.isCompressible(text, 0, text.length));
+    }
+
+    @Test
+    public void testRandomDataIsNotCompressible() throws Exception {
+        byte[] data = CryptoUtils.generateRandomBytes(1024 * 1024);
+
+        assertFalse(estimator.isCompressible(data, 0, data.length));
+    }
+
+    @Test
+    public void testEmptyDataIsNotCompressible() throws Exception {
+        assertFalse(estimator.isCompressible(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void testChannel() throws Exception {
+        byte[] text = FileUtils.readFileToByteArray(new ClassPathResource("gpl-3.0.txt").getFile());
+        byte[] random = CryptoUtils.generateRandomBytes(text.length);
+        File file = tmpDir.newFile();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(text));
+
+            assertTrue(estimator.isCompressible(channel, channel.size()));
+            // The position is not changed by the sampling
+            assertEquals(text.length, channel.position());
+
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(random), 0);
+
+            assertFalse(estimator.isCompressible(channel, channel.size()));
+        }
+    }
+
+}
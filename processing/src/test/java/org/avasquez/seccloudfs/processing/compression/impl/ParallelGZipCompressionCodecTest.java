@@ -0,0 +1,131 @@
+package org.avasquez.seccloudfs.processing.compression.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.avasquez.seccloudfs.processing.compression.CompressionCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.compression.impl.ParallelGZipCompressionCodec}.
+ *
+ * @author avasquez
+ */
+public class ParallelGZipCompressionCodecTest {
+
+    private ExecutorService executor;
+    private ParallelGZipCompressionCodec codec;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+
+        codec = new ParallelGZipCompressionCodec();
+        codec.setBlockSize("1KB");
+        codec.setParallelism(4);
+        codec.setExecutor(executor);
+
+        data = FileUtils.readFileToByteArray(new ClassPathResource("gpl-3.0.txt").getFile());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCompressAndDecompress() throws Exception {
+        assertArrayEquals(data, decompress(codec, compress(codec, data)));
+    }
+
+    @Test
+    public void testCompressAndDecompressEmptyData() throws Exception {
+        byte[] compressed = compress(codec, new byte[0]);
+
+        assertArrayEquals(new byte[0], decompress(codec, compressed));
+        assertArrayEquals(new byte[0], IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testCompressedDataIsStandardGZip() throws Exception {
+        byte[] compressed = compress(codec, data);
+
+        assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        assertArrayEquals(data, decompress(new GZipCompressionCodec(), compressed));
+    }
+
+    @Test
+    public void testDecompressPlainGZip() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        }
+
+        assertArrayEquals(data, decompress(codec, compressed.toByteArray()));
+    }
+
+    @Test
+    public void testDecompressCorruptedData() throws Exception {
+        byte[] compressed = compress(codec, data);
+
+        // Corrupt the deflate data of the second member
+        compressed[compressed.length / 2] ^= 0xff;
+
+        try {
+            decompress(codec, compressed);
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDecompressTruncatedData() throws Exception {
+        byte[] compressed = compress(codec, data);
+        byte[] truncated = new byte[compressed.length - 10];
+
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+        try {
+            decompress(codec, truncated);
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+            assertEquals("Compressed data is truncated", e.getMessage());
+        }
+    }
+
+    private byte[] compress(CompressionCodec codec, byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (OutputStream out = codec.compress(compressed)) {
+            out.write(data);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private byte[] decompress(CompressionCodec codec, byte[] compressed) throws IOException {
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+}
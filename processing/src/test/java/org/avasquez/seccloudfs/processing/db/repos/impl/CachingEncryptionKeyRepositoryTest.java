@@ -0,0 +1,182 @@
+package org.avasquez.seccloudfs.processing.db.repos.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.avasquez.seccloudfs.processing.db.model.EncryptionKey;
+import org.avasquez.seccloudfs.processing.db.repos.EncryptionKeyRepository;
+import org.avasquez.seccloudfs.utils.CryptoUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.db.repos.impl.CachingEncryptionKeyRepository}.
+ *
+ * @author avasquez
+ */
+public class CachingEncryptionKeyRepositoryTest {
+
+    private EncryptionKeyRepository actualRepository;
+    private CachingEncryptionKeyRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        actualRepository = mock(EncryptionKeyRepository.class);
+
+        repository = new CachingEncryptionKeyRepository();
+        repository.setActualRepository(actualRepository);
+    }
+
+    @Test
+    public void testFindByDataId() throws Exception {
+        EncryptionKey key = createKey("data1");
+
+        when(actualRepository.findByDataId("data1")).thenReturn(key);
+
+        assertSame(key, repository.findByDataId("data1"));
+        assertSame(key, repository.findByDataId("data1"));
+
+        verify(actualRepository, times(1)).findByDataId("data1");
+    }
+
+    @Test
+    public void testInsert() throws Exception {
+        EncryptionKey key = createKey("data1");
+
+        repository.insert(key);
+
+        assertSame(key, repository.findByDataId("data1"));
+
+        verify(actualRepository).insertAll(Collections.singletonList(key));
+        verify(actualRepository, never()).findByDataId(anyString());
+    }
+
+    @Test
+    public void testConcurrentInsertsAreBatched() throws Exception {
+        final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                batchSizes.add(((Collection<?>) invocation.getArguments()[0]).size());
+
+                if (firstWriteStarted.getCount() > 0) {
+                    firstWriteStarted.countDown();
+
+                    // Keep the write in flight while the other inserts arrive
+                    Thread.sleep(500);
+                }
+
+                return null;
+            }
+
+        }).when(actualRepository).insertAll(anyCollectionOf(EncryptionKey.class));
+
+        List<Thread> threads = new ArrayList<>();
+        threads.add(startInsert(createKey("data0")));
+
+        firstWriteStarted.await();
+
+        for (int i = 1; i <= 5; i++) {
+            threads.add(startInsert(createKey("data" + i)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The inserts that arrived during the first write are written together in the next one
+        assertEquals(Arrays.asList(1, 5), batchSizes);
+
+        for (int i = 0; i <= 5; i++) {
+            assertEquals("data" + i, repository.findByDataId("data" + i).getDataId());
+        }
+
+        verify(actualRepository, never()).findByDataId(anyString());
+    }
+
+    @Test
+    public void testSimultaneousInsertsAreBatched() throws Exception {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                batchSizes.add(((Collection<?>) invocation.getArguments()[0]).size());
+
+                return null;
+            }
+
+        }).when(actualRepository).insertAll(anyCollectionOf(EncryptionKey.class));
+
+        repository.setBatchWindowMillis(10000);
+        repository.setMaxBatchSize(3);
+
+        long start = System.currentTimeMillis();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            threads.add(startInsert(createKey("data" + i)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The first insert waits for the others, and the batch is written as soon as it's full
+        assertEquals(Arrays.asList(3), batchSizes);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public void testDeleteByDataIds() throws Exception {
+        repository.insert(createKey("data1"));
+        repository.insert(createKey("data2"));
+
+        repository.deleteByDataIds(Arrays.asList("data1", "data2"));
+
+        verify(actualRepository).deleteByDataIds(Arrays.asList("data1", "data2"));
+
+        assertNull(repository.findByDataId("data1"));
+        assertNull(repository.findByDataId("data2"));
+
+        verify(actualRepository).findByDataId("data1");
+        verify(actualRepository).findByDataId("data2");
+    }
+
+    private Thread startInsert(final EncryptionKey key) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    repository.insert(key);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+        });
+        thread.start();
+
+        return thread;
+    }
+
+    private EncryptionKey createKey(String dataId) {
+        return new EncryptionKey(dataId, CryptoUtils.generateRandomBytes(16), CryptoUtils.generateRandomBytes(16));
+    }
+
+}
@@ -5,25 +5,49 @@ import org.avasquez.seccloudfs.cloud.CloudStoreRegistry;
 import org.avasquez.seccloudfs.cloud.impl.CloudStoreRegistryImpl;
 import org.avasquez.seccloudfs.erasure.ErasureDecoder;
 import org.avasquez.seccloudfs.erasure.ErasureEncoder;
+import org.avasquez.seccloudfs.processing.compression.impl.GZipCompressionCodec;
 import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
+import org.avasquez.seccloudfs.processing.db.model.Stripe;
 import org.avasquez.seccloudfs.processing.db.model.Upload;
 import org.avasquez.seccloudfs.processing.db.repos.UploadRepository;
 import org.bson.types.ObjectId;
+import org.infinispan.manager.DefaultCacheManager;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.Executors;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
@@ -38,6 +62,7 @@ public class DistributedCloudStoreTest {
     private static final int K = 4;
     private static final int M = 2;
     private static final int SLICE_SIZE = 10000;
+    private static final int STRIPE_SIZE = 10 * 1024;
 
     @Rule
     public TemporaryFolder tmpDir = new TemporaryFolder();
@@ -79,7 +104,7 @@ public class DistributedCloudStoreTest {
         cloudStore.setCloudStoreRegistry(registry);
         cloudStore.setUploadRepository(repository);
 
-        cloudStore.upload(DATA_ID, mock(ReadableByteChannel.class), SLICE_SIZE * K);
+        cloudStore.upload(DATA_ID, createSource(new byte[SLICE_SIZE * K]), SLICE_SIZE * K);
 
         verify(registry.find("store1")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
         verify(registry.find("store2")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
@@ -96,8 +121,8 @@ public class DistributedCloudStoreTest {
         registry.register(createDefaultCloudStore("store1"));
         registry.register(createDefaultCloudStore("store2"));
         registry.register(createFailingCloudStore("store3"));
-        registry.register(createDefaultCloudStore("store4"));
-        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createFailingCloudStore("store4"));
+        registry.register(createFailingCloudStore("store5"));
         registry.register(createDefaultCloudStore("store6"));
 
         UploadRepository repository = mock(UploadRepository.class);
@@ -118,7 +143,7 @@ public class DistributedCloudStoreTest {
         cloudStore.setUploadRepository(repository);
 
         try {
-            cloudStore.upload(DATA_ID, mock(ReadableByteChannel.class), SLICE_SIZE * K);
+            cloudStore.upload(DATA_ID, createSource(new byte[SLICE_SIZE * K]), SLICE_SIZE * K);
             fail("Expected " + IOException.class);
         } catch (IOException e) {
         }
@@ -130,12 +155,103 @@ public class DistributedCloudStoreTest {
         verify(registry.find("store5")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
         verify(registry.find("store6")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
 
-        verify(registry.find("store1")).delete(anyString());
-        verify(registry.find("store2")).delete(anyString());
-        verify(registry.find("store3"), never()).delete(anyString());
-        verify(registry.find("store4")).delete(anyString());
-        verify(registry.find("store5")).delete(anyString());
-        verify(registry.find("store6")).delete(anyString());
+        verify(registry.find("store1")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store2")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store3"), never()).delete(anyCollectionOf(String.class));
+        verify(registry.find("store4"), never()).delete(anyCollectionOf(String.class));
+        verify(registry.find("store5"), never()).delete(anyCollectionOf(String.class));
+        verify(registry.find("store6")).delete(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testUploadWithSomeFailingStores() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createFailingCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        UploadRepository repository = mock(UploadRepository.class);
+        SliceRepairService repairService = mock(SliceRepairService.class);
+        final List<Upload> uploads = new ArrayList<>();
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Upload upload = (Upload) invocation.getArguments()[0];
+                upload.setId(ObjectId.get().toString());
+
+                uploads.add(upload);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setRepairService(repairService);
+
+        cloudStore.upload(DATA_ID, createSource(new byte[SLICE_SIZE * K]), SLICE_SIZE * K);
+
+        // Enough slices to read the data were uploaded, so the upload is kept as degraded and left for repair
+        Upload upload = uploads.get(0);
+
+        assertTrue(upload.isSuccess());
+        assertTrue(upload.isDegraded());
+
+        verify(repairService).requestRepair(eq(upload.getId()), anyCollectionOf(String.class));
+
+        for (CloudStore store : registry.list()) {
+            verify(store).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+            verify(store, never()).delete(anyCollectionOf(String.class));
+        }
+    }
+
+    @Test
+    public void testUploadWithSliceRetries() throws Exception {
+        CloudStore flakyStore = createDefaultCloudStore("store3");
+        doThrow(IOException.class).doNothing().when(flakyStore).upload(anyString(), any(ReadableByteChannel.class),
+                                                                      anyLong());
+
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(flakyStore);
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        UploadRepository repository = mock(UploadRepository.class);
+        final List<Upload> uploads = new ArrayList<>();
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                uploads.add((Upload) invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setMaxSliceRetries(5);
+        cloudStore.setSliceRetryDelayMillis(10);
+
+        cloudStore.upload(DATA_ID, createSource(new byte[SLICE_SIZE * K]), SLICE_SIZE * K);
+
+        Upload upload = uploads.get(0);
+
+        assertTrue(upload.isSuccess());
+        assertFalse(upload.isDegraded());
+
+        verify(flakyStore, times(2)).upload(anyString(), any(ReadableByteChannel.class), anyLong());
     }
 
     @Test
@@ -167,7 +283,7 @@ public class DistributedCloudStoreTest {
         cloudStore.setCloudStoreRegistry(registry);
         cloudStore.setUploadRepository(repository);
 
-        cloudStore.upload(DATA_ID, mock(ReadableByteChannel.class), SLICE_SIZE * K);
+        cloudStore.upload(DATA_ID, createSource(new byte[SLICE_SIZE * K]), SLICE_SIZE * K);
 
         verify(registry.find("store1")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
         verify(registry.find("store2")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
@@ -176,12 +292,12 @@ public class DistributedCloudStoreTest {
         verify(registry.find("store5")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
         verify(registry.find("store6")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
 
-        verify(registry.find("store1")).delete(anyString());
-        verify(registry.find("store2")).delete(anyString());
-        verify(registry.find("store3")).delete(anyString());
-        verify(registry.find("store4")).delete(anyString());
-        verify(registry.find("store5")).delete(anyString());
-        verify(registry.find("store6")).delete(anyString());
+        verify(registry.find("store1")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store2")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store3")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store4")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store5")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store6")).delete(anyCollectionOf(String.class));
     }
 
     @Test
@@ -292,12 +408,651 @@ public class DistributedCloudStoreTest {
 
         cloudStore.delete(DATA_ID);
 
-        verify(registry.find("store1")).delete(anyString());
-        verify(registry.find("store2")).delete(anyString());
-        verify(registry.find("store3")).delete(anyString());
-        verify(registry.find("store4")).delete(anyString());
-        verify(registry.find("store5")).delete(anyString());
-        verify(registry.find("store6")).delete(anyString());
+        verify(registry.find("store1")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store2")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store3")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store4")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store5")).delete(anyCollectionOf(String.class));
+        verify(registry.find("store6")).delete(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testUploadAgainWithChangedStripe() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        final List<Upload> uploads = new ArrayList<>();
+        UploadRepository repository = mock(UploadRepository.class);
+
+        when(repository.findLastSuccessfulByDataId(DATA_ID)).thenAnswer(new Answer<Upload>() {
+
+            @Override
+            public Upload answer(InvocationOnMock invocation) throws Throwable {
+                return uploads.isEmpty() ? null : uploads.get(uploads.size() - 1);
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Upload upload = (Upload) invocation.getArguments()[0];
+                upload.setId(ObjectId.get().toString());
+
+                uploads.add(upload);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setStripeSize("10KB");
+
+        byte[] data = new byte[STRIPE_SIZE * 3];
+
+        cloudStore.upload(DATA_ID, createSource(data), data.length);
+
+        // Change only the second stripe
+        data[STRIPE_SIZE + 1] = 1;
+
+        cloudStore.upload(DATA_ID, createSource(data), data.length);
+
+        Stripe[] lastStripes = uploads.get(0).getStripes();
+        Stripe[] stripes = uploads.get(1).getStripes();
+
+        assertEquals(3, stripes.length);
+
+        for (int i = 0; i < stripes.length; i++) {
+            assertNotSame(lastStripes[i], stripes[i]);
+        }
+
+        // All 3 stripes are uploaded again with K + M slices each, evenly distributed, and the slices of the last
+        // upload are deleted
+        for (CloudStore store : registry.list()) {
+            verify(store, times(6)).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+            verify(store, times(1)).delete(anyCollectionOf(String.class));
+        }
+    }
+
+    @Test
+    public void testUploadWithStripes() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        final List<Upload> uploads = new ArrayList<>();
+        UploadRepository repository = mock(UploadRepository.class);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                uploads.add((Upload) invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setStripeSize("10KB");
+
+        byte[] data = new byte[STRIPE_SIZE * 3];
+
+        cloudStore.upload(DATA_ID, createSource(data), data.length);
+
+        assertEquals(1, uploads.size());
+        assertTrue(uploads.get(0).isSuccess());
+
+        Stripe[] stripes = uploads.get(0).getStripes();
+
+        assertEquals(3, stripes.length);
+
+        for (int i = 0; i < stripes.length; i++) {
+            assertEquals(i * STRIPE_SIZE, stripes[i].getOffset());
+
+            for (SliceMetadata slice : stripes[i].getDataSliceMetadata()) {
+                assertNotNull(slice.getCloudStoreName());
+            }
+            for (SliceMetadata slice : stripes[i].getCodingSliceMetadata()) {
+                assertNotNull(slice.getCloudStoreName());
+            }
+        }
+
+        for (CloudStore store : registry.list()) {
+            verify(store, times(3)).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+        }
+    }
+
+    @Test
+    public void testFailedStripeRollsBackUpload() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+
+        // These stores fail after the first 2 stripes
+        for (int i = 4; i <= 6; i++) {
+            CloudStore store = createDefaultCloudStore("store" + i);
+            doNothing().doNothing().doThrow(IOException.class).when(store).upload(anyString(),
+                                                                                  any(ReadableByteChannel.class),
+                                                                                  anyLong());
+
+            registry.register(store);
+        }
+
+        final List<Upload> uploads = new ArrayList<>();
+        UploadRepository repository = mock(UploadRepository.class);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Upload upload = (Upload) invocation.getArguments()[0];
+                upload.setId(ObjectId.get().toString());
+
+                uploads.add(upload);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setStripeSize("10KB");
+
+        byte[] data = new byte[STRIPE_SIZE * 3];
+
+        try {
+            cloudStore.upload(DATA_ID, createSource(data), data.length);
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+        }
+
+        Upload failedUpload = uploads.get(0);
+
+        assertFalse(failedUpload.isSuccess());
+        assertEquals(3, failedUpload.getStripes().length);
+
+        // The slices of the stripes that were uploaded are deleted
+        verify(repository).delete(failedUpload.getId());
+
+        for (CloudStore store : registry.list()) {
+            verify(store).delete(anyCollectionOf(String.class));
+        }
+    }
+
+    @Test
+    public void testDeleteBatchesSlicesPerStore() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        final List<Upload> uploads = new ArrayList<>();
+        UploadRepository repository = mock(UploadRepository.class);
+
+        when(repository.findLastSuccessfulByDataId(DATA_ID)).thenAnswer(new Answer<Upload>() {
+
+            @Override
+            public Upload answer(InvocationOnMock invocation) throws Throwable {
+                return uploads.isEmpty() ? null : uploads.get(uploads.size() - 1);
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                uploads.add((Upload) invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setStripeSize("10KB");
+
+        cloudStore.upload(DATA_ID, createSource(new byte[STRIPE_SIZE * 3]), STRIPE_SIZE * 3);
+        cloudStore.delete(DATA_ID);
+
+        // Each store has one slice of each of the 3 stripes, which are deleted in a single batch
+        for (CloudStore store : registry.list()) {
+            @SuppressWarnings("unchecked")
+            ArgumentCaptor<Collection<String>> captor = (ArgumentCaptor) ArgumentCaptor.forClass(Collection.class);
+
+            verify(store).delete(captor.capture());
+            verify(store, never()).delete(anyString());
+
+            assertEquals(3, captor.getValue().size());
+        }
+    }
+
+    @Test
+    public void testDownloadWithRemovedStore() throws Exception {
+        CloudStoreRegistry oldRegistry = new CloudStoreRegistryImpl();
+        oldRegistry.register(createDefaultCloudStore("store1"));
+        oldRegistry.register(createDefaultCloudStore("store2"));
+        oldRegistry.register(createDefaultCloudStore("store3"));
+        oldRegistry.register(createDefaultCloudStore("store4"));
+        oldRegistry.register(createDefaultCloudStore("store5"));
+        oldRegistry.register(createDefaultCloudStore("store6"));
+
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        for (int i = 1; i <= 5; i++) {
+            registry.register(oldRegistry.find("store" + i));
+        }
+
+        UploadRepository repository = mock(UploadRepository.class);
+        SliceRepairService repairService = mock(SliceRepairService.class);
+        Upload upload = createDefaultUpload(oldRegistry);
+
+        when(repository.findLastSuccessfulByDataId(DATA_ID)).thenReturn(upload);
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setRepairService(repairService);
+
+        cloudStore.download(DATA_ID, mock(WritableByteChannel.class));
+
+        verify(repairService).requestRepair(eq(upload.getId()), anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testDownloadFromSliceCache() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        final List<Upload> uploads = new ArrayList<>();
+        UploadRepository repository = mock(UploadRepository.class);
+
+        when(repository.findLastSuccessfulByDataId(DATA_ID)).thenAnswer(new Answer<Upload>() {
+
+            @Override
+            public Upload answer(InvocationOnMock invocation) throws Throwable {
+                return uploads.isEmpty() ? null : uploads.get(uploads.size() - 1);
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                uploads.add((Upload) invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        SliceCache sliceCache = new SliceCache();
+        sliceCache.setCacheDir(tmpDir.newFolder().getPath());
+        sliceCache.setMaxSize("1MB");
+        sliceCache.init();
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setSliceCache(sliceCache);
+
+        cloudStore.upload(DATA_ID, createSource(new byte[SLICE_SIZE * K]), SLICE_SIZE * K);
+        cloudStore.download(DATA_ID, mock(WritableByteChannel.class));
+
+        // All slices were cached on upload, so no remote download is needed
+        for (CloudStore store : registry.list()) {
+            verify(store, never()).download(anyString(), any(WritableByteChannel.class));
+        }
+    }
+
+    @Test
+    public void testUploadAndDownloadWithCompression() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        final List<Upload> uploads = new ArrayList<>();
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        UploadRepository repository = mock(UploadRepository.class);
+        ErasureEncoder encoder = mock(ErasureEncoder.class);
+        ErasureDecoder decoder = mock(ErasureDecoder.class);
+
+        when(repository.findLastSuccessfulByDataId(DATA_ID)).thenAnswer(new Answer<Upload>() {
+
+            @Override
+            public Upload answer(InvocationOnMock invocation) throws Throwable {
+                return uploads.isEmpty() ? null : uploads.get(uploads.size() - 1);
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                uploads.add((Upload) invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Upload.class));
+
+        when(encoder.getK()).thenReturn(K);
+        when(encoder.getM()).thenReturn(M);
+        when(decoder.getK()).thenReturn(K);
+        when(decoder.getM()).thenReturn(M);
+        when(encoder.encode(any(ReadableByteChannel.class), anyInt(), any(WritableByteChannel[].class),
+            any(WritableByteChannel[].class))).thenAnswer(new Answer<Integer>() {
+
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                ReadableByteChannel src = (ReadableByteChannel) invocation.getArguments()[0];
+                int size = (Integer) invocation.getArguments()[1];
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+
+                while (buffer.hasRemaining() && src.read(buffer) >= 0) {
+                }
+
+                encoded.write(buffer.array(), 0, buffer.position());
+
+                return SLICE_SIZE;
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                WritableByteChannel target = (WritableByteChannel) invocation.getArguments()[3];
+                target.write(ByteBuffer.wrap(encoded.toByteArray()));
+
+                return null;
+            }
+
+        }).when(decoder).decode(anyInt(), any(ReadableByteChannel[].class), any(ReadableByteChannel[].class),
+                                any(WritableByteChannel.class));
+
+        SliceCache sliceCache = new SliceCache();
+        sliceCache.setCacheDir(tmpDir.newFolder().getPath());
+        sliceCache.setMaxSize("1MB");
+        sliceCache.init();
+
+        cloudStore.setErasureEncoder(encoder);
+        cloudStore.setErasureDecoder(decoder);
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+        cloudStore.setSliceCache(sliceCache);
+        cloudStore.setCompressionCodec(new GZipCompressionCodec());
+
+        byte[] data = new byte[SLICE_SIZE * K];
+        Arrays.fill(data, (byte) 'a');
+
+        cloudStore.upload(DATA_ID, createSource(data), data.length);
+
+        Stripe stripe = uploads.get(0).getStripes()[0];
+
+        // The stripe is compressed once before encoding, and only the compressed bytes are encoded
+        assertEquals(GZipCompressionCodec.NAME, stripe.getCompressionCodec());
+        assertEquals(data.length, stripe.getSize());
+        assertEquals(encoded.size(), stripe.getCompressedSize());
+        assertTrue(stripe.getCompressedSize() < data.length);
+
+        ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+
+        cloudStore.download(DATA_ID, Channels.newChannel(downloaded));
+
+        assertArrayEquals(data, downloaded.toByteArray());
+    }
+
+    @Test
+    public void testDownloadLegacyUpload() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        for (int i = 1; i <= K + M; i++) {
+            registry.register(createLegacyCloudStore("store" + i, (byte) i));
+        }
+
+        UploadRepository repository = mock(UploadRepository.class);
+        ErasureDecoder decoder = mock(ErasureDecoder.class);
+        Upload upload = createLegacyUpload(registry);
+
+        when(repository.findLastSuccessfulByDataId(DATA_ID)).thenReturn(upload);
+        when(decoder.getK()).thenReturn(K);
+        when(decoder.getM()).thenReturn(M);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ReadableByteChannel[] dataSlices = (ReadableByteChannel[]) invocation.getArguments()[1];
+                WritableByteChannel target = (WritableByteChannel) invocation.getArguments()[3];
+
+                for (ReadableByteChannel slice : dataSlices) {
+                    ByteBuffer buffer = ByteBuffer.allocate(SLICE_SIZE);
+
+                    while (buffer.hasRemaining() && slice.read(buffer) >= 0) {
+                    }
+
+                    buffer.flip();
+                    target.write(buffer);
+                }
+
+                return null;
+            }
+
+        }).when(decoder).decode(eq(SLICE_SIZE * K), any(ReadableByteChannel[].class),
+                                any(ReadableByteChannel[].class), any(WritableByteChannel.class));
+
+        cloudStore.setErasureDecoder(decoder);
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+
+        ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+
+        cloudStore.download(DATA_ID, Channels.newChannel(downloaded));
+
+        // The data slices are decompressed before decoding
+        byte[] expected = new byte[SLICE_SIZE * K];
+        for (int i = 0; i < K; i++) {
+            String storeName = upload.getDataSliceMetadata()[i].getCloudStoreName();
+            byte content = Byte.parseByte(storeName.substring("store".length()));
+
+            Arrays.fill(expected, i * SLICE_SIZE, (i + 1) * SLICE_SIZE, content);
+        }
+
+        assertArrayEquals(expected, downloaded.toByteArray());
+    }
+
+    @Test
+    public void testDownloadWithUploadCache() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        UploadRepository repository = mock(UploadRepository.class);
+        DefaultCacheManager cacheManager = new DefaultCacheManager();
+
+        try {
+            cloudStore.setCloudStoreRegistry(registry);
+            cloudStore.setUploadRepository(repository);
+            cloudStore.setCacheContainer(cacheManager);
+
+            cloudStore.upload(DATA_ID, createSource(new byte[SLICE_SIZE * K]), SLICE_SIZE * K);
+            cloudStore.download(DATA_ID, mock(WritableByteChannel.class));
+            cloudStore.download(DATA_ID, mock(WritableByteChannel.class));
+
+            // Only the lookup before the upload goes to the DB, the downloads use the cached upload
+            verify(repository, times(1)).findLastSuccessfulByDataId(DATA_ID);
+
+            cloudStore.delete(DATA_ID);
+
+            try {
+                cloudStore.download(DATA_ID, mock(WritableByteChannel.class));
+                fail("Expected " + IOException.class);
+            } catch (IOException e) {
+            }
+
+            verify(repository, times(2)).findLastSuccessfulByDataId(DATA_ID);
+        } finally {
+            cacheManager.stop();
+        }
+    }
+
+    @Test
+    public void testUploadCacheWithConcurrentDelete() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        final Upload upload = createDefaultUpload(registry);
+        final AtomicInteger lookups = new AtomicInteger();
+        UploadRepository repository = mock(UploadRepository.class);
+        DefaultCacheManager cacheManager = new DefaultCacheManager();
+
+        when(repository.findLastSuccessfulByDataId(DATA_ID)).thenAnswer(new Answer<Upload>() {
+
+            @Override
+            public Upload answer(InvocationOnMock invocation) throws Throwable {
+                switch (lookups.incrementAndGet()) {
+                    case 1:
+                        // The data is deleted after the upload was read from the DB, but before it's cached
+                        cloudStore.delete(DATA_ID);
+
+                        return upload;
+                    case 2:
+                        return upload;
+                    default:
+                        return null;
+                }
+            }
+
+        });
+
+        try {
+            cloudStore.setCloudStoreRegistry(registry);
+            cloudStore.setUploadRepository(repository);
+            cloudStore.setCacheContainer(cacheManager);
+
+            cloudStore.download(DATA_ID, mock(WritableByteChannel.class));
+
+            // The deleted upload wasn't left in the cache
+            try {
+                cloudStore.download(DATA_ID, mock(WritableByteChannel.class));
+                fail("Expected " + IOException.class);
+            } catch (IOException e) {
+            }
+
+            assertEquals(3, lookups.get());
+        } finally {
+            cacheManager.stop();
+        }
+    }
+
+    @Test
+    public void testRepair() throws Exception {
+        CloudStoreRegistry oldRegistry = new CloudStoreRegistryImpl();
+        oldRegistry.register(createDefaultCloudStore("store1"));
+        oldRegistry.register(createDefaultCloudStore("store2"));
+        oldRegistry.register(createDefaultCloudStore("store3"));
+        oldRegistry.register(createDefaultCloudStore("store4"));
+        oldRegistry.register(createDefaultCloudStore("store5"));
+        oldRegistry.register(createDefaultCloudStore("store6"));
+
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        for (int i = 1; i <= 5; i++) {
+            registry.register(oldRegistry.find("store" + i));
+        }
+        registry.register(createDefaultCloudStore("store7"));
+
+        UploadRepository repository = mock(UploadRepository.class);
+        Upload upload = createDefaultUpload(oldRegistry);
+
+        when(repository.find(upload.getId())).thenReturn(upload);
+        when(repository.update(upload)).thenReturn(true);
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+
+        assertEquals(1, cloudStore.repair(upload.getId(), Collections.<String>emptySet()));
+
+        verify(registry.find("store7")).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+        verify(repository).update(upload);
+
+        for (int i = 1; i <= 5; i++) {
+            verify(registry.find("store" + i), never()).upload(anyString(), any(ReadableByteChannel.class),
+                                                               anyLong());
+        }
+
+        List<SliceMetadata> slices = new ArrayList<>();
+        Collections.addAll(slices, upload.getStripes()[0].getDataSliceMetadata());
+        Collections.addAll(slices, upload.getStripes()[0].getCodingSliceMetadata());
+
+        for (SliceMetadata slice : slices) {
+            assertNotEquals("store6", slice.getCloudStoreName());
+        }
+    }
+
+    @Test
+    public void testRepairOnlyConfirmedMissingSlices() throws Exception {
+        CloudStoreRegistry registry = new CloudStoreRegistryImpl();
+        registry.register(createDefaultCloudStore("store1"));
+        registry.register(createDefaultCloudStore("store2"));
+        registry.register(createDefaultCloudStore("store3"));
+        registry.register(createDefaultCloudStore("store4"));
+        registry.register(createDefaultCloudStore("store5"));
+        registry.register(createDefaultCloudStore("store6"));
+
+        UploadRepository repository = mock(UploadRepository.class);
+        Upload upload = createDefaultUpload(registry);
+        SliceMetadata lostSlice = upload.getStripes()[0].getDataSliceMetadata()[0];
+        SliceMetadata unreadableSlice = upload.getStripes()[0].getDataSliceMetadata()[1];
+        String lostSliceId = lostSlice.getId();
+        String unreadableSliceId = unreadableSlice.getId();
+
+        when(repository.find(upload.getId())).thenReturn(upload);
+        when(repository.update(upload)).thenReturn(true);
+        // Both slices failed to download, but only one of them is really gone
+        when(registry.find(lostSlice.getCloudStoreName()).exists(lostSliceId)).thenReturn(false);
+        when(registry.find(unreadableSlice.getCloudStoreName()).exists(unreadableSliceId)).thenReturn(true);
+
+        cloudStore.setCloudStoreRegistry(registry);
+        cloudStore.setUploadRepository(repository);
+
+        assertEquals(1, cloudStore.repair(upload.getId(), new HashSet<>(Arrays.asList(lostSliceId,
+                                                                                       unreadableSliceId))));
+
+        assertNotEquals(lostSliceId, lostSlice.getId());
+        assertEquals(unreadableSliceId, unreadableSlice.getId());
     }
 
     private CloudStore createDefaultCloudStore(final String name) {
@@ -307,6 +1062,37 @@ public class DistributedCloudStoreTest {
         return store;
     }
 
+    /**
+     * Creates a store that returns slices the way they were stored before the data was split in stripes, GZIP
+     * compressed. Every slice of the store is filled with the specified byte.
+     */
+    private CloudStore createLegacyCloudStore(final String name, byte content) throws IOException {
+        byte[] slice = new byte[SLICE_SIZE];
+        Arrays.fill(slice, content);
+
+        ByteArrayOutputStream compressedSlice = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(compressedSlice)) {
+            out.write(slice);
+        }
+
+        final byte[] storedSlice = compressedSlice.toByteArray();
+
+        CloudStore store = createDefaultCloudStore(name);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                WritableByteChannel target = (WritableByteChannel) invocation.getArguments()[1];
+                target.write(ByteBuffer.wrap(storedSlice));
+
+                return null;
+            }
+
+        }).when(store).download(anyString(), any(WritableByteChannel.class));
+
+        return store;
+    }
+
     private CloudStore createFailingCloudStore(final String name) throws IOException {
         CloudStore store = mock(CloudStore.class);
         when(store.getName()).thenReturn(name);
@@ -316,6 +1102,10 @@ public class DistributedCloudStoreTest {
         return store;
     }
 
+    private ReadableByteChannel createSource(byte[] data) {
+        return Channels.newChannel(new ByteArrayInputStream(data));
+    }
+
     private SliceMetadata[] createSliceMetadata(int num, Queue<CloudStore> stores) {
         SliceMetadata[] metadata = new SliceMetadata[num];
 
@@ -331,6 +1121,29 @@ public class DistributedCloudStoreTest {
     private Upload createDefaultUpload(CloudStoreRegistry registry) {
         Queue<CloudStore> stores = new LinkedList<>(registry.list());
 
+        Stripe stripe = new Stripe();
+        stripe.setSize(SLICE_SIZE * K);
+        stripe.setDataSliceMetadata(createSliceMetadata(K, stores));
+        stripe.setCodingSliceMetadata(createSliceMetadata(M, stores));
+
+        Upload upload = new Upload();
+        upload.setId(ObjectId.get().toString());
+        upload.setDataId(DATA_ID);
+        upload.setDataSize(SLICE_SIZE * K);
+        upload.setFinishDate(new Date());
+        upload.setSuccess(true);
+        upload.setStripes(new Stripe[] {stripe});
+
+        return upload;
+    }
+
+    /**
+     * Creates an upload like the ones done before the data was split in stripes, with the slice metadata directly in
+     * the upload.
+     */
+    private Upload createLegacyUpload(CloudStoreRegistry registry) {
+        Queue<CloudStore> stores = new LinkedList<>(registry.list());
+
         Upload upload = new Upload();
         upload.setId(ObjectId.get().toString());
         upload.setDataId(DATA_ID);
@@ -0,0 +1,117 @@
+package org.avasquez.seccloudfs.processing.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.avasquez.seccloudfs.utils.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.impl.SliceCache}.
+ *
+ * @author avasquez
+ */
+public class SliceCacheTest {
+
+    private static final int SLICE_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private SliceCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = createCache();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        byte[] slice = createSliceContent(1);
+
+        cache.put("slice1", createSlice(slice));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(cache.get("slice1", Channels.newChannel(out)));
+        assertArrayEquals(slice, out.toByteArray());
+        assertFalse(cache.get("slice2", Channels.newChannel(new ByteArrayOutputStream())));
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        cache.put("slice1", createSlice(createSliceContent(1)));
+        cache.put("slice2", createSlice(createSliceContent(2)));
+        cache.put("slice3", createSlice(createSliceContent(3)));
+
+        // Access slice1 so that slice2 becomes the LRU
+        cache.get("slice1", Channels.newChannel(new ByteArrayOutputStream()));
+
+        cache.put("slice4", createSlice(createSliceContent(4)));
+
+        assertTrue(cache.contains("slice1"));
+        assertFalse(cache.contains("slice2"));
+        assertTrue(cache.contains("slice3"));
+        assertTrue(cache.contains("slice4"));
+        assertEquals(3 * SLICE_SIZE, cache.getSize());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        cache.put("slice1", createSlice(createSliceContent(1)));
+        cache.remove("slice1");
+
+        assertFalse(cache.contains("slice1"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testReloadAfterRestart() throws Exception {
+        cache.put("slice1", createSlice(createSliceContent(1)));
+        cache.put("slice2", createSlice(createSliceContent(2)));
+
+        SliceCache newCache = createCache();
+
+        assertTrue(newCache.contains("slice1"));
+        assertTrue(newCache.contains("slice2"));
+        assertEquals(2 * SLICE_SIZE, newCache.getSize());
+    }
+
+    private SliceCache createCache() throws Exception {
+        SliceCache cache = new SliceCache();
+        cache.setCacheDir(tmpDir.getRoot().toPath().resolve("cache").toString());
+        cache.setMaxSize("3KB");
+        cache.init();
+
+        return cache;
+    }
+
+    private byte[] createSliceContent(int value) {
+        byte[] content = new byte[SLICE_SIZE];
+        Arrays.fill(content, (byte) value);
+
+        return content;
+    }
+
+    private FileChannel createSlice(byte[] content) throws Exception {
+        Path file = tmpDir.newFile().toPath();
+        FileChannel channel = FileChannel.open(file, FileUtils.TMP_FILE_OPEN_OPTIONS);
+
+        channel.write(ByteBuffer.wrap(content));
+
+        return channel;
+    }
+
+}
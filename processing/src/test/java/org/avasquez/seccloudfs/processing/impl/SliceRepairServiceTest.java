@@ -0,0 +1,99 @@
+package org.avasquez.seccloudfs.processing.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.CloudStoreRegistry;
+import org.avasquez.seccloudfs.exception.DbException;
+import org.avasquez.seccloudfs.processing.db.model.SliceMetadata;
+import org.avasquez.seccloudfs.processing.db.model.Upload;
+import org.avasquez.seccloudfs.processing.db.repos.UploadRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.impl.SliceRepairService}.
+ *
+ * @author avasquez
+ */
+public class SliceRepairServiceTest {
+
+    private UploadRepository uploadRepository;
+    private DistributedCloudStore cloudStore;
+    private SliceRepairService repairService;
+
+    @Before
+    public void setUp() throws Exception {
+        uploadRepository = mock(UploadRepository.class);
+        cloudStore = mock(DistributedCloudStore.class);
+
+        CloudStoreRegistry cloudStoreRegistry = mock(CloudStoreRegistry.class);
+        when(cloudStoreRegistry.find("store1")).thenReturn(mock(CloudStore.class));
+
+        repairService = new SliceRepairService();
+        repairService.setCloudStore(cloudStore);
+        repairService.setUploadRepository(uploadRepository);
+        repairService.setCloudStoreRegistry(cloudStoreRegistry);
+        repairService.setMaxPendingRepairs(10);
+        repairService.setScanBatchSize(2);
+    }
+
+    @Test
+    public void testScanChecksOneBatch() throws Exception {
+        Upload upload1 = createUpload("store1");
+        Upload upload2 = createUpload("store2");
+
+        when(uploadRepository.findSuccessfulByLeastRecentlyChecked(2)).thenReturn(Arrays.asList(upload1, upload2));
+
+        repairService.scanUploads();
+
+        verify(uploadRepository, never()).findAll();
+        verify(uploadRepository).updateLastCheckedDate(eq(Arrays.asList(upload1.getId(), upload2.getId())),
+                                                       any(Date.class));
+
+        // Only the upload with a slice in an unregistered store is queued
+        assertEquals(1, repairService.getPendingRepairs());
+
+        repairService.repairNext();
+
+        verify(cloudStore).repair(eq(upload2.getId()), anySetOf(String.class));
+    }
+
+    @Test
+    public void testScanWithNoUploads() throws Exception {
+        when(uploadRepository.findSuccessfulByLeastRecentlyChecked(2)).thenReturn(Collections.<Upload>emptyList());
+
+        repairService.scanUploads();
+
+        verify(uploadRepository, never()).updateLastCheckedDate(anyCollectionOf(String.class), any(Date.class));
+        assertEquals(0, repairService.getPendingRepairs());
+    }
+
+    @Test
+    public void testScanFailureDoesNotMarkUploadsAsChecked() throws Exception {
+        when(uploadRepository.findSuccessfulByLeastRecentlyChecked(anyInt())).thenThrow(new DbException("Error"));
+
+        repairService.scanUploads();
+
+        verify(uploadRepository, never()).updateLastCheckedDate(anyCollectionOf(String.class), any(Date.class));
+    }
+
+    private Upload createUpload(String cloudStoreName) {
+        SliceMetadata slice = new SliceMetadata();
+        slice.setId(SliceMetadata.generateId());
+        slice.setCloudStoreName(cloudStoreName);
+
+        Upload upload = new Upload();
+        upload.setId(SliceMetadata.generateId());
+        upload.setSuccess(true);
+        upload.setDataSliceMetadata(new SliceMetadata[] {slice});
+
+        return upload;
+    }
+
+}
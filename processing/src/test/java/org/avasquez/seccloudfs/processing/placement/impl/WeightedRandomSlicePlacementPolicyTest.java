@@ -0,0 +1,133 @@
+package org.avasquez.seccloudfs.processing.placement.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.processing.db.model.AccountUsage;
+import org.avasquez.seccloudfs.processing.db.repos.AccountUsageRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.placement.impl.WeightedRandomSlicePlacementPolicy}.
+ *
+ * @author avasquez
+ */
+public class WeightedRandomSlicePlacementPolicyTest {
+
+    private static final long SLICE_SIZE = 1024;
+
+    private WeightedRandomSlicePlacementPolicy policy;
+    private List<CloudStore> stores;
+
+    @Before
+    public void setUp() throws Exception {
+        policy = new WeightedRandomSlicePlacementPolicy();
+        policy.setAccountQuota("10KB");
+        policy.setSameAccountPenalty(0);
+        policy.init();
+
+        stores = Arrays.asList(createStore("gdrive://jdoe/folder1"), createStore("gdrive://jdoe/folder2"),
+                               createStore("dropbox://jdoe/folder1"), createStore("dropbox://jdoe/folder2"),
+                               createStore("amazon://jdoe/bucket1"), createStore("amazon://jdoe/bucket2"));
+    }
+
+    @Test
+    public void testSpreadAcrossAccounts() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            List<CloudStore> placed = policy.placeSlices(stores, 3, SLICE_SIZE);
+            Set<String> accounts = new HashSet<>();
+
+            for (CloudStore store : placed.subList(0, 3)) {
+                accounts.add(store.getName().substring(0, store.getName().lastIndexOf('/')));
+            }
+
+            assertEquals(stores.size(), placed.size());
+            assertEquals(3, accounts.size());
+        }
+    }
+
+    @Test
+    public void testFullAccountsLast() throws Exception {
+        policy.onSliceUploaded("gdrive://jdoe/folder1", 10 * SLICE_SIZE, 1000000);
+
+        for (int i = 0; i < 100; i++) {
+            List<CloudStore> placed = policy.placeSlices(stores, 3, SLICE_SIZE);
+            Set<String> lastStores = new HashSet<>();
+
+            for (CloudStore store : placed.subList(placed.size() - 2, placed.size())) {
+                lastStores.add(store.getName());
+            }
+
+            assertEquals(new HashSet<>(Arrays.asList("gdrive://jdoe/folder1", "gdrive://jdoe/folder2")), lastStores);
+        }
+    }
+
+    @Test
+    public void testUsedSpace() throws Exception {
+        policy.onSliceUploaded("gdrive://jdoe/folder1", SLICE_SIZE, 1000000);
+        policy.onSliceUploaded("gdrive://jdoe/folder2", SLICE_SIZE, 1000000);
+
+        assertEquals(2 * SLICE_SIZE, policy.getUsedSpace("gdrive://jdoe/folder1"));
+        assertEquals(0, policy.getUsedSpace("dropbox://jdoe/folder1"));
+
+        policy.onSliceDeleted("gdrive://jdoe/folder2", SLICE_SIZE);
+
+        assertEquals(SLICE_SIZE, policy.getUsedSpace("gdrive://jdoe/folder1"));
+    }
+
+    @Test
+    public void testPlaceAllStoresWithDistinctSlices() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            List<CloudStore> placed = policy.placeSlices(stores, 3, SLICE_SIZE);
+
+            assertEquals(new HashSet<>(stores), new HashSet<>(placed));
+            assertEquals(stores.size(), placed.size());
+        }
+    }
+
+    @Test
+    public void testUsedSpaceIsLoadedAndSaved() throws Exception {
+        AccountUsageRepository usageRepository = mock(AccountUsageRepository.class);
+        when(usageRepository.findAll()).thenReturn(Arrays.asList(new AccountUsage("gdrive://jdoe", 5 * SLICE_SIZE)));
+
+        policy = new WeightedRandomSlicePlacementPolicy();
+        policy.setAccountQuota("10KB");
+        policy.setUsageRepository(usageRepository);
+        policy.init();
+
+        assertEquals(5 * SLICE_SIZE, policy.getUsedSpace("gdrive://jdoe/folder1"));
+
+        // Nothing changed, so nothing should be saved
+        policy.saveUsedSpace();
+
+        verify(usageRepository, never()).addUsedSpace("gdrive://jdoe", 0);
+
+        policy.onSliceUploaded("gdrive://jdoe/folder1", SLICE_SIZE, 1000000);
+        policy.onSliceUploaded("gdrive://jdoe/folder2", SLICE_SIZE, 1000000);
+        policy.onSliceDeleted("dropbox://jdoe/folder1", SLICE_SIZE);
+        policy.saveUsedSpace();
+
+        assertEquals(7 * SLICE_SIZE, policy.getUsedSpace("gdrive://jdoe/folder1"));
+        verify(usageRepository).addUsedSpace("gdrive://jdoe", 2 * SLICE_SIZE);
+        // The used space of an empty account can't go below zero, so there's nothing to save
+        verify(usageRepository, never()).addUsedSpace("dropbox://jdoe", -SLICE_SIZE);
+    }
+
+    private CloudStore createStore(String name) {
+        CloudStore store = mock(CloudStore.class);
+        when(store.getName()).thenReturn(name);
+
+        return store;
+    }
+
+}
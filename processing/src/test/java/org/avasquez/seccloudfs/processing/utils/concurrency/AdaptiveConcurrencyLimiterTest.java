@@ -0,0 +1,122 @@
+package org.avasquez.seccloudfs.processing.utils.concurrency;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.utils.concurrency.AdaptiveConcurrencyLimiter}.
+ *
+ * @author avasquez
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    private ExecutorService executor;
+    private AdaptiveConcurrencyLimiter limiter;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        limiter = new AdaptiveConcurrencyLimiter(2, 1, 2, 0.5, 2.0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPermitsAreCappedAtLimit() throws Exception {
+        assertEquals(2, limiter.acquire(4));
+        assertEquals(2, limiter.getInFlight());
+
+        Future<Integer> next = acquireAsync(4);
+
+        // No more permits until the wide acquire releases its own
+        Thread.sleep(100);
+
+        assertFalse(next.isDone());
+
+        limiter.release(2, TimeUnit.MILLISECONDS.toNanos(10), -1, false);
+
+        assertEquals(2, next.get(1, TimeUnit.SECONDS).intValue());
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void testWaitersAreAdmittedInOrder() throws Exception {
+        limiter.acquire();
+
+        Future<Integer> wide = acquireAsync(2);
+
+        Thread.sleep(100);
+
+        // There's room for a single permit, but the wide waiter arrived first
+        Future<Integer> narrow = acquireAsync(1);
+
+        Thread.sleep(100);
+
+        assertFalse(wide.isDone());
+        assertFalse(narrow.isDone());
+        assertEquals(1, limiter.getInFlight());
+
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(10), -1, false);
+
+        assertEquals(2, wide.get(1, TimeUnit.SECONDS).intValue());
+
+        Thread.sleep(100);
+
+        assertFalse(narrow.isDone());
+
+        limiter.release(2, TimeUnit.MILLISECONDS.toNanos(10), -1, false);
+
+        assertEquals(1, narrow.get(1, TimeUnit.SECONDS).intValue());
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testInterruptedWaiterDoesNotBlockOthers() throws Exception {
+        limiter.acquire(2);
+
+        Future<Integer> interrupted = acquireAsync(2);
+
+        Thread.sleep(100);
+
+        Future<Integer> next = acquireAsync(1);
+
+        Thread.sleep(100);
+
+        interrupted.cancel(true);
+
+        // Let the interrupted waiter leave the queue before there's room for it
+        Thread.sleep(100);
+
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(2, TimeUnit.MILLISECONDS.toNanos(10), -1, false);
+
+        assertEquals(1, next.get(1, TimeUnit.SECONDS).intValue());
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    private Future<Integer> acquireAsync(final int permits) {
+        return executor.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                return limiter.acquire(permits);
+            }
+
+        });
+    }
+
+}
@@ -0,0 +1,210 @@
+package org.avasquez.seccloudfs.processing.utils.concurrency;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.cloud.ParallelTransferCloudStore;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.utils.concurrency.ConcurrencyLimitingCloudStore}.
+ *
+ * @author avasquez
+ */
+public class ConcurrencyLimitingCloudStoreTest {
+
+    private static final int NUM_UPLOADS = 20;
+
+    private CloudStore underlyingStore;
+    private AtomicInteger inFlight;
+    private AtomicInteger maxInFlight;
+
+    @Before
+    public void setUp() throws Exception {
+        inFlight = new AtomicInteger();
+        maxInFlight = new AtomicInteger();
+
+        underlyingStore = mock(CloudStore.class);
+        stubUpload(underlyingStore);
+        doThrow(IOException.class).when(underlyingStore).delete(anyString());
+    }
+
+    @Test
+    public void testConcurrencyIsLimited() throws Exception {
+        ConcurrencyLimitingCloudStore cloudStore = createCloudStore(2, 1, 2);
+
+        uploadConcurrently(cloudStore);
+
+        assertTrue(maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void testParallelTransferTakesPermitPerRequest() throws Exception {
+        ParallelTransferCloudStore parallelStore = mock(ParallelTransferCloudStore.class);
+        stubUpload(parallelStore);
+        when(parallelStore.getMaxUploadRequests(anyLong())).thenReturn(2);
+
+        underlyingStore = parallelStore;
+
+        ConcurrencyLimitingCloudStore cloudStore = createCloudStore(4, 1, 4);
+
+        uploadConcurrently(cloudStore);
+
+        // Each upload sends 2 requests, so only 2 uploads fit in the limit
+        assertTrue(maxInFlight.get() <= 2);
+        assertEquals(0, cloudStore.getLimiter().getInFlight());
+        verify(parallelStore, times(NUM_UPLOADS)).upload(anyString(), any(ReadableByteChannel.class), anyLong(),
+                                                          eq(2));
+    }
+
+    @Test
+    public void testParallelTransferIsCappedAtLimit() throws Exception {
+        ParallelTransferCloudStore parallelStore = mock(ParallelTransferCloudStore.class);
+        stubUpload(parallelStore);
+        when(parallelStore.getMaxUploadRequests(anyLong())).thenReturn(4);
+
+        underlyingStore = parallelStore;
+
+        ConcurrencyLimitingCloudStore cloudStore = createCloudStore(2, 1, 2);
+
+        cloudStore.upload(ObjectId.get().toString(), mock(ReadableByteChannel.class), 1000);
+
+        // The limit is lower than the requests of the upload, so it's told to send fewer
+        verify(parallelStore).upload(anyString(), any(ReadableByteChannel.class), anyLong(), eq(2));
+        assertEquals(0, cloudStore.getLimiter().getInFlight());
+    }
+
+    @Test
+    public void testLimitIncreasesOnSuccess() throws Exception {
+        ConcurrencyLimitingCloudStore cloudStore = createCloudStore(1, 1, 10);
+
+        uploadConcurrently(cloudStore);
+
+        assertTrue(cloudStore.getLimiter().getLimit() > 1);
+        assertEquals(0, cloudStore.getLimiter().getInFlight());
+    }
+
+    @Test
+    public void testLimitDecreasesOnFailure() throws Exception {
+        ConcurrencyLimitingCloudStore cloudStore = createCloudStore(8, 1, 10);
+
+        try {
+            cloudStore.delete(ObjectId.get().toString());
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+        }
+
+        assertEquals(4, cloudStore.getLimiter().getLimit());
+        assertEquals(0, cloudStore.getLimiter().getInFlight());
+    }
+
+    @Test
+    public void testLimitIsKeptOnNotFound() throws Exception {
+        doThrow(FileNotFoundException.class).when(underlyingStore).download(anyString(),
+                                                                           any(WritableByteChannel.class));
+
+        ConcurrencyLimitingCloudStore cloudStore = createCloudStore(8, 1, 10);
+
+        try {
+            cloudStore.download(ObjectId.get().toString(), mock(WritableByteChannel.class));
+            fail("Expected " + FileNotFoundException.class);
+        } catch (FileNotFoundException e) {
+        }
+
+        assertEquals(8, cloudStore.getLimiter().getLimit());
+        assertEquals(0, cloudStore.getLimiter().getInFlight());
+    }
+
+    private void stubUpload(CloudStore store) throws Exception {
+        Answer<Void> answer = new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                int current = inFlight.incrementAndGet();
+                int max;
+
+                while ((max = maxInFlight.get()) < current && !maxInFlight.compareAndSet(max, current)) {
+                }
+
+                Thread.sleep(20);
+
+                inFlight.decrementAndGet();
+
+                return null;
+            }
+
+        };
+
+        doAnswer(answer).when(store).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+
+        if (store instanceof ParallelTransferCloudStore) {
+            ParallelTransferCloudStore parallelStore = (ParallelTransferCloudStore) store;
+
+            doAnswer(answer).when(parallelStore).upload(anyString(), any(ReadableByteChannel.class), anyLong(), anyInt());
+        }
+    }
+
+    private ConcurrencyLimitingCloudStore createCloudStore(int initialLimit, int minLimit, int maxLimit) {
+        ConcurrencyLimitingCloudStore cloudStore = new ConcurrencyLimitingCloudStore();
+        cloudStore.setUnderlyingStore(underlyingStore);
+        cloudStore.setLimiter(new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxLimit, 0.5, 2.0));
+
+        return cloudStore;
+    }
+
+    private void uploadConcurrently(final CloudStore cloudStore) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_UPLOADS);
+        List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < NUM_UPLOADS; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        cloudStore.upload(ObjectId.get().toString(), mock(ReadableByteChannel.class), 1000);
+
+                        return null;
+                    }
+
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
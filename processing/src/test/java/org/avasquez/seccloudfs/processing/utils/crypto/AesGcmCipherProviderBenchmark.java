@@ -0,0 +1,121 @@
+package org.avasquez.seccloudfs.processing.utils.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.avasquez.seccloudfs.utils.CryptoUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark that compares the {@link org.avasquez.seccloudfs.processing.utils.crypto.AesGcmCipherProvider}
+ * implementations: a chunk of the chunked format (64KB by default) and a whole slice (1MB) are sealed, opened and
+ * encrypted as a stream by each provider. It's not run by the tests, run it with {@link #main(String[])} from the test
+ * classpath.
+ *
+ * @author avasquez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AesGcmCipherProviderBenchmark {
+
+    private static final int KEY_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    private static final int AAD_SIZE = 8;
+
+    @Param({"jca", "bouncycastle"})
+    private String provider;
+
+    @Param({"65536", "1048576"})
+    private int size;
+
+    private AesGcmCipherProvider cipherProvider;
+    private byte[] key;
+    private byte[] nonce;
+    private byte[] aad;
+    private byte[] data;
+    private byte[] sealed;
+    private byte[] buffer;
+    private long counter;
+
+    public static void main(String... args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(AesGcmCipherProviderBenchmark.class.getSimpleName())
+            .build();
+
+        new Runner(options).run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        if (provider.equals("jca")) {
+            cipherProvider = new JcaAesGcmCipherProvider();
+        } else {
+            cipherProvider = new BouncyCastleAesGcmCipherProvider();
+        }
+
+        key = CryptoUtils.generateRandomBytes(KEY_SIZE);
+        nonce = CryptoUtils.generateRandomBytes(NONCE_SIZE);
+        aad = CryptoUtils.generateRandomBytes(AAD_SIZE);
+        data = CryptoUtils.generateRandomBytes(size);
+        sealed = cipherProvider.seal(key, nonce, aad, data, 0, data.length);
+        buffer = new byte[64 * 1024];
+    }
+
+    @Benchmark
+    public byte[] seal() throws IOException {
+        return cipherProvider.seal(key, nextNonce(), aad, data, 0, data.length);
+    }
+
+    @Benchmark
+    public byte[] open() throws IOException {
+        return cipherProvider.open(key, nonce, aad, sealed, 0, sealed.length);
+    }
+
+    @Benchmark
+    public long encryptStream() throws IOException {
+        long total = 0;
+
+        try (InputStream in = cipherProvider.encrypt(new ByteArrayInputStream(data), key, nextNonce())) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                total += read;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Returns a different nonce each time, since the JCA implementation refuses to encrypt twice with the same key
+     * and nonce.
+     */
+    private byte[] nextNonce() {
+        byte[] next = nonce.clone();
+
+        ByteBuffer.wrap(next).putLong(counter++);
+
+        return next;
+    }
+
+}
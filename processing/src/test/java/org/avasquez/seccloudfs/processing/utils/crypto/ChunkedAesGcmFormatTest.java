@@ -0,0 +1,149 @@
+package org.avasquez.seccloudfs.processing.utils.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.avasquez.seccloudfs.utils.CryptoUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.utils.crypto.ChunkedAesGcmFormat}.
+ *
+ * @author avasquez
+ */
+public class ChunkedAesGcmFormatTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int TAG_SIZE = 16;
+
+    private ExecutorService executor;
+    private byte[] key;
+    private byte[] iv;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        key = CryptoUtils.generateRandomBytes(16);
+        iv = CryptoUtils.generateRandomBytes(16);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testEncryptAndDecrypt() throws Exception {
+        ChunkedAesGcmFormat format = new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), CHUNK_SIZE, 4, executor);
+
+        for (int length : new int[] { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 10 + 7 }) {
+            // A new key for each data, since the JCA doesn't allow reusing a key and nonce for encryption
+            key = CryptoUtils.generateRandomBytes(16);
+            iv = CryptoUtils.generateRandomBytes(16);
+
+            byte[] data = CryptoUtils.generateRandomBytes(length);
+            byte[] encrypted = encrypt(format, data);
+
+            assertEquals(format.getEncryptedLength(length), encrypted.length);
+            assertArrayEquals(data, decrypt(format, encrypted));
+        }
+    }
+
+    @Test
+    public void testProvidersAreCompatible() throws Exception {
+        ChunkedAesGcmFormat jcaFormat = new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), CHUNK_SIZE, 4,
+                                                                executor);
+        ChunkedAesGcmFormat bcFormat = new ChunkedAesGcmFormat(new BouncyCastleAesGcmCipherProvider(), CHUNK_SIZE, 1,
+                                                               null);
+        byte[] data = CryptoUtils.generateRandomBytes(CHUNK_SIZE * 5 + 100);
+
+        byte[] jcaEncrypted = encrypt(jcaFormat, data);
+        byte[] bcEncrypted = encrypt(bcFormat, data);
+
+        assertArrayEquals(jcaEncrypted, bcEncrypted);
+        assertArrayEquals(data, decrypt(bcFormat, jcaEncrypted));
+        assertArrayEquals(data, decrypt(jcaFormat, bcEncrypted));
+    }
+
+    @Test
+    public void testDecryptWithModifiedChunk() throws Exception {
+        ChunkedAesGcmFormat format = new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), CHUNK_SIZE, 4, executor);
+        byte[] encrypted = encrypt(format, CryptoUtils.generateRandomBytes(CHUNK_SIZE * 3));
+
+        encrypted[ChunkedAesGcmFormat.HEADER_SIZE + CHUNK_SIZE + TAG_SIZE + 10] ^= 1;
+
+        assertDecryptFails(format, encrypted);
+    }
+
+    @Test
+    public void testDecryptWithTruncatedData() throws Exception {
+        ChunkedAesGcmFormat format = new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), CHUNK_SIZE, 4, executor);
+        byte[] encrypted = encrypt(format, CryptoUtils.generateRandomBytes(CHUNK_SIZE * 3));
+
+        // Cut at a chunk boundary, so only the last chunk flag in the nonces detects it
+        assertDecryptFails(format, Arrays.copyOf(encrypted, ChunkedAesGcmFormat.HEADER_SIZE +
+                                                            2 * (CHUNK_SIZE + TAG_SIZE)));
+    }
+
+    @Test
+    public void testDecryptWithSwappedChunks() throws Exception {
+        ChunkedAesGcmFormat format = new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), CHUNK_SIZE, 4, executor);
+        byte[] encrypted = encrypt(format, CryptoUtils.generateRandomBytes(CHUNK_SIZE * 3));
+        int encryptedChunkSize = CHUNK_SIZE + TAG_SIZE;
+        byte[] swapped = encrypted.clone();
+
+        System.arraycopy(encrypted, ChunkedAesGcmFormat.HEADER_SIZE, swapped,
+                         ChunkedAesGcmFormat.HEADER_SIZE + encryptedChunkSize, encryptedChunkSize);
+        System.arraycopy(encrypted, ChunkedAesGcmFormat.HEADER_SIZE + encryptedChunkSize, swapped,
+                         ChunkedAesGcmFormat.HEADER_SIZE, encryptedChunkSize);
+
+        assertDecryptFails(format, swapped);
+    }
+
+    @Test
+    public void testDecryptWithDifferentChunkSize() throws Exception {
+        ChunkedAesGcmFormat format = new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), CHUNK_SIZE, 4, executor);
+        byte[] encrypted = encrypt(format, CryptoUtils.generateRandomBytes(CHUNK_SIZE * 3));
+
+        assertDecryptFails(new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), CHUNK_SIZE * 2, 4, executor),
+                           encrypted);
+    }
+
+    private byte[] encrypt(ChunkedAesGcmFormat format, byte[] data) throws IOException {
+        return IOUtils.toByteArray(format.encrypt(new ByteArrayInputStream(data), key, iv));
+    }
+
+    private byte[] decrypt(ChunkedAesGcmFormat format, byte[] encrypted) throws IOException {
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+
+        try (OutputStream out = format.decrypt(decrypted, key, iv)) {
+            // Write in odd sizes, so that the writes don't match the chunk boundaries
+            for (int i = 0; i < encrypted.length; i += 333) {
+                out.write(encrypted, i, Math.min(333, encrypted.length - i));
+            }
+        }
+
+        return decrypted.toByteArray();
+    }
+
+    private void assertDecryptFails(ChunkedAesGcmFormat format, byte[] encrypted) {
+        try {
+            decrypt(format, encrypted);
+            fail("Expected " + IOException.class);
+        } catch (IOException e) {
+        }
+    }
+
+}
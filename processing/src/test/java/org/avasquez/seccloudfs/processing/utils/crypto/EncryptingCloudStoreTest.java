@@ -13,6 +13,9 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.crypto.AEADBadTagException;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -43,7 +46,10 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -60,6 +66,7 @@ public class EncryptingCloudStoreTest {
 
     private byte[] key;
     private byte[] iv;
+    private int chunkSize;
     private EncryptionKeyRepository keyRepository;
     private EncryptingCloudStore cloudStore;
     private CloudStore underlyingStore;
@@ -72,7 +79,7 @@ public class EncryptingCloudStoreTest {
 
             @Override
             public EncryptionKey answer(final InvocationOnMock invocation) throws Throwable {
-                return new EncryptionKey(DATA_ID, key, iv);
+                return new EncryptionKey(DATA_ID, key, iv, chunkSize);
             }
 
         });
@@ -82,6 +89,7 @@ public class EncryptingCloudStoreTest {
             public Void answer(InvocationOnMock invocation) throws Throwable {
                 key = ((EncryptionKey)invocation.getArguments()[0]).getKey();
                 iv = ((EncryptionKey)invocation.getArguments()[0]).getIv();
+                chunkSize = ((EncryptionKey)invocation.getArguments()[0]).getChunkSize();
 
                 return null;
             }
@@ -118,11 +126,11 @@ public class EncryptingCloudStoreTest {
         cloudStore = new EncryptingCloudStore();
         cloudStore.setKeyRepository(keyRepository);
         cloudStore.setUnderlyingStore(underlyingStore);
-        cloudStore.setTmpDir(tmpDir.getRoot().getAbsolutePath());
     }
 
     @Test
     public void testUpload() throws Exception {
+        // Encrypted with the default JCA provider and decrypted with BouncyCastle, so both must be compatible
         File rawFile = new ClassPathResource("gpl-3.0.txt").getFile();
         Path rawFilePath = rawFile.toPath();
 
@@ -130,6 +138,10 @@ public class EncryptingCloudStoreTest {
             cloudStore.upload(DATA_ID, channel, channel.size());
         }
 
+        // The data is streamed, so the length of the encrypted data (data + GCM tag) must be known beforehand
+        assertEquals(rawFile.length() + 16, encryptedFile.length());
+        verify(underlyingStore).upload(eq(DATA_ID), any(ReadableByteChannel.class), eq(rawFile.length() + 16));
+
         File decryptedFile = tmpDir.newFile();
 
         decrypt(new FileInputStream(encryptedFile), new FileOutputStream(decryptedFile), key, iv);
@@ -139,6 +151,7 @@ public class EncryptingCloudStoreTest {
 
     @Test
     public void testDownload() throws Exception {
+        // Encrypted with BouncyCastle and decrypted with the default JCA provider, so both must be compatible
         File rawFile = new ClassPathResource("gpl-3.0.txt").getFile();
         encryptedFile = tmpDir.newFile();
         key = CryptoUtils.generateRandomBytes(16);
@@ -176,6 +189,39 @@ public class EncryptingCloudStoreTest {
         File decryptedFile = tmpDir.newFile();
         Path decryptedFilePath = decryptedFile.toPath();
 
+        try (FileChannel channel = FileChannel.open(decryptedFilePath, StandardOpenOption.WRITE)) {
+            cloudStore.download(DATA_ID, channel);
+            fail("Expected exception");
+        } catch (Exception e) {
+            Throwable cause = ExceptionUtils.getRootCause(e);
+
+            assertNotNull(cause);
+            assertTrue(cause.getClass().equals(AEADBadTagException.class));
+        }
+    }
+
+    @Test
+    public void testDownloadWithModifiedDataAndBouncyCastle() throws Exception {
+        cloudStore.setCipherProvider(new BouncyCastleAesGcmCipherProvider());
+
+        File rawFile = new ClassPathResource("gpl-3.0.txt").getFile();
+        encryptedFile = tmpDir.newFile();
+        key = CryptoUtils.generateRandomBytes(16);
+        iv = CryptoUtils.generateRandomBytes(16);
+
+        encrypt(new FileInputStream(rawFile), new FileOutputStream(encryptedFile), key, iv);
+
+        try (FileChannel channel = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(1986);
+            buffer.rewind();
+
+            channel.write(buffer, 1000);
+        }
+
+        File decryptedFile = tmpDir.newFile();
+        Path decryptedFilePath = decryptedFile.toPath();
+
         try (FileChannel channel = FileChannel.open(decryptedFilePath, StandardOpenOption.WRITE)) {
             cloudStore.download(DATA_ID, channel);
             fail("Expected exception");
@@ -188,6 +234,110 @@ public class EncryptingCloudStoreTest {
         }
     }
 
+    @Test
+    public void testUploadAndDownloadWithChunks() throws Exception {
+        File rawFile = new ClassPathResource("gpl-3.0.txt").getFile();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        cloudStore.setChunkSize("1KB");
+        cloudStore.setChunkExecutor(executor);
+
+        try {
+            try (FileChannel channel = FileChannel.open(rawFile.toPath(), StandardOpenOption.READ)) {
+                cloudStore.upload(DATA_ID, channel, channel.size());
+            }
+
+            assertEquals(1024, chunkSize);
+
+            ChunkedAesGcmFormat format = new ChunkedAesGcmFormat(new JcaAesGcmCipherProvider(), 1024, 1, null);
+
+            assertEquals(format.getEncryptedLength(rawFile.length()), encryptedFile.length());
+            verify(underlyingStore).upload(eq(DATA_ID), any(ReadableByteChannel.class), eq(encryptedFile.length()));
+
+            File decryptedFile = tmpDir.newFile();
+
+            try (FileChannel channel = FileChannel.open(decryptedFile.toPath(), StandardOpenOption.WRITE)) {
+                cloudStore.download(DATA_ID, channel);
+            }
+
+            assertArrayEquals(FileUtils.readFileToByteArray(rawFile), FileUtils.readFileToByteArray(decryptedFile));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUploadAndDownloadWithDerivedKey() throws Exception {
+        File rawFile = new ClassPathResource("gpl-3.0.txt").getFile();
+
+        cloudStore.setMasterKey(CryptoUtils.generateRandomBytes(32));
+
+        try (FileChannel channel = FileChannel.open(rawFile.toPath(), StandardOpenOption.READ)) {
+            cloudStore.upload(DATA_ID, channel, channel.size());
+        }
+
+        // Header (magic + salt + chunk size) + data + GCM tag
+        assertEquals(28 + rawFile.length() + 16, encryptedFile.length());
+        verify(underlyingStore).upload(eq(DATA_ID), any(ReadableByteChannel.class), eq(encryptedFile.length()));
+
+        File decryptedFile = tmpDir.newFile();
+
+        try (FileChannel channel = FileChannel.open(decryptedFile.toPath(), StandardOpenOption.WRITE)) {
+            cloudStore.download(DATA_ID, channel);
+        }
+
+        assertArrayEquals(FileUtils.readFileToByteArray(rawFile), FileUtils.readFileToByteArray(decryptedFile));
+
+        verify(keyRepository, never()).insert(any(EncryptionKey.class));
+        verify(keyRepository, never()).findByDataId(anyString());
+    }
+
+    @Test
+    public void testDownloadWithDerivedKeyAndWrongMasterKey() throws Exception {
+        File rawFile = new ClassPathResource("gpl-3.0.txt").getFile();
+
+        cloudStore.setMasterKey(CryptoUtils.generateRandomBytes(32));
+        cloudStore.setChunkSize("1KB");
+
+        try (FileChannel channel = FileChannel.open(rawFile.toPath(), StandardOpenOption.READ)) {
+            cloudStore.upload(DATA_ID, channel, channel.size());
+        }
+
+        cloudStore.setMasterKey(CryptoUtils.generateRandomBytes(32));
+
+        File decryptedFile = tmpDir.newFile();
+
+        try (FileChannel channel = FileChannel.open(decryptedFile.toPath(), StandardOpenOption.WRITE)) {
+            cloudStore.download(DATA_ID, channel);
+            fail("Expected exception");
+        } catch (IOException e) {
+            // The derived key doesn't match, so the first chunk fails authentication
+            assertEquals(0, decryptedFile.length());
+        }
+    }
+
+    @Test
+    public void testDownloadWithRepositoryKeyAndMasterKey() throws Exception {
+        // Data uploaded before the master key was set should still be decrypted with the key in the repository
+        File rawFile = new ClassPathResource("gpl-3.0.txt").getFile();
+
+        try (FileChannel channel = FileChannel.open(rawFile.toPath(), StandardOpenOption.READ)) {
+            cloudStore.upload(DATA_ID, channel, channel.size());
+        }
+
+        cloudStore.setMasterKey(CryptoUtils.generateRandomBytes(32));
+
+        File decryptedFile = tmpDir.newFile();
+
+        try (FileChannel channel = FileChannel.open(decryptedFile.toPath(), StandardOpenOption.WRITE)) {
+            cloudStore.download(DATA_ID, channel);
+        }
+
+        assertArrayEquals(FileUtils.readFileToByteArray(rawFile), FileUtils.readFileToByteArray(decryptedFile));
+
+        verify(keyRepository).findByDataId(DATA_ID);
+    }
+
     private void encrypt(InputStream in, OutputStream out, byte[] key, byte[] iv) throws IOException {
         try (CipherOutputStream cipherOut = new CipherOutputStream(out, createEncryptionCipher(key, iv))) {
             IOUtils.copy(in, cipherOut);
@@ -0,0 +1,505 @@
+package org.avasquez.seccloudfs.processing.utils.dedup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.processing.db.model.Chunk;
+import org.avasquez.seccloudfs.processing.db.model.ChunkManifest;
+import org.avasquez.seccloudfs.processing.db.repos.ChunkManifestRepository;
+import org.avasquez.seccloudfs.processing.db.repos.ChunkRepository;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.utils.dedup.DeduplicatingCloudStore}.
+ *
+ * @author avasquez
+ */
+public class DeduplicatingCloudStoreTest {
+
+    private static final int DATA_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 2 * 1024;
+    private static final int AVG_CHUNK_SIZE = 8 * 1024;
+    private static final int MAX_CHUNK_SIZE = 32 * 1024;
+    private static final int NUM_CHUNK_LOCKS = 64;
+
+    private Map<String, byte[]> storedData;
+    private Map<String, Chunk> chunks;
+    private List<ChunkManifest> manifests;
+    private CloudStore underlyingStore;
+    private DeduplicatingCloudStore cloudStore;
+    private ExecutorService executor;
+    private volatile String blockedChunkId;
+    private CountDownLatch uploadBlocked;
+    private CountDownLatch uploadUnblocked;
+
+    @Before
+    public void setUp() throws Exception {
+        uploadBlocked = new CountDownLatch(1);
+        uploadUnblocked = new CountDownLatch(1);
+        storedData = new ConcurrentHashMap<>();
+        chunks = new ConcurrentHashMap<>();
+        manifests = new ArrayList<>();
+        underlyingStore = createUnderlyingStore();
+
+        cloudStore = new DeduplicatingCloudStore();
+        cloudStore.setUnderlyingStore(underlyingStore);
+        cloudStore.setChunkRepository(createChunkRepository());
+        cloudStore.setManifestRepository(createManifestRepository());
+        cloudStore.setMinChunkSize("2KB");
+        cloudStore.setAvgChunkSize("8KB");
+        cloudStore.setMaxChunkSize("32KB");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testChunkSizes() throws Exception {
+        byte[] data = createRandomData(DATA_SIZE, 1);
+        ContentDefinedChunker chunker = new ContentDefinedChunker(Channels.newChannel(new ByteArrayInputStream(data)),
+                                                                  data.length, MIN_CHUNK_SIZE, AVG_CHUNK_SIZE,
+                                                                  MAX_CHUNK_SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int numChunks = 0;
+
+        ByteBuffer chunk;
+        while ((chunk = chunker.nextChunk()) != null) {
+            assertTrue(chunk.remaining() <= MAX_CHUNK_SIZE);
+
+            out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            numChunks++;
+        }
+
+        assertArrayEquals(data, out.toByteArray());
+        // Normalized chunking should keep the number of chunks around DATA_SIZE / AVG_CHUNK_SIZE
+        assertTrue(numChunks > DATA_SIZE / MAX_CHUNK_SIZE);
+        assertTrue(numChunks < DATA_SIZE / MIN_CHUNK_SIZE);
+    }
+
+    @Test
+    public void testUploadAndDownload() throws Exception {
+        String dataId = ObjectId.get().toString();
+        byte[] data = createRandomData(DATA_SIZE, 1);
+
+        upload(dataId, data);
+
+        assertArrayEquals(data, download(dataId));
+    }
+
+    @Test
+    public void testIdenticalDataIsStoredOnce() throws Exception {
+        String dataId1 = ObjectId.get().toString();
+        String dataId2 = ObjectId.get().toString();
+        byte[] data = createRandomData(DATA_SIZE, 1);
+
+        upload(dataId1, data);
+
+        int numChunks = storedData.size();
+
+        upload(dataId2, data);
+
+        assertEquals(numChunks, storedData.size());
+        for (Chunk chunk : chunks.values()) {
+            assertEquals(2, chunk.getRefCount());
+        }
+
+        cloudStore.delete(dataId1);
+
+        assertEquals(numChunks, storedData.size());
+        assertArrayEquals(data, download(dataId2));
+
+        cloudStore.delete(dataId2);
+
+        assertTrue(storedData.isEmpty());
+        assertTrue(chunks.isEmpty());
+        assertTrue(manifests.isEmpty());
+    }
+
+    @Test
+    public void testReuploadStoresOnlyChangedChunks() throws Exception {
+        String dataId = ObjectId.get().toString();
+        byte[] data = createRandomData(DATA_SIZE, 1);
+        byte[] modifiedData = new byte[data.length + 10];
+
+        // Insert 10 bytes in the middle of the data, which shifts all the bytes after them
+        System.arraycopy(data, 0, modifiedData, 0, DATA_SIZE / 2);
+        System.arraycopy(data, DATA_SIZE / 2, modifiedData, DATA_SIZE / 2 + 10, DATA_SIZE / 2);
+
+        upload(dataId, data);
+
+        int numChunks = storedData.size();
+
+        upload(dataId, modifiedData);
+
+        // Only the chunks around the change should have been uploaded and the replaced ones deleted
+        verify(underlyingStore, atMost(numChunks + 3)).upload(anyString(), any(ReadableByteChannel.class),
+                                                              anyLong());
+        assertTrue(Math.abs(storedData.size() - numChunks) <= 2);
+        assertEquals(1, manifests.size());
+        assertArrayEquals(modifiedData, download(dataId));
+    }
+
+    @Test
+    public void testConcurrentChunkTransfers() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+
+        cloudStore.setTaskExecutor(executor);
+        cloudStore.setMaxConcurrentChunks(4);
+
+        String dataId1 = ObjectId.get().toString();
+        String dataId2 = ObjectId.get().toString();
+        byte[] data = createRandomData(DATA_SIZE, 1);
+        byte[] block = createRandomData(MAX_CHUNK_SIZE, 2);
+        byte[] repeatedData = new byte[block.length * 8];
+
+        for (int i = 0; i < 8; i++) {
+            System.arraycopy(block, 0, repeatedData, i * block.length, block.length);
+        }
+
+        upload(dataId1, data);
+
+        int numChunks = storedData.size();
+
+        upload(dataId2, repeatedData);
+
+        assertArrayEquals(data, download(dataId1));
+        assertArrayEquals(repeatedData, download(dataId2));
+
+        cloudStore.delete(dataId2);
+
+        assertEquals(numChunks, storedData.size());
+        assertArrayEquals(data, download(dataId1));
+    }
+
+    @Test
+    public void testChunkUploadDoesNotHoldLock() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+
+        byte[] data1 = createRandomData(1024, 1);
+        String chunkId1 = fingerprint(data1);
+        byte[] data2;
+        long seed = 2;
+
+        // Small data is a single chunk, so look for data whose chunk shares the lock of the first one
+        do {
+            data2 = createRandomData(1024, seed++);
+        } while (getLockIndex(fingerprint(data2)) != getLockIndex(chunkId1));
+
+        blockedChunkId = chunkId1;
+
+        Future<Void> upload1 = uploadAsync(ObjectId.get().toString(), data1);
+
+        assertTrue(uploadBlocked.await(5, TimeUnit.SECONDS));
+
+        // Same chunk, so it should wait for the first upload instead of uploading the chunk again
+        Future<Void> upload2 = uploadAsync(ObjectId.get().toString(), data1);
+
+        // Different chunk with the same lock, it shouldn't wait for the first upload
+        uploadAsync(ObjectId.get().toString(), data2).get(5, TimeUnit.SECONDS);
+
+        assertFalse(upload1.isDone());
+        assertFalse(upload2.isDone());
+
+        uploadUnblocked.countDown();
+
+        upload1.get(5, TimeUnit.SECONDS);
+        upload2.get(5, TimeUnit.SECONDS);
+
+        verify(underlyingStore).upload(eq(chunkId1), any(ReadableByteChannel.class), anyLong());
+        assertEquals(2, chunks.get(chunkId1).getRefCount());
+    }
+
+    @Test
+    public void testUploadDeletesOnlyExistingUnchunkedData() throws Exception {
+        String dataId1 = ObjectId.get().toString();
+        String dataId2 = ObjectId.get().toString();
+        byte[] data = createRandomData(DATA_SIZE, 1);
+
+        // New data, so there's nothing unchunked to delete
+        upload(dataId1, data);
+
+        verify(underlyingStore, never()).delete(dataId1);
+
+        // Data uploaded before deduplication, which is replaced by the chunked version
+        storedData.put(dataId2, createRandomData(1024, 2));
+
+        upload(dataId2, data);
+
+        verify(underlyingStore).delete(dataId2);
+        assertFalse(storedData.containsKey(dataId2));
+        assertArrayEquals(data, download(dataId2));
+    }
+
+    @Test
+    public void testDownloadUnchunkedData() throws Exception {
+        String dataId = ObjectId.get().toString();
+        byte[] data = createRandomData(1024, 1);
+
+        storedData.put(dataId, data);
+
+        assertArrayEquals(data, download(dataId));
+    }
+
+    @Test
+    public void testRepeatedChunksAreDownloadedOnce() throws Exception {
+        String dataId = ObjectId.get().toString();
+        byte[] block = createRandomData(MAX_CHUNK_SIZE, 1);
+        byte[] data = new byte[block.length * 4];
+
+        for (int i = 0; i < 4; i++) {
+            System.arraycopy(block, 0, data, i * block.length, block.length);
+        }
+
+        upload(dataId, data);
+
+        assertArrayEquals(data, download(dataId));
+        verify(underlyingStore, times(storedData.size())).download(anyString(), any(WritableByteChannel.class));
+    }
+
+    private void upload(String dataId, byte[] data) throws Exception {
+        cloudStore.upload(dataId, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+    }
+
+    private Future<Void> uploadAsync(final String dataId, final byte[] data) {
+        return executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                upload(dataId, data);
+
+                return null;
+            }
+
+        });
+    }
+
+    private byte[] download(String dataId) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        cloudStore.download(dataId, Channels.newChannel(out));
+
+        return out.toByteArray();
+    }
+
+    private byte[] createRandomData(int size, long seed) {
+        byte[] data = new byte[size];
+
+        new Random(seed).nextBytes(data);
+
+        return data;
+    }
+
+    private String fingerprint(byte[] data) throws Exception {
+        return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(data)));
+    }
+
+    private int getLockIndex(String chunkId) {
+        return (chunkId.hashCode() & Integer.MAX_VALUE) % NUM_CHUNK_LOCKS;
+    }
+
+    private CloudStore createUnderlyingStore() throws Exception {
+        CloudStore store = mock(CloudStore.class);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                String id = (String) invocation.getArguments()[0];
+                ReadableByteChannel src = (ReadableByteChannel) invocation.getArguments()[1];
+
+                if (id.equals(blockedChunkId)) {
+                    uploadBlocked.countDown();
+                    uploadUnblocked.await();
+                }
+
+                storedData.put(id, IOUtils.toByteArray(Channels.newInputStream(src)));
+
+                return null;
+            }
+
+        }).when(store).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                String id = (String) invocation.getArguments()[0];
+                WritableByteChannel target = (WritableByteChannel) invocation.getArguments()[1];
+
+                target.write(ByteBuffer.wrap(storedData.get(id)));
+
+                return null;
+            }
+
+        }).when(store).download(anyString(), any(WritableByteChannel.class));
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                storedData.remove(invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(store).delete(anyString());
+        when(store.exists(anyString())).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                return storedData.containsKey(invocation.getArguments()[0]);
+            }
+
+        });
+
+        return store;
+    }
+
+    private ChunkRepository createChunkRepository() throws Exception {
+        ChunkRepository repository = mock(ChunkRepository.class);
+
+        when(repository.incrementRefCount(anyString())).thenAnswer(new Answer<Chunk>() {
+
+            @Override
+            public Chunk answer(InvocationOnMock invocation) throws Throwable {
+                Chunk chunk = chunks.get(invocation.getArguments()[0]);
+                if (chunk != null) {
+                    chunk.setRefCount(chunk.getRefCount() + 1);
+                }
+
+                return chunk;
+            }
+
+        });
+        when(repository.decrementRefCount(anyString())).thenAnswer(new Answer<Chunk>() {
+
+            @Override
+            public Chunk answer(InvocationOnMock invocation) throws Throwable {
+                Chunk chunk = chunks.get(invocation.getArguments()[0]);
+                if (chunk != null) {
+                    chunk.setRefCount(chunk.getRefCount() - 1);
+                }
+
+                return chunk;
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Chunk chunk = (Chunk) invocation.getArguments()[0];
+                chunks.put(chunk.getId(), chunk);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Chunk.class));
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                chunks.remove(invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(repository).delete(anyString());
+
+        return repository;
+    }
+
+    private ChunkManifestRepository createManifestRepository() throws Exception {
+        ChunkManifestRepository repository = mock(ChunkManifestRepository.class);
+
+        when(repository.findLastByDataId(anyString())).thenAnswer(new Answer<ChunkManifest>() {
+
+            @Override
+            public ChunkManifest answer(InvocationOnMock invocation) throws Throwable {
+                ChunkManifest last = null;
+
+                for (ChunkManifest manifest : manifests) {
+                    if (manifest.getDataId().equals(invocation.getArguments()[0])) {
+                        last = manifest;
+                    }
+                }
+
+                return last;
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ChunkManifest manifest = (ChunkManifest) invocation.getArguments()[0];
+                manifest.setId(ObjectId.get().toString());
+
+                manifests.add(manifest);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(ChunkManifest.class));
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                for (int i = 0; i < manifests.size(); i++) {
+                    if (manifests.get(i).getId().equals(invocation.getArguments()[0])) {
+                        manifests.remove(i);
+                        break;
+                    }
+                }
+
+                return null;
+            }
+
+        }).when(repository).delete(anyString());
+
+        return repository;
+    }
+
+}
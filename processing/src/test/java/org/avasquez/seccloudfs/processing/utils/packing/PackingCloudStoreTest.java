@@ -0,0 +1,512 @@
+package org.avasquez.seccloudfs.processing.utils.packing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.commons.io.IOUtils;
+import org.avasquez.seccloudfs.cloud.CloudStore;
+import org.avasquez.seccloudfs.processing.db.model.Pack;
+import org.avasquez.seccloudfs.processing.db.model.PackEntry;
+import org.avasquez.seccloudfs.processing.db.repos.PackEntryRepository;
+import org.avasquez.seccloudfs.processing.db.repos.PackRepository;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link org.avasquez.seccloudfs.processing.utils.packing.PackingCloudStore} and
+ * {@link org.avasquez.seccloudfs.processing.utils.packing.PackCompactor}.
+ *
+ * @author avasquez
+ */
+public class PackingCloudStoreTest {
+
+    private static final int NUM_SMALL_DATA = 10;
+    private static final int SMALL_DATA_SIZE = 1000;
+
+    private Map<String, byte[]> storedData;
+    private Map<String, Pack> packs;
+    private Map<String, PackEntry> entries;
+    private CloudStore underlyingStore;
+    private ScheduledExecutorService flushScheduler;
+    private PackingCloudStore cloudStore;
+    private PackCompactor compactor;
+
+    @Before
+    public void setUp() throws Exception {
+        storedData = new ConcurrentHashMap<>();
+        packs = new ConcurrentHashMap<>();
+        entries = new ConcurrentHashMap<>();
+        underlyingStore = createUnderlyingStore();
+        flushScheduler = Executors.newSingleThreadScheduledExecutor();
+
+        PackRepository packRepository = createPackRepository();
+        PackEntryRepository entryRepository = createEntryRepository();
+
+        cloudStore = new PackingCloudStore();
+        cloudStore.setUnderlyingStore(underlyingStore);
+        cloudStore.setPackRepository(packRepository);
+        cloudStore.setEntryRepository(entryRepository);
+        cloudStore.setFlushScheduler(flushScheduler);
+        cloudStore.setMaxPackedSize("2KB");
+        cloudStore.setPackSize("100KB");
+        cloudStore.setFlushWindowMillis(200);
+        cloudStore.setCompactionThreshold(0.5);
+
+        compactor = new PackCompactor();
+        compactor.setUnderlyingStore(underlyingStore);
+        compactor.setPackRepository(packRepository);
+        compactor.setEntryRepository(entryRepository);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        flushScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testSmallUploadsArePacked() throws Exception {
+        Map<String, byte[]> data = uploadSmallData();
+
+        assertEquals(1, packs.size());
+        assertEquals(NUM_SMALL_DATA, entries.size());
+        verify(underlyingStore, times(1)).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            assertArrayEquals(entry.getValue(), download(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testLargeUploadIsNotPacked() throws Exception {
+        String dataId = ObjectId.get().toString();
+        byte[] data = createRandomData(4096);
+
+        upload(dataId, data);
+
+        assertTrue(packs.isEmpty());
+        assertArrayEquals(data, storedData.get(dataId));
+        assertArrayEquals(data, download(dataId));
+    }
+
+    @Test
+    public void testPackIsDeletedWithLastEntry() throws Exception {
+        Map<String, byte[]> data = uploadSmallData();
+        String packId = packs.keySet().iterator().next();
+
+        for (String dataId : data.keySet()) {
+            cloudStore.delete(dataId);
+        }
+
+        assertTrue(packs.isEmpty());
+        assertTrue(entries.isEmpty());
+        assertFalse(storedData.containsKey(packId));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Map<String, byte[]> data = uploadSmallData();
+        String packId = packs.keySet().iterator().next();
+        List<String> dataIds = new ArrayList<>(data.keySet());
+
+        // Delete more than half of the data
+        for (String dataId : dataIds.subList(0, 6)) {
+            cloudStore.delete(dataId);
+            data.remove(dataId);
+        }
+
+        assertTrue(packs.get(packId).isCompactable());
+
+        compactor.compactPacks();
+
+        assertEquals(1, packs.size());
+        assertFalse(packs.containsKey(packId));
+        assertFalse(storedData.containsKey(packId));
+
+        Pack newPack = packs.values().iterator().next();
+
+        assertEquals(4 * SMALL_DATA_SIZE, newPack.getSize());
+        assertEquals(4, newPack.getLiveEntries());
+
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            assertArrayEquals(entry.getValue(), download(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testLoneUploadIsFlushedWhenIdle() throws Exception {
+        cloudStore.setFlushWindowMillis(10000);
+        cloudStore.setFlushIdleMillis(50);
+
+        String dataId = ObjectId.get().toString();
+        byte[] data = createRandomData(SMALL_DATA_SIZE);
+        long start = System.currentTimeMillis();
+
+        upload(dataId, data);
+
+        // Flushed after the idle time, without waiting for the whole window
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(1, packs.size());
+        assertArrayEquals(data, download(dataId));
+    }
+
+    @Test
+    public void testUploadDeletesOnlyExistingUnpackedData() throws Exception {
+        String dataId1 = ObjectId.get().toString();
+        String dataId2 = ObjectId.get().toString();
+        byte[] data = createRandomData(SMALL_DATA_SIZE);
+
+        // New data, so there's nothing unpacked to delete
+        upload(dataId1, data);
+
+        verify(underlyingStore, never()).delete(dataId1);
+
+        // Data uploaded before packing, which is replaced by the packed version
+        storedData.put(dataId2, createRandomData(SMALL_DATA_SIZE));
+
+        upload(dataId2, data);
+
+        verify(underlyingStore).delete(dataId2);
+        assertFalse(storedData.containsKey(dataId2));
+        assertArrayEquals(data, download(dataId2));
+    }
+
+    @Test
+    public void testPackDeletedDuringCompactionIsDeletedOnce() throws Exception {
+        final Map<String, byte[]> data = uploadSmallData();
+        final String packId = packs.keySet().iterator().next();
+        final byte[] packContent = storedData.get(packId);
+        List<String> dataIds = new ArrayList<>(data.keySet());
+
+        for (String dataId : dataIds.subList(0, 6)) {
+            cloudStore.delete(dataId);
+            data.remove(dataId);
+        }
+
+        // The remaining entries are deleted while the compactor downloads the pack, which deletes the pack too
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                for (String dataId : data.keySet()) {
+                    cloudStore.delete(dataId);
+                }
+
+                ((WritableByteChannel) invocation.getArguments()[1]).write(ByteBuffer.wrap(packContent));
+
+                return null;
+            }
+
+        }).when(underlyingStore).download(eq(packId), any(WritableByteChannel.class));
+
+        compactor.compactPacks();
+
+        verify(underlyingStore, times(1)).delete(packId);
+        assertTrue(packs.isEmpty());
+        assertTrue(entries.isEmpty());
+        assertTrue(storedData.isEmpty());
+    }
+
+    private Map<String, byte[]> uploadSmallData() throws Exception {
+        final Map<String, byte[]> data = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_SMALL_DATA);
+        List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < NUM_SMALL_DATA; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        String dataId = ObjectId.get().toString();
+                        byte[] content = createRandomData(SMALL_DATA_SIZE);
+
+                        upload(dataId, content);
+                        data.put(dataId, content);
+
+                        return null;
+                    }
+
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return data;
+    }
+
+    private void upload(String dataId, byte[] data) throws Exception {
+        cloudStore.upload(dataId, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+    }
+
+    private byte[] download(String dataId) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        cloudStore.download(dataId, Channels.newChannel(out));
+
+        return out.toByteArray();
+    }
+
+    private byte[] createRandomData(int size) {
+        byte[] data = new byte[size];
+
+        new Random().nextBytes(data);
+
+        return data;
+    }
+
+    private CloudStore createUnderlyingStore() throws Exception {
+        CloudStore store = mock(CloudStore.class);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                String id = (String) invocation.getArguments()[0];
+                ReadableByteChannel src = (ReadableByteChannel) invocation.getArguments()[1];
+
+                storedData.put(id, IOUtils.toByteArray(Channels.newInputStream(src)));
+
+                return null;
+            }
+
+        }).when(store).upload(anyString(), any(ReadableByteChannel.class), anyLong());
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                String id = (String) invocation.getArguments()[0];
+                WritableByteChannel target = (WritableByteChannel) invocation.getArguments()[1];
+
+                target.write(ByteBuffer.wrap(storedData.get(id)));
+
+                return null;
+            }
+
+        }).when(store).download(anyString(), any(WritableByteChannel.class));
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                storedData.remove(invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(store).delete(anyString());
+        when(store.exists(anyString())).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                return storedData.containsKey(invocation.getArguments()[0]);
+            }
+
+        });
+
+        return store;
+    }
+
+    private PackRepository createPackRepository() throws Exception {
+        PackRepository repository = mock(PackRepository.class);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Pack pack = (Pack) invocation.getArguments()[0];
+                packs.put(pack.getId(), pack);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(Pack.class));
+        when(repository.find(anyString())).thenAnswer(new Answer<Pack>() {
+
+            @Override
+            public Pack answer(InvocationOnMock invocation) throws Throwable {
+                return packs.get(invocation.getArguments()[0]);
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                packs.remove(invocation.getArguments()[0]);
+
+                return null;
+            }
+
+        }).when(repository).delete(anyString());
+        when(repository.remove(anyString())).thenAnswer(new Answer<Pack>() {
+
+            @Override
+            public Pack answer(InvocationOnMock invocation) throws Throwable {
+                return packs.remove(invocation.getArguments()[0]);
+            }
+
+        });
+        when(repository.removeLiveEntry(anyString(), anyInt())).thenAnswer(new Answer<Pack>() {
+
+            @Override
+            public Pack answer(InvocationOnMock invocation) throws Throwable {
+                synchronized (packs) {
+                    Pack pack = packs.get(invocation.getArguments()[0]);
+                    if (pack != null) {
+                        pack.setLiveSize(pack.getLiveSize() - (Integer) invocation.getArguments()[1]);
+                        pack.setLiveEntries(pack.getLiveEntries() - 1);
+                    }
+
+                    return pack;
+                }
+            }
+
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                packs.get(invocation.getArguments()[0]).setCompactable(true);
+
+                return null;
+            }
+
+        }).when(repository).markCompactable(anyString());
+        when(repository.findCompactable()).thenAnswer(new Answer<Iterable<Pack>>() {
+
+            @Override
+            public Iterable<Pack> answer(InvocationOnMock invocation) throws Throwable {
+                List<Pack> compactable = new ArrayList<>();
+
+                for (Pack pack : packs.values()) {
+                    if (pack.isCompactable()) {
+                        compactable.add(pack);
+                    }
+                }
+
+                return compactable;
+            }
+
+        });
+
+        return repository;
+    }
+
+    private PackEntryRepository createEntryRepository() throws Exception {
+        PackEntryRepository repository = mock(PackEntryRepository.class);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                PackEntry entry = (PackEntry) invocation.getArguments()[0];
+                entry.setId(ObjectId.get().toString());
+
+                entries.put(entry.getId(), entry);
+
+                return null;
+            }
+
+        }).when(repository).insert(any(PackEntry.class));
+        when(repository.findLastByDataId(anyString())).thenAnswer(new Answer<PackEntry>() {
+
+            @Override
+            public PackEntry answer(InvocationOnMock invocation) throws Throwable {
+                PackEntry last = null;
+
+                for (PackEntry entry : entries.values()) {
+                    if (entry.getDataId().equals(invocation.getArguments()[0]) &&
+                        (last == null || entry.getId().compareTo(last.getId()) > 0)) {
+                        last = entry;
+                    }
+                }
+
+                return last;
+            }
+
+        });
+        when(repository.findByPackId(anyString())).thenAnswer(new Answer<Iterable<PackEntry>>() {
+
+            @Override
+            public Iterable<PackEntry> answer(InvocationOnMock invocation) throws Throwable {
+                List<PackEntry> packEntries = new ArrayList<>();
+
+                for (PackEntry entry : entries.values()) {
+                    if (entry.getPackId().equals(invocation.getArguments()[0])) {
+                        packEntries.add(entry);
+                    }
+                }
+
+                return packEntries;
+            }
+
+        });
+        when(repository.remove(anyString())).thenAnswer(new Answer<PackEntry>() {
+
+            @Override
+            public PackEntry answer(InvocationOnMock invocation) throws Throwable {
+                return entries.remove(invocation.getArguments()[0]);
+            }
+
+        });
+        when(repository.move(anyString(), anyString(), anyString(), anyInt())).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                PackEntry entry = entries.get(args[0]);
+
+                if (entry != null && entry.getPackId().equals(args[1])) {
+                    entry.setPackId((String) args[2]);
+                    entry.setOffset((Integer) args[3]);
+
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+
+        });
+
+        return repository;
+    }
+
+}